@@ -9,4 +9,28 @@ import java.util.List;
 public interface AStarGraph<Vertex> {
     List<WeightedEdge<Vertex>> neighbors(Vertex v);
     double estimatedDistanceToGoal(Vertex s, Vertex goal);
+
+    /* Returns the cost of traversing E. Graphs that can be searched under more than one cost
+       model override this instead of creating new edges per model. */
+    default double weight(WeightedEdge<Vertex> e) {
+        return e.weight();
+    }
+
+    /* Returns whether E may be traversed. Graphs that share their edges between several modes
+       of travel override this so the solver can skip edges the current mode may not use. */
+    default boolean isTraversable(WeightedEdge<Vertex> e) {
+        return true;
+    }
+
+    /* Returns whether some turn from IN onto a following edge is forbidden, i.e. whether a
+       search must remember that it arrived over IN rather than just where it arrived. */
+    default boolean hasTurnRestrictions(WeightedEdge<Vertex> in) {
+        return false;
+    }
+
+    /* Returns whether a path arriving over IN may continue over OUT, where OUT leaves the
+       vertex IN leads to. Only asked when hasTurnRestrictions(IN) is true. */
+    default boolean isTurnAllowed(WeightedEdge<Vertex> in, WeightedEdge<Vertex> out) {
+        return true;
+    }
 }
@@ -7,20 +7,58 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
+/**
+ * A* search over an AStarGraph. A search state is usually just a vertex. When the graph has turn
+ * restrictions, arriving at a vertex over an edge that restricts the next turn instead gives an
+ * Arrival state for that edge, so the search is edge-based only where it needs to be and is
+ * exactly the plain node-based search on graphs without restrictions.
+ */
 public class AStarSolver<Vertex> implements ShortestPathsSolver<Vertex> {
     private SolverOutcome outcome;
     private LinkedList<Vertex> solution;
     private double solutionWeight;
     private int numStatesExplored;
+    private int pqPeakSize;
     private double explorationTime;
-    private HashMap<Vertex, Double> distTo;
-    private HashMap<Vertex, Vertex> edgeTo;
-    private ArrayHeapMinPQ<Vertex> pq;
+    /* Keyed by search state: a Vertex, or an Arrival at the vertex an edge leads to. */
+    private HashMap<Object, Double> distTo;
+    private HashMap<Object, Object> edgeTo;
+    private ArrayHeapMinPQ<Object> pq;
+    private SolverListener<Vertex> listener;
+
+    /* The state of having arrived over EDGE, when EDGE restricts the turns that may follow it.
+       Two arrivals are the same state when they are over the same edge object. */
+    private static class Arrival<Vertex> {
+        private final WeightedEdge<Vertex> edge;
+
+        Arrival(WeightedEdge<Vertex> edge) {
+            this.edge = edge;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Arrival && ((Arrival<?>) o).edge == edge;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(edge);
+        }
+    }
 
     /* AStarSolver: Constructor which finds the solution, computing everything necessary for all
        other methods to return their results in constant time. Note that timeout passed in is in
        seconds. */
     public AStarSolver(AStarGraph<Vertex> input, Vertex start, Vertex end, double timeout) {
+        this(input, start, end, timeout, null);
+    }
+
+    /* Same as above, but reports every settle and successful relaxation to LISTENER, which may
+       be null. */
+    public AStarSolver(AStarGraph<Vertex> input, Vertex start, Vertex end, double timeout,
+                       SolverListener<Vertex> listener) {
+        this.listener = listener;
+        double timeoutMillis = timeout * 1000;
         double startTime = System.currentTimeMillis();
         double currentTime = startTime;
 
@@ -35,29 +73,39 @@ public class AStarSolver<Vertex> implements ShortestPathsSolver<Vertex> {
         distTo.put(start, 0.0);
         pq.add(start, 0);
 
-        while (pq.size() > 0 && !pq.getSmallest().equals(end) && (currentTime - startTime) < timeout) {
-            Vertex current = pq.removeSmallest();
+        while (pq.size() > 0 && !vertexOf(pq.getSmallest()).equals(end)
+                && (currentTime - startTime) < timeoutMillis) {
+            Object currentState = pq.removeSmallest();
+            Vertex current = vertexOf(currentState);
+            WeightedEdge<Vertex> in = arrivalEdgeOf(currentState);
+            if (listener != null) {
+                listener.onSettle(current, distTo.get(currentState), pq.size());
+            }
             List<WeightedEdge<Vertex>> edgeNeighbors = input.neighbors(current);
             for (WeightedEdge<Vertex> e : edgeNeighbors) {
+                if (!input.isTraversable(e) || (in != null && !input.isTurnAllowed(in, e))) {
+                    continue;
+                }
                 double edgeEndToGoalDist = input.estimatedDistanceToGoal(e.to(), end);
-                relax(e, edgeEndToGoalDist);
+                relax(input, currentState, e, edgeEndToGoalDist);
             }
+            pqPeakSize = Math.max(pqPeakSize, pq.size());
             numStatesExplored += 1;
             currentTime = System.currentTimeMillis();
         }
 
-        if ((currentTime - startTime) >= timeout) {
+        if ((currentTime - startTime) >= timeoutMillis) {
             outcome = SolverOutcome.TIMEOUT;
         } else if (pq.size() == 0) {
             outcome = SolverOutcome.UNSOLVABLE;
         } else {
             outcome = SolverOutcome.SOLVED;
-            solutionWeight = distTo.get(end);
+            Object current = pq.getSmallest();
+            solutionWeight = distTo.get(current);
             solution.addFirst(end);
-            Vertex current = end;
             while (!current.equals(start)) {
                 current = edgeTo.get(current);
-                solution.addFirst(current);
+                solution.addFirst(vertexOf(current));
             }
         }
 
@@ -65,10 +113,11 @@ public class AStarSolver<Vertex> implements ShortestPathsSolver<Vertex> {
         explorationTime = (currentTime - startTime) / 1000.0;
     }
 
-    private void relax(WeightedEdge<Vertex> e, double bToGoalDist) {
-        Vertex a = e.from();
-        Vertex b = e.to();
-        double w = e.weight();
+    /* Relaxes E out of the search state A. */
+    private void relax(AStarGraph<Vertex> input, Object a, WeightedEdge<Vertex> e,
+                       double bToGoalDist) {
+        Object b = input.hasTurnRestrictions(e) ? new Arrival<>(e) : e.to();
+        double w = input.weight(e);
         if (!distTo.containsKey(b)) {
             double distToB = distTo.get(a) + w;
             double bPriority = distToB + bToGoalDist;
@@ -76,6 +125,9 @@ public class AStarSolver<Vertex> implements ShortestPathsSolver<Vertex> {
             distTo.put(b, distToB);
             edgeTo.put(b, a);
             pq.add(b, bPriority);
+            if (listener != null) {
+                listener.onRelax(e.from(), e.to(), distToB);
+            }
         } else if (distTo.get(a) + w < distTo.get(b)) {
             double distToB = distTo.get(a) + w;
             double bPriority = distToB + bToGoalDist;
@@ -83,9 +135,31 @@ public class AStarSolver<Vertex> implements ShortestPathsSolver<Vertex> {
             distTo.put(b, distToB);
             edgeTo.put(b, a);
             pq.changePriority(b, bPriority);
+            if (listener != null) {
+                listener.onRelax(e.from(), e.to(), distToB);
+            }
         }
     }
 
+    /* Returns the vertex the search is at in STATE. */
+    @SuppressWarnings("unchecked")
+    private Vertex vertexOf(Object state) {
+        if (state instanceof Arrival) {
+            return ((Arrival<Vertex>) state).edge.to();
+        }
+        return (Vertex) state;
+    }
+
+    /* Returns the edge the search arrived over in STATE if it restricts the next turn, or null
+       if any turn may follow. */
+    @SuppressWarnings("unchecked")
+    private WeightedEdge<Vertex> arrivalEdgeOf(Object state) {
+        if (state instanceof Arrival) {
+            return ((Arrival<Vertex>) state).edge;
+        }
+        return null;
+    }
+
     /* Returns one of SolverOutcome.SOLVED, SolverOutcome.TIMEOUT, or SolverOutcome.UNSOLVABLE.
        Should be SOLVED if the AStarSolver was able to complete all work in the time given.
        UNSOLVABLE if the priority queue became empty. TIMEOUT if the solver ran out of time. */
@@ -114,6 +188,11 @@ public class AStarSolver<Vertex> implements ShortestPathsSolver<Vertex> {
         return numStatesExplored;
     }
 
+    /* Returns the largest number of vertices that were in the priority queue at once. */
+    public int pqPeakSize() {
+        return pqPeakSize;
+    }
+
     /* Returns the total time spent in seconds by the constructor. */
     @Override
     public double explorationTime() {
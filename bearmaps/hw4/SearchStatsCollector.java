@@ -0,0 +1,55 @@
+package bearmaps.hw4;
+
+import java.util.Arrays;
+
+/**
+ * A SolverListener that counts settled vertices and successful relaxations, and records the
+ * size of the priority queue after every settle so its growth can be plotted. A search with
+ * turn restrictions settles a vertex once for each restricted road it is reached along, so
+ * each of those settles is counted, as the solver counts the states it explored.
+ */
+public class SearchStatsCollector<Vertex> implements SolverListener<Vertex> {
+    private int numSettled;
+    private int numRelaxed;
+    private int[] pqSizes = new int[64];
+
+    @Override
+    public void onSettle(Vertex v, double distTo, int pqSize) {
+        if (numSettled == pqSizes.length) {
+            pqSizes = Arrays.copyOf(pqSizes, 2 * pqSizes.length);
+        }
+        pqSizes[numSettled] = pqSize;
+        numSettled += 1;
+    }
+
+    @Override
+    public void onRelax(Vertex a, Vertex b, double distTo) {
+        numRelaxed += 1;
+    }
+
+    /* Returns the number of vertices settled, counting a vertex settled more than once each
+       time. */
+    public int numSettled() {
+        return numSettled;
+    }
+
+    /* Returns the number of relaxations that improved a distance, each of which queued its
+       vertex or moved it up the queue. */
+    public int numRelaxed() {
+        return numRelaxed;
+    }
+
+    /* Returns the priority queue size after each settle, in order. */
+    public int[] pqSizes() {
+        return Arrays.copyOf(pqSizes, numSettled);
+    }
+
+    /* Returns the largest priority queue size seen after a settle. */
+    public int pqPeakSize() {
+        int peak = 0;
+        for (int i = 0; i < numSettled; i += 1) {
+            peak = Math.max(peak, pqSizes[i]);
+        }
+        return peak;
+    }
+}
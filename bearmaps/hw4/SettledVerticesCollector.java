@@ -0,0 +1,64 @@
+package bearmaps.hw4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A SolverListener that records every settled vertex in order, and can export them as GeoJSON
+ * so the space a search explored can be overlaid on a map when tuning heuristics. It keeps the
+ * counts of a SearchStatsCollector too.
+ */
+public class SettledVerticesCollector<Vertex> extends SearchStatsCollector<Vertex> {
+    private List<Vertex> settled = new ArrayList<>();
+    private List<Double> settledDistTo = new ArrayList<>();
+
+    @Override
+    public void onSettle(Vertex v, double distTo, int pqSize) {
+        super.onSettle(v, distTo, pqSize);
+        settled.add(v);
+        settledDistTo.add(distTo);
+    }
+
+    /* Returns the settled vertices in the order they were settled. A vertex the search reached
+       along more than one road with turn restrictions may appear more than once. */
+    public List<Vertex> settled() {
+        return settled;
+    }
+
+    /**
+     * Returns the settled vertices as a GeoJSON FeatureCollection of Points, one per vertex,
+     * each with its settle "order" and "dist_to" as properties. The collection is built of maps
+     * and lists, to be serialized along with the rest of a response.
+     * @param lon Gives the longitude of a vertex.
+     * @param lat Gives the latitude of a vertex.
+     */
+    public Map<String, Object> toGeoJson(ToDoubleFunction<Vertex> lon,
+                                         ToDoubleFunction<Vertex> lat) {
+        List<Map<String, Object>> features = new ArrayList<>(settled.size());
+        for (int i = 0; i < settled.size(); i += 1) {
+            Vertex v = settled.get(i);
+            Map<String, Object> geometry = new HashMap<>();
+            geometry.put("type", "Point");
+            geometry.put("coordinates",
+                    new double[]{lon.applyAsDouble(v), lat.applyAsDouble(v)});
+
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("order", i);
+            properties.put("dist_to", settledDistTo.get(i));
+
+            Map<String, Object> feature = new HashMap<>();
+            feature.put("type", "Feature");
+            feature.put("geometry", geometry);
+            feature.put("properties", properties);
+            features.add(feature);
+        }
+
+        Map<String, Object> collection = new HashMap<>();
+        collection.put("type", "FeatureCollection");
+        collection.put("features", features);
+        return collection;
+    }
+}
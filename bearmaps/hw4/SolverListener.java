@@ -0,0 +1,15 @@
+package bearmaps.hw4;
+
+/**
+ * Receives the events of a shortest paths search as it runs, e.g. to count work or to record
+ * which part of the graph a search explored. A solver given no listener skips the calls
+ * entirely, so searches that are not being watched pay nothing.
+ */
+public interface SolverListener<Vertex> {
+    /* Called when V is removed from the priority queue, with its final distance from the start
+       and the number of vertices still in the queue. */
+    void onSettle(Vertex v, double distTo, int pqSize);
+
+    /* Called when the edge from A to B improves the best known distance to B. */
+    void onRelax(Vertex a, Vertex b, double distTo);
+}
@@ -8,6 +8,7 @@ public class WeightedEdge<Vertex> {
     private Vertex v;
     private Vertex w;
     private double weight;
+    private int id = -1;
 
     private String name;
 
@@ -26,6 +27,15 @@ public class WeightedEdge<Vertex> {
         return weight;
     }
 
+    /* Returns the index of this edge in its graph's per-edge arrays, or -1 if it has none. */
+    public int id() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
     public String getName() {
         return name;
     }
@@ -0,0 +1,109 @@
+package bearmaps.hw4.streetmap;
+
+import bearmaps.hw4.AStarGraph;
+import bearmaps.hw4.WeightedEdge;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A StreetMapGraph as searched by one RoutingProfile under one CostModel, flattened into
+ * primitive arrays for searches that visit much of the graph, e.g. isochrones. Vertices are
+ * numbered from 0 to numVertices() - 1, and the edges leaving vertex v occupy the slots from
+ * edgeStart(v) to edgeEnd(v) - 1, which give each edge's head vertex and weight. Only edges the
+ * profile may traverse are included. Turn restrictions are not represented.
+ */
+public class CompactGraph {
+    private final long[] ids;
+    private final double[] lons;
+    private final double[] lats;
+    private final Map<Long, Integer> indices = new HashMap<>();
+    /* edgeStarts[v] is the first edge slot of vertex v; edgeStarts[numVertices] ends the last. */
+    private final int[] edgeStarts;
+    private final int[] heads;
+    private final double[] weights;
+
+    CompactGraph(StreetMapGraph g, RoutingProfile profile, CostModel cost) {
+        AStarGraph<Long> view = g.withProfile(profile, cost);
+        List<Node> nodes = g.getNodes();
+        int n = nodes.size();
+        ids = new long[n];
+        lons = new double[n];
+        lats = new double[n];
+        for (int v = 0; v < n; v += 1) {
+            Node node = nodes.get(v);
+            ids[v] = node.id();
+            lons[v] = node.lon();
+            lats[v] = node.lat();
+            indices.put(node.id(), v);
+        }
+
+        edgeStarts = new int[n + 1];
+        for (int v = 0; v < n; v += 1) {
+            int count = 0;
+            for (WeightedEdge<Long> e : view.neighbors(ids[v])) {
+                if (view.isTraversable(e)) {
+                    count += 1;
+                }
+            }
+            edgeStarts[v + 1] = edgeStarts[v] + count;
+        }
+        heads = new int[edgeStarts[n]];
+        weights = new double[edgeStarts[n]];
+        for (int v = 0; v < n; v += 1) {
+            int slot = edgeStarts[v];
+            for (WeightedEdge<Long> e : view.neighbors(ids[v])) {
+                if (view.isTraversable(e)) {
+                    heads[slot] = indices.get(e.to());
+                    weights[slot] = view.weight(e);
+                    slot += 1;
+                }
+            }
+        }
+    }
+
+    /** Returns the number of vertices. */
+    public int numVertices() {
+        return ids.length;
+    }
+
+    /** Returns the index of the vertex with the given id, or -1 if there is none. */
+    public int index(long id) {
+        Integer index = indices.get(id);
+        return index == null ? -1 : index;
+    }
+
+    /** Returns the id of vertex V. */
+    public long id(int v) {
+        return ids[v];
+    }
+
+    public double lon(int v) {
+        return lons[v];
+    }
+
+    public double lat(int v) {
+        return lats[v];
+    }
+
+    /** Returns the first edge slot of vertex V. */
+    public int edgeStart(int v) {
+        return edgeStarts[v];
+    }
+
+    /** Returns one past the last edge slot of vertex V. */
+    public int edgeEnd(int v) {
+        return edgeStarts[v + 1];
+    }
+
+    /** Returns the vertex the edge in SLOT leads to. */
+    public int head(int slot) {
+        return heads[slot];
+    }
+
+    /** Returns the weight of the edge in SLOT. */
+    public double weight(int slot) {
+        return weights[slot];
+    }
+}
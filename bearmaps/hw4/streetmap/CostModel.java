@@ -0,0 +1,11 @@
+package bearmaps.hw4.streetmap;
+
+/**
+ * What a route through a StreetMapGraph minimizes.
+ */
+public enum CostModel {
+    /** Total length of the route, in miles. */
+    DISTANCE,
+    /** Total driving time of the route, in seconds, from each road's speed limit or class. */
+    TRAVEL_TIME
+}
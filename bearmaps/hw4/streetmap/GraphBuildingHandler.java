@@ -1,6 +1,6 @@
 package bearmaps.hw4.streetmap;
 
-
+import bearmaps.hw4.WeightedEdge;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
@@ -28,22 +28,109 @@ import java.util.*;
  */
 public class GraphBuildingHandler extends DefaultHandler {
     /**
-     * Only allow for non-service roads; this prevents going on pedestrian streets as much as
-     * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
+     * Only allow cars on non-service roads; this prevents going on pedestrian streets as much
+     * as possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
      * roads, but in practice we walk all over them with such impunity that we forget cars can
      * actually drive on them.
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
+    private static final Set<String> CAR_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
             ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
                     "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
                     "secondary_link", "tertiary_link"));
+    /** Bikes may use any car road but a motorway, and cycleways, paths and tracks. */
+    private static final Set<String> BIKE_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
+            ("trunk", "primary", "secondary", "tertiary", "unclassified", "residential",
+                    "living_street", "trunk_link", "primary_link", "secondary_link",
+                    "tertiary_link", "cycleway", "path", "track"));
+    /** Pedestrians may use any car road but a motorway or trunk road, and footpaths. */
+    private static final Set<String> WALK_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
+            ("primary", "secondary", "tertiary", "unclassified", "residential", "living_street",
+                    "primary_link", "secondary_link", "tertiary_link", "footway", "pedestrian",
+                    "path", "steps", "track"));
+    /**
+     * Values of the access, motor_vehicle, bicycle and foot tags that forbid or allow travel,
+     * overriding the highway type. See
+     * <a href="http://wiki.openstreetmap.org/wiki/Key:access">the access tag</a>.
+     */
+    private static final Set<String> DENIED_ACCESS = new HashSet<>(Arrays.asList
+            ("no", "private", "dismount", "use_sidepath"));
+    private static final Set<String> ALLOWED_ACCESS = new HashSet<>(Arrays.asList
+            ("yes", "designated", "permissive", "destination"));
+    /**
+     * Typical speeds in mph of each allowed highway type, used when a way has no usable
+     * maxspeed tag. See <a href="http://wiki.openstreetmap.org/wiki/Key:maxspeed">the
+     * maxspeed tag</a>.
+     */
+    private static final Map<String, Double> DEFAULT_SPEEDS_MPH = new HashMap<>();
+    static {
+        DEFAULT_SPEEDS_MPH.put("motorway", 65.0);
+        DEFAULT_SPEEDS_MPH.put("trunk", 55.0);
+        DEFAULT_SPEEDS_MPH.put("primary", 40.0);
+        DEFAULT_SPEEDS_MPH.put("secondary", 35.0);
+        DEFAULT_SPEEDS_MPH.put("tertiary", 30.0);
+        DEFAULT_SPEEDS_MPH.put("unclassified", 25.0);
+        DEFAULT_SPEEDS_MPH.put("residential", 25.0);
+        DEFAULT_SPEEDS_MPH.put("living_street", 10.0);
+        DEFAULT_SPEEDS_MPH.put("motorway_link", 45.0);
+        DEFAULT_SPEEDS_MPH.put("trunk_link", 40.0);
+        DEFAULT_SPEEDS_MPH.put("primary_link", 30.0);
+        DEFAULT_SPEEDS_MPH.put("secondary_link", 25.0);
+        DEFAULT_SPEEDS_MPH.put("tertiary_link", 25.0);
+    }
+    /** Values of the oneway tag for ways that may only be travelled along, or against, the
+     *  order of their nodes. See <a href="http://wiki.openstreetmap.org/wiki/Key:oneway">the
+     *  oneway tag</a>. */
+    private static final Set<String> ONEWAY_FORWARD = new HashSet<>(Arrays.asList
+            ("yes", "true", "1"));
+    private static final Set<String> ONEWAY_BACKWARD = new HashSet<>(Arrays.asList
+            ("-1", "reverse"));
+    private static final double KMH_PER_MPH = 1.609344;
+    private static final double KNOTS_PER_MPH = 0.868976;
+    /* Turns by fewer degrees than this are straight on, and by more than U_TURN_DEGREES are
+       U-turns; the rest are left or right turns. */
+    private static final double STRAIGHT_DEGREES = 45;
+    private static final double U_TURN_DEGREES = 135;
     private String activeState = "";
     private Node activeNode = null;
-    private boolean validWay = false;
     private List<Long> nodePath = new ArrayList<>();
     private final StreetMapGraph g;
 
     private String wayName = "";
+    private String wayHighway = "";
+    private String wayMaxSpeed = null;
+    private String wayAccess = null;
+    private String wayMotorVehicleAccess = null;
+    private String wayBicycleAccess = null;
+    private String wayFootAccess = null;
+    private long wayId = 0;
+    private String wayOneway = null;
+    private String wayBicycleOneway = null;
+    private String wayJunction = null;
+
+    /* The nodes of every way that was added to the graph, for resolving turn restrictions
+       once all ways are read. */
+    private final Map<Long, long[]> wayNodes = new HashMap<>();
+    private final List<Restriction> restrictions = new ArrayList<>();
+    private Restriction activeRestriction = null;
+    private boolean restrictionApplies = false;
+
+    /**
+     * A turn restriction relation with a via node. See
+     * <a href="http://wiki.openstreetmap.org/wiki/Relation:restriction">the restriction
+     * relation</a>. Restrictions with a via way are rare and not supported.
+     */
+    private static class Restriction {
+        private long fromWay = -1;
+        private long viaNode = -1;
+        private long toWay = -1;
+        /* Whether the turn is the only one allowed (only_*), rather than forbidden (no_*). */
+        private boolean only = false;
+        /* The turn named, e.g. "left_turn" for no_left_turn. */
+        private String turn = "";
+        private boolean valid = false;
+        /* Whether cars are exempt, e.g. the restriction only binds buses. */
+        private boolean exemptsCars = false;
+    }
 
     public GraphBuildingHandler(StreetMapGraph g) {
         this.g = g;
@@ -79,7 +166,38 @@ public class GraphBuildingHandler extends DefaultHandler {
         } else if (qName.equals("way")) {
             /* We encountered a new <way...> tag. */
             activeState = "way";
+            wayId = Long.parseLong(attributes.getValue("id"));
 //            System.out.println("Beginning a way...");
+        } else if (qName.equals("relation")) {
+            /* We encountered a new <relation...> tag. */
+            activeState = "relation";
+            activeRestriction = new Restriction();
+        } else if (activeState.equals("relation") && qName.equals("member")) {
+            String type = attributes.getValue("type");
+            String role = attributes.getValue("role");
+            long ref = Long.parseLong(attributes.getValue("ref"));
+            if (type.equals("way") && role.equals("from")) {
+                activeRestriction.fromWay = ref;
+            } else if (type.equals("way") && role.equals("to")) {
+                activeRestriction.toWay = ref;
+            } else if (type.equals("node") && role.equals("via")) {
+                activeRestriction.viaNode = ref;
+            }
+        } else if (activeState.equals("relation") && qName.equals("tag")) {
+            String k = attributes.getValue("k");
+            String v = attributes.getValue("v");
+            if (k.equals("type")) {
+                restrictionApplies = v.equals("restriction");
+            } else if (k.equals("restriction") || k.equals("restriction:motorcar")
+                    || k.equals("restriction:motor_vehicle")) {
+                activeRestriction.valid = v.startsWith("no_") || v.startsWith("only_");
+                activeRestriction.only = v.startsWith("only_");
+                activeRestriction.turn = v.substring(v.indexOf('_') + 1);
+            } else if (k.equals("except")) {
+                /* Restrictions only bind cars, so only their exemption matters. */
+                activeRestriction.exemptsCars = v.contains("motorcar")
+                        || v.contains("motor_vehicle");
+            }
         } else if (activeState.equals("way") && qName.equals("nd")) {
             /* While looking at a way, we found a <nd...> tag. */
             //System.out.println("Id of a node in this way: " + attributes.getValue("ref"));
@@ -90,7 +208,23 @@ public class GraphBuildingHandler extends DefaultHandler {
             String v = attributes.getValue("v");
             if (k.equals("highway")) {
                 //System.out.println("Highway type: " + v);
-                validWay = ALLOWED_HIGHWAY_TYPES.contains(v);
+                wayHighway = v;
+            } else if (k.equals("maxspeed")) {
+                wayMaxSpeed = v;
+            } else if (k.equals("access")) {
+                wayAccess = v;
+            } else if (k.equals("motor_vehicle") || k.equals("motorcar")) {
+                wayMotorVehicleAccess = v;
+            } else if (k.equals("bicycle")) {
+                wayBicycleAccess = v;
+            } else if (k.equals("foot")) {
+                wayFootAccess = v;
+            } else if (k.equals("oneway")) {
+                wayOneway = v;
+            } else if (k.equals("oneway:bicycle")) {
+                wayBicycleOneway = v;
+            } else if (k.equals("junction")) {
+                wayJunction = v;
             } else if (k.equals("name")) {
                 //System.out.println("Way Name: " + v);
                 wayName = v;
@@ -118,13 +252,46 @@ public class GraphBuildingHandler extends DefaultHandler {
     public void endElement(String uri, String localName, String qName) throws SAXException {
         if (qName.equals("way")) {
             /* We are done looking at a way. (We finished looking at the nodes, speeds, etc...)*/
-            if (validWay) {
+            int accessMask = accessMask();
+            /* Car roads are also kept both ways in the unrestricted graph, whatever their
+             * oneway and access tags say. */
+            boolean carRoad = CAR_HIGHWAY_TYPES.contains(wayHighway);
+            if (accessMask != 0 || carRoad) {
+                double speedMph = speedMph(wayHighway, wayMaxSpeed);
+                /* One-way streets bind vehicles, but pedestrians may walk either way. */
+                int onewayMask = RoutingProfile.CAR.mask();
+                if (!"no".equals(wayBicycleOneway)) {
+                    onewayMask |= RoutingProfile.BIKE.mask();
+                }
+                int direction = onewayDirection();
+                int forwardMask = direction < 0 ? accessMask & ~onewayMask : accessMask;
+                int backwardMask = direction > 0 ? accessMask & ~onewayMask : accessMask;
+                if (carRoad) {
+                    forwardMask |= StreetMapGraph.UNRESTRICTED_MASK;
+                    backwardMask |= StreetMapGraph.UNRESTRICTED_MASK;
+                }
                 for (int i = 0; i < nodePath.size() - 1; i++) {
                     long fromID = nodePath.get(i);
                     long toID = nodePath.get(i + 1);
-                    g.addWeightedEdge(fromID, toID, wayName);
-                    g.addWeightedEdge(toID, fromID, wayName);
+                    if (forwardMask != 0) {
+                        g.addWeightedEdge(fromID, toID, wayName, speedMph, forwardMask);
+                    }
+                    if (backwardMask != 0) {
+                        g.addWeightedEdge(toID, fromID, wayName, speedMph, backwardMask);
+                    }
+                }
+                long[] path = new long[nodePath.size()];
+                for (int i = 0; i < path.length; i += 1) {
+                    path[i] = nodePath.get(i);
                 }
+                wayNodes.put(wayId, path);
+            }
+            clearStates();
+        } else if (qName.equals("relation")) {
+            if (restrictionApplies && activeRestriction.valid && !activeRestriction.exemptsCars
+                    && activeRestriction.fromWay >= 0
+                    && activeRestriction.viaNode >= 0 && activeRestriction.toWay >= 0) {
+                restrictions.add(activeRestriction);
             }
             clearStates();
         } else if (qName.equals("node")) {
@@ -135,11 +302,210 @@ public class GraphBuildingHandler extends DefaultHandler {
         }
     }
 
+    /**
+     * Resolves the turn restrictions into pairs of edges once the whole file is read, as
+     * relations may refer to ways that come after them. Each restriction binds one turn: from
+     * the segment of its from way that ends at the via node, onto the segment of its to way that
+     * starts there. A way that is not split at the via node has a segment on either side of it,
+     * so the turn is the one of those pairs that turns the way the restriction names, e.g. the
+     * left one for no_left_turn. Restrictions whose turn cannot be decided are skipped.
+     * @throws SAXException  Any SAX exception, possibly wrapping another exception.
+     */
+    @Override
+    public void endDocument() throws SAXException {
+        for (Restriction r : restrictions) {
+            List<WeightedEdge<Long>> ins = new ArrayList<>();
+            for (long from : adjacentNodes(r.fromWay, r.viaNode)) {
+                WeightedEdge<Long> e = g.edge(from, r.viaNode, RoutingProfile.CAR);
+                if (e != null) {
+                    ins.add(e);
+                }
+            }
+            List<WeightedEdge<Long>> outs = new ArrayList<>();
+            for (long to : adjacentNodes(r.toWay, r.viaNode)) {
+                WeightedEdge<Long> e = g.edge(r.viaNode, to, RoutingProfile.CAR);
+                if (e != null) {
+                    outs.add(e);
+                }
+            }
+
+            WeightedEdge<Long> in = null;
+            WeightedEdge<Long> out = null;
+            int numTurns = 0;
+            for (WeightedEdge<Long> i : ins) {
+                for (WeightedEdge<Long> o : outs) {
+                    if (ins.size() * outs.size() == 1
+                            || turn(i.from(), r.viaNode, o.to()).equals(r.turn)) {
+                        in = i;
+                        out = o;
+                        numTurns += 1;
+                    }
+                }
+            }
+            if (numTurns != 1) {
+                continue;
+            }
+
+            if (r.only) {
+                for (WeightedEdge<Long> other : g.neighbors(r.viaNode)) {
+                    if (other != out && g.allows(other, RoutingProfile.CAR)) {
+                        g.forbidTurn(in, other);
+                    }
+                }
+            } else {
+                g.forbidTurn(in, out);
+            }
+        }
+        wayNodes.clear();
+        restrictions.clear();
+    }
+
+    /**
+     * Returns the nodes next to NODE along the way WAYID, or none if the way was not added to
+     * the graph or does not pass through NODE.
+     */
+    private List<Long> adjacentNodes(long wayId, long node) {
+        List<Long> adjacent = new ArrayList<>();
+        long[] path = wayNodes.get(wayId);
+        if (path == null) {
+            return adjacent;
+        }
+        for (int i = 0; i < path.length; i += 1) {
+            if (path[i] == node) {
+                if (i > 0) {
+                    adjacent.add(path[i - 1]);
+                }
+                if (i < path.length - 1) {
+                    adjacent.add(path[i + 1]);
+                }
+            }
+        }
+        return adjacent;
+    }
+
+    /**
+     * Returns the turn made arriving at VIA from FROM and leaving towards TO, as named in
+     * restrictions: "straight_on", "left_turn", "right_turn" or "u_turn".
+     */
+    private String turn(long from, long via, long to) {
+        double lonScale = Math.cos(Math.toRadians(g.lat(via)));
+        double inX = (g.lon(via) - g.lon(from)) * lonScale;
+        double inY = g.lat(via) - g.lat(from);
+        double outX = (g.lon(to) - g.lon(via)) * lonScale;
+        double outY = g.lat(to) - g.lat(via);
+        double degrees = Math.toDegrees(Math.atan2(inX * outY - inY * outX,
+                inX * outX + inY * outY));
+        if (Math.abs(degrees) < STRAIGHT_DEGREES) {
+            return "straight_on";
+        } else if (Math.abs(degrees) > U_TURN_DEGREES) {
+            return "u_turn";
+        }
+        return degrees > 0 ? "left_turn" : "right_turn";
+    }
+
+    /**
+     * Returns 1 if the current way may only be travelled in the order of its nodes, -1 if only
+     * against it, and 0 if in both directions. Motorways and roundabouts are one-way unless
+     * tagged otherwise.
+     */
+    private int onewayDirection() {
+        if (wayOneway == null) {
+            boolean impliedOneway = wayHighway.equals("motorway")
+                    || wayHighway.equals("motorway_link") || "roundabout".equals(wayJunction);
+            return impliedOneway ? 1 : 0;
+        } else if (ONEWAY_FORWARD.contains(wayOneway)) {
+            return 1;
+        } else if (ONEWAY_BACKWARD.contains(wayOneway)) {
+            return -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the RoutingProfile mask bits of the profiles that may travel the current way,
+     * from its highway type and then its access tags.
+     */
+    private int accessMask() {
+        boolean anyProfile = CAR_HIGHWAY_TYPES.contains(wayHighway)
+                || BIKE_HIGHWAY_TYPES.contains(wayHighway)
+                || WALK_HIGHWAY_TYPES.contains(wayHighway);
+        if (!anyProfile) {
+            return 0;
+        }
+        boolean allowedByDefault = !DENIED_ACCESS.contains(wayAccess);
+        int mask = 0;
+        if (isAllowed(CAR_HIGHWAY_TYPES, allowedByDefault, wayMotorVehicleAccess)) {
+            mask |= RoutingProfile.CAR.mask();
+        }
+        if (isAllowed(BIKE_HIGHWAY_TYPES, allowedByDefault, wayBicycleAccess)) {
+            mask |= RoutingProfile.BIKE.mask();
+        }
+        if (isAllowed(WALK_HIGHWAY_TYPES, allowedByDefault, wayFootAccess)) {
+            mask |= RoutingProfile.WALK.mask();
+        }
+        return mask;
+    }
+
+    /**
+     * Returns whether a profile that may use HIGHWAYTYPES may travel the current way, given
+     * whether the way's general access tag allows it and the profile's own access tag, which
+     * may be null.
+     */
+    private boolean isAllowed(Set<String> highwayTypes, boolean allowedByDefault,
+                              String profileAccess) {
+        if (DENIED_ACCESS.contains(profileAccess)) {
+            return false;
+        } else if (ALLOWED_ACCESS.contains(profileAccess)) {
+            return true;
+        }
+        return allowedByDefault && highwayTypes.contains(wayHighway);
+    }
+
+    /**
+     * Returns the speed in mph of a way of type HIGHWAY with the given maxspeed tag, which may
+     * be null. Plain numbers are km/h, as in OSM; "mph" and "knots" units are understood, and
+     * anything else (e.g. "signals" or "none") falls back to the highway type's default.
+     */
+    static double speedMph(String highway, String maxSpeed) {
+        double fallback = DEFAULT_SPEEDS_MPH.getOrDefault(highway, 25.0);
+        if (maxSpeed == null) {
+            return fallback;
+        }
+        String s = maxSpeed.trim().toLowerCase();
+        double toMph = 1 / KMH_PER_MPH;
+        if (s.endsWith("mph")) {
+            s = s.substring(0, s.length() - 3).trim();
+            toMph = 1;
+        } else if (s.endsWith("knots")) {
+            s = s.substring(0, s.length() - 5).trim();
+            toMph = 1 / KNOTS_PER_MPH;
+        } else if (s.endsWith("km/h")) {
+            s = s.substring(0, s.length() - 4).trim();
+        }
+        try {
+            double speed = Double.parseDouble(s) * toMph;
+            return speed > 0 ? speed : fallback;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
     private void clearStates() {
         activeState = "";
         activeNode = null;
-        validWay = false;
         nodePath = new ArrayList<>();
         wayName = "";
+        wayHighway = "";
+        wayMaxSpeed = null;
+        wayAccess = null;
+        wayMotorVehicleAccess = null;
+        wayBicycleAccess = null;
+        wayFootAccess = null;
+        wayId = 0;
+        wayOneway = null;
+        wayBicycleOneway = null;
+        wayJunction = null;
+        activeRestriction = null;
+        restrictionApplies = false;
     }
 }
@@ -0,0 +1,32 @@
+package bearmaps.hw4.streetmap;
+
+/**
+ * A mode of travel a StreetMapGraph can be routed for. Every edge records which profiles may
+ * traverse it in a bitmask with one bit per profile, see mask.
+ */
+public enum RoutingProfile {
+    /** Driving, at each road's speed limit or typical speed. */
+    CAR(0),
+    /** Cycling, at a constant speed. */
+    BIKE(12),
+    /** Walking, at a constant speed. */
+    WALK(3);
+
+    private final double speedMph;
+
+    RoutingProfile(double speedMph) {
+        this.speedMph = speedMph;
+    }
+
+    /** Returns the bit of this profile in an edge's access mask. */
+    public int mask() {
+        return 1 << ordinal();
+    }
+
+    /**
+     * Returns the speed in mph of this profile on a road whose vehicle speed is ROADSPEEDMPH.
+     */
+    public double speedMph(double roadSpeedMph) {
+        return speedMph > 0 ? speedMph : roadSpeedMph;
+    }
+}
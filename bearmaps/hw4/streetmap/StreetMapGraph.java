@@ -12,9 +12,46 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.*;
 
+/**
+ * A graph of the ways in an OSM file, shared by every RoutingProfile. Searched directly, it is
+ * the CAR profile weighted by distance; withProfile gives the other combinations.
+ */
 public class StreetMapGraph implements AStarGraph<Long> {
+    private static final double SECONDS_PER_HOUR = 3600;
+    private static final int NUM_PROFILES = RoutingProfile.values().length;
+    /* Access mask bit of the edges of roads that cars may use by their highway type alone, set
+       in both directions whatever their oneway and access tags say. See unrestricted. */
+    static final int UNRESTRICTED_MASK = 1 << NUM_PROFILES;
+
     private Map<Long, Node> nodes = new HashMap<>();
     private Map<Long, Set<WeightedEdge<Long>>> neighbors = new HashMap<>();
+    /* The edges entering each vertex, built once the graph is read, for backward searches. */
+    private Map<Long, List<WeightedEdge<Long>>> reverseNeighbors = new HashMap<>();
+
+    /* Per-edge arrays, indexed by edge id. The edges themselves keep their distance as their
+       weight, so each profile and cost model reads its weights straight from memory. */
+    private int numEdges = 0;
+    /* Bitmask of the RoutingProfiles that may traverse each edge. */
+    private byte[] access = new byte[16];
+    /* Travel time of each edge in seconds, per profile. */
+    private double[][] travelSeconds = new double[NUM_PROFILES][16];
+    /* The fastest speed of any edge, per profile, which keeps the travel time heuristic
+       admissible. */
+    private double[] maxSpeedMph = new double[NUM_PROFILES];
+
+    /* Turns cars may not make, each as the ids of its two edges packed into a long (in edge in
+       the high half), sorted once the graph is built so lookups are a binary search. */
+    private long[] forbiddenTurns = new long[16];
+    private int numForbiddenTurns = 0;
+    /* Ids of the edges some forbidden turn starts from, so most lookups end at one bit test. */
+    private BitSet restrictedEdges = new BitSet();
+    /* Whether the whole file was read; the graph of a file that failed part way is partial. */
+    private boolean complete = true;
+    private final ProfileView[][] views = createViews();
+    private final AStarGraph<Long> unrestrictedView = new UnrestrictedView();
+    /* Built on first use, per profile and cost model. */
+    private final CompactGraph[][] compactGraphs =
+            new CompactGraph[NUM_PROFILES][CostModel.values().length];
 
     private StreetMapGraph() {
     }
@@ -23,6 +60,146 @@ public class StreetMapGraph implements AStarGraph<Long> {
         StreetMapGraph smg = StreetMapGraph.readFromXML(filename);
         this.nodes = smg.nodes;
         this.neighbors = smg.neighbors;
+        this.reverseNeighbors = smg.reverseNeighbors;
+        this.numEdges = smg.numEdges;
+        this.access = smg.access;
+        this.travelSeconds = smg.travelSeconds;
+        this.maxSpeedMph = smg.maxSpeedMph;
+        this.forbiddenTurns = smg.forbiddenTurns;
+        this.numForbiddenTurns = smg.numForbiddenTurns;
+        this.restrictedEdges = smg.restrictedEdges;
+        this.complete = smg.complete;
+    }
+
+    private ProfileView[][] createViews() {
+        CostModel[] costs = CostModel.values();
+        ProfileView[][] result = new ProfileView[NUM_PROFILES][costs.length];
+        for (RoutingProfile profile : RoutingProfile.values()) {
+            for (CostModel cost : costs) {
+                result[profile.ordinal()][cost.ordinal()] = new ProfileView(profile, cost);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns this graph as searched by the CAR profile under COST.
+     */
+    public AStarGraph<Long> withCostModel(CostModel cost) {
+        return withProfile(RoutingProfile.CAR, cost);
+    }
+
+    /**
+     * Returns this graph as searched by PROFILE under COST. Views share this graph's vertices
+     * and edges, so choosing a profile and cost model per query allocates nothing.
+     */
+    public AStarGraph<Long> withProfile(RoutingProfile profile, CostModel cost) {
+        return views[profile.ordinal()][cost.ordinal()];
+    }
+
+    /**
+     * Returns this graph as it was searched before routing profiles: every road cars may use by
+     * its highway type, in both directions, weighted by distance, regardless of oneway, access
+     * tags and turn restrictions.
+     */
+    public AStarGraph<Long> unrestricted() {
+        return unrestrictedView;
+    }
+
+    /**
+     * Returns this graph as searched by PROFILE under COST, flattened into primitive arrays.
+     * It is built on the first call for each profile and cost model and shared afterwards.
+     */
+    public synchronized CompactGraph compact(RoutingProfile profile, CostModel cost) {
+        CompactGraph compact = compactGraphs[profile.ordinal()][cost.ordinal()];
+        if (compact == null) {
+            compact = new CompactGraph(this, profile, cost);
+            compactGraphs[profile.ordinal()][cost.ordinal()] = compact;
+        }
+        return compact;
+    }
+
+    /**
+     * Returns whether the whole OSM file was read. If reading it failed part way, this graph
+     * only has what was read before that.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /** Returns whether this graph has no vertices. */
+    public boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    /**
+     * Returns whether PROFILE may traverse E, assuming E is an edge of this graph.
+     */
+    public boolean allows(WeightedEdge<Long> e, RoutingProfile profile) {
+        return (access[e.id()] & profile.mask()) != 0;
+    }
+
+    /**
+     * Returns whether V has an outgoing edge PROFILE may traverse. Assumes V exists in this
+     * graph.
+     */
+    public boolean isReachable(long v, RoutingProfile profile) {
+        for (WeightedEdge<Long> e : neighbors.get(v)) {
+            if (allows(e, profile)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether V has an outgoing edge of the unrestricted graph. Assumes V exists in
+     * this graph.
+     */
+    public boolean isUnrestrictedReachable(long v) {
+        for (WeightedEdge<Long> e : neighbors.get(v)) {
+            if ((access[e.id()] & UNRESTRICTED_MASK) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the time in seconds it takes PROFILE to traverse E, assuming E is an edge of
+     * this graph.
+     */
+    public double travelSeconds(WeightedEdge<Long> e, RoutingProfile profile) {
+        return travelSeconds[profile.ordinal()][e.id()];
+    }
+
+    /** The CAR profile, as this graph is searched directly. */
+    @Override
+    public boolean isTraversable(WeightedEdge<Long> e) {
+        return allows(e, RoutingProfile.CAR);
+    }
+
+    /** Turn restrictions apply to cars, as this graph is searched directly. */
+    @Override
+    public boolean hasTurnRestrictions(WeightedEdge<Long> in) {
+        return restrictedEdges.get(in.id());
+    }
+
+    /**
+     * Returns whether a car arriving over IN may continue over OUT, assuming both are edges of
+     * this graph.
+     */
+    @Override
+    public boolean isTurnAllowed(WeightedEdge<Long> in, WeightedEdge<Long> out) {
+        if (!restrictedEdges.get(in.id())) {
+            return true;
+        }
+        return Arrays.binarySearch(forbiddenTurns, 0, numForbiddenTurns,
+                turnKey(in.id(), out.id())) < 0;
+    }
+
+    private static long turnKey(int inId, int outId) {
+        return ((long) inId << 32) | (outId & 0xFFFFFFFFL);
     }
 
     /**
@@ -40,6 +217,14 @@ public class StreetMapGraph implements AStarGraph<Long> {
         return incidentList;
     }
 
+    /**
+     * Returns the edges that enter V, e.g. for searching backwards from a
+     * destination. Assumes V exists in this graph.
+     **/
+    public List<WeightedEdge<Long>> reverseNeighbors(long v) {
+        return Collections.unmodifiableList(reverseNeighbors.get(v));
+    }
+
     /**
      * Returns the great-circle distance between S and GOAL. Assumes
      * S and GOAL exist in this graph.
@@ -79,9 +264,12 @@ public class StreetMapGraph implements AStarGraph<Long> {
             saxParser.parse(inputStream, gbh);
         } catch (ParserConfigurationException | SAXException | IOException e) {
             e.printStackTrace();
+            smg.complete = false;
         }
 
         smg.clean();
+        smg.sortForbiddenTurns();
+        smg.buildReverseNeighbors();
         return smg;
     }
 
@@ -94,9 +282,12 @@ public class StreetMapGraph implements AStarGraph<Long> {
     }
 
     /** Adds an edge to this graph, if FROMID and TOID are in this graph. Does
-     *  not add additional edge if edge already exists.
+     *  not add additional edge if edge already exists. SPEEDMPH is the speed
+     *  at which vehicles travel the edge, and must be positive. ACCESSMASK has
+     *  the mask bit of each RoutingProfile that may traverse the edge, and
+     *  UNRESTRICTED_MASK if the unrestricted graph has it.
      **/
-    void addWeightedEdge(long fromID, long toID, String name) {
+    void addWeightedEdge(long fromID, long toID, String name, double speedMph, int accessMask) {
         if (nodes.containsKey(fromID) && nodes.containsKey(toID)) {
             Node from = nodes.get(fromID);
             Node to = nodes.get(toID);
@@ -105,18 +296,99 @@ public class StreetMapGraph implements AStarGraph<Long> {
             Set<WeightedEdge<Long>> edgeSet = neighbors.get(fromID);
             WeightedEdge<Long> weightedEdge = new WeightedEdge<>(from.id(), to.id(), weight);
             weightedEdge.setName(name);
+            weightedEdge.setId(numEdges);
             edgeSet.add(weightedEdge);
+
+            if (numEdges == access.length) {
+                access = Arrays.copyOf(access, numEdges * 2);
+                for (int p = 0; p < NUM_PROFILES; p += 1) {
+                    travelSeconds[p] = Arrays.copyOf(travelSeconds[p], numEdges * 2);
+                }
+            }
+            access[numEdges] = (byte) accessMask;
+            for (RoutingProfile profile : RoutingProfile.values()) {
+                double profileSpeedMph = profile.speedMph(speedMph);
+                travelSeconds[profile.ordinal()][numEdges] =
+                        weight / profileSpeedMph * SECONDS_PER_HOUR;
+                if ((accessMask & profile.mask()) != 0) {
+                    maxSpeedMph[profile.ordinal()] =
+                            Math.max(maxSpeedMph[profile.ordinal()], profileSpeedMph);
+                }
+            }
+            numEdges += 1;
         }
     }
 
     /**
-     * Removes vertices with 0 out-degree from graph. Note that this will
-     * cause issues if edges are not bidirectional.
+     * Returns an edge from FROMID to TOID that PROFILE may traverse, or null if there is none.
+     */
+    WeightedEdge<Long> edge(long fromID, long toID, RoutingProfile profile) {
+        Set<WeightedEdge<Long>> edgeSet = neighbors.get(fromID);
+        if (edgeSet == null) {
+            return null;
+        }
+        for (WeightedEdge<Long> e : edgeSet) {
+            if (e.to() == toID && allows(e, profile)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /** Forbids cars arriving over IN from continuing over OUT. **/
+    void forbidTurn(WeightedEdge<Long> in, WeightedEdge<Long> out) {
+        if (numForbiddenTurns == forbiddenTurns.length) {
+            forbiddenTurns = Arrays.copyOf(forbiddenTurns, numForbiddenTurns * 2);
+        }
+        forbiddenTurns[numForbiddenTurns] = turnKey(in.id(), out.id());
+        numForbiddenTurns += 1;
+        restrictedEdges.set(in.id());
+    }
+
+    /** Indexes every edge by the vertex it enters. **/
+    private void buildReverseNeighbors() {
+        reverseNeighbors = new HashMap<>();
+        for (long id : nodes.keySet()) {
+            reverseNeighbors.put(id, new ArrayList<>());
+        }
+        for (Set<WeightedEdge<Long>> edgeSet : neighbors.values()) {
+            for (WeightedEdge<Long> e : edgeSet) {
+                reverseNeighbors.get(e.to()).add(e);
+            }
+        }
+    }
+
+    /** Sorts the forbidden turns for binary search and drops duplicates. **/
+    private void sortForbiddenTurns() {
+        Arrays.sort(forbiddenTurns, 0, numForbiddenTurns);
+        int unique = 0;
+        for (int i = 0; i < numForbiddenTurns; i += 1) {
+            if (unique == 0 || forbiddenTurns[i] != forbiddenTurns[unique - 1]) {
+                forbiddenTurns[unique] = forbiddenTurns[i];
+                unique += 1;
+            }
+        }
+        numForbiddenTurns = unique;
+        forbiddenTurns = Arrays.copyOf(forbiddenTurns, unique);
+    }
+
+    /**
+     * Removes unnamed vertices that no edge enters or leaves from graph.
+     * One-way streets mean a vertex may have edges in but none out, and
+     * such vertices must stay.
      **/
     private void clean() {
+        Set<Long> entered = new HashSet<>();
+        for (Set<WeightedEdge<Long>> edgeSet : neighbors.values()) {
+            for (WeightedEdge<Long> e : edgeSet) {
+                entered.add(e.to());
+            }
+        }
+
         List<Long> toRemove = new ArrayList<>();
         for (long id : nodes.keySet()) {
-            if (neighbors(id).size() == 0 && nodes.get(id).name() == null) {
+            if (neighbors(id).size() == 0 && !entered.contains(id)
+                    && nodes.get(id).name() == null) {
                 toRemove.add(id);
             }
         }
@@ -227,6 +499,79 @@ public class StreetMapGraph implements AStarGraph<Long> {
         return nodes.get(v).name();
     }
 
+    /**
+     * This graph as searched by one profile under one cost model. Under TRAVEL_TIME, the
+     * heuristic is the time it takes to cover the great-circle distance at the profile's
+     * fastest speed in the graph, which never overestimates.
+     */
+    private class ProfileView implements AStarGraph<Long> {
+        private final RoutingProfile profile;
+        private final int mask;
+        private final CostModel cost;
+
+        ProfileView(RoutingProfile profile, CostModel cost) {
+            this.profile = profile;
+            this.mask = profile.mask();
+            this.cost = cost;
+        }
+
+        @Override
+        public List<WeightedEdge<Long>> neighbors(Long v) {
+            return StreetMapGraph.this.neighbors(v);
+        }
+
+        @Override
+        public double estimatedDistanceToGoal(Long s, Long goal) {
+            double distance = StreetMapGraph.this.estimatedDistanceToGoal(s, goal);
+            if (cost == CostModel.DISTANCE) {
+                return distance;
+            }
+            double speedMph = maxSpeedMph[profile.ordinal()];
+            return speedMph == 0 ? 0 : distance / speedMph * SECONDS_PER_HOUR;
+        }
+
+        @Override
+        public double weight(WeightedEdge<Long> e) {
+            if (cost == CostModel.DISTANCE) {
+                return e.weight();
+            }
+            return travelSeconds[profile.ordinal()][e.id()];
+        }
+
+        @Override
+        public boolean isTraversable(WeightedEdge<Long> e) {
+            return (access[e.id()] & mask) != 0;
+        }
+
+        @Override
+        public boolean hasTurnRestrictions(WeightedEdge<Long> in) {
+            return profile == RoutingProfile.CAR && restrictedEdges.get(in.id());
+        }
+
+        @Override
+        public boolean isTurnAllowed(WeightedEdge<Long> in, WeightedEdge<Long> out) {
+            return profile != RoutingProfile.CAR || StreetMapGraph.this.isTurnAllowed(in, out);
+        }
+    }
+
+    /** This graph as it was searched before routing profiles, see unrestricted. */
+    private class UnrestrictedView implements AStarGraph<Long> {
+        @Override
+        public List<WeightedEdge<Long>> neighbors(Long v) {
+            return StreetMapGraph.this.neighbors(v);
+        }
+
+        @Override
+        public double estimatedDistanceToGoal(Long s, Long goal) {
+            return StreetMapGraph.this.estimatedDistanceToGoal(s, goal);
+        }
+
+        @Override
+        public boolean isTraversable(WeightedEdge<Long> e) {
+            return (access[e.id()] & UNRESTRICTED_MASK) != 0;
+        }
+    }
+
     protected List<Node> getNodes() {
         List<Node> nodes = new ArrayList<>();
         for(Map.Entry<Long, Node> nodeEntry: this.nodes.entrySet()){
@@ -0,0 +1,389 @@
+package bearmaps.lab9;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable ternary search trie built for autocomplete. Unlike MyTrieSet, which keeps a
+ * HashMap per node and has to walk the whole subtree for every prefix query, every node here
+ * lives in a set of parallel primitive arrays and stores the top k completions of its subtree,
+ * ranked by a popularity score. A prefix query that asks for at most k results is therefore a
+ * walk down the prefix followed by a copy of the precomputed list.
+ *
+ * Keys are identified by their rank: rank 0 is the most popular key, rank 1 the next, and so on
+ * (ties are broken alphabetically). The per-node lists hold ranks, so merging two lists is a
+ * plain merge of sorted ints.
+ */
+public class AutocompleteTrie {
+    private static final int NONE = -1;
+
+    /* Node storage. Node i splits on splitChar[i]; lo/hi are the siblings with a smaller/larger
+     * character and eq is the first node of the next character. keyRank[i] is the rank of the
+     * key ending at node i, or NONE. */
+    private char[] splitChar;
+    private int[] lo;
+    private int[] eq;
+    private int[] hi;
+    private int[] keyRank;
+    private int numNodes;
+
+    /* Precomputed completions. The top completions of node i are
+     * topRanks[topStart[i]] ... topRanks[topStart[i] + topCount[i] - 1], best first. */
+    private int[] topStart;
+    private byte[] topCount;
+    private int[] topRanks;
+
+    /* keys[r] is the key with rank r. */
+    private final String[] keys;
+    private final int k;
+    private int maxKeyLength;
+
+    /**
+     * Builds the trie.
+     * @param keyScores Map from each key to its popularity score; higher scores rank first.
+     *                  Empty or null keys are ignored.
+     * @param k The number of completions precomputed per node (at most 127).
+     */
+    public AutocompleteTrie(Map<String, Double> keyScores, int k) {
+        if (k < 1 || k > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("k must be between 1 and " + Byte.MAX_VALUE);
+        }
+        this.k = k;
+
+        List<String> ranked = new ArrayList<>();
+        for (String key : keyScores.keySet()) {
+            if (key != null && key.length() > 0) {
+                ranked.add(key);
+            }
+        }
+        ranked.sort((a, b) -> {
+            int cmp = Double.compare(keyScores.get(b), keyScores.get(a));
+            return cmp != 0 ? cmp : a.compareTo(b);
+        });
+        keys = ranked.toArray(new String[0]);
+        for (String key : keys) {
+            maxKeyLength = Math.max(maxKeyLength, key.length());
+        }
+
+        int capacity = 16;
+        splitChar = new char[capacity];
+        lo = new int[capacity];
+        eq = new int[capacity];
+        hi = new int[capacity];
+        keyRank = new int[capacity];
+        numNodes = 0;
+
+        /* Inserting the keys in sorted-median order keeps the lo/hi links balanced. */
+        Integer[] alphabetical = new Integer[keys.length];
+        for (int r = 0; r < keys.length; r += 1) {
+            alphabetical[r] = r;
+        }
+        Arrays.sort(alphabetical, (a, b) -> keys[a].compareTo(keys[b]));
+        int root = NONE;
+        if (keys.length > 0) {
+            root = newNode(keys[alphabetical[keys.length / 2]].charAt(0));
+        }
+        insertBalanced(root, alphabetical, 0, keys.length - 1);
+
+        topStart = new int[numNodes];
+        topCount = new byte[numNodes];
+        topRanks = new int[Math.max(numNodes, 16)];
+        int[] used = new int[1];
+        if (root != NONE) {
+            computeTop(root, used);
+        }
+        topRanks = Arrays.copyOf(topRanks, used[0]);
+    }
+
+    private void insertBalanced(int root, Integer[] alphabetical, int from, int to) {
+        if (from > to) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        insert(root, alphabetical[mid]);
+        insertBalanced(root, alphabetical, from, mid - 1);
+        insertBalanced(root, alphabetical, mid + 1, to);
+    }
+
+    private void insert(int root, int rank) {
+        String key = keys[rank];
+        int curr = root;
+        int i = 0;
+        /* newNode may grow the arrays, so its result is stored before indexing into them. */
+        while (true) {
+            char c = key.charAt(i);
+            if (c < splitChar[curr]) {
+                if (lo[curr] == NONE) {
+                    int child = newNode(c);
+                    lo[curr] = child;
+                }
+                curr = lo[curr];
+            } else if (c > splitChar[curr]) {
+                if (hi[curr] == NONE) {
+                    int child = newNode(c);
+                    hi[curr] = child;
+                }
+                curr = hi[curr];
+            } else if (i < key.length() - 1) {
+                i += 1;
+                if (eq[curr] == NONE) {
+                    int child = newNode(key.charAt(i));
+                    eq[curr] = child;
+                }
+                curr = eq[curr];
+            } else {
+                keyRank[curr] = rank;
+                return;
+            }
+        }
+    }
+
+    private int newNode(char c) {
+        if (numNodes == splitChar.length) {
+            int capacity = 2 * numNodes;
+            splitChar = Arrays.copyOf(splitChar, capacity);
+            lo = Arrays.copyOf(lo, capacity);
+            eq = Arrays.copyOf(eq, capacity);
+            hi = Arrays.copyOf(hi, capacity);
+            keyRank = Arrays.copyOf(keyRank, capacity);
+        }
+        splitChar[numNodes] = c;
+        lo[numNodes] = NONE;
+        eq[numNodes] = NONE;
+        hi[numNodes] = NONE;
+        keyRank[numNodes] = NONE;
+        numNodes += 1;
+        return numNodes - 1;
+    }
+
+    /* Stores the top k ranks of every key that has node n's prefix, and returns the top k ranks
+     * of the whole tree rooted at n (n's completions plus those of its lo/hi siblings). USED[0]
+     * is the next free slot in topRanks. */
+    private int[] computeTop(int n, int[] used) {
+        int[] below = eq[n] == NONE ? new int[0] : computeTop(eq[n], used);
+        int[] own = keyRank[n] == NONE ? below : merge(new int[]{keyRank[n]}, below);
+
+        if (used[0] + own.length > topRanks.length) {
+            topRanks = Arrays.copyOf(topRanks, Math.max(2 * topRanks.length, used[0] + own.length));
+        }
+        topStart[n] = used[0];
+        topCount[n] = (byte) own.length;
+        System.arraycopy(own, 0, topRanks, used[0], own.length);
+        used[0] += own.length;
+
+        int[] tree = own;
+        if (lo[n] != NONE) {
+            tree = merge(tree, computeTop(lo[n], used));
+        }
+        if (hi[n] != NONE) {
+            tree = merge(tree, computeTop(hi[n], used));
+        }
+        return tree;
+    }
+
+    /* Merges two ascending rank lists, keeping at most k entries. */
+    private int[] merge(int[] a, int[] b) {
+        int[] result = new int[Math.min(k, a.length + b.length)];
+        int i = 0, j = 0;
+        for (int r = 0; r < result.length; r += 1) {
+            if (j >= b.length || (i < a.length && a[i] < b[j])) {
+                result[r] = a[i];
+                i += 1;
+            } else {
+                result[r] = b[j];
+                j += 1;
+            }
+        }
+        return result;
+    }
+
+    /* Returns the node reached by following PREFIX from the root, or NONE. */
+    private int find(String prefix) {
+        if (numNodes == 0 || prefix == null || prefix.length() < 1) {
+            return NONE;
+        }
+        int curr = 0;
+        int i = 0;
+        while (curr != NONE) {
+            char c = prefix.charAt(i);
+            if (c < splitChar[curr]) {
+                curr = lo[curr];
+            } else if (c > splitChar[curr]) {
+                curr = hi[curr];
+            } else if (i < prefix.length() - 1) {
+                i += 1;
+                curr = eq[curr];
+            } else {
+                return curr;
+            }
+        }
+        return NONE;
+    }
+
+    /** Returns true if KEY is in the trie. */
+    public boolean contains(String key) {
+        int n = find(key);
+        return n != NONE && keyRank[n] != NONE;
+    }
+
+    /** Returns the rank of KEY, or -1 if KEY is not in the trie. */
+    public int rank(String key) {
+        int n = find(key);
+        return n == NONE ? NONE : keyRank[n];
+    }
+
+    /** Returns the number of keys in the trie. */
+    public int size() {
+        return keys.length;
+    }
+
+    /** Returns the number of completions precomputed per node. */
+    public int k() {
+        return k;
+    }
+
+    /** Returns the key with rank RANK. */
+    public String key(int rank) {
+        return keys[rank];
+    }
+
+    /**
+     * Returns the ranks of the keys starting with PREFIX, best first. When LIMIT is at most k
+     * this is answered entirely from the precomputed lists; otherwise the subtree is walked.
+     * @param limit Maximum number of results; a negative value means no limit.
+     */
+    public int[] ranksWithPrefix(String prefix, int limit) {
+        int n = find(prefix);
+        if (n == NONE || limit == 0) {
+            return new int[0];
+        }
+
+        if (limit > 0 && limit <= k) {
+            int count = Math.min(limit, topCount[n]);
+            return Arrays.copyOfRange(topRanks, topStart[n], topStart[n] + count);
+        }
+
+        /* Fewer keys than k below this node means the precomputed list is already complete. */
+        if (topCount[n] < k) {
+            return Arrays.copyOfRange(topRanks, topStart[n], topStart[n] + topCount[n]);
+        }
+
+        List<Integer> collected = new ArrayList<>();
+        if (keyRank[n] != NONE) {
+            collected.add(keyRank[n]);
+        }
+        collect(eq[n], collected);
+        Collections.sort(collected);
+
+        int count = limit < 0 ? collected.size() : Math.min(limit, collected.size());
+        int[] result = new int[count];
+        for (int i = 0; i < count; i += 1) {
+            result[i] = collected.get(i);
+        }
+        return result;
+    }
+
+    private void collect(int n, List<Integer> collected) {
+        /* Walk the hi siblings iteratively to keep the stack shallow. */
+        while (n != NONE) {
+            if (keyRank[n] != NONE) {
+                collected.add(keyRank[n]);
+            }
+            collect(eq[n], collected);
+            collect(lo[n], collected);
+            n = hi[n];
+        }
+    }
+
+    /**
+     * Returns the ranks of the keys that start with a string within MAXEDITS Levenshtein edits of
+     * PREFIX, closest first and then most popular first. This walks the trie like a Levenshtein
+     * automaton: each node extends the edit distance row of its parent by one character, and a
+     * subtree is skipped as soon as every entry of the row exceeds MAXEDITS. Once a node's prefix
+     * is itself close enough, its precomputed completions are used instead of its subtree, so
+     * results are capped at k.
+     * @param limit Maximum number of results; a negative value or a value above k means k.
+     */
+    public int[] ranksWithinDistance(String prefix, int maxEdits, int limit) {
+        if (numNodes == 0 || prefix == null || prefix.length() < 1 || limit == 0) {
+            return new int[0];
+        }
+        if (limit < 0 || limit > k) {
+            limit = k;
+        }
+
+        int m = prefix.length();
+        int[][] rows = new int[maxKeyLength + 1][m + 1];
+        for (int j = 0; j <= m; j += 1) {
+            rows[0][j] = j;
+        }
+        Map<Integer, Integer> bestDistance = new HashMap<>();
+        fuzzyWalk(0, 0, prefix, maxEdits, rows, bestDistance);
+
+        List<Integer> matches = new ArrayList<>(bestDistance.keySet());
+        matches.sort((a, b) -> {
+            int cmp = Integer.compare(bestDistance.get(a), bestDistance.get(b));
+            return cmp != 0 ? cmp : Integer.compare(a, b);
+        });
+
+        int count = Math.min(limit, matches.size());
+        int[] result = new int[count];
+        for (int i = 0; i < count; i += 1) {
+            result[i] = matches.get(i);
+        }
+        return result;
+    }
+
+    /* Visits node n and its lo/hi siblings, all of which follow DEPTH characters whose edit
+     * distance row against QUERY is rows[depth]. */
+    private void fuzzyWalk(int n, int depth, String query, int maxEdits, int[][] rows,
+                           Map<Integer, Integer> bestDistance) {
+        int m = query.length();
+        while (n != NONE) {
+            int[] prev = rows[depth];
+            int[] row = rows[depth + 1];
+            char c = splitChar[n];
+
+            row[0] = depth + 1;
+            int rowMin = row[0];
+            for (int j = 1; j <= m; j += 1) {
+                int cost = query.charAt(j - 1) == c ? 0 : 1;
+                row[j] = Math.min(Math.min(prev[j] + 1, row[j - 1] + 1), prev[j - 1] + cost);
+                rowMin = Math.min(rowMin, row[j]);
+            }
+
+            if (rowMin <= maxEdits) {
+                int distance = row[m];
+                if (distance <= maxEdits) {
+                    for (int i = topStart[n], end = topStart[n] + topCount[n]; i < end; i += 1) {
+                        bestDistance.merge(topRanks[i], distance, Math::min);
+                    }
+                }
+                /* Going deeper can only help if some longer prefix could be even closer. */
+                if (eq[n] != NONE && rowMin < distance) {
+                    fuzzyWalk(eq[n], depth + 1, query, maxEdits, rows, bestDistance);
+                }
+            }
+
+            fuzzyWalk(lo[n], depth, query, maxEdits, rows, bestDistance);
+            n = hi[n];
+        }
+    }
+
+    /**
+     * Returns the keys starting with PREFIX, most popular first.
+     * @param limit Maximum number of results; a negative value means no limit.
+     */
+    public List<String> keysWithPrefix(String prefix, int limit) {
+        int[] ranks = ranksWithPrefix(prefix, limit);
+        List<String> result = new ArrayList<>(ranks.length);
+        for (int r : ranks) {
+            result.add(keys[r]);
+        }
+        return result;
+    }
+}
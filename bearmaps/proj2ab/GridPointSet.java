@@ -0,0 +1,140 @@
+package bearmaps.proj2ab;
+
+import java.util.List;
+
+/**
+ * A PointSet that buckets points into a uniform grid of cells spanning their bounding box, for
+ * dense, evenly spread data such as the intersections of a city. The cells are one flat array,
+ * and the coordinates of the points are stored cell by cell in primitive arrays, so a lookup
+ * touches a few contiguous runs of memory instead of chasing tree nodes. A nearest lookup scans
+ * rings of cells around the goal until no unscanned cell can hold a closer point.
+ *
+ * Like Point.distance, x is taken to be a longitude and y a latitude.
+ */
+public class GridPointSet implements PointSet {
+    /** Points per cell, on average, if the points were spread evenly. */
+    private static final double POINTS_PER_CELL = 2;
+    /** Miles per degree of latitude, at the radius Point.distance uses. */
+    private static final double MILES_PER_DEGREE = 3963 * Math.PI / 180;
+
+    private final double minX;
+    private final double minY;
+    private final double cell;
+    private final int width;
+    private final int height;
+    /* The points in cell c are at indices cellStarts[c] to cellStarts[c + 1] - 1. */
+    private final int[] cellStarts;
+    private final double[] xs;
+    private final double[] ys;
+    private final Point[] points;
+    /* Least miles per degree of x anywhere in the grid. */
+    private final double milesPerXDegree;
+
+    public GridPointSet(List<Point> points) {
+        int n = points.size();
+        double loX = Double.POSITIVE_INFINITY;
+        double loY = Double.POSITIVE_INFINITY;
+        double hiX = Double.NEGATIVE_INFINITY;
+        double hiY = Double.NEGATIVE_INFINITY;
+        for (Point p : points) {
+            loX = Math.min(loX, p.getX());
+            hiX = Math.max(hiX, p.getX());
+            loY = Math.min(loY, p.getY());
+            hiY = Math.max(hiY, p.getY());
+        }
+        if (n == 0) {
+            loX = hiX = loY = hiY = 0;
+        }
+        minX = loX;
+        minY = loY;
+        milesPerXDegree = MILES_PER_DEGREE
+                * Math.cos(Math.toRadians(Math.min(90, Math.max(Math.abs(loY), Math.abs(hiY)))));
+
+        double area = Math.max((hiX - loX) * (hiY - loY), 1e-12);
+        cell = Math.max(Math.sqrt(area * POINTS_PER_CELL / Math.max(n, 1)), 1e-9);
+        width = (int) ((hiX - loX) / cell) + 1;
+        height = (int) ((hiY - loY) / cell) + 1;
+
+        /* Counting sort of the points by cell. */
+        int[] cellOf = new int[n];
+        cellStarts = new int[width * height + 1];
+        for (int i = 0; i < n; i += 1) {
+            Point p = points.get(i);
+            cellOf[i] = cellY(p.getY()) * width + cellX(p.getX());
+            cellStarts[cellOf[i] + 1] += 1;
+        }
+        for (int c = 0; c < width * height; c += 1) {
+            cellStarts[c + 1] += cellStarts[c];
+        }
+        xs = new double[n];
+        ys = new double[n];
+        this.points = new Point[n];
+        int[] next = new int[width * height];
+        for (int i = 0; i < n; i += 1) {
+            int slot = cellStarts[cellOf[i]] + next[cellOf[i]];
+            next[cellOf[i]] += 1;
+            Point p = points.get(i);
+            xs[slot] = p.getX();
+            ys[slot] = p.getY();
+            this.points[slot] = p;
+        }
+    }
+
+    /** Returns the point closest to (x, y) by Point.distance, or null if there are none. */
+    @Override
+    public Point nearest(double x, double y) {
+        if (points.length == 0) {
+            return null;
+        }
+        int cx = cellX(x);
+        int cy = cellY(y);
+        double milesPerX = Math.min(milesPerXDegree,
+                MILES_PER_DEGREE * Math.cos(Math.toRadians(Math.min(90, Math.abs(y)))));
+        double cellMiles = cell * Math.min(MILES_PER_DEGREE, milesPerX);
+        /* How far outside the grid the goal is along each axis, in miles. */
+        double outsideX = Math.max(0, Math.max(minX - x, x - (minX + width * cell))) * milesPerX;
+        double outsideY = Math.max(0, Math.max(minY - y, y - (minY + height * cell)))
+                * MILES_PER_DEGREE;
+        double outsideSquared = outsideX * outsideX + outsideY * outsideY;
+        int maxRing = Math.max(Math.max(cx, width - 1 - cx), Math.max(cy, height - 1 - cy));
+
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int r = 0; r <= maxRing; r += 1) {
+            /* Every cell of ring r is at least r - 1 cells further from the goal than the grid's
+               edge, along x or along y. */
+            double ringMiles = Math.max(0, r - 1) * cellMiles;
+            if (best >= 0 && Math.sqrt(outsideSquared + ringMiles * ringMiles) > bestDistance) {
+                break;
+            }
+            for (int gy = Math.max(cy - r, 0); gy <= Math.min(cy + r, height - 1); gy += 1) {
+                /* Of the rows between the first and last of the ring, only the ends are new. */
+                boolean wholeRow = gy == cy - r || gy == cy + r;
+                int step = wholeRow ? 1 : Math.max(2 * r, 1);
+                for (int gx = wholeRow ? Math.max(cx - r, 0) : cx - r;
+                     gx <= Math.min(cx + r, width - 1); gx += step) {
+                    if (gx < 0) {
+                        continue;
+                    }
+                    int c = gy * width + gx;
+                    for (int i = cellStarts[c]; i < cellStarts[c + 1]; i += 1) {
+                        double distance = Point.distance(x, xs[i], y, ys[i]);
+                        if (distance < bestDistance) {
+                            best = i;
+                            bestDistance = distance;
+                        }
+                    }
+                }
+            }
+        }
+        return points[best];
+    }
+
+    private int cellX(double x) {
+        return Math.max(0, Math.min(width - 1, (int) Math.floor((x - minX) / cell)));
+    }
+
+    private int cellY(double y) {
+        return Math.max(0, Math.min(height - 1, (int) Math.floor((y - minY) / cell)));
+    }
+}
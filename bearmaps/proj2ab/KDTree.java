@@ -1,6 +1,9 @@
 package bearmaps.proj2ab;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 
 public class KDTree {
     static boolean horizontal = true;
@@ -80,7 +83,7 @@ public class KDTree {
         best = nearestHelper(good_side, goal, best);
 
         double best_dist = Point.distance(goal, best);
-        double bad_side_best_dist = perp_dist_sqd(goal, n.point, n.orientation);
+        double bad_side_best_dist = splitDistance(goal, n.point, n.orientation);
         if (bad_side_best_dist < best_dist) {
             best = nearestHelper(bad_side, goal, best);
         }
@@ -88,14 +91,98 @@ public class KDTree {
         return best;
     }
 
-    /* Returns squared distance to compare with the Point.distance method which
-     * also returns squared distance
+    /* Returns an iterator over every point in the tree, closest to the inputted coordinates
+     * first. Points are produced lazily by a best-first search, so a caller that stops after the
+     * first few points only pays for the part of the tree near the coordinates.
      * */
-    private double perp_dist_sqd(Point a, Point b, boolean orientation) {
+    public Iterator<Point> nearestIterator(double x, double y) {
+        return new NearestIterator(new Point(x, y));
+    }
+
+    /* A pending subtree or point of the best-first search, with a lower bound on the distance
+     * from the goal to anything it contains. Exactly one of node and point is set. */
+    private static class SearchEntry {
+        private Node node;
+        private Point point;
+        private double bound;
+
+        private SearchEntry(Node node, Point point, double bound) {
+            this.node = node;
+            this.point = point;
+            this.bound = bound;
+        }
+    }
+
+    private class NearestIterator implements Iterator<Point> {
+        private Point goal;
+        private PriorityQueue<SearchEntry> fringe;
+
+        private NearestIterator(Point goal) {
+            this.goal = goal;
+            fringe = new PriorityQueue<>((a, b) -> Double.compare(a.bound, b.bound));
+            if (kd != null) {
+                fringe.add(new SearchEntry(kd, null, 0));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            expandUntilPoint();
+            return !fringe.isEmpty();
+        }
+
+        @Override
+        public Point next() {
+            expandUntilPoint();
+            if (fringe.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            return fringe.poll().point;
+        }
+
+        /* Expands subtrees until the closest pending entry is a point. */
+        private void expandUntilPoint() {
+            while (!fringe.isEmpty() && fringe.peek().point == null) {
+                SearchEntry entry = fringe.poll();
+                Node n = entry.node;
+                fringe.add(new SearchEntry(null, n.point, Point.distance(goal, n.point)));
+
+                Node good_side;
+                Node bad_side;
+                if (comparePoints(goal, n.point, n.orientation) < 0) {
+                    good_side = n.left_child;
+                    bad_side = n.right_child;
+                } else {
+                    good_side = n.right_child;
+                    bad_side = n.left_child;
+                }
+
+                if (good_side != null) {
+                    fringe.add(new SearchEntry(good_side, null, entry.bound));
+                }
+                if (bad_side != null) {
+                    double bad_side_bound = splitDistance(goal, n.point, n.orientation);
+                    fringe.add(new SearchEntry(bad_side, null,
+                            Math.max(entry.bound, bad_side_bound)));
+                }
+            }
+        }
+    }
+
+    /* Returns the great-circle distance from a to the splitting line through b, which no point
+     * on the other side of the line is closer than. A line of latitude is closest straight north
+     * or south. A meridian is closest at a latitude nearer the pole than a's, so the distance to
+     * the point level with a would be too large; the distance d to a meridian dLon away is given
+     * by sin(d) = cos(lat) * sin(dLon) instead, as an arc of the earth along a meridian.
+     * */
+    private double splitDistance(Point a, Point b, boolean orientation) {
         if (orientation == horizontal) {
-            return Math.pow(a.getX() - b.getX(), 2);
+            double dLon = Math.toRadians(b.getX() - a.getX());
+            double arc = Math.asin(Math.min(1,
+                    Math.cos(Math.toRadians(a.getY())) * Math.abs(Math.sin(dLon))));
+            return Point.distance(0, 0, 0, Math.toDegrees(arc));
         } else {
-            return Math.pow(a.getY() - b.getY(), 2);
+            return Point.distance(a, new Point(a.getX(), b.getY()));
         }
     }
 }
@@ -0,0 +1,309 @@
+package bearmaps.proj2c;
+
+import bearmaps.hw4.AStarGraph;
+import bearmaps.hw4.WeightedEdge;
+import bearmaps.hw4.streetmap.CostModel;
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.hw4.streetmap.StreetMapGraph;
+import bearmaps.proj2ab.ArrayHeapMinPQ;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds alternatives to a shortest route with the plateau method. One search forward from the
+ * start and one backward from the destination, each bounded by the cost of the longest
+ * acceptable alternative, give two shortest path trees. Every vertex both trees reach is the via
+ * vertex of a candidate route made of its two tree paths. Where the trees agree, the candidate's
+ * plateau, it is a shortest path, so a candidate with a long plateau has no obvious detour.
+ * Candidates are taken cheapest first if they are not much costlier than the shortest route,
+ * share little with the routes already chosen, and have a long enough plateau. All candidates
+ * come from the same two searches, so finding several alternatives costs about as much as two
+ * bounded shortest path queries.
+ */
+public class AlternativeRoutes {
+    /** Alternatives cost at most this fraction more than the shortest route. */
+    public static final double MAX_STRETCH = 0.25;
+    /** Alternatives share at most this fraction of their cost with any route chosen before. */
+    public static final double MAX_SHARING = 0.7;
+    /** Alternatives have a plateau of at least this fraction of the shortest route's cost. */
+    public static final double MIN_PLATEAU = 0.2;
+
+    private final StreetMapGraph g;
+    private final AStarGraph<Long> view;
+    private final List<List<Long>> routes = new ArrayList<>();
+    private final List<Double> weights = new ArrayList<>();
+    private final List<Set<WeightedEdge<Long>>> routeEdges = new ArrayList<>();
+    private int numStatesExplored;
+
+    /* The shortest path trees: distance and tree edge of every vertex each search settled. */
+    private final Map<Long, Double> forwardDistTo = new HashMap<>();
+    private final Map<Long, WeightedEdge<Long>> forwardEdgeTo = new HashMap<>();
+    private final Map<Long, Double> backwardDistTo = new HashMap<>();
+    private final Map<Long, WeightedEdge<Long>> backwardEdgeTo = new HashMap<>();
+
+    /**
+     * Finds up to MAXROUTES routes for PROFILE under COST, the first of which is SHORTEST.
+     * @param shortest The shortest route, as found by Router.shortestPath. If it is empty, no
+     *                 routes are found.
+     */
+    public AlternativeRoutes(StreetMapGraph g, RoutingProfile profile, CostModel cost,
+                             List<Long> shortest, int maxRoutes) {
+        this.g = g;
+        this.view = g.withProfile(profile, cost);
+        if (shortest.isEmpty() || maxRoutes < 1) {
+            return;
+        }
+
+        List<WeightedEdge<Long>> shortestEdges = edgesOf(shortest);
+        double shortestWeight = weightOf(shortestEdges);
+        addRoute(shortest, shortestEdges, shortestWeight);
+        if (maxRoutes == 1 || shortest.size() < 2) {
+            return;
+        }
+
+        long start = shortest.get(0);
+        long end = shortest.get(shortest.size() - 1);
+        double bound = (1 + MAX_STRETCH) * shortestWeight;
+        search(start, bound, true);
+        search(end, bound, false);
+
+        List<Long> candidates = new ArrayList<>();
+        Map<Long, Double> viaWeights = new HashMap<>();
+        for (Map.Entry<Long, Double> entry : forwardDistTo.entrySet()) {
+            Double backwardDist = backwardDistTo.get(entry.getKey());
+            if (backwardDist != null && entry.getValue() + backwardDist <= bound) {
+                candidates.add(entry.getKey());
+                viaWeights.put(entry.getKey(), entry.getValue() + backwardDist);
+            }
+        }
+        candidates.sort((a, b) -> Double.compare(viaWeights.get(a), viaWeights.get(b)));
+
+        Set<Long> seen = new HashSet<>();
+        for (long via : candidates) {
+            if (routes.size() == maxRoutes) {
+                break;
+            }
+            if (seen.contains(via)) {
+                continue;
+            }
+            List<WeightedEdge<Long>> edges = viaPath(via);
+            int viaIndex = forwardDepth(via);
+            /* Every vertex of the plateau has this same via path, so it is only tried once. */
+            double plateau = plateauWeight(edges, viaIndex, seen);
+            if (plateau < MIN_PLATEAU * shortestWeight || !isSimple(edges)
+                    || !hasAllowedTurns(edges)) {
+                continue;
+            }
+            double weight = viaWeights.get(via);
+            if (sharesTooMuch(edges, weight)) {
+                continue;
+            }
+            List<Long> route = new ArrayList<>();
+            route.add(start);
+            for (WeightedEdge<Long> e : edges) {
+                route.add(e.to());
+            }
+            addRoute(route, edges, weight);
+        }
+    }
+
+    /** Returns the routes found, shortest first, each a list of vertex ids. */
+    public List<List<Long>> routes() {
+        return routes;
+    }
+
+    /** Returns the cost of each route, in the same order as routes. */
+    public List<Double> weights() {
+        return weights;
+    }
+
+    /** Returns the total number of vertices settled by both searches. */
+    public int numStatesExplored() {
+        return numStatesExplored;
+    }
+
+    private void addRoute(List<Long> route, List<WeightedEdge<Long>> edges, double weight) {
+        routes.add(route);
+        weights.add(weight);
+        routeEdges.add(new HashSet<>(edges));
+    }
+
+    /**
+     * Runs Dijkstra's algorithm from SOURCE, forward along edges or backward against them,
+     * settling every vertex no further than BOUND.
+     */
+    private void search(long source, double bound, boolean forward) {
+        Map<Long, Double> distTo = forward ? forwardDistTo : backwardDistTo;
+        Map<Long, WeightedEdge<Long>> edgeTo = forward ? forwardEdgeTo : backwardEdgeTo;
+        Set<Long> settled = new HashSet<>();
+        ArrayHeapMinPQ<Long> pq = new ArrayHeapMinPQ<>();
+        distTo.put(source, 0.0);
+        pq.add(source, 0);
+        while (pq.size() > 0) {
+            long v = pq.removeSmallest();
+            settled.add(v);
+            numStatesExplored += 1;
+            double distToV = distTo.get(v);
+            List<WeightedEdge<Long>> edges = forward ? view.neighbors(v) : g.reverseNeighbors(v);
+            for (WeightedEdge<Long> e : edges) {
+                if (!view.isTraversable(e)) {
+                    continue;
+                }
+                long w = forward ? e.to() : e.from();
+                double distToW = distToV + view.weight(e);
+                if (distToW > bound || settled.contains(w)) {
+                    continue;
+                }
+                Double oldDist = distTo.get(w);
+                if (oldDist == null) {
+                    distTo.put(w, distToW);
+                    edgeTo.put(w, e);
+                    pq.add(w, distToW);
+                } else if (distToW < oldDist) {
+                    distTo.put(w, distToW);
+                    edgeTo.put(w, e);
+                    pq.changePriority(w, distToW);
+                }
+            }
+        }
+    }
+
+    /** Returns the edges of the path through VIA made of its forward and backward tree paths. */
+    private List<WeightedEdge<Long>> viaPath(long via) {
+        List<WeightedEdge<Long>> edges = new ArrayList<>();
+        WeightedEdge<Long> e = forwardEdgeTo.get(via);
+        while (e != null) {
+            edges.add(e);
+            e = forwardEdgeTo.get(e.from());
+        }
+        Collections.reverse(edges);
+        e = backwardEdgeTo.get(via);
+        while (e != null) {
+            edges.add(e);
+            e = backwardEdgeTo.get(e.to());
+        }
+        return edges;
+    }
+
+    /** Returns the number of edges on the forward tree path to V. */
+    private int forwardDepth(long v) {
+        int depth = 0;
+        WeightedEdge<Long> e = forwardEdgeTo.get(v);
+        while (e != null) {
+            depth += 1;
+            e = forwardEdgeTo.get(e.from());
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the cost of the plateau of the path EDGES around its via vertex, which EDGES
+     * enter at VIAINDEX: the longest run of edges around it that are in both trees. Adds the
+     * vertices of the plateau to SEEN.
+     */
+    private double plateauWeight(List<WeightedEdge<Long>> edges, int viaIndex, Set<Long> seen) {
+        double weight = 0;
+        int first = viaIndex;
+        while (first > 0 && isInBothTrees(edges.get(first - 1))) {
+            first -= 1;
+            weight += view.weight(edges.get(first));
+        }
+        int last = viaIndex;
+        while (last < edges.size() && isInBothTrees(edges.get(last))) {
+            weight += view.weight(edges.get(last));
+            last += 1;
+        }
+        if (first == viaIndex && last == viaIndex) {
+            /* A plateau of one vertex: only the via vertex itself. */
+            long via = viaIndex < edges.size() ? edges.get(viaIndex).from()
+                    : edges.get(viaIndex - 1).to();
+            seen.add(via);
+        }
+        for (int i = first; i < last; i += 1) {
+            seen.add(edges.get(i).from());
+            seen.add(edges.get(i).to());
+        }
+        return weight;
+    }
+
+    private boolean isInBothTrees(WeightedEdge<Long> e) {
+        return forwardEdgeTo.get(e.to()) == e && backwardEdgeTo.get(e.from()) == e;
+    }
+
+    /** Returns whether the path EDGES visits no vertex twice. */
+    private static boolean isSimple(List<WeightedEdge<Long>> edges) {
+        Set<Long> visited = new HashSet<>();
+        if (!edges.isEmpty()) {
+            visited.add(edges.get(0).from());
+        }
+        for (WeightedEdge<Long> e : edges) {
+            if (!visited.add(e.to())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the path EDGES makes no forbidden turn. The trees themselves ignore turn
+     * restrictions, so candidates are checked here instead.
+     */
+    private boolean hasAllowedTurns(List<WeightedEdge<Long>> edges) {
+        for (int i = 0; i < edges.size() - 1; i += 1) {
+            WeightedEdge<Long> in = edges.get(i);
+            if (view.hasTurnRestrictions(in) && !view.isTurnAllowed(in, edges.get(i + 1))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether the path EDGES, of cost WEIGHT, shares more than MAX_SHARING of its cost
+     * with a route chosen before.
+     */
+    private boolean sharesTooMuch(List<WeightedEdge<Long>> edges, double weight) {
+        for (Set<WeightedEdge<Long>> chosen : routeEdges) {
+            double shared = 0;
+            for (WeightedEdge<Long> e : edges) {
+                if (chosen.contains(e)) {
+                    shared += view.weight(e);
+                }
+            }
+            if (shared > MAX_SHARING * weight) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the cheapest edges joining the consecutive vertices of ROUTE. */
+    private List<WeightedEdge<Long>> edgesOf(List<Long> route) {
+        List<WeightedEdge<Long>> edges = new ArrayList<>();
+        for (int i = 0; i < route.size() - 1; i += 1) {
+            WeightedEdge<Long> best = null;
+            for (WeightedEdge<Long> e : view.neighbors(route.get(i))) {
+                if (e.to().equals(route.get(i + 1)) && view.isTraversable(e)
+                        && (best == null || view.weight(e) < view.weight(best))) {
+                    best = e;
+                }
+            }
+            edges.add(best);
+        }
+        return edges;
+    }
+
+    private double weightOf(List<WeightedEdge<Long>> edges) {
+        double weight = 0;
+        for (WeightedEdge<Long> e : edges) {
+            weight += view.weight(e);
+        }
+        return weight;
+    }
+}
@@ -1,11 +1,16 @@
 package bearmaps.proj2c;
 
 import bearmaps.hw4.streetmap.Node;
+import bearmaps.hw4.streetmap.RoutingProfile;
 import bearmaps.hw4.streetmap.StreetMapGraph;
-import bearmaps.lab9.MyTrieSet;
+import bearmaps.lab9.AutocompleteTrie;
+import bearmaps.proj2ab.GridPointSet;
 import bearmaps.proj2ab.KDTree;
 import bearmaps.proj2ab.Point;
+import bearmaps.proj2ab.PointSet;
+import com.google.gson.Gson;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -16,48 +21,88 @@ import java.util.*;
  * @author Alan Yao, Josh Hug, ________
  */
 public class AugmentedStreetMapGraph extends StreetMapGraph {
+    /** Number of completions precomputed per node of the locations trie. */
+    public static final int AUTOCOMPLETE_TOP_K = 16;
+
+    /** Most typos a fuzzy location search will tolerate, whatever the caller asks for. */
+    public static final int MAX_FUZZY_EDITS = 2;
+
+    /**
+     * How much a match's text score counts against its distance when search results are ranked
+     * around a point: the least popular name is treated as if it were this many miles further
+     * away than an exact match.
+     */
+    public static final double GEO_TEXT_WEIGHT_MILES = 0.5;
+
+    private static final byte[] EMPTY_JSON_ARRAY = "[]".getBytes(StandardCharsets.UTF_8);
+
     private HashMap<Point, Node> pointToNodeMap;
-    private KDTree streetRoutesKD;
-    private MyTrieSet locationsTrie;
-    private HashMap<String, String> cleanToFullLocationNameMap;
-    private HashMap<String, List<Map<String, Object>>> cleanNameToListOfLocationsMap;
+    /* One grid per RoutingProfile, of the nodes that profile can leave, for closest. */
+    private PointSet[] streetRoutesGrid;
+    /* The nodes of the unrestricted graph, for closest without a profile. */
+    private PointSet unrestrictedGrid;
+    /* The same nodes in one tree per RoutingProfile, for visiting them closest first. */
+    private KDTree[] streetRoutesKD;
+    /* One index per RoutingProfile, of the edges that profile may use. */
+    private EdgeIndex[] edgeIndexes;
+    /* Built on first use. */
+    private VectorTiles vectorTiles;
+    private AutocompleteTrie locationsTrie;
+    private String[] rankToFullLocationName;
+    private Location[][] rankToLocations;
+    private byte[][] rankToLocationsJson;
+    private KDTree namedLocationsKD;
+    private HashMap<Point, List<Integer>> pointToLocationRanksMap;
 
     public AugmentedStreetMapGraph(String dbPath) {
         super(dbPath);
 
         List<Node> nodes = this.getNodes();
-        List<Point> points = new ArrayList<>();
+        RoutingProfile[] profiles = RoutingProfile.values();
+        List<List<Point>> profilePoints = new ArrayList<>();
+        for (int i = 0; i < profiles.length; i += 1) {
+            profilePoints.add(new ArrayList<>());
+        }
+        List<Point> unrestrictedPoints = new ArrayList<>();
         pointToNodeMap = new HashMap<>();
-        locationsTrie = new MyTrieSet();
-        cleanToFullLocationNameMap = new HashMap<>();
-        cleanNameToListOfLocationsMap = new HashMap<>();
+        HashMap<String, Double> cleanLocationNamePopularity = new HashMap<>();
+        HashMap<String, String> cleanToFullLocationNameMap = new HashMap<>();
+        HashMap<String, List<Location>> cleanNameToListOfLocationsMap = new HashMap<>();
 
         for (Node n : nodes) {
             long id = n.id();
-            int num_neighbors = neighbors(id).size();
 
             /* Set up for the closest method */
-            if (num_neighbors > 0) {
-                Point p = new Point(n.lon(), n.lat());
-                points.add(p);
-                pointToNodeMap.put(p, n);
+            Point p = null;
+            for (RoutingProfile profile : profiles) {
+                if (isReachable(id, profile)) {
+                    if (p == null) {
+                        p = new Point(n.lon(), n.lat());
+                        pointToNodeMap.put(p, n);
+                    }
+                    profilePoints.get(profile.ordinal()).add(p);
+                }
+            }
+            if (isUnrestrictedReachable(id)) {
+                if (p == null) {
+                    p = new Point(n.lon(), n.lat());
+                    pointToNodeMap.put(p, n);
+                }
+                unrestrictedPoints.add(p);
             }
 
             String location_name = name(id);
             if (location_name != null) {
                 /* Set up for the getLocationsByPrefix method */
                 String clean_location_name = cleanString(location_name);
-                locationsTrie.add(clean_location_name);
+                cleanLocationNamePopularity.merge(clean_location_name, 1.0, Double::sum);
                 cleanToFullLocationNameMap.put(clean_location_name, location_name);
 
                 /* Set up for the getLocations method */
-                HashMap<String, Object> location = new HashMap<>();
-                location.put("lat", n.lat());
-                location.put("lon", n.lon());
-                location.put("name", location_name);
-                location.put("id", id);
+                Location location = new Location(id, n.lat(), n.lon(), location_name);
 
-                List<Map<String, Object>> location_list = cleanNameToListOfLocationsMap.get(clean_location_name);
+                List<Location> location_list =
+                        cleanNameToListOfLocationsMap.get(clean_location_name);
                 if (location_list == null) {
                     location_list = new ArrayList<>();
                 }
@@ -66,39 +111,295 @@ public class AugmentedStreetMapGraph extends StreetMapGraph {
             }
         }
 
-        streetRoutesKD = new KDTree(points);
+        streetRoutesGrid = new PointSet[profiles.length];
+        unrestrictedGrid = new GridPointSet(unrestrictedPoints);
+        streetRoutesKD = new KDTree[profiles.length];
+        for (RoutingProfile profile : profiles) {
+            List<Point> points = profilePoints.get(profile.ordinal());
+            streetRoutesGrid[profile.ordinal()] = new GridPointSet(points);
+            streetRoutesKD[profile.ordinal()] = new KDTree(points);
+        }
+        edgeIndexes = new EdgeIndex[profiles.length];
+        for (RoutingProfile profile : profiles) {
+            edgeIndexes[profile.ordinal()] = new EdgeIndex(this, nodes, profile);
+        }
+
+        /* A name shared by many nodes (e.g. a chain or a long street) is ranked as more popular. */
+        locationsTrie = new AutocompleteTrie(cleanLocationNamePopularity, AUTOCOMPLETE_TOP_K);
+        rankToFullLocationName = new String[locationsTrie.size()];
+        rankToLocations = new Location[locationsTrie.size()][];
+        rankToLocationsJson = new byte[locationsTrie.size()][];
+        Gson gson = new Gson();
+        for (int r = 0; r < rankToFullLocationName.length; r += 1) {
+            String clean_location_name = locationsTrie.key(r);
+            rankToFullLocationName[r] = cleanToFullLocationNameMap.get(clean_location_name);
+
+            /* Serialize each full search response once, here, rather than on every request. */
+            List<Location> location_list = cleanNameToListOfLocationsMap.get(clean_location_name);
+            List<Map<String, Object>> location_maps = new ArrayList<>();
+            for (Location location : location_list) {
+                location_maps.add(location.toMap());
+            }
+            rankToLocations[r] = location_list.toArray(new Location[0]);
+            rankToLocationsJson[r] = gson.toJson(location_maps).getBytes(StandardCharsets.UTF_8);
+        }
+
+        /* Set up for the getLocationsByPrefixNear method */
+        List<Point> named_points = new ArrayList<>();
+        pointToLocationRanksMap = new HashMap<>();
+        for (int r = 0; r < rankToLocations.length; r += 1) {
+            for (Location location : rankToLocations[r]) {
+                Point p = new Point(location.lon(), location.lat());
+                List<Integer> ranks = pointToLocationRanksMap.get(p);
+                if (ranks == null) {
+                    ranks = new ArrayList<>();
+                    pointToLocationRanksMap.put(p, ranks);
+                    named_points.add(p);
+                }
+                ranks.add(r);
+            }
+        }
+        namedLocationsKD = new KDTree(named_points);
     }
 
 
     /**
      * For Project Part II
-     * Returns the vertex closest to the given longitude and latitude.
+     * Returns the vertex of the unrestricted graph closest to the given longitude and latitude.
      * @param lon The target longitude.
      * @param lat The target latitude.
-     * @return The id of the node in the graph closest to the target.
+     * @return The id of the node in the graph closest to the target, or -1 if the graph has
+     * no roads.
      */
     public long closest(double lon, double lat) {
-        Point nearest_p = streetRoutesKD.nearest(lon, lat);
-        return pointToNodeMap.get(nearest_p).id();
+        return nodeId(unrestrictedGrid.nearest(lon, lat));
+    }
+
+    /**
+     * Returns the vertex closest to the given longitude and latitude that PROFILE can leave,
+     * e.g. so that a driving route never starts on a footpath.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param profile The mode of travel of the route starting or ending there.
+     * @return The id of the node in the graph closest to the target, or -1 if PROFILE can
+     * leave no vertex.
+     */
+    public long closest(double lon, double lat, RoutingProfile profile) {
+        return nodeId(streetRoutesGrid[profile.ordinal()].nearest(lon, lat));
+    }
+
+    /** Returns the id of the node at P, a point of a street route grid, or -1 if P is null. */
+    private long nodeId(Point p) {
+        return p == null ? -1 : pointToNodeMap.get(p).id();
+    }
+
+    /**
+     * Returns the closest point to the given longitude and latitude on a road PROFILE may use.
+     * Unlike the closest vertex, this is on the road the point is next to even when that road's
+     * intersections are far away.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param profile The mode of travel of the route starting or ending there.
+     * @return The point and the road it is on, or null if PROFILE may use no road.
+     */
+    public EdgeIndex.Snap snap(double lon, double lat, RoutingProfile profile) {
+        return edgeIndexes[profile.ordinal()].snap(lon, lat);
+    }
+
+    /** Returns the spatial index of the edges PROFILE may use. */
+    public EdgeIndex edgeIndex(RoutingProfile profile) {
+        return edgeIndexes[profile.ordinal()];
+    }
+
+    /**
+     * Returns the roads and named places of this graph cut into vector tiles. They are set up on
+     * the first call and shared afterwards.
+     */
+    public synchronized VectorTiles vectorTiles() {
+        if (vectorTiles == null) {
+            vectorTiles = new VectorTiles(this, getNodes());
+        }
+        return vectorTiles;
+    }
+
+    /**
+     * Returns up to K vertices that PROFILE can leave, closest to the given longitude and
+     * latitude first, no further than MAXMILES away. Only the part of the spatial index near the
+     * target is visited.
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @param profile The mode of travel of the route through the vertices.
+     * @param k The most vertices to return.
+     * @param maxMiles The greatest distance from the target of any vertex returned.
+     * @return The ids of the vertices, closest first.
+     */
+    public List<Long> closest(double lon, double lat, RoutingProfile profile, int k,
+                              double maxMiles) {
+        List<Long> ids = new ArrayList<>();
+        Point target = new Point(lon, lat);
+        Iterator<Point> by_distance = streetRoutesKD[profile.ordinal()].nearestIterator(lon, lat);
+        while (ids.size() < k && by_distance.hasNext()) {
+            Point p = by_distance.next();
+            if (Point.distance(target, p) > maxMiles) {
+                break;
+            }
+            ids.add(pointToNodeMap.get(p).id());
+        }
+        return ids;
     }
 
 
     /**
      * For Project Part III (gold points)
-     * In linear time, collect all the names of OSM locations that prefix-match the query string.
+     * Collect all the names of OSM locations that prefix-match the query string, most popular
+     * first.
      * @param prefix Prefix string to be searched for. Could be any case, with our without
      *               punctuation.
      * @return A <code>List</code> of the full names of locations whose cleaned name matches the
      * cleaned <code>prefix</code>.
      */
     public List<String> getLocationsByPrefix(String prefix) {
+        return getLocationsByPrefix(prefix, -1);
+    }
+
+    /**
+     * Same as getLocationsByPrefix(prefix), but returns at most <code>limit</code> names. A limit
+     * no larger than AUTOCOMPLETE_TOP_K is answered from the precomputed completions, so it costs
+     * the same however many locations share the prefix.
+     * @param prefix Prefix string to be searched for.
+     * @param limit Maximum number of names to return; a negative value means no limit.
+     * @return A <code>List</code> of at most <code>limit</code> full location names.
+     */
+    public List<String> getLocationsByPrefix(String prefix, int limit) {
+        String clean_prefix = cleanString(prefix);
+        int[] ranks = locationsTrie.ranksWithPrefix(clean_prefix, limit);
+        List<String> full_location_names = new ArrayList<>(ranks.length);
+
+        for (int rank : ranks) {
+            full_location_names.add(rankToFullLocationName[rank]);
+        }
+
+        return full_location_names;
+    }
+
+    /**
+     * Collect the names of OSM locations that prefix-match the query string, ranked by how close
+     * their nearest instance is to (<code>lon</code>, <code>lat</code>) plus a text score. The
+     * text score is 0 for an exact match and grows to GEO_TEXT_WEIGHT_MILES for the least popular
+     * name.
+     * When fewer names match than <code>limit</code> or AUTOCOMPLETE_TOP_K, whichever is more,
+     * each one is scored directly. Otherwise at least <code>limit</code> names match, named
+     * locations are visited in order of distance from the point, and the search stops as soon as
+     * no farther location could beat the worst of the best <code>limit</code> names found so far.
+     * @param prefix Prefix string to be searched for.
+     * @param lon The longitude to rank around, typically the center of the viewport.
+     * @param lat The latitude to rank around.
+     * @param limit Maximum number of names to return; a negative value means
+     *              AUTOCOMPLETE_TOP_K.
+     * @return A <code>List</code> of at most <code>limit</code> full location names, best first.
+     */
+    public List<String> getLocationsByPrefixNear(String prefix, double lon, double lat, int limit) {
+        String clean_prefix = cleanString(prefix);
+        if (limit < 0) {
+            limit = AUTOCOMPLETE_TOP_K;
+        }
+        if (clean_prefix.length() < 1 || limit == 0) {
+            return new ArrayList<>();
+        }
+
+        Point center = new Point(lon, lat);
+        HashMap<Integer, Double> rank_to_score = new HashMap<>();
+        /* Worst score first, so the head is the one to evict. */
+        PriorityQueue<Integer> best_ranks = new PriorityQueue<>(
+                (a, b) -> Double.compare(rank_to_score.get(b), rank_to_score.get(a)));
+
+        int wanted = Math.max(limit, AUTOCOMPLETE_TOP_K);
+        int[] candidates = locationsTrie.ranksWithPrefix(clean_prefix, wanted);
+        if (candidates.length < wanted) {
+            /* The candidate list is complete, so there is no need to touch the spatial index. */
+            for (int rank : candidates) {
+                double nearest = Double.POSITIVE_INFINITY;
+                for (Location location : rankToLocations[rank]) {
+                    Point p = new Point(location.lon(), location.lat());
+                    nearest = Math.min(nearest, Point.distance(center, p));
+                }
+                offerRankedLocation(rank, nearest + geoTextPenalty(rank, clean_prefix), limit,
+                        rank_to_score, best_ranks);
+            }
+        } else {
+            Iterator<Point> by_distance = namedLocationsKD.nearestIterator(lon, lat);
+            while (by_distance.hasNext()) {
+                Point p = by_distance.next();
+                double distance = Point.distance(center, p);
+                if (best_ranks.size() == limit
+                        && distance >= rank_to_score.get(best_ranks.peek())) {
+                    break;
+                }
+                for (int rank : pointToLocationRanksMap.get(p)) {
+                    /* The first time a name is seen is at its nearest instance. */
+                    if (!rank_to_score.containsKey(rank)
+                            && locationsTrie.key(rank).startsWith(clean_prefix)) {
+                        offerRankedLocation(rank, distance + geoTextPenalty(rank, clean_prefix),
+                                limit, rank_to_score, best_ranks);
+                    }
+                }
+            }
+        }
+
+        LinkedList<String> full_location_names = new LinkedList<>();
+        while (!best_ranks.isEmpty()) {
+            full_location_names.addFirst(rankToFullLocationName[best_ranks.poll()]);
+        }
+        return full_location_names;
+    }
+
+    /* Text part of the geo-ranked score; a less popular name counts as further away. */
+    private double geoTextPenalty(int rank, String clean_prefix) {
+        if (locationsTrie.key(rank).equals(clean_prefix)) {
+            return 0;
+        }
+        return GEO_TEXT_WEIGHT_MILES * (rank + 1) / locationsTrie.size();
+    }
+
+    /* Adds RANK to the best LIMIT ranks if SCORE is good enough. Every offered rank is kept in
+     * rank_to_score so that it is not offered again. */
+    private static void offerRankedLocation(int rank, double score, int limit,
+                                            HashMap<Integer, Double> rank_to_score,
+                                            PriorityQueue<Integer> best_ranks) {
+        rank_to_score.put(rank, score);
+        if (best_ranks.size() < limit) {
+            best_ranks.add(rank);
+        } else if (score < rank_to_score.get(best_ranks.peek())) {
+            best_ranks.poll();
+            best_ranks.add(rank);
+        }
+    }
+
+    /**
+     * Typo-tolerant version of getLocationsByPrefix. Returns the full names of locations whose
+     * cleaned name starts with something within <code>maxEdits</code> insertions, deletions or
+     * substitutions of the cleaned <code>prefix</code>, closest first and then most popular
+     * first. Exact prefix matches therefore always come first.
+     * @param prefix Prefix string to be searched for.
+     * @param maxEdits Number of typos to tolerate; a negative value picks one from the length
+     *                 of the prefix. Never more than MAX_FUZZY_EDITS.
+     * @param limit Maximum number of names to return, capped at AUTOCOMPLETE_TOP_K; a negative
+     *              value means AUTOCOMPLETE_TOP_K.
+     * @return A <code>List</code> of at most <code>limit</code> full location names.
+     */
+    public List<String> getLocationsByFuzzyPrefix(String prefix, int maxEdits, int limit) {
         String clean_prefix = cleanString(prefix);
-        List<String> clean_location_names = locationsTrie.keysWithPrefix(clean_prefix);
-        List<String> full_location_names = new ArrayList<>();
+        if (maxEdits < 0) {
+            /* One typo in a two letter prefix already matches almost everything. */
+            maxEdits = clean_prefix.length() <= 3 ? 0 : clean_prefix.length() <= 6 ? 1 : 2;
+        }
+        maxEdits = Math.min(maxEdits, MAX_FUZZY_EDITS);
+
+        int[] ranks = locationsTrie.ranksWithinDistance(clean_prefix, maxEdits, limit);
+        List<String> full_location_names = new ArrayList<>(ranks.length);
 
-        for (String clean_name : clean_location_names) {
-            String full_name = cleanToFullLocationNameMap.get(clean_name);
-            full_location_names.add(full_name);
+        for (int rank : ranks) {
+            full_location_names.add(rankToFullLocationName[rank]);
         }
 
         return full_location_names;
@@ -118,19 +419,77 @@ public class AugmentedStreetMapGraph extends StreetMapGraph {
      * "id" -> Number, The id of the node. <br>
      */
     public List<Map<String, Object>> getLocations(String locationName) {
-        String clean_location_name = cleanString(locationName);
-        return cleanNameToListOfLocationsMap.get(clean_location_name);
+        List<Map<String, Object>> location_maps = new ArrayList<>();
+        for (Location location : getLocationRecords(locationName)) {
+            location_maps.add(location.toMap());
+        }
+        return location_maps;
     }
 
+    /**
+     * Same as getLocations, but returns the shared immutable location records instead of
+     * building a map per location.
+     * @param locationName A full name of a location searched for.
+     * @return The locations whose cleaned name matches the cleaned <code>locationName</code>.
+     * The returned list must not be modified.
+     */
+    public List<Location> getLocationRecords(String locationName) {
+        int rank = locationsTrie.rank(cleanString(locationName));
+        if (rank < 0) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(rankToLocations[rank]);
+    }
 
     /**
-     * Useful for Part III. Do not modify.
+     * Same as getLocations, but returns the Json response itself, serialized once when the graph
+     * was built. The returned array is shared and must not be modified.
+     * @param locationName A full name of a location searched for.
+     * @return The UTF-8 bytes of a Json array of locations, as described in getLocations.
+     */
+    public byte[] getLocationsJson(String locationName) {
+        int rank = locationsTrie.rank(cleanString(locationName));
+        if (rank < 0) {
+            return EMPTY_JSON_ARRAY;
+        }
+        return rankToLocationsJson[rank];
+    }
+
+
+    /**
+     * Useful for Part III.
      * Helper to process strings into their "cleaned" form, ignoring punctuation and capitalization.
+     * Equivalent to <code>s.replaceAll("[^a-zA-Z ]", "").toLowerCase()</code>, but without
+     * compiling a regex on every call, and without allocating when s is already clean.
      * @param s Input string.
      * @return Cleaned string.
      */
     private static String cleanString(String s) {
-        return s.replaceAll("[^a-zA-Z ]", "").toLowerCase();
+        int n = s.length();
+        int i = 0;
+        while (i < n && isCleanChar(s.charAt(i))) {
+            i += 1;
+        }
+        if (i == n) {
+            return s;
+        }
+
+        StringBuilder sb = new StringBuilder(n);
+        sb.append(s, 0, i);
+        for (; i < n; i += 1) {
+            char c = s.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                sb.append((char) (c + ('a' - 'A')));
+            } else if ((c >= 'a' && c <= 'z') || c == ' ') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /* Returns true if C appears unchanged in a cleaned string. */
+    private static boolean isCleanChar(char c) {
+        return (c >= 'a' && c <= 'z') || c == ' ';
     }
 
 }
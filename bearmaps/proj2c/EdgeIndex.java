@@ -0,0 +1,298 @@
+package bearmaps.proj2c;
+
+import bearmaps.hw4.WeightedEdge;
+import bearmaps.hw4.streetmap.Node;
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.hw4.streetmap.StreetMapGraph;
+import bearmaps.proj2ab.Point;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A spatial index of the road segments one RoutingProfile may use, for snapping a point to the
+ * closest point on the closest road rather than to the closest intersection, and for finding
+ * the roads in an area. The segments are bucketed into a uniform grid of cells, each segment
+ * into every cell its bounding box covers, and a snap scans rings of cells around the point
+ * until no unscanned cell can hold anything closer.
+ */
+public class EdgeIndex {
+    /** Miles per degree of latitude, and of longitude at the equator. */
+    private static final double MILES_PER_DEGREE = 69.17;
+
+    private final StreetMapGraph g;
+    private final RoutingProfile profile;
+    private final List<WeightedEdge<Long>> edges = new ArrayList<>();
+    private final double minLon;
+    private final double minLat;
+    private final double cell;
+    private final int width;
+    private final int height;
+    /* The edges in cell c are cellEdges[cellStarts[c]] to cellEdges[cellStarts[c + 1] - 1]. */
+    private final int[] cellStarts;
+    private final int[] cellEdges;
+    /* Lower bound on the miles per degree of longitude anywhere in the grid. */
+    private final double milesPerLonDegree;
+
+    /**
+     * The closest point on a road to a query point. The road is the segment between from and
+     * to, and can be travelled along the forward edge, the backward edge, or both.
+     */
+    public static class Snap {
+        private final WeightedEdge<Long> forward;
+        private final WeightedEdge<Long> backward;
+        private final double fraction;
+        private final double lon;
+        private final double lat;
+        private final double distance;
+
+        private Snap(WeightedEdge<Long> forward, WeightedEdge<Long> backward, double fraction,
+                     double lon, double lat, double distance) {
+            this.forward = forward;
+            this.backward = backward;
+            this.fraction = fraction;
+            this.lon = lon;
+            this.lat = lat;
+            this.distance = distance;
+        }
+
+        /** Returns the id of the vertex at one end of the segment. */
+        public long from() {
+            return forward != null ? forward.from() : backward.to();
+        }
+
+        /** Returns the id of the vertex at the other end of the segment. */
+        public long to() {
+            return forward != null ? forward.to() : backward.from();
+        }
+
+        /** Returns the edge from from() to to(), or null if the profile may not use it. */
+        public WeightedEdge<Long> forward() {
+            return forward;
+        }
+
+        /** Returns the edge from to() to from(), or null if the profile may not use it. */
+        public WeightedEdge<Long> backward() {
+            return backward;
+        }
+
+        /** Returns how far along the segment from from() to to() the point is, from 0 to 1. */
+        public double fraction() {
+            return fraction;
+        }
+
+        public double lon() {
+            return lon;
+        }
+
+        public double lat() {
+            return lat;
+        }
+
+        /** Returns the distance in miles from the query point to this point. */
+        public double distance() {
+            return distance;
+        }
+    }
+
+    /** Indexes the edges of G leaving NODES, all of G's vertices, that PROFILE may use. */
+    public EdgeIndex(StreetMapGraph g, List<Node> nodes, RoutingProfile profile) {
+        this.g = g;
+        this.profile = profile;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (Node n : nodes) {
+            for (WeightedEdge<Long> e : g.neighbors(n.id())) {
+                if (g.allows(e, profile)) {
+                    edges.add(e);
+                    minX = Math.min(minX, Math.min(n.lon(), g.lon(e.to())));
+                    maxX = Math.max(maxX, Math.max(n.lon(), g.lon(e.to())));
+                    minY = Math.min(minY, Math.min(n.lat(), g.lat(e.to())));
+                    maxY = Math.max(maxY, Math.max(n.lat(), g.lat(e.to())));
+                }
+            }
+        }
+        if (edges.isEmpty()) {
+            minX = maxX = minY = maxY = 0;
+        }
+        minLon = minX;
+        minLat = minY;
+        milesPerLonDegree = MILES_PER_DEGREE
+                * Math.cos(Math.toRadians(Math.max(Math.abs(minY), Math.abs(maxY))));
+
+        /* About one edge per cell, if the edges were spread evenly. */
+        double area = Math.max((maxX - minX) * (maxY - minY), 1e-12);
+        cell = Math.max(Math.sqrt(area / Math.max(edges.size(), 1)), 1e-6);
+        width = (int) ((maxX - minX) / cell) + 1;
+        height = (int) ((maxY - minY) / cell) + 1;
+
+        cellStarts = new int[width * height + 1];
+        for (WeightedEdge<Long> e : edges) {
+            forEachCell(e, c -> cellStarts[c + 1] += 1);
+        }
+        for (int c = 0; c < width * height; c += 1) {
+            cellStarts[c + 1] += cellStarts[c];
+        }
+        cellEdges = new int[cellStarts[width * height]];
+        int[] next = new int[width * height];
+        for (int i = 0; i < edges.size(); i += 1) {
+            int edge = i;
+            forEachCell(edges.get(i), c -> {
+                cellEdges[cellStarts[c] + next[c]] = edge;
+                next[c] += 1;
+            });
+        }
+    }
+
+    /** Returns the profile whose edges are indexed. */
+    public RoutingProfile profile() {
+        return profile;
+    }
+
+    /**
+     * Returns the closest point to the given longitude and latitude on any indexed edge, or
+     * null if there are no edges.
+     */
+    public Snap snap(double lon, double lat) {
+        if (edges.isEmpty()) {
+            return null;
+        }
+        int cx = clamp((int) Math.floor((lon - minLon) / cell), width);
+        int cy = clamp((int) Math.floor((lat - minLat) / cell), height);
+        /* Every cell of ring r is at least r - 1 cells from the point in one direction. */
+        double ringMiles = cell * Math.min(MILES_PER_DEGREE, milesPerLonDegree);
+
+        WeightedEdge<Long> best = null;
+        double bestFraction = 0;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        Point target = new Point(lon, lat);
+        int maxRing = Math.max(width, height);
+        for (int r = 0; r <= maxRing; r += 1) {
+            if (best != null && (r - 1) * ringMiles > bestDistance) {
+                break;
+            }
+            for (int y = cy - r; y <= cy + r; y += 1) {
+                if (y < 0 || y >= height) {
+                    continue;
+                }
+                /* Only the cells on the border of the ring are new. */
+                int step = (y == cy - r || y == cy + r) ? 1 : Math.max(2 * r, 1);
+                for (int x = cx - r; x <= cx + r; x += step) {
+                    if (x < 0 || x >= width) {
+                        continue;
+                    }
+                    int c = y * width + x;
+                    for (int i = cellStarts[c]; i < cellStarts[c + 1]; i += 1) {
+                        WeightedEdge<Long> e = edges.get(cellEdges[i]);
+                        double fraction = project(e, lon, lat);
+                        double distance = Point.distance(target, new Point(
+                                lerp(g.lon(e.from()), g.lon(e.to()), fraction),
+                                lerp(g.lat(e.from()), g.lat(e.to()), fraction)));
+                        if (distance < bestDistance) {
+                            best = e;
+                            bestFraction = fraction;
+                            bestDistance = distance;
+                        }
+                    }
+                }
+            }
+        }
+
+        WeightedEdge<Long> reverse = null;
+        for (WeightedEdge<Long> e : g.neighbors(best.to())) {
+            if (e.to().equals(best.from()) && g.allows(e, profile)
+                    && (reverse == null || e.weight() < reverse.weight())) {
+                reverse = e;
+            }
+        }
+        return new Snap(best, reverse, bestFraction,
+                lerp(g.lon(best.from()), g.lon(best.to()), bestFraction),
+                lerp(g.lat(best.from()), g.lat(best.to()), bestFraction), bestDistance);
+    }
+
+    /**
+     * Returns every indexed edge that may pass through the box between the given longitudes and
+     * latitudes, each once: all the edges listed in the cells the box covers, e.g. to draw the
+     * roads in a map tile.
+     */
+    public List<WeightedEdge<Long>> edgesIn(double minLon, double minLat, double maxLon,
+                                            double maxLat) {
+        List<WeightedEdge<Long>> result = new ArrayList<>();
+        if (edges.isEmpty() || maxLon < this.minLon || maxLat < this.minLat
+                || minLon > this.minLon + width * cell || minLat > this.minLat + height * cell) {
+            return result;
+        }
+        int x0 = clamp((int) Math.floor((minLon - this.minLon) / cell), width);
+        int x1 = clamp((int) Math.floor((maxLon - this.minLon) / cell), width);
+        int y0 = clamp((int) Math.floor((minLat - this.minLat) / cell), height);
+        int y1 = clamp((int) Math.floor((maxLat - this.minLat) / cell), height);
+        int n = 0;
+        int[] found = new int[16];
+        for (int y = y0; y <= y1; y += 1) {
+            for (int i = cellStarts[y * width + x0]; i < cellStarts[y * width + x1 + 1]; i += 1) {
+                if (n == found.length) {
+                    found = Arrays.copyOf(found, 2 * n);
+                }
+                found[n++] = cellEdges[i];
+            }
+        }
+        /* An edge is listed in every cell its bounding box covers. */
+        Arrays.sort(found, 0, n);
+        for (int i = 0; i < n; i += 1) {
+            if (i == 0 || found[i] != found[i - 1]) {
+                result.add(edges.get(found[i]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns how far along E the point closest to the given longitude and latitude is, from 0
+     * to 1, measuring longitude at the scale of the point's latitude.
+     */
+    private double project(WeightedEdge<Long> e, double lon, double lat) {
+        double scale = Math.cos(Math.toRadians(lat));
+        double ax = g.lon(e.from()) * scale;
+        double ay = g.lat(e.from());
+        double dx = g.lon(e.to()) * scale - ax;
+        double dy = g.lat(e.to()) - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared == 0) {
+            return 0;
+        }
+        double t = ((lon * scale - ax) * dx + (lat - ay) * dy) / lengthSquared;
+        return Math.max(0, Math.min(1, t));
+    }
+
+    private interface CellConsumer {
+        void accept(int cell);
+    }
+
+    /** Calls ACTION with every cell the bounding box of E covers. */
+    private void forEachCell(WeightedEdge<Long> e, CellConsumer action) {
+        double lonA = g.lon(e.from());
+        double lonB = g.lon(e.to());
+        double latA = g.lat(e.from());
+        double latB = g.lat(e.to());
+        int x0 = clamp((int) ((Math.min(lonA, lonB) - minLon) / cell), width);
+        int x1 = clamp((int) ((Math.max(lonA, lonB) - minLon) / cell), width);
+        int y0 = clamp((int) ((Math.min(latA, latB) - minLat) / cell), height);
+        int y1 = clamp((int) ((Math.max(latA, latB) - minLat) / cell), height);
+        for (int y = y0; y <= y1; y += 1) {
+            for (int x = x0; x <= x1; x += 1) {
+                action.accept(y * width + x);
+            }
+        }
+    }
+
+    private static int clamp(int i, int size) {
+        return Math.max(0, Math.min(size - 1, i));
+    }
+
+    private static double lerp(double a, double b, double t) {
+        return a + t * (b - a);
+    }
+}
@@ -0,0 +1,520 @@
+package bearmaps.proj2c;
+
+import bearmaps.hw4.streetmap.CompactGraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Everything reachable from a vertex within a cost limit, e.g. within 10 minutes' drive, found
+ * with Dijkstra's algorithm over a CompactGraph and outlined by polygons. The search runs on
+ * primitive arrays that each thread allocates once and reuses, so many isochrones can be
+ * computed per second without garbage beyond the results.
+ *
+ * The polygons are grid based: every grid cell that a reachable vertex, or the reachable part
+ * of an edge, passes through is filled, and the outlines of the filled cells are traced into
+ * rings. Holes are kept, so unreachable pockets inside the area are not covered.
+ */
+public class Isochrone {
+    /** Default width and height of a grid cell, in degrees; about 110 m of latitude. */
+    public static final double DEFAULT_CELL_DEGREES = 0.001;
+
+    /** Most cells a grid may have; larger areas are outlined with coarser cells. */
+    private static final int MAX_CELLS = 1 << 21;
+
+    private static final int SETTLED = -2;
+    private static final int UNQUEUED = -1;
+
+    /* Unit steps of the directions east, north, west and south, in grid coordinates. */
+    private static final int[] DX = {1, 0, -1, 0};
+    private static final int[] DY = {0, 1, 0, -1};
+
+    private static final ThreadLocal<Workspace> WORKSPACES =
+            ThreadLocal.withInitial(Workspace::new);
+
+    private final CompactGraph graph;
+    private final double limit;
+    private final int[] reachable;
+    private final double[] costs;
+    private final double cellDegrees;
+    private final List<List<List<double[]>>> polygons;
+
+    /**
+     * The search state of one thread. Between searches every distance is infinite and every
+     * vertex unqueued; a search records the vertices it touches so it can restore that state.
+     */
+    private static class Workspace {
+        private double[] distTo = new double[0];
+        private int[] heap = new int[0];
+        private int heapSize = 0;
+        /* Position of each vertex in heap, or UNQUEUED or SETTLED. */
+        private int[] heapIndex = new int[0];
+        private int[] touched = new int[0];
+        private int numTouched = 0;
+        private int[] settled = new int[0];
+        private int numSettled = 0;
+        private boolean[] cells = new boolean[0];
+
+        private void ensureCapacity(int numVertices) {
+            if (distTo.length < numVertices) {
+                distTo = new double[numVertices];
+                Arrays.fill(distTo, Double.POSITIVE_INFINITY);
+                heap = new int[numVertices];
+                heapIndex = new int[numVertices];
+                Arrays.fill(heapIndex, UNQUEUED);
+                touched = new int[numVertices];
+                settled = new int[numVertices];
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < numTouched; i += 1) {
+                distTo[touched[i]] = Double.POSITIVE_INFINITY;
+                heapIndex[touched[i]] = UNQUEUED;
+            }
+            numTouched = 0;
+            numSettled = 0;
+            heapSize = 0;
+        }
+
+        private boolean[] cells(int numCells) {
+            if (cells.length < numCells) {
+                cells = new boolean[numCells];
+            } else {
+                Arrays.fill(cells, 0, numCells, false);
+            }
+            return cells;
+        }
+    }
+
+    /**
+     * Finds everything reachable from SOURCE in GRAPH at a cost of at most LIMIT, and outlines
+     * it with cells of CELLDEGREES.
+     * @param source The index of the start vertex in GRAPH, or -1 for none, in which case
+     *               nothing is reachable.
+     * @param limit The cost limit, in the units of GRAPH's cost model.
+     * @param cellDegrees The width and height of a grid cell in degrees; the grid is made
+     *                    coarser if the area would need more than about two million cells.
+     */
+    public Isochrone(CompactGraph graph, int source, double limit, double cellDegrees) {
+        this.graph = graph;
+        this.limit = limit;
+        Workspace ws = WORKSPACES.get();
+        ws.ensureCapacity(graph.numVertices());
+        try {
+            if (source >= 0) {
+                search(ws, source);
+            }
+            reachable = Arrays.copyOf(ws.settled, ws.numSettled);
+            costs = new double[reachable.length];
+            for (int i = 0; i < reachable.length; i += 1) {
+                costs[i] = ws.distTo[reachable[i]];
+            }
+        } finally {
+            ws.reset();
+        }
+        polygons = new ArrayList<>();
+        this.cellDegrees = outline(ws, cellDegrees);
+    }
+
+    /** Returns the number of vertices reachable within the limit, including the source. */
+    public int size() {
+        return reachable.length;
+    }
+
+    /** Returns the index in the graph of the Ith reachable vertex, cheapest first. */
+    public int vertex(int i) {
+        return reachable[i];
+    }
+
+    /** Returns the cost of reaching the Ith reachable vertex. */
+    public double cost(int i) {
+        return costs[i];
+    }
+
+    /** Returns the cost limit. */
+    public double limit() {
+        return limit;
+    }
+
+    /** Returns the width and height in degrees of the grid cells the polygons were drawn on. */
+    public double cellDegrees() {
+        return cellDegrees;
+    }
+
+    /**
+     * Returns the outline of the reachable area as the coordinates of a GeoJSON MultiPolygon:
+     * a list of polygons, each a list of rings, each a closed list of [lon, lat] points. The
+     * first ring of a polygon is its exterior, counterclockwise; any others are holes,
+     * clockwise.
+     */
+    public List<List<List<double[]>>> polygons() {
+        return polygons;
+    }
+
+    /** Runs Dijkstra's algorithm from SOURCE, recording the vertices settled in order. */
+    private void search(Workspace ws, int source) {
+        touch(ws, source, 0);
+        while (ws.heapSize > 0) {
+            int v = pop(ws);
+            ws.heapIndex[v] = SETTLED;
+            ws.settled[ws.numSettled] = v;
+            ws.numSettled += 1;
+            double distToV = ws.distTo[v];
+            for (int slot = graph.edgeStart(v); slot < graph.edgeEnd(v); slot += 1) {
+                int w = graph.head(slot);
+                if (ws.heapIndex[w] == SETTLED) {
+                    continue;
+                }
+                double distToW = distToV + graph.weight(slot);
+                if (distToW > limit) {
+                    continue;
+                }
+                if (ws.heapIndex[w] == UNQUEUED) {
+                    touch(ws, w, distToW);
+                } else if (distToW < ws.distTo[w]) {
+                    ws.distTo[w] = distToW;
+                    siftUp(ws, ws.heapIndex[w]);
+                }
+            }
+        }
+    }
+
+    /** Records the first distance found to V and queues it. */
+    private static void touch(Workspace ws, int v, double distTo) {
+        ws.touched[ws.numTouched] = v;
+        ws.numTouched += 1;
+        ws.distTo[v] = distTo;
+        ws.heap[ws.heapSize] = v;
+        ws.heapIndex[v] = ws.heapSize;
+        ws.heapSize += 1;
+        siftUp(ws, ws.heapSize - 1);
+    }
+
+    private static int pop(Workspace ws) {
+        int smallest = ws.heap[0];
+        ws.heapSize -= 1;
+        if (ws.heapSize > 0) {
+            ws.heap[0] = ws.heap[ws.heapSize];
+            ws.heapIndex[ws.heap[0]] = 0;
+            siftDown(ws, 0);
+        }
+        return smallest;
+    }
+
+    private static void siftUp(Workspace ws, int i) {
+        int v = ws.heap[i];
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (ws.distTo[ws.heap[parent]] <= ws.distTo[v]) {
+                break;
+            }
+            ws.heap[i] = ws.heap[parent];
+            ws.heapIndex[ws.heap[i]] = i;
+            i = parent;
+        }
+        ws.heap[i] = v;
+        ws.heapIndex[v] = i;
+    }
+
+    private static void siftDown(Workspace ws, int i) {
+        int v = ws.heap[i];
+        while (2 * i + 1 < ws.heapSize) {
+            int child = 2 * i + 1;
+            if (child + 1 < ws.heapSize
+                    && ws.distTo[ws.heap[child + 1]] < ws.distTo[ws.heap[child]]) {
+                child += 1;
+            }
+            if (ws.distTo[v] <= ws.distTo[ws.heap[child]]) {
+                break;
+            }
+            ws.heap[i] = ws.heap[child];
+            ws.heapIndex[ws.heap[i]] = i;
+            i = child;
+        }
+        ws.heap[i] = v;
+        ws.heapIndex[v] = i;
+    }
+
+    /**
+     * Fills the grid cells covered by the reachable vertices and the reachable parts of their
+     * edges, and traces the outlines of the filled cells into polygons. Returns the cell size
+     * used, which is CELL unless the grid would have been too large.
+     */
+    private double outline(Workspace ws, double cell) {
+        if (reachable.length == 0) {
+            return cell;
+        }
+        double minLon = Double.POSITIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < reachable.length; i += 1) {
+            int v = reachable[i];
+            for (int slot = graph.edgeStart(v); slot < graph.edgeEnd(v); slot += 1) {
+                double f = reachableFraction(i, slot);
+                double lon = lerp(graph.lon(v), graph.lon(graph.head(slot)), f);
+                double lat = lerp(graph.lat(v), graph.lat(graph.head(slot)), f);
+                minLon = Math.min(minLon, lon);
+                maxLon = Math.max(maxLon, lon);
+                minLat = Math.min(minLat, lat);
+                maxLat = Math.max(maxLat, lat);
+            }
+            minLon = Math.min(minLon, graph.lon(v));
+            maxLon = Math.max(maxLon, graph.lon(v));
+            minLat = Math.min(minLat, graph.lat(v));
+            maxLat = Math.max(maxLat, graph.lat(v));
+        }
+
+        /* A margin of at least one empty cell on every side means no filled cell is on the
+           border of the grid, even after rounding. */
+        int width;
+        int height;
+        while (true) {
+            width = (int) ((maxLon - minLon) / cell) + 4;
+            height = (int) ((maxLat - minLat) / cell) + 4;
+            if ((long) width * height <= MAX_CELLS) {
+                break;
+            }
+            cell *= 2;
+        }
+        double originLon = minLon - 1.5 * cell;
+        double originLat = minLat - 1.5 * cell;
+        boolean[] cells = ws.cells(width * height);
+
+        for (int i = 0; i < reachable.length; i += 1) {
+            int v = reachable[i];
+            fill(cells, width, originLon, originLat, cell, graph.lon(v), graph.lat(v));
+            for (int slot = graph.edgeStart(v); slot < graph.edgeEnd(v); slot += 1) {
+                double f = reachableFraction(i, slot);
+                double dLon = graph.lon(graph.head(slot)) - graph.lon(v);
+                double dLat = graph.lat(graph.head(slot)) - graph.lat(v);
+                /* Sample at most half a cell apart so no cell along the edge is skipped. */
+                int steps = (int) Math.ceil(2 * f * Math.max(Math.abs(dLon), Math.abs(dLat))
+                        / cell);
+                for (int s = 1; s <= steps; s += 1) {
+                    double t = f * s / steps;
+                    fill(cells, width, originLon, originLat, cell,
+                            graph.lon(v) + t * dLon, graph.lat(v) + t * dLat);
+                }
+            }
+        }
+
+        traceOutlines(cells, width, height, originLon, originLat, cell);
+        return cell;
+    }
+
+    /** Returns the fraction of the edge in SLOT, out of the Ith reachable vertex, in reach. */
+    private double reachableFraction(int i, int slot) {
+        double weight = graph.weight(slot);
+        if (weight <= 0) {
+            return 1;
+        }
+        return Math.max(0, Math.min(1, (limit - costs[i]) / weight));
+    }
+
+    private static double lerp(double a, double b, double t) {
+        return a + t * (b - a);
+    }
+
+    private static void fill(boolean[] cells, int width, double originLon, double originLat,
+                             double cell, double lon, double lat) {
+        int x = (int) ((lon - originLon) / cell);
+        int y = (int) ((lat - originLat) / cell);
+        cells[y * width + x] = true;
+    }
+
+    /**
+     * Traces the boundary of the filled cells into rings and groups them into polygons. Each
+     * boundary edge of a filled cell is directed so the cell is on its left, which makes
+     * exteriors counterclockwise and holes clockwise. At a corner where two filled cells touch
+     * diagonally, the trace turns left, so such cells are outlined separately.
+     */
+    private void traceOutlines(boolean[] cells, int width, int height, double originLon,
+                               double originLat, double cell) {
+        /* Corner (x, y) of the grid has index y * (width + 1) + x. */
+        int cornerWidth = width + 1;
+        IntList edgeFrom = new IntList();
+        IntList edgeDir = new IntList();
+        for (int y = 1; y < height - 1; y += 1) {
+            for (int x = 1; x < width - 1; x += 1) {
+                if (!cells[y * width + x]) {
+                    continue;
+                }
+                if (!cells[(y - 1) * width + x]) {
+                    edgeFrom.add(y * cornerWidth + x);
+                    edgeDir.add(0);
+                }
+                if (!cells[y * width + x + 1]) {
+                    edgeFrom.add(y * cornerWidth + x + 1);
+                    edgeDir.add(1);
+                }
+                if (!cells[(y + 1) * width + x]) {
+                    edgeFrom.add((y + 1) * cornerWidth + x + 1);
+                    edgeDir.add(2);
+                }
+                if (!cells[y * width + x - 1]) {
+                    edgeFrom.add((y + 1) * cornerWidth + x);
+                    edgeDir.add(3);
+                }
+            }
+        }
+
+        /* At most two boundary edges leave any corner. */
+        int numCorners = cornerWidth * (height + 1);
+        int[] firstOut = new int[numCorners];
+        int[] secondOut = new int[numCorners];
+        Arrays.fill(firstOut, -1);
+        Arrays.fill(secondOut, -1);
+        for (int e = 0; e < edgeFrom.size(); e += 1) {
+            int corner = edgeFrom.get(e);
+            if (firstOut[corner] < 0) {
+                firstOut[corner] = e;
+            } else {
+                secondOut[corner] = e;
+            }
+        }
+
+        List<int[]> rings = new ArrayList<>();
+        boolean[] used = new boolean[edgeFrom.size()];
+        for (int start = 0; start < edgeFrom.size(); start += 1) {
+            if (used[start]) {
+                continue;
+            }
+            IntList ring = new IntList();
+            int e = start;
+            do {
+                used[e] = true;
+                int dir = edgeDir.get(e);
+                int from = edgeFrom.get(e);
+                int to = from + DX[dir] + DY[dir] * cornerWidth;
+                int next = firstOut[to];
+                int other = secondOut[to];
+                if (other >= 0 && turnRank(dir, edgeDir.get(other))
+                        < turnRank(dir, edgeDir.get(next))) {
+                    next = other;
+                }
+                /* Only corners where the outline turns are kept. */
+                if (edgeDir.get(next) != dir) {
+                    ring.add(to);
+                }
+                e = next;
+            } while (e != start);
+            rings.add(ring.toArray());
+        }
+
+        /* Exteriors have positive area; each hole goes in the smallest exterior around it. */
+        List<int[]> exteriors = new ArrayList<>();
+        List<Double> exteriorAreas = new ArrayList<>();
+        List<List<int[]>> holes = new ArrayList<>();
+        for (int[] ring : rings) {
+            double area = signedArea(ring, cornerWidth);
+            if (area > 0) {
+                exteriors.add(ring);
+                exteriorAreas.add(area);
+                holes.add(new ArrayList<>());
+            }
+        }
+        for (int[] ring : rings) {
+            if (signedArea(ring, cornerWidth) > 0) {
+                continue;
+            }
+            /* The empty cell to the right of the hole's first side lies inside its exterior. */
+            int from = ring[ring.length - 1];
+            int to = ring[0];
+            int dirX = Integer.signum(to % cornerWidth - from % cornerWidth);
+            int dirY = Integer.signum(to / cornerWidth - from / cornerWidth);
+            double px = from % cornerWidth + 0.5 * dirX + 0.5 * dirY;
+            double py = from / cornerWidth + 0.5 * dirY - 0.5 * dirX;
+            int best = -1;
+            for (int i = 0; i < exteriors.size(); i += 1) {
+                if (contains(exteriors.get(i), cornerWidth, px, py)
+                        && (best < 0 || exteriorAreas.get(i) < exteriorAreas.get(best))) {
+                    best = i;
+                }
+            }
+            if (best >= 0) {
+                holes.get(best).add(ring);
+            }
+        }
+
+        for (int i = 0; i < exteriors.size(); i += 1) {
+            List<List<double[]>> polygon = new ArrayList<>();
+            polygon.add(toLonLat(exteriors.get(i), cornerWidth, originLon, originLat, cell));
+            for (int[] hole : holes.get(i)) {
+                polygon.add(toLonLat(hole, cornerWidth, originLon, originLat, cell));
+            }
+            polygons.add(polygon);
+        }
+    }
+
+    /** Ranks the turn from direction FROM to direction TO: left first, then straight, right. */
+    private static int turnRank(int from, int to) {
+        int turn = (to - from + 4) % 4;
+        return turn == 1 ? 0 : turn == 0 ? 1 : 2;
+    }
+
+    private static double signedArea(int[] ring, int cornerWidth) {
+        double area = 0;
+        for (int i = 0; i < ring.length; i += 1) {
+            int a = ring[i];
+            int b = ring[(i + 1) % ring.length];
+            area += (double) (a % cornerWidth) * (b / cornerWidth)
+                    - (double) (b % cornerWidth) * (a / cornerWidth);
+        }
+        return area / 2;
+    }
+
+    /** Returns whether the point (PX, PY), never on a grid line, is inside RING. */
+    private static boolean contains(int[] ring, int cornerWidth, double px, double py) {
+        boolean inside = false;
+        for (int i = 0, j = ring.length - 1; i < ring.length; j = i, i += 1) {
+            double xi = ring[i] % cornerWidth;
+            double yi = ring[i] / cornerWidth;
+            double xj = ring[j] % cornerWidth;
+            double yj = ring[j] / cornerWidth;
+            if ((yi > py) != (yj > py) && px < (xj - xi) * (py - yi) / (yj - yi) + xi) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    private static List<double[]> toLonLat(int[] ring, int cornerWidth, double originLon,
+                                           double originLat, double cell) {
+        List<double[]> points = new ArrayList<>();
+        for (int corner : ring) {
+            points.add(new double[]{originLon + (corner % cornerWidth) * cell,
+                    originLat + (corner / cornerWidth) * cell});
+        }
+        points.add(points.get(0));
+        return points;
+    }
+
+    /** A growable list of ints. */
+    private static class IntList {
+        private int[] items = new int[16];
+        private int size = 0;
+
+        private void add(int item) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size] = item;
+            size += 1;
+        }
+
+        private int get(int i) {
+            return items[i];
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(items, size);
+        }
+    }
+}
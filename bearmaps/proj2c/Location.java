@@ -0,0 +1,55 @@
+package bearmaps.proj2c;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An immutable named OSM location, as returned by a full search. Locations are created once when
+ * the graph is built; search requests only hand out references to them or to their serialized
+ * form.
+ */
+public final class Location {
+    private final long id;
+    private final double lat;
+    private final double lon;
+    private final String name;
+
+    public Location(long id, double lat, double lon, String name) {
+        this.id = id;
+        this.lat = lat;
+        this.lon = lon;
+        this.name = name;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    public double lat() {
+        return lat;
+    }
+
+    public double lon() {
+        return lon;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Returns this location as a map of parameters for the Json response: <br>
+     * "lat" -> Number, The latitude of the node. <br>
+     * "lon" -> Number, The longitude of the node. <br>
+     * "name" -> String, The actual name of the node. <br>
+     * "id" -> Number, The id of the node. <br>
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> location = new HashMap<>();
+        location.put("lat", lat);
+        location.put("lon", lon);
+        location.put("name", name);
+        location.put("id", id);
+        return location;
+    }
+}
@@ -0,0 +1,462 @@
+package bearmaps.proj2c;
+
+import bearmaps.hw4.AStarGraph;
+import bearmaps.hw4.WeightedEdge;
+import bearmaps.hw4.streetmap.CostModel;
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.proj2ab.ArrayHeapMinPQ;
+import bearmaps.proj2ab.Point;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Matches a GPS trace to the street graph with a hidden Markov model, after Newson and Krumm.
+ * The hidden state at each GPS fix is the vertex the vehicle was at, and the candidates are the
+ * few vertices nearest the fix. A candidate is likelier the closer it is to the fix, and a
+ * transition between candidates of consecutive fixes is less likely the more the shortest route
+ * between them is longer than the distance between the fixes. The Viterbi algorithm finds the
+ * likeliest sequence of candidates.
+ *
+ * Unlike in the paper, a route shorter than the distance between the fixes is not held against
+ * a transition: candidates are vertices rather than points along roads, so while the vehicle
+ * drives between two vertices its fixes are matched to the same vertex, with no route at all.
+ * Penalizing that made a hop to a vertex on a side street and back likelier than staying put.
+ * Such a hop is made unlikely instead by a penalty for a route that turns straight back the way
+ * the sequence came.
+ *
+ * Fixes are added one at a time, and matches are returned as soon as they are certain: once
+ * every likely sequence passes through the same candidate at some fix, nothing later can change
+ * the match up to it. The undecided fixes are kept in a window of bounded size; when it is full
+ * the oldest fix is matched to the likeliest sequence so far. A trace of any length is therefore
+ * matched in bounded memory.
+ *
+ * Routes between candidates are shortest by distance for the matcher's profile, and ignore turn
+ * restrictions.
+ */
+public class MapMatcher {
+    /** Default number of candidate vertices per fix. */
+    public static final int DEFAULT_CANDIDATES = 8;
+    /** Default greatest distance in miles from a fix to its candidates; about 160 m. */
+    public static final double DEFAULT_RADIUS_MILES = 0.1;
+    /** Default standard deviation in miles of the distance from a fix to its vertex. */
+    public static final double DEFAULT_SIGMA_MILES = 0.02;
+    /**
+     * Default scale in miles of the difference between route and straight line distance: a
+     * transition whose route is this much longer than the line is e times less likely.
+     */
+    public static final double DEFAULT_BETA_MILES = 0.05;
+    /** Default greatest number of fixes waiting to be matched. */
+    public static final int DEFAULT_WINDOW = 32;
+
+    /**
+     * Routes between candidates are searched up to this many times the distance between their
+     * fixes, plus the distance a candidate may be from its fix at each end.
+     */
+    private static final double MAX_DETOUR = 3;
+
+    /**
+     * A transition whose route starts straight back along the road the sequence arrived by is
+     * scored as if the route were this many scales of beta longer.
+     */
+    private static final double U_TURN_PENALTY = 2;
+
+    private final AugmentedStreetMapGraph g;
+    private final RoutingProfile profile;
+    private final AStarGraph<Long> view;
+    private final int numCandidates;
+    private final double radius;
+    private final double sigma;
+    private final double beta;
+    private final int windowSize;
+
+    /* The fixes not matched yet, oldest first, all in the same unbroken chain. */
+    private final ArrayDeque<Step> window = new ArrayDeque<>();
+    /* The index the next fix added will have. */
+    private int numFixes;
+
+    /** A fix and the Viterbi state of each of its candidates. */
+    private static class Step {
+        private final int index;
+        private final double lon;
+        private final double lat;
+        private final long[] candidates;
+        /* Distance in miles from the fix to each candidate. */
+        private final double[] distances;
+        /* Log likelihood of the likeliest sequence ending at each candidate; -infinity if none. */
+        private final double[] scores;
+        /* The candidate of the previous fix on that sequence, or -1 at the start of a chain. */
+        private final int[] back;
+        /* The route from that candidate, excluding it. */
+        private final List<List<Long>> paths;
+        /* The vertex the sequence was at before each candidate, or -1 if none. */
+        private final long[] arrivedFrom;
+
+        private Step(int index, double lon, double lat, long[] candidates, double[] distances) {
+            this.index = index;
+            this.lon = lon;
+            this.lat = lat;
+            this.candidates = candidates;
+            this.distances = distances;
+            scores = new double[candidates.length];
+            Arrays.fill(scores, Double.NEGATIVE_INFINITY);
+            back = new int[candidates.length];
+            Arrays.fill(back, -1);
+            paths = new ArrayList<>(Collections.nCopies(candidates.length, null));
+            arrivedFrom = new long[candidates.length];
+            Arrays.fill(arrivedFrom, -1);
+        }
+
+        /** Returns the candidate with the highest score. */
+        private int best() {
+            int best = 0;
+            for (int i = 1; i < scores.length; i += 1) {
+                if (scores[i] > scores[best]) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+    }
+
+    /** The vertex a fix was matched to. */
+    public static class Match {
+        private final int index;
+        private final long vertex;
+        private final double distance;
+        private final List<Long> path;
+        private final boolean connected;
+
+        private Match(int index, long vertex, double distance, List<Long> path,
+                      boolean connected) {
+            this.index = index;
+            this.vertex = vertex;
+            this.distance = distance;
+            this.path = path;
+            this.connected = connected;
+        }
+
+        /** Returns the index of the fix, counting from 0 in the order fixes were added. */
+        public int index() {
+            return index;
+        }
+
+        /** Returns the id of the vertex the fix was matched to. */
+        public long vertex() {
+            return vertex;
+        }
+
+        /** Returns the distance in miles from the fix to its vertex. */
+        public double distance() {
+            return distance;
+        }
+
+        /**
+         * Returns the route from the vertex of the previous match to this one, excluding the
+         * former and ending with the latter. If this match is not connected to the previous one,
+         * the route is just this vertex.
+         */
+        public List<Long> path() {
+            return path;
+        }
+
+        /**
+         * Returns whether the path connects this match to the previous one. It does not for the
+         * first match, or where no route could explain the move from the previous fix, e.g. after
+         * a gap in the trace.
+         */
+        public boolean isConnected() {
+            return connected;
+        }
+    }
+
+    /** Creates a matcher for traces of PROFILE with the default parameters. */
+    public MapMatcher(AugmentedStreetMapGraph g, RoutingProfile profile) {
+        this(g, profile, DEFAULT_CANDIDATES, DEFAULT_RADIUS_MILES, DEFAULT_SIGMA_MILES,
+                DEFAULT_BETA_MILES, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a matcher for traces of PROFILE.
+     * @param numCandidates The most candidate vertices considered per fix.
+     * @param radius The greatest distance in miles from a fix to its candidates. Fixes with no
+     *               vertex this close are skipped.
+     * @param sigma The standard deviation in miles of the distance from a fix to its vertex.
+     * @param beta The scale in miles of how much longer a route is than the straight line
+     *             between consecutive fixes.
+     * @param windowSize The greatest number of fixes waiting to be matched, at least 1.
+     */
+    public MapMatcher(AugmentedStreetMapGraph g, RoutingProfile profile, int numCandidates,
+                      double radius, double sigma, double beta, int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize must be at least 1");
+        }
+        this.g = g;
+        this.profile = profile;
+        this.view = g.withProfile(profile, CostModel.DISTANCE);
+        this.numCandidates = numCandidates;
+        this.radius = radius;
+        this.sigma = sigma;
+        this.beta = beta;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Adds the next fix of the trace, and returns the matches that became certain or were
+     * forced out of the window, in order of their fixes.
+     */
+    public List<Match> add(double lon, double lat) {
+        int index = numFixes;
+        numFixes += 1;
+        List<Match> matches = new ArrayList<>();
+        List<Long> nearby = g.closest(lon, lat, profile, numCandidates, radius);
+        if (nearby.isEmpty()) {
+            return matches;
+        }
+
+        long[] candidates = new long[nearby.size()];
+        double[] distances = new double[nearby.size()];
+        Point fix = new Point(lon, lat);
+        for (int i = 0; i < candidates.length; i += 1) {
+            candidates[i] = nearby.get(i);
+            distances[i] = Point.distance(fix,
+                    new Point(g.lon(candidates[i]), g.lat(candidates[i])));
+        }
+        Step step = new Step(index, lon, lat, candidates, distances);
+
+        if (!window.isEmpty() && !transition(window.peekLast(), step)) {
+            /* No route explains the move, so the chain is broken here and matched as is. */
+            matchAll(matches);
+        }
+        if (window.isEmpty()) {
+            for (int i = 0; i < candidates.length; i += 1) {
+                step.scores[i] = emission(distances[i]);
+            }
+        }
+        window.addLast(step);
+
+        matchConverged(matches);
+        if (window.size() > windowSize) {
+            int[] choices = likeliestChoices();
+            matchOldest(choices[0], matches);
+        }
+        return matches;
+    }
+
+    /**
+     * Ends the trace, and returns the matches of every fix still waiting, along the likeliest
+     * sequence. The matcher can then be used for a new trace.
+     */
+    public List<Match> finish() {
+        List<Match> matches = new ArrayList<>();
+        matchAll(matches);
+        numFixes = 0;
+        return matches;
+    }
+
+    /** Returns the log likelihood, up to a constant, of a fix DISTANCE miles from its vertex. */
+    private double emission(double distance) {
+        double z = distance / sigma;
+        return -0.5 * z * z;
+    }
+
+    /**
+     * Scores every candidate of NEXT by the likeliest transition to it from a candidate of
+     * PREV. Returns false if no candidate of NEXT can be reached.
+     */
+    private boolean transition(Step prev, Step next) {
+        double line = Point.distance(new Point(prev.lon, prev.lat), new Point(next.lon, next.lat));
+        double bound = MAX_DETOUR * line + 2 * radius;
+        boolean reached = false;
+        for (int i = 0; i < prev.candidates.length; i += 1) {
+            if (prev.scores[i] == Double.NEGATIVE_INFINITY) {
+                continue;
+            }
+            Map<Long, WeightedEdge<Long>> edgeTo = new HashMap<>();
+            Map<Long, Double> distTo = search(prev.candidates[i], next.candidates, bound, edgeTo);
+            for (int j = 0; j < next.candidates.length; j += 1) {
+                Double route = distTo.get(next.candidates[j]);
+                if (route == null) {
+                    continue;
+                }
+                List<Long> path = pathTo(next.candidates[j], edgeTo);
+                double score = prev.scores[i] - Math.max(0, route - line) / beta
+                        + emission(next.distances[j]);
+                if (!path.isEmpty() && path.get(0) == prev.arrivedFrom[i]) {
+                    score -= U_TURN_PENALTY;
+                }
+                if (score > next.scores[j]) {
+                    next.scores[j] = score;
+                    next.back[j] = i;
+                    next.paths.set(j, path);
+                    next.arrivedFrom[j] = path.isEmpty() ? prev.arrivedFrom[i]
+                            : path.size() == 1 ? prev.candidates[i] : path.get(path.size() - 2);
+                    reached = true;
+                }
+            }
+        }
+        return reached;
+    }
+
+    /**
+     * Runs Dijkstra's algorithm from SOURCE until every one of TARGETS is settled or nothing
+     * within BOUND is left. Returns the distance to every vertex settled, and records the edge
+     * into each in EDGETO.
+     */
+    private Map<Long, Double> search(long source, long[] targets, double bound,
+                                     Map<Long, WeightedEdge<Long>> edgeTo) {
+        Set<Long> remaining = new HashSet<>();
+        for (long target : targets) {
+            remaining.add(target);
+        }
+        Map<Long, Double> distTo = new HashMap<>();
+        Map<Long, Double> settled = new HashMap<>();
+        ArrayHeapMinPQ<Long> pq = new ArrayHeapMinPQ<>();
+        distTo.put(source, 0.0);
+        pq.add(source, 0);
+        while (pq.size() > 0 && !remaining.isEmpty()) {
+            long v = pq.removeSmallest();
+            double distToV = distTo.get(v);
+            settled.put(v, distToV);
+            remaining.remove(v);
+            for (WeightedEdge<Long> e : view.neighbors(v)) {
+                if (!view.isTraversable(e)) {
+                    continue;
+                }
+                long w = e.to();
+                double distToW = distToV + view.weight(e);
+                if (distToW > bound || settled.containsKey(w)) {
+                    continue;
+                }
+                Double oldDist = distTo.get(w);
+                if (oldDist == null) {
+                    distTo.put(w, distToW);
+                    edgeTo.put(w, e);
+                    pq.add(w, distToW);
+                } else if (distToW < oldDist) {
+                    distTo.put(w, distToW);
+                    edgeTo.put(w, e);
+                    pq.changePriority(w, distToW);
+                }
+            }
+        }
+        return settled;
+    }
+
+    /** Returns the route to V along EDGETO, excluding the source of the search. */
+    private static List<Long> pathTo(long v, Map<Long, WeightedEdge<Long>> edgeTo) {
+        LinkedList<Long> path = new LinkedList<>();
+        WeightedEdge<Long> e = edgeTo.get(v);
+        while (e != null) {
+            path.addFirst(e.to());
+            e = edgeTo.get(e.from());
+        }
+        return new ArrayList<>(path);
+    }
+
+    /**
+     * Matches the oldest fixes if every possible sequence agrees on them: if every sequence
+     * ending at the latest fix passes through the same candidate of an earlier fix, the fixes
+     * up to that one are matched.
+     */
+    private void matchConverged(List<Match> matches) {
+        Set<Integer> alive = new HashSet<>();
+        Step newest = window.peekLast();
+        for (int j = 0; j < newest.scores.length; j += 1) {
+            if (newest.scores[j] != Double.NEGATIVE_INFINITY) {
+                alive.add(j);
+            }
+        }
+        /* Walk back from the newest fix, following every live sequence at once. */
+        int converged = -1;
+        int convergedChoice = -1;
+        int position = window.size() - 1;
+        Iterator<Step> newestFirst = window.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Step step = newestFirst.next();
+            if (alive.size() == 1 && position < window.size() - 1) {
+                converged = position;
+                convergedChoice = alive.iterator().next();
+                break;
+            }
+            Set<Integer> previous = new HashSet<>();
+            for (int j : alive) {
+                previous.add(step.back[j]);
+            }
+            alive = previous;
+            position -= 1;
+        }
+        if (converged < 0) {
+            return;
+        }
+        int[] choices = choicesEndingAt(converged, convergedChoice);
+        for (int choice : choices) {
+            matchOldest(choice, matches);
+        }
+    }
+
+    /** Returns the candidate chosen at each fix of the window on the likeliest sequence. */
+    private int[] likeliestChoices() {
+        return choicesEndingAt(window.size() - 1, window.peekLast().best());
+    }
+
+    /**
+     * Returns the candidates chosen at the fixes of the window from the oldest up to the one at
+     * POSITION, on the sequence through its candidate CHOICE.
+     */
+    private int[] choicesEndingAt(int position, int choice) {
+        Step[] steps = window.toArray(new Step[0]);
+        int[] choices = new int[position + 1];
+        choices[position] = choice;
+        for (int p = position; p > 0; p -= 1) {
+            choices[p - 1] = steps[p].back[choices[p]];
+        }
+        return choices;
+    }
+
+    /** Matches every fix in the window along the likeliest sequence, ending the chain. */
+    private void matchAll(List<Match> matches) {
+        if (window.isEmpty()) {
+            return;
+        }
+        for (int choice : likeliestChoices()) {
+            matchOldest(choice, matches);
+        }
+    }
+
+    /**
+     * Matches the oldest fix in the window to its candidate CHOICE and removes it from the
+     * window. Sequences of later fixes that do not pass through CHOICE are no longer possible.
+     */
+    private void matchOldest(int choice, List<Match> matches) {
+        Step oldest = window.removeFirst();
+        boolean connected = oldest.back[choice] >= 0;
+        List<Long> path = connected ? oldest.paths.get(choice)
+                : Collections.singletonList(oldest.candidates[choice]);
+        matches.add(new Match(oldest.index, oldest.candidates[choice],
+                oldest.distances[choice], path, connected));
+
+        /* Rule out the candidates whose sequence went through another candidate. */
+        Step prev = null;
+        for (Step step : window) {
+            for (int j = 0; j < step.scores.length; j += 1) {
+                int back = step.back[j];
+                boolean ruledOut = prev == null ? back != choice
+                        : back < 0 || prev.scores[back] == Double.NEGATIVE_INFINITY;
+                if (ruledOut) {
+                    step.scores[j] = Double.NEGATIVE_INFINITY;
+                }
+            }
+            prev = step;
+        }
+    }
+}
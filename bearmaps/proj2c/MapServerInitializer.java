@@ -1,7 +1,11 @@
 package bearmaps.proj2c;
 
+import bearmaps.proj2c.server.Http2ServerFactory;
 import bearmaps.proj2c.server.handler.APIRouteHandler;
+import bearmaps.proj2c.server.handler.AbortedResponseException;
 import bearmaps.proj2c.utils.Constants;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
 import java.util.HashSet;
 import java.util.Map;
@@ -21,7 +25,25 @@ public class MapServerInitializer {
      **/
     public static void initializeServer(Map<String, APIRouteHandler> apiHandlers){
 
-        Constants.SEMANTIC_STREET_GRAPH = new AugmentedStreetMapGraph(Constants.OSM_DB_PATH);
+        /* The route is not cleared when the graph is replaced: it is of the graph it was found
+         * on, and is not shown or added to once that graph is not current. */
+        Constants.STREET_GRAPH.load(Constants.OSM_DB_PATH);
+        Constants.STREET_GRAPH.watch(Constants.OSM_DB_PATH,
+                Constants.GRAPH_RELOAD_INTERVAL_SECONDS);
+        /* Offer HTTP/2 alongside HTTP/1.1, if Jetty's support for it is there. The server has
+         * to be set up before the first route or static file location starts it. */
+        if (!Http2ServerFactory.isAvailable()) {
+            System.out.println("Jetty's http2-server is not on the classpath; serving HTTP/1.1 "
+                    + "only.");
+        }
+        EmbeddedServers.add(EmbeddedServers.Identifiers.JETTY,
+                new EmbeddedJettyFactory(new Http2ServerFactory(Constants.SERVER_PORT,
+                        Constants.SERVER_IDLE_TIMEOUT_MILLIS)));
+        port(Constants.SERVER_PORT);
+        if (Constants.SERVER_MAX_THREADS > 0) {
+            threadPool(Constants.SERVER_MAX_THREADS, Constants.SERVER_MIN_THREADS,
+                    Constants.SERVER_THREAD_IDLE_TIMEOUT_MILLIS);
+        }
         staticFileLocation("/page");
         /* Allow for all origin requests (since this is not an authenticated server, we do not
          * care about CSRF).  */
@@ -31,6 +53,12 @@ public class MapServerInitializer {
             response.header("Access-Control-Allow-Headers", "*");
         });
 
+        /* Spark would end a response whose streaming failed part way as if it were complete.
+         * Thrown on to Jetty instead, it has the connection dropped. */
+        exception(AbortedResponseException.class, (e, request, response) -> {
+            throw e;
+        });
+
         Set<String> paths = new HashSet<>();
         for(Map.Entry<String, APIRouteHandler> apiRoute: apiHandlers.entrySet()){
             if(paths.contains(apiRoute.getKey())){
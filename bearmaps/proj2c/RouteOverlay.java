@@ -0,0 +1,210 @@
+package bearmaps.proj2c;
+
+import java.awt.geom.Path2D;
+import java.util.Arrays;
+import java.util.List;
+
+import static bearmaps.proj2c.utils.Constants.*;
+
+/**
+ * A route prepared for drawing over rasters of the map. The route's coordinates are looked up
+ * from the graph once, and kept for every depth from 0 to MAX_RENDERED_DEPTH simplified to
+ * within half a pixel of the route with Douglas-Peucker, since a route across the map needs
+ * only a few of its points when zoomed out. Each depth's points are cut into chunks with
+ * bounding boxes, so a raster only goes through the chunks that pass through it.
+ *
+ * Overlays never change once built, so rasters may draw one while a new route replaces it.
+ */
+public class RouteOverlay {
+    /** Most points in a chunk, counting the point it shares with the next one. */
+    public static final int CHUNK_POINTS = 32;
+    /** Farthest a simplified route strays from the route, in pixels of the raster's depth. */
+    public static final double TOLERANCE_PX = 0.5;
+
+    /* Degrees per pixel of tiles at depth 0. Those at depth d are 2^d times smaller. */
+    private static final double ROOT_LON_DPP = (ROOT_LRLON - ROOT_ULLON) / TILE_SIZE;
+    private static final double ROOT_LAT_DPP = (ROOT_ULLAT - ROOT_LRLAT) / TILE_SIZE;
+
+    private final Level[] levels = new Level[MAX_RENDERED_DEPTH + 1];
+
+    /** The points of a route kept at one depth. */
+    private static class Level {
+        private final double[] lons;
+        private final double[] lats;
+        /* Chunk c is points c * (CHUNK_POINTS - 1) to that plus CHUNK_POINTS - 1, and lies
+           within longitudes bounds[4c] to bounds[4c + 1] and latitudes bounds[4c + 2] to
+           bounds[4c + 3]. */
+        private final double[] bounds;
+
+        Level(double[] lons, double[] lats) {
+            this.lons = lons;
+            this.lats = lats;
+            int chunks = Math.max(1, (lons.length - 2) / (CHUNK_POINTS - 1) + 1);
+            bounds = new double[4 * chunks];
+            for (int c = 0; c < chunks; c += 1) {
+                int from = c * (CHUNK_POINTS - 1);
+                int to = Math.min(from + CHUNK_POINTS, lons.length);
+                bounds[4 * c] = bounds[4 * c + 2] = Double.POSITIVE_INFINITY;
+                bounds[4 * c + 1] = bounds[4 * c + 3] = Double.NEGATIVE_INFINITY;
+                for (int i = from; i < to; i += 1) {
+                    bounds[4 * c] = Math.min(bounds[4 * c], lons[i]);
+                    bounds[4 * c + 1] = Math.max(bounds[4 * c + 1], lons[i]);
+                    bounds[4 * c + 2] = Math.min(bounds[4 * c + 2], lats[i]);
+                    bounds[4 * c + 3] = Math.max(bounds[4 * c + 3], lats[i]);
+                }
+            }
+        }
+    }
+
+    /** Prepares ROUTE, a list of vertices of G, for drawing. */
+    public RouteOverlay(AugmentedStreetMapGraph g, List<Long> route) {
+        int n = route.size();
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        int i = 0;
+        for (long v : route) {
+            lons[i] = g.lon(v);
+            lats[i] = g.lat(v);
+            i += 1;
+        }
+
+        /* Each depth keeps the points that matter more than its tolerance, which is what
+           Douglas-Peucker with that tolerance would keep. */
+        double[] importance = importance(lons, lats);
+        for (int depth = 0; depth <= MAX_RENDERED_DEPTH; depth += 1) {
+            double tolerance = TOLERANCE_PX / (1 << depth);
+            int kept = 0;
+            for (double m : importance) {
+                if (m > tolerance) {
+                    kept += 1;
+                }
+            }
+            double[] levelLons = new double[kept];
+            double[] levelLats = new double[kept];
+            kept = 0;
+            for (int k = 0; k < n; k += 1) {
+                if (importance[k] > tolerance) {
+                    levelLons[kept] = lons[k];
+                    levelLats[kept] = lats[k];
+                    kept += 1;
+                }
+            }
+            levels[depth] = new Level(levelLons, levelLats);
+        }
+    }
+
+    /** Returns the number of points of the route kept at DEPTH. */
+    public int size(int depth) {
+        return level(depth).lons.length;
+    }
+
+    /**
+     * Returns the part of the route that may be seen in a WIDTH by HEIGHT pixel raster at DEPTH
+     * between longitudes ULLON and LRLON and latitudes ULLAT and LRLAT, in the raster's pixels.
+     * Chunks entirely more than MARGIN pixels outside the raster are left out.
+     */
+    public Path2D visiblePath(int depth, double ullon, double ullat, double lrlon, double lrlat,
+                              int width, int height, double margin) {
+        Level level = level(depth);
+        double pxPerLon = width / (lrlon - ullon);
+        double pxPerLat = height / (ullat - lrlat);
+        double minLon = ullon - margin / pxPerLon;
+        double maxLon = lrlon + margin / pxPerLon;
+        double minLat = lrlat - margin / pxPerLat;
+        double maxLat = ullat + margin / pxPerLat;
+
+        Path2D.Double path = new Path2D.Double();
+        double[] b = level.bounds;
+        boolean connected = false;
+        for (int c = 0; 4 * c < b.length; c += 1) {
+            if (b[4 * c + 1] < minLon || b[4 * c] > maxLon
+                    || b[4 * c + 3] < minLat || b[4 * c + 2] > maxLat) {
+                connected = false;
+                continue;
+            }
+            int from = c * (CHUNK_POINTS - 1);
+            int to = Math.min(from + CHUNK_POINTS, level.lons.length);
+            /* A chunk following a drawn one carries on from their shared point. */
+            for (int i = connected ? from + 1 : from; i < to; i += 1) {
+                double x = (level.lons[i] - ullon) * pxPerLon;
+                double y = (ullat - level.lats[i]) * pxPerLat;
+                if (i == from) {
+                    path.moveTo(x, y);
+                } else {
+                    path.lineTo(x, y);
+                }
+            }
+            connected = true;
+        }
+        return path;
+    }
+
+    private Level level(int depth) {
+        return levels[Math.max(0, Math.min(MAX_RENDERED_DEPTH, depth))];
+    }
+
+    /**
+     * Returns, for each point, the largest tolerance in pixels at depth 0 with which
+     * Douglas-Peucker keeps it: how far it is from the line it splits, but no more than the
+     * point that split the line before it. The ends are always kept.
+     */
+    private static double[] importance(double[] lons, double[] lats) {
+        int n = lons.length;
+        double[] importance = new double[n];
+        if (n == 0) {
+            return importance;
+        }
+        importance[0] = importance[n - 1] = Double.POSITIVE_INFINITY;
+        /* Lines still to split, as their first point, last point and importance. */
+        int[] stack = new int[64];
+        double[] parents = new double[32];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        parents[0] = Double.POSITIVE_INFINITY;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            double parent = parents[top / 2];
+            int farthest = -1;
+            double farthestDistance = -1;
+            for (int i = first + 1; i < last; i += 1) {
+                double d = distance(lons, lats, i, first, last);
+                if (d > farthestDistance) {
+                    farthest = i;
+                    farthestDistance = d;
+                }
+            }
+            if (farthest < 0) {
+                continue;
+            }
+            double m = Math.min(parent, farthestDistance);
+            importance[farthest] = m;
+            if (top + 4 > stack.length) {
+                stack = Arrays.copyOf(stack, 2 * stack.length);
+                parents = Arrays.copyOf(parents, stack.length / 2);
+            }
+            parents[top / 2] = m;
+            stack[top++] = first;
+            stack[top++] = farthest;
+            parents[top / 2] = m;
+            stack[top++] = farthest;
+            stack[top++] = last;
+        }
+        return importance;
+    }
+
+    /** Returns the distance in pixels at depth 0 from point I to the segment from A to B. */
+    private static double distance(double[] lons, double[] lats, int i, int a, int b) {
+        double px = lons[i] / ROOT_LON_DPP;
+        double py = lats[i] / ROOT_LAT_DPP;
+        double ax = lons[a] / ROOT_LON_DPP;
+        double ay = lats[a] / ROOT_LAT_DPP;
+        double dx = lons[b] / ROOT_LON_DPP - ax;
+        double dy = lats[b] / ROOT_LAT_DPP - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0
+                : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / lengthSquared));
+        return Math.hypot(ax + t * dx - px, ay + t * dy - py);
+    }
+}
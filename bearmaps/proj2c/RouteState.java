@@ -0,0 +1,62 @@
+package bearmaps.proj2c;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The route the server shows: its vertices, the overlay they are drawn from, and the version
+ * of the street graph they are vertices of. A RouteState never changes, so it is published
+ * whole through one reference, and readers on other threads see either the old route or the
+ * new one, never a mix. A route of an older graph than the current one is stale, and is
+ * treated as no route at all.
+ */
+public class RouteState {
+    private final long graphVersion;
+    private final List<Long> vertices;
+    private final RouteOverlay overlay;
+
+    private RouteState(StreetGraphHolder.Version version, List<Long> vertices) {
+        this.graphVersion = version.number();
+        this.vertices = Collections.unmodifiableList(vertices);
+        this.overlay = new RouteOverlay(version.graph(), vertices);
+    }
+
+    /**
+     * Returns the route made of the vertices of PREVIOUS, if it is of VERSION, followed by
+     * ROUTE, a list of vertices of VERSION's graph. PREVIOUS may be null. If PREVIOUS is of a
+     * newer graph than VERSION, ROUTE is already stale, and PREVIOUS is returned as it is.
+     */
+    public static RouteState append(RouteState previous, StreetGraphHolder.Version version,
+                                    List<Long> route) {
+        if (previous != null && previous.graphVersion > version.number()) {
+            return previous;
+        }
+        List<Long> vertices = new ArrayList<>();
+        if (previous != null && previous.isOf(version)) {
+            vertices.addAll(previous.vertices);
+        }
+        vertices.addAll(route);
+        return new RouteState(version, vertices);
+    }
+
+    /** Returns whether this route is of the graph of VERSION, so that it may be shown. */
+    public boolean isOf(StreetGraphHolder.Version version) {
+        return version != null && version.number() == graphVersion;
+    }
+
+    /** Returns the number of the version of the graph this route is of. */
+    public long graphVersion() {
+        return graphVersion;
+    }
+
+    /** Returns the vertices of the route, in order. */
+    public List<Long> vertices() {
+        return vertices;
+    }
+
+    /** Returns the route prepared for drawing over rasters. */
+    public RouteOverlay overlay() {
+        return overlay;
+    }
+}
@@ -1,22 +1,43 @@
 package bearmaps.proj2c;
 
+import bearmaps.hw4.AStarGraph;
 import bearmaps.hw4.AStarSolver;
+import bearmaps.hw4.SolverListener;
+import bearmaps.hw4.WeightedEdge;
+import bearmaps.hw4.streetmap.CostModel;
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.proj2c.metrics.Metrics;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import static bearmaps.proj2c.utils.Constants.ROUTE_SOLVER;
+import static bearmaps.proj2c.utils.Constants.ROUTE_TIMEOUT_SECONDS;
+
 /**
  * This class acts as a helper for the RoutingAPIHandler.
  * @author Josh Hug, ______
  */
 public class Router {
 
+    /** The algorithms routes can be found with, see ROUTE_SOLVER. */
+    public enum Solver {
+        /** A*, guided towards the destination by the straight line distance to it. */
+        ASTAR,
+        /** Dijkstra's algorithm, which explores evenly in all directions. */
+        DIJKSTRA
+    }
+
     /**
      * Overloaded method for shortestPath that has flexibility to specify a solver
      * and returns a List of longs representing the shortest path from the node
      * closest to a start location and the node closest to the destination location.
+     * The route is found in the unrestricted graph, as routes were before routing profiles:
+     * it may use any car road in either direction, and ignores turn restrictions. Use the
+     * overload that takes a RoutingProfile for a route that keeps to them.
      * @param g The graph to use.
      * @param stlon The longitude of the start location.
      * @param stlat The latitude of the start location.
@@ -26,9 +47,181 @@ public class Router {
      */
     public static List<Long> shortestPath(AugmentedStreetMapGraph g, double stlon, double stlat,
                                           double destlon, double destlat) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, null);
+    }
+
+    /**
+     * Same as shortestPath above, but reports the events of the search to a listener, e.g. a
+     * SettledVerticesCollector to see which part of the graph the search explored.
+     * @param listener Receives the settle and relax events of the search; may be null.
+     */
+    public static List<Long> shortestPath(AugmentedStreetMapGraph g, double stlon, double stlat,
+                                          double destlon, double destlat,
+                                          SolverListener<Long> listener) {
+        long start = System.nanoTime();
         long src = g.closest(stlon, stlat);
         long dest = g.closest(destlon, destlat);
-        return new AStarSolver<>(g, src, dest, 20).solution();
+        long snapped = System.nanoTime();
+        if (src < 0 || dest < 0) {
+            return new ArrayList<>();
+        }
+        AStarSolver<Long> solver = new AStarSolver<>(forSolver(g.unrestricted()), src, dest,
+                ROUTE_TIMEOUT_SECONDS, listener);
+        long solved = System.nanoTime();
+        recordSearch(solver, start, snapped, solved);
+        return solver.solution();
+    }
+
+    /**
+     * Same as shortestPath above, but finds the route for PROFILE that is cheapest under COST,
+     * e.g. the quickest cycling route rather than the shortest driving one.
+     * @param profile The mode of travel, which decides the ways the route may use.
+     * @param cost What the route should minimize.
+     * @param listener Receives the settle and relax events of the search; may be null.
+     */
+    public static List<Long> shortestPath(AugmentedStreetMapGraph g, double stlon, double stlat,
+                                          double destlon, double destlat, RoutingProfile profile,
+                                          CostModel cost, SolverListener<Long> listener) {
+        long start = System.nanoTime();
+        long src = g.closest(stlon, stlat, profile);
+        long dest = g.closest(destlon, destlat, profile);
+        long snapped = System.nanoTime();
+        if (src < 0 || dest < 0) {
+            return new ArrayList<>();
+        }
+        AStarSolver<Long> solver = new AStarSolver<>(forSolver(g.withProfile(profile, cost)), src,
+                dest, ROUTE_TIMEOUT_SECONDS, listener);
+        long solved = System.nanoTime();
+        recordSearch(solver, start, snapped, solved);
+        return solver.solution();
+    }
+
+    /**
+     * Same as shortestPath above, but the route starts and ends at the closest points on the
+     * closest roads PROFILE may use rather than at the closest vertices, so it does not detour
+     * through a distant intersection when the start or destination is beside a long road. The
+     * points are joined to the graph only for this query, so queries can run concurrently.
+     * @param profile The mode of travel, which decides the ways the route may use.
+     * @param cost What the route should minimize.
+     * @param listener Receives the settle and relax events of the search for vertices of the
+     *                 graph; may be null.
+     * @return A list of node id's in the order visited between the two points. If they are on
+     * the same road with no vertex between them, the two ends of that road in the order
+     * travelled.
+     */
+    public static List<Long> snappedShortestPath(AugmentedStreetMapGraph g, double stlon,
+                                                 double stlat, double destlon, double destlat,
+                                                 RoutingProfile profile, CostModel cost,
+                                                 SolverListener<Long> listener) {
+        long start = System.nanoTime();
+        EdgeIndex.Snap src = g.snap(stlon, stlat, profile);
+        EdgeIndex.Snap dest = g.snap(destlon, destlat, profile);
+        long snapped = System.nanoTime();
+        if (src == null || dest == null) {
+            return new ArrayList<>();
+        }
+        SnappedGraph snappedGraph = new SnappedGraph(g.withProfile(profile, cost), src, dest);
+        AStarSolver<Long> solver = new AStarSolver<>(forSolver(snappedGraph), SnappedGraph.START,
+                SnappedGraph.END, ROUTE_TIMEOUT_SECONDS,
+                listener == null ? null : new RealVerticesListener(listener));
+        long solved = System.nanoTime();
+        recordSearch(solver, start, snapped, solved);
+        return snappedGraph.realVertices(solver.solution());
+    }
+
+    /**
+     * Records the metrics of a route search whose ends were found from START to SNAPPED, and
+     * which SOLVER searched from SNAPPED to SOLVED, all in System.nanoTime.
+     */
+    private static void recordSearch(AStarSolver<?> solver, long start, long snapped,
+                                     long solved) {
+        Metrics.histogram(Metrics.SNAP_SECONDS).record(snapped - start);
+        Metrics.histogram(Metrics.SOLVER_SECONDS).record(solved - snapped);
+        Metrics.histogram(Metrics.SOLVER_STATES_EXPLORED).record(solver.numStatesExplored());
+        Metrics.histogram(Metrics.SOLVER_PQ_PEAK_SIZE).record(solver.pqPeakSize());
+        Metrics.counter(Metrics.SOLVER_OUTCOMES, "outcome", solver.outcome().name()).increment();
+    }
+
+    /**
+     * Returns GRAPH to be searched with ROUTE_SOLVER: as it is for A*, and without its estimates
+     * of the distance left for Dijkstra's algorithm.
+     */
+    private static <V> AStarGraph<V> forSolver(AStarGraph<V> graph) {
+        if (ROUTE_SOLVER != Solver.DIJKSTRA) {
+            return graph;
+        }
+        return new AStarGraph<V>() {
+            @Override
+            public List<WeightedEdge<V>> neighbors(V v) {
+                return graph.neighbors(v);
+            }
+
+            @Override
+            public double estimatedDistanceToGoal(V s, V goal) {
+                return 0;
+            }
+
+            @Override
+            public double weight(WeightedEdge<V> e) {
+                return graph.weight(e);
+            }
+
+            @Override
+            public boolean isTraversable(WeightedEdge<V> e) {
+                return graph.isTraversable(e);
+            }
+
+            @Override
+            public boolean hasTurnRestrictions(WeightedEdge<V> in) {
+                return graph.hasTurnRestrictions(in);
+            }
+
+            @Override
+            public boolean isTurnAllowed(WeightedEdge<V> in, WeightedEdge<V> out) {
+                return graph.isTurnAllowed(in, out);
+            }
+        };
+    }
+
+    /** Passes on the events of a search of a SnappedGraph that concern only real vertices. */
+    private static class RealVerticesListener implements SolverListener<Long> {
+        private final SolverListener<Long> listener;
+
+        private RealVerticesListener(SolverListener<Long> listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onSettle(Long v, double distTo, int pqSize) {
+            if (!SnappedGraph.isVirtual(v)) {
+                listener.onSettle(v, distTo, pqSize);
+            }
+        }
+
+        @Override
+        public void onRelax(Long a, Long b, double distTo) {
+            if (!SnappedGraph.isVirtual(a) && !SnappedGraph.isVirtual(b)) {
+                listener.onRelax(a, b, distTo);
+            }
+        }
+    }
+
+    /**
+     * Finds up to MAXROUTES - 1 alternatives to a route found by shortestPath for PROFILE under
+     * COST, which are not much costlier and differ substantially from it and each other.
+     * @param shortest The route returned by shortestPath.
+     * @param maxRoutes The most routes to return, including the shortest one.
+     * @return The routes found, shortest first; none if SHORTEST is empty.
+     */
+    public static AlternativeRoutes alternativeRoutes(AugmentedStreetMapGraph g,
+                                                      List<Long> shortest,
+                                                      RoutingProfile profile, CostModel cost,
+                                                      int maxRoutes) {
+        long start = System.nanoTime();
+        AlternativeRoutes alternatives = new AlternativeRoutes(g, profile, cost, shortest,
+                maxRoutes);
+        Metrics.histogram(Metrics.ALTERNATIVES_SECONDS).record(System.nanoTime() - start);
+        return alternatives;
     }
 
     /**
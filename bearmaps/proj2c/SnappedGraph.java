@@ -0,0 +1,192 @@
+package bearmaps.proj2c;
+
+import bearmaps.hw4.AStarGraph;
+import bearmaps.hw4.WeightedEdge;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A graph as searched by a single query that starts and ends partway along roads: the graph
+ * plus a virtual START vertex at the start snap and a virtual END vertex at the end snap. START
+ * has edges to the ends of its road, and the ends of the end road have edges to END, each
+ * weighted by the part of the road it covers. The underlying graph is not modified, so any
+ * number of queries can be searched at once.
+ *
+ * A virtual edge stands for the rest of the road it lies on: it may be traversed only if that
+ * road may be, and turns onto or off it are restricted like turns onto or off the road.
+ */
+public class SnappedGraph implements AStarGraph<Long> {
+    /** The id of the virtual start vertex; real vertex ids are never negative. */
+    public static final long START = -1;
+    /** The id of the virtual end vertex. */
+    public static final long END = -2;
+
+    private final AStarGraph<Long> base;
+    private final EdgeIndex.Snap end;
+    private final List<WeightedEdge<Long>> startEdges = new ArrayList<>();
+    /* The virtual edge into END from each end of the end road. */
+    private final WeightedEdge<Long> fromEndFrom;
+    private final WeightedEdge<Long> fromEndTo;
+    /* The virtual edge from START straight to END, if both are on the same road. */
+    private final WeightedEdge<Long> direct;
+    /* The road edge each virtual edge lies on. */
+    private final Map<WeightedEdge<Long>, WeightedEdge<Long>> roads = new IdentityHashMap<>();
+
+    /**
+     * Creates the graph for a query from START to END over BASE, typically a StreetMapGraph
+     * as searched by one profile under one cost model. Both snaps must come from the index of
+     * that profile.
+     */
+    public SnappedGraph(AStarGraph<Long> base, EdgeIndex.Snap start, EdgeIndex.Snap end) {
+        this.base = base;
+        this.end = end;
+        double t = start.fraction();
+        addVirtualEdge(startEdges, START, start.forward(), 1 - t, start.to());
+        addVirtualEdge(startEdges, START, start.backward(), t, start.from());
+
+        /* Both snaps on the same road: it can be followed straight from one to the other. */
+        double endT = end.fraction();
+        if (start.from() == end.to() && start.to() == end.from()) {
+            endT = 1 - endT;
+        }
+        WeightedEdge<Long> straight = null;
+        if (start.from() == end.from() && start.to() == end.to()
+                || start.from() == end.to() && start.to() == end.from()) {
+            if (endT >= t) {
+                straight = virtualEdge(START, END, start.forward(), endT - t);
+            } else {
+                straight = virtualEdge(START, END, start.backward(), t - endT);
+            }
+        }
+        direct = straight;
+        if (direct != null) {
+            startEdges.add(direct);
+        }
+
+        fromEndFrom = virtualEdge(end.from(), END, end.forward(), end.fraction());
+        fromEndTo = virtualEdge(end.to(), END, end.backward(), 1 - end.fraction());
+    }
+
+    /** Returns whether V is one of the virtual vertices. */
+    public static boolean isVirtual(long v) {
+        return v == START || v == END;
+    }
+
+    /**
+     * Returns the real vertices of PATH, a path from START to END in this graph, in order. A
+     * path straight along one road from START to END has none, so the two ends of that road are
+     * returned instead, in the direction travelled.
+     */
+    public List<Long> realVertices(List<Long> path) {
+        List<Long> vertices = new ArrayList<>();
+        for (long v : path) {
+            if (!isVirtual(v)) {
+                vertices.add(v);
+            }
+        }
+        if (vertices.isEmpty() && path.size() == 2 && direct != null) {
+            WeightedEdge<Long> road = roads.get(direct);
+            vertices.add(road.from());
+            vertices.add(road.to());
+        }
+        return vertices;
+    }
+
+    /** Adds to EDGES a virtual edge from FROM to TO covering FRACTION of ROAD, if ROAD exists. */
+    private void addVirtualEdge(List<WeightedEdge<Long>> edges, long from, WeightedEdge<Long> road,
+                                double fraction, long to) {
+        WeightedEdge<Long> e = virtualEdge(from, to, road, fraction);
+        if (e != null) {
+            edges.add(e);
+        }
+    }
+
+    /** Returns a virtual edge from FROM to TO covering FRACTION of ROAD, or null if ROAD is. */
+    private WeightedEdge<Long> virtualEdge(long from, long to, WeightedEdge<Long> road,
+                                           double fraction) {
+        if (road == null || !base.isTraversable(road)) {
+            return null;
+        }
+        WeightedEdge<Long> e = new WeightedEdge<>(from, to, fraction * base.weight(road));
+        e.setName(road.getName());
+        roads.put(e, road);
+        return e;
+    }
+
+    @Override
+    public List<WeightedEdge<Long>> neighbors(Long v) {
+        if (v == START) {
+            return startEdges;
+        }
+        if (v == END) {
+            return new ArrayList<>();
+        }
+        List<WeightedEdge<Long>> edges = base.neighbors(v);
+        boolean intoEndFrom = fromEndFrom != null && v == end.from();
+        boolean intoEndTo = fromEndTo != null && v == end.to();
+        if (!intoEndFrom && !intoEndTo) {
+            return edges;
+        }
+        edges = new ArrayList<>(edges);
+        if (intoEndFrom) {
+            edges.add(fromEndFrom);
+        }
+        if (intoEndTo) {
+            edges.add(fromEndTo);
+        }
+        return edges;
+    }
+
+    /**
+     * Returns an estimate of the cost from S to GOAL. To END, this is the least of the base
+     * graph's estimates to either end of the end road plus the cost from there along it, which
+     * never overestimates if the base graph's estimates do not.
+     */
+    @Override
+    public double estimatedDistanceToGoal(Long s, Long goal) {
+        if (isVirtual(s)) {
+            return 0;
+        }
+        if (goal != END) {
+            return base.estimatedDistanceToGoal(s, goal);
+        }
+        double estimate = Double.POSITIVE_INFINITY;
+        if (fromEndFrom != null) {
+            estimate = base.estimatedDistanceToGoal(s, end.from()) + fromEndFrom.weight();
+        }
+        if (fromEndTo != null) {
+            estimate = Math.min(estimate,
+                    base.estimatedDistanceToGoal(s, end.to()) + fromEndTo.weight());
+        }
+        return estimate == Double.POSITIVE_INFINITY ? 0 : estimate;
+    }
+
+    @Override
+    public double weight(WeightedEdge<Long> e) {
+        return roads.containsKey(e) ? e.weight() : base.weight(e);
+    }
+
+    @Override
+    public boolean isTraversable(WeightedEdge<Long> e) {
+        return roads.containsKey(e) || base.isTraversable(e);
+    }
+
+    @Override
+    public boolean hasTurnRestrictions(WeightedEdge<Long> in) {
+        return in.to() != END && base.hasTurnRestrictions(road(in));
+    }
+
+    @Override
+    public boolean isTurnAllowed(WeightedEdge<Long> in, WeightedEdge<Long> out) {
+        return base.isTurnAllowed(road(in), road(out));
+    }
+
+    /** Returns the road edge E lies on: E itself, unless E is virtual. */
+    private WeightedEdge<Long> road(WeightedEdge<Long> e) {
+        WeightedEdge<Long> road = roads.get(e);
+        return road == null ? e : road;
+    }
+}
@@ -0,0 +1,181 @@
+package bearmaps.proj2c;
+
+import bearmaps.proj2c.metrics.Metrics;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Holds the street graph the server answers with, and swaps in one built from new map data
+ * while the server keeps running.
+ *
+ * Each graph is put in place as a Version, numbered in order. A request should take the
+ * current version once and use it throughout. Requests that started before a swap then finish
+ * on the graph they started with, and no request sees half of one graph and half of another.
+ * Whatever is derived from a graph should either hang off the graph itself, like its edge
+ * indexes and vector tiles, and so go with it, or be keyed by its version and dropped when a
+ * listener hears of a newer one.
+ *
+ * A new graph is built on a background thread while the old one keeps answering. The graph
+ * is reloaded after its OSM file changes and then stays unchanged for a whole polling
+ * interval, so that a file still being copied into place is not read. Writing the new file
+ * next to the old one and renaming it over the old one is safest. If the new data fails to
+ * load, the old graph is kept.
+ */
+public class StreetGraphHolder {
+
+    /** A graph, its number in the order graphs were put in place, and the data it is from. */
+    public static class Version {
+        private final long number;
+        private final AugmentedStreetMapGraph graph;
+        private final String stamp;
+
+        private Version(long number, AugmentedStreetMapGraph graph, String stamp) {
+            this.number = number;
+            this.graph = graph;
+            this.stamp = stamp;
+        }
+
+        /** Returns 1 for the first graph, and one more for each graph after it. */
+        public long number() {
+            return number;
+        }
+
+        public AugmentedStreetMapGraph graph() {
+            return graph;
+        }
+
+        /**
+         * Returns a name for the data the graph was built from, which is the same across
+         * restarts for the same data. It is safe to use in a file name, e.g. to keep files
+         * drawn from the graph.
+         */
+        public String stamp() {
+            return stamp;
+        }
+    }
+
+    private final AtomicReference<Version> current = new AtomicReference<>();
+    private final List<Consumer<Version>> listeners = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService loader;
+    /* The stamp the OSM file had at the last poll, to wait for it to stop changing, and the
+     * last stamp that failed to load, not to load it again. Only used by the loader thread. */
+    private String lastSeen;
+    private String failed;
+
+    /** Returns the current version, or null if no graph has been put in place yet. */
+    public Version current() {
+        return current.get();
+    }
+
+    /** Returns the current graph. */
+    public AugmentedStreetMapGraph graph() {
+        Version version = current.get();
+        if (version == null) {
+            throw new IllegalStateException("No street graph has been loaded yet.");
+        }
+        return version.graph;
+    }
+
+    /**
+     * Puts GRAPH in place as the next version, built from the data named by STAMP, and tells
+     * the listeners. Returns the new version.
+     */
+    public Version set(AugmentedStreetMapGraph graph, String stamp) {
+        Version previous;
+        Version next;
+        do {
+            previous = current.get();
+            next = new Version(previous == null ? 1 : previous.number + 1, graph, stamp);
+        } while (!current.compareAndSet(previous, next));
+        for (Consumer<Version> listener : listeners) {
+            listener.accept(next);
+        }
+        return next;
+    }
+
+    /** Builds the graph of the OSM file at PATH and puts it in place. Returns its version. */
+    public Version load(String path) {
+        String stamp = stamp(path);
+        long start = System.nanoTime();
+        AugmentedStreetMapGraph graph = new AugmentedStreetMapGraph(path);
+        Metrics.histogram(Metrics.GRAPH_LOAD_SECONDS).record(System.nanoTime() - start);
+        return set(graph, stamp);
+    }
+
+    /**
+     * Has LISTENER told of each version put in place from now on, on the thread that put it
+     * there, e.g. to drop what was cached for the one before.
+     */
+    public void addListener(Consumer<Version> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Checks the OSM file at PATH every INTERVALSECONDS on a background thread, and loads it
+     * once it has changed and then stayed unchanged for an interval. Does nothing if
+     * INTERVALSECONDS is not positive.
+     */
+    public synchronized void watch(String path, long intervalSeconds) {
+        if (intervalSeconds <= 0 || loader != null) {
+            return;
+        }
+        loader = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "street-graph-loader");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        loader.scheduleWithFixedDelay(() -> poll(path), intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS);
+    }
+
+    /** Stops watching for new data. A graph being built is still put in place. */
+    public synchronized void shutdown() {
+        if (loader != null) {
+            loader.shutdown();
+            loader = null;
+        }
+    }
+
+    private void poll(String path) {
+        String stamp = stamp(path);
+        boolean settled = stamp.equals(lastSeen);
+        lastSeen = stamp;
+        Version version = current.get();
+        if (!settled || stamp.equals(failed) || version != null && stamp.equals(version.stamp)
+                || !new File(path).isFile()) {
+            return;
+        }
+        long start = System.nanoTime();
+        AugmentedStreetMapGraph graph = null;
+        try {
+            graph = new AugmentedStreetMapGraph(path);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        if (graph == null || !graph.isComplete() || graph.isEmpty()) {
+            /* Keep serving the graph we have; the file is tried again once it changes. */
+            failed = stamp;
+            Metrics.counter(Metrics.GRAPH_RELOAD_FAILURES).increment();
+            System.out.println("Could not load " + path + "; keeping the street graph of "
+                    + (version == null ? "no data" : version.stamp) + ".");
+            return;
+        }
+        Metrics.histogram(Metrics.GRAPH_LOAD_SECONDS).record(System.nanoTime() - start);
+        Metrics.counter(Metrics.GRAPH_RELOADS).increment();
+        set(graph, stamp);
+    }
+
+    /** Returns the stamp of the file at PATH, from its size and when it was last changed. */
+    private static String stamp(String path) {
+        File file = new File(path);
+        return Long.toHexString(file.lastModified()) + "-" + Long.toHexString(file.length());
+    }
+}
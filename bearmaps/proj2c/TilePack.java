@@ -0,0 +1,235 @@
+package bearmaps.proj2c;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The map tiles of a folder like IMG_ROOT packed into one file, read through a memory mapping,
+ * so a tile is found with a lookup in the mapped index rather than opening, reading and closing
+ * a file of its own.
+ *
+ * A pack starts with a header of MAGIC, VERSION and the deepest depth packed, followed by an
+ * index with a slot for every tile at every depth down to it, in order of depth, then row, then
+ * column. Each slot holds the offset of the tile's PNG in the pack as a long and its length as
+ * an int, or zero for a tile the folder did not have. The PNGs follow the index. Packs are
+ * written by running this class, see main.
+ */
+public class TilePack {
+    /** "BMTP", the first four bytes of every pack. */
+    public static final int MAGIC = 0x424D5450;
+    public static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 12;
+    private static final int SLOT_BYTES = 12;
+    /** Deepest depth a pack may hold, so that its index stays small. */
+    private static final int MAX_DEPTH = 10;
+
+    private final MappedByteBuffer buffer;
+    private final int maxDepth;
+
+    /** Maps the pack at PATH. */
+    public TilePack(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(path).toPath(),
+                StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to map at once.");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            throw new IOException(path + " is not a version " + VERSION + " tile pack.");
+        }
+        maxDepth = buffer.getInt(8);
+        if (maxDepth < 0 || maxDepth > MAX_DEPTH
+                || HEADER_BYTES + (long) slots(maxDepth) * SLOT_BYTES > buffer.capacity()) {
+            throw new IOException(path + " has a broken index.");
+        }
+    }
+
+    /** Returns the deepest depth in this pack. */
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the PNG of tile X, Y at DEPTH, as a read only view of the mapped pack, or null if
+     * the pack does not have it. Nothing is copied.
+     */
+    public ByteBuffer bytes(int depth, int x, int y) {
+        if (depth < 0 || depth > maxDepth || x < 0 || x >= 1 << depth || y < 0
+                || y >= 1 << depth) {
+            return null;
+        }
+        int slot = HEADER_BYTES + (slots(depth - 1) + (y << depth) + x) * SLOT_BYTES;
+        long offset = buffer.getLong(slot);
+        int length = buffer.getInt(slot + 8);
+        if (length <= 0 || offset < 0 || offset + length > buffer.capacity()) {
+            return null;
+        }
+        /* A view of its own, so that readers on other threads do not move each other. */
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) offset);
+        view.limit((int) offset + length);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the PNG of the tile in the file named NAME in the packed folder, such as
+     * d3_x1_y2.png, or null if the pack does not have it.
+     */
+    public ByteBuffer bytes(String name) {
+        int[] tile = parse(name);
+        return tile == null ? null : bytes(tile[0], tile[1], tile[2]);
+    }
+
+    /** Returns the tile in the file named NAME in the packed folder, decoded, or null. */
+    public BufferedImage image(String name) throws IOException {
+        ByteBuffer bytes = bytes(name);
+        return bytes == null ? null : ImageIO.read(new ByteBufferInputStream(bytes));
+    }
+
+    /** Returns the depth, x and y of the tile in a file named like d3_x1_y2.png, or null. */
+    private static int[] parse(String name) {
+        if (!name.startsWith("d") || !name.endsWith(".png")) {
+            return null;
+        }
+        String[] parts = name.substring(1, name.length() - ".png".length()).split("_");
+        if (parts.length != 3 || !parts[1].startsWith("x") || !parts[2].startsWith("y")) {
+            return null;
+        }
+        try {
+            return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1].substring(1)),
+                    Integer.parseInt(parts[2].substring(1))};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Returns the number of tiles at all depths down to DEPTH. */
+    private static int slots(int depth) {
+        return ((1 << 2 * (depth + 1)) - 1) / 3;
+    }
+
+    /**
+     * Packs the tiles in the folder DIR, named like d3_x1_y2.png, into the file PACK. The pack
+     * is written next to it first and moved into place when done, so a server never maps half
+     * of one.
+     */
+    public static void write(File dir, File pack) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException(dir + " is not a folder.");
+        }
+        int deepest = -1;
+        for (File f : files) {
+            int[] tile = parse(f.getName());
+            if (tile != null && tile[0] <= MAX_DEPTH) {
+                deepest = Math.max(deepest, tile[0]);
+            }
+        }
+        if (deepest < 0) {
+            throw new IOException("There are no tiles in " + dir + ".");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + slots(deepest) * SLOT_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(deepest);
+        File partial = new File(pack.getPath() + ".part");
+        try (FileChannel out = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            /* The index is written twice: empty, to make room for it, then filled in. */
+            writeFully(out, header, 0);
+            long offset = header.capacity();
+            for (File f : files) {
+                int[] tile = parse(f.getName());
+                if (tile == null || tile[0] > deepest || tile[1] < 0 || tile[1] >= 1 << tile[0]
+                        || tile[2] < 0 || tile[2] >= 1 << tile[0]) {
+                    continue;
+                }
+                try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+                    long length = in.size();
+                    for (long done = 0; done < length; ) {
+                        long n = out.transferFrom(in, offset + done, length - done);
+                        if (n <= 0) {
+                            throw new IOException(f + " changed while it was being packed.");
+                        }
+                        done += n;
+                    }
+                    int slot = HEADER_BYTES
+                            + (slots(tile[0] - 1) + (tile[2] << tile[0]) + tile[1]) * SLOT_BYTES;
+                    header.putLong(slot, offset);
+                    header.putInt(slot + 8, (int) length);
+                    offset += length;
+                }
+            }
+            writeFully(out, header, 0);
+        }
+        if (!partial.renameTo(pack) && !(pack.delete() && partial.renameTo(pack))) {
+            throw new IOException("Could not move " + partial + " to " + pack + ".");
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer bytes, long position)
+            throws IOException {
+        bytes.clear();
+        while (bytes.hasRemaining()) {
+            out.write(bytes, position + bytes.position());
+        }
+    }
+
+    /**
+     * Packs a folder of tiles. Usage: java bearmaps.proj2c.TilePack IMG_ROOT IMG_PACK, with the
+     * paths in Constants for the server to use the pack.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: java bearmaps.proj2c.TilePack <tile folder> <pack file>");
+            return;
+        }
+        long start = System.nanoTime();
+        write(new File(args[0]), new File(args[1]));
+        TilePack pack = new TilePack(args[1]);
+        System.out.printf("Packed tiles down to depth %d into %s, %d bytes, in %.1f s.%n",
+                pack.maxDepth(), args[1], pack.buffer.capacity(),
+                (System.nanoTime() - start) / 1e9);
+    }
+
+    /** Reads a ByteBuffer from its position to its limit. */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer bytes;
+
+        ByteBufferInputStream(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            return bytes.hasRemaining() ? bytes.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!bytes.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, bytes.remaining());
+            bytes.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return bytes.remaining();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package bearmaps.proj2c;
+
+import bearmaps.proj2c.metrics.Metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Loads the tiles a client is likely to ask for next, while it is still looking at the ones it
+ * has: the ring of tiles around its grid, and the tiles it would see zooming in or out by one
+ * depth. The ring is loaded in the order the client has been panning, and the depth it last
+ * zoomed towards is loaded before the other.
+ *
+ * Prefetching never holds up a raster request: tiles are loaded one at a time on a single low
+ * priority thread, only while no raster is being drawn, a tile the queue has no room for is
+ * dropped, and the tiles of a viewport are skipped once its client has moved on to another.
+ */
+public class TilePrefetcher {
+    /** Most tiles waiting to be loaded; more are dropped. */
+    public static final int MAX_QUEUED = 256;
+    /** Most clients whose last viewport is remembered; the least recent is forgotten. */
+    public static final int MAX_CLIENTS = 1024;
+    /** How long to wait before checking again whether rasters are still being drawn. */
+    private static final long BUSY_WAIT_MILLIS = 5;
+
+    /** Loads one tile, e.g. into a cache. */
+    public interface TileLoader {
+        void load(int depth, int x, int y);
+    }
+
+    /** The tiles from LEFT to RIGHT and UPPER to LOWER at DEPTH that a client is looking at. */
+    private static class Viewport {
+        private final int depth;
+        private final int left;
+        private final int upper;
+        private final int right;
+        private final int lower;
+        /* The last change of depth, -1, 0 or 1, and the last pan, in tiles of depth. */
+        private final int zoom;
+        private final double dx;
+        private final double dy;
+
+        Viewport(int depth, int left, int upper, int right, int lower, Viewport previous) {
+            this.depth = depth;
+            this.left = left;
+            this.upper = upper;
+            this.right = right;
+            this.lower = lower;
+            if (previous == null) {
+                zoom = 0;
+                dx = dy = 0;
+            } else if (previous.depth != depth) {
+                zoom = Integer.signum(depth - previous.depth);
+                dx = previous.dx;
+                dy = previous.dy;
+            } else {
+                zoom = previous.zoom;
+                dx = centerX() - previous.centerX();
+                dy = centerY() - previous.centerY();
+            }
+        }
+
+        double centerX() {
+            return (left + right + 1) / 2.0;
+        }
+
+        double centerY() {
+            return (upper + lower + 1) / 2.0;
+        }
+    }
+
+    private final TileLoader loader;
+    private final BooleanSupplier busy;
+    private final ThreadPoolExecutor worker;
+    private final Map<Long, Viewport> viewports = Collections.synchronizedMap(
+            new LinkedHashMap<Long, Viewport>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Viewport> eldest) {
+                    return size() > MAX_CLIENTS;
+                }
+            });
+
+    /** Creates a prefetcher that loads tiles with LOADER, waiting while BUSY is true. */
+    public TilePrefetcher(TileLoader loader, BooleanSupplier busy) {
+        this.loader = loader;
+        this.busy = busy;
+        worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED), r -> {
+                    Thread t = new Thread(r, "tile-prefetcher");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                });
+    }
+
+    /**
+     * Records that CLIENT, any number telling clients apart, is looking at the tiles from LEFT
+     * to RIGHT and UPPER to LOWER at DEPTH, and starts loading the tiles around them, as deep
+     * as MAXDEPTH.
+     */
+    public void viewed(long client, int depth, int left, int upper, int right, int lower,
+                       int maxDepth) {
+        Viewport viewport;
+        synchronized (viewports) {
+            Viewport previous = viewports.get(client);
+            if (previous != null && previous.depth == depth && previous.left == left
+                    && previous.upper == upper && previous.right == right
+                    && previous.lower == lower) {
+                /* Its tiles are already on their way. */
+                return;
+            }
+            viewport = new Viewport(depth, left, upper, right, lower, previous);
+            viewports.put(client, viewport);
+        }
+        for (int[] tile : tilesAround(viewport, maxDepth)) {
+            try {
+                worker.execute(() -> {
+                    try {
+                        while (busy.getAsBoolean()) {
+                            Thread.sleep(BUSY_WAIT_MILLIS);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    if (viewports.get(client) != viewport) {
+                        Metrics.counter(Metrics.TILE_PREFETCHES_SKIPPED).increment();
+                        return;
+                    }
+                    loader.load(tile[0], tile[1], tile[2]);
+                });
+            } catch (RejectedExecutionException e) {
+                Metrics.counter(Metrics.TILE_PREFETCHES_SKIPPED).increment();
+            }
+        }
+    }
+
+    /** Stops prefetching. Tiles already queued are still loaded. */
+    public void shutdown() {
+        worker.shutdown();
+    }
+
+    /**
+     * Returns the tiles to load around VIEWPORT, as {depth, x, y}, most likely to be needed
+     * first: the ring around it, ahead of the last pan first, then those zooming in and out.
+     */
+    private static List<int[]> tilesAround(Viewport v, int maxDepth) {
+        List<int[]> ring = new ArrayList<>();
+        int n = 1 << v.depth;
+        for (int y = v.upper - 1; y <= v.lower + 1; y += 1) {
+            for (int x = v.left - 1; x <= v.right + 1; x += 1) {
+                boolean inside = x >= v.left && x <= v.right && y >= v.upper && y <= v.lower;
+                if (!inside && x >= 0 && x < n && y >= 0 && y < n) {
+                    ring.add(new int[]{v.depth, x, y});
+                }
+            }
+        }
+        double cx = v.centerX();
+        double cy = v.centerY();
+        ring.sort(Comparator.comparingDouble(t -> -((t[1] + 0.5 - cx) * v.dx
+                + (t[2] + 0.5 - cy) * v.dy)));
+
+        List<int[]> tiles = new ArrayList<>(ring);
+        /* Zooming keeps the center, and about as many tiles fit in the window. */
+        double halfWidth = (v.right - v.left + 1) / 2.0;
+        double halfHeight = (v.lower - v.upper + 1) / 2.0;
+        int first = v.zoom < 0 ? -1 : 1;
+        for (int zoom : new int[]{first, -first}) {
+            int depth = v.depth + zoom;
+            if (depth < 0 || depth > maxDepth) {
+                continue;
+            }
+            double scale = zoom > 0 ? 2 : 0.5;
+            int size = 1 << depth;
+            int left = Math.max(0, (int) Math.floor(cx * scale - halfWidth));
+            int right = Math.min(size - 1, (int) Math.ceil(cx * scale + halfWidth) - 1);
+            int upper = Math.max(0, (int) Math.floor(cy * scale - halfHeight));
+            int lower = Math.min(size - 1, (int) Math.ceil(cy * scale + halfHeight) - 1);
+            for (int y = upper; y <= lower; y += 1) {
+                for (int x = left; x <= right; x += 1) {
+                    tiles.add(new int[]{depth, x, y});
+                }
+            }
+        }
+        return tiles;
+    }
+}
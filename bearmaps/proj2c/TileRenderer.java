@@ -0,0 +1,218 @@
+package bearmaps.proj2c;
+
+import bearmaps.hw4.WeightedEdge;
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.proj2c.metrics.Metrics;
+import bearmaps.proj2c.utils.Config;
+
+import javax.imageio.ImageIO;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static bearmaps.proj2c.utils.Constants.*;
+
+/**
+ * Draws map tiles of the street graph for depths deeper than the pre-rendered images in
+ * IMG_ROOT go. Tiles are laid out like those images, 2^depth a side over the root bounding
+ * box, and drawn from the roads the edge indexes find in them: roads cars may use in white,
+ * cycleways in blue and footpaths in red, each at its real width.
+ *
+ * Tiles are drawn on a small pool of low priority threads with a bounded queue, so deep zoom
+ * costs no more than that pool however many clients ask for it; a tile the pool has no room for
+ * is refused rather than queued without limit. Drawn tiles are saved under RENDERED_IMG_ROOT
+ * and read back from there afterwards, also across restarts.
+ */
+public class TileRenderer {
+    /** Threads drawing tiles. Key tiles.render.threads, see Config. */
+    public static final int THREADS = Config.getInt("tiles.render.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    /** Most tiles waiting for a thread; more are refused. */
+    public static final int MAX_QUEUED = 256;
+
+    private static final Color BACKGROUND = new Color(242, 239, 233);
+    private static final Color ROAD_CASING = new Color(187, 180, 168);
+    private static final Color ROAD = Color.WHITE;
+    private static final Color CYCLEWAY = new Color(70, 110, 230);
+    private static final Color FOOTWAY = new Color(240, 120, 105);
+
+    /* Widths on the ground, in meters, and the least widths drawn, in pixels. */
+    private static final double ROAD_METERS = 8;
+    private static final double CASING_METERS = 1;
+    private static final double CYCLEWAY_METERS = 2;
+    private static final double FOOTWAY_METERS = 1.5;
+    private static final double MIN_WIDTH_PX = 1.5;
+    private static final double METERS_PER_DEGREE = 111320;
+
+    private final AugmentedStreetMapGraph graph;
+    private final File root;
+    private final ThreadPoolExecutor workers;
+    /* Tiles being drawn or read, by file name, so each is only drawn once at a time. */
+    private final Map<String, Future<BufferedImage>> pending = new ConcurrentHashMap<>();
+
+    /** Creates a renderer of the roads of GRAPH that saves its tiles in the folder ROOT. */
+    public TileRenderer(AugmentedStreetMapGraph graph, String root) {
+        this.graph = graph;
+        this.root = new File(root);
+        if (!this.root.isDirectory() && !this.root.mkdirs()) {
+            System.out.println("Could not create " + root + "; rendered tiles will not be saved.");
+        }
+        workers = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_QUEUED), r -> {
+                    Thread t = new Thread(r, "tile-renderer");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                });
+    }
+
+    /** Returns the file name of tile X, Y at DEPTH, as in IMG_ROOT. */
+    public static String fileName(int depth, int x, int y) {
+        return "d" + depth + "_x" + x + "_y" + y + ".png";
+    }
+
+    /**
+     * Starts reading tile X, Y at DEPTH from disk, or drawing it if it has not been drawn, and
+     * returns the image to come. Returns null if the pool has no room for it, or is shut down.
+     */
+    public Future<BufferedImage> tile(int depth, int x, int y) {
+        String name = fileName(depth, x, y);
+        FutureTask<BufferedImage> task = new FutureTask<>(() -> {
+            try {
+                return load(depth, x, y);
+            } finally {
+                pending.remove(name);
+            }
+        });
+        Future<BufferedImage> existing = pending.putIfAbsent(name, task);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            pending.remove(name);
+            return null;
+        }
+        return task;
+    }
+
+    /** Returns the folder the tiles are saved in. */
+    public File root() {
+        return root;
+    }
+
+    /** Stops taking tiles. Tiles already asked for are still finished. */
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private BufferedImage load(int depth, int x, int y) throws IOException {
+        File file = new File(root, fileName(depth, x, y));
+        if (file.isFile()) {
+            BufferedImage img = ImageIO.read(file);
+            if (img != null) {
+                return img;
+            }
+        }
+        BufferedImage img = draw(depth, x, y);
+        /* Write to a temporary file first, so no other reader sees half a tile. */
+        File partial = new File(root, file.getName() + ".part");
+        try {
+            if (ImageIO.write(img, "png", partial) && !partial.renameTo(file)) {
+                partial.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return img;
+    }
+
+    /** Draws tile X, Y at DEPTH, counting Y down from the top of the root bounding box. */
+    public BufferedImage draw(int depth, int x, int y) {
+        long start = System.nanoTime();
+        double tileLon = (ROOT_LRLON - ROOT_ULLON) / (1 << depth);
+        double tileLat = (ROOT_ULLAT - ROOT_LRLAT) / (1 << depth);
+        double ulLon = ROOT_ULLON + x * tileLon;
+        double ulLat = ROOT_ULLAT - y * tileLat;
+        double pxPerLon = TILE_SIZE / tileLon;
+        double pxPerLat = TILE_SIZE / tileLat;
+        double pxPerMeter = pxPerLat / METERS_PER_DEGREE;
+
+        float roadPx = (float) Math.max(MIN_WIDTH_PX, ROAD_METERS * pxPerMeter);
+        float casingPx = roadPx + (float) Math.max(1, 2 * CASING_METERS * pxPerMeter);
+        float cyclewayPx = (float) Math.max(MIN_WIDTH_PX, CYCLEWAY_METERS * pxPerMeter);
+        float footwayPx = (float) Math.max(MIN_WIDTH_PX, FOOTWAY_METERS * pxPerMeter);
+
+        /* Roads just outside the tile are found too, since their edges reach into it. */
+        double minLon = ulLon - casingPx / 2 / pxPerLon;
+        double maxLon = ulLon + tileLon + casingPx / 2 / pxPerLon;
+        double minLat = ulLat - tileLat - casingPx / 2 / pxPerLat;
+        double maxLat = ulLat + casingPx / 2 / pxPerLat;
+
+        /* Each edge is drawn in the style of the fastest profile that may use it, so it is
+           taken from that profile's index only. */
+        Path2D.Double roads = new Path2D.Double();
+        Path2D.Double cycleways = new Path2D.Double();
+        Path2D.Double footways = new Path2D.Double();
+        for (RoutingProfile profile : RoutingProfile.values()) {
+            List<WeightedEdge<Long>> edges = graph.edgeIndex(profile).edgesIn(minLon, minLat,
+                    maxLon, maxLat);
+            for (WeightedEdge<Long> e : edges) {
+                Path2D.Double path;
+                if (graph.allows(e, RoutingProfile.CAR)) {
+                    if (profile != RoutingProfile.CAR) {
+                        continue;
+                    }
+                    path = roads;
+                } else if (graph.allows(e, RoutingProfile.BIKE)) {
+                    if (profile != RoutingProfile.BIKE) {
+                        continue;
+                    }
+                    path = cycleways;
+                } else {
+                    path = footways;
+                }
+                path.moveTo((graph.lon(e.from()) - ulLon) * pxPerLon,
+                        (ulLat - graph.lat(e.from())) * pxPerLat);
+                path.lineTo((graph.lon(e.to()) - ulLon) * pxPerLon,
+                        (ulLat - graph.lat(e.to())) * pxPerLat);
+            }
+        }
+
+        BufferedImage img = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = img.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.setColor(BACKGROUND);
+        g2d.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+        stroke(g2d, footways, FOOTWAY, footwayPx);
+        stroke(g2d, cycleways, CYCLEWAY, cyclewayPx);
+        stroke(g2d, roads, ROAD_CASING, casingPx);
+        stroke(g2d, roads, ROAD, roadPx);
+        g2d.dispose();
+
+        Metrics.counter(Metrics.TILES_RENDERED).increment();
+        Metrics.histogram(Metrics.TILE_RENDER_SECONDS).record(System.nanoTime() - start);
+        return img;
+    }
+
+    private static void stroke(Graphics2D g2d, Path2D path, Color color, float width) {
+        g2d.setColor(color);
+        g2d.setStroke(new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g2d.draw(path);
+    }
+}
@@ -0,0 +1,862 @@
+package bearmaps.proj2c;
+
+import bearmaps.hw4.WeightedEdge;
+import bearmaps.hw4.streetmap.Node;
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.hw4.streetmap.StreetMapGraph;
+import bearmaps.proj2c.metrics.Metrics;
+import bearmaps.proj2c.utils.Config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The street graph cut into vector tiles, for clients that draw the map themselves instead of
+ * downloading rastered images on every pan. Tiles follow the z/x/y Web Mercator tile scheme and
+ * are encoded as Mapbox Vector Tiles (version 2), so any MVT renderer can draw them.
+ *
+ * Each tile has a "roads" layer of lines, with the properties name, access (the mask of the
+ * RoutingProfiles that may travel the road) and oneway (the mask of those that may travel it
+ * only in the direction it is drawn), and from PLACES_MIN_ZOOM a "places" layer of the named
+ * nodes, with the property name. The roads are the graph's edges joined into one line wherever
+ * consecutive edges share their properties.
+ *
+ * Lines are clipped to their tile, simplified to within SIMPLIFY_TOLERANCE of the tile's own
+ * coordinates and then rounded to them, so lower zooms carry proportionally less detail; lines
+ * smaller than that tolerance are left out. Tiles are generated on first request and the most
+ * recently used are cached.
+ */
+public class VectorTiles {
+    /** Width and height of every tile in its own integer coordinates. */
+    public static final int EXTENT = 4096;
+    /** Deepest zoom served, where a tile is about 40 m across. */
+    public static final int MAX_ZOOM = 20;
+    /** Shallowest zoom whose tiles include the named places; below it they are too dense. */
+    public static final int PLACES_MIN_ZOOM = 15;
+    /** Number of encoded tiles kept in memory. Key vector.tiles.cache.size, see Config. */
+    public static final int CACHE_SIZE = Config.getInt("vector.tiles.cache.size", 4096);
+
+    /* How far past the edges of its tile geometry is kept, so lines do not visibly end there. */
+    private static final int BUFFER = 64;
+    /* Half a pixel of a tile drawn 256 pixels wide. */
+    private static final double SIMPLIFY_TOLERANCE = EXTENT / 512.0;
+
+    /* MVT geometry commands and types. */
+    private static final int MOVE_TO = 1;
+    private static final int LINE_TO = 2;
+    private static final int POINT = 1;
+    private static final int LINESTRING = 2;
+
+    /* The points of line i, in world coordinates, are lineStarts[i] to lineStarts[i + 1] - 1. */
+    private final int[] lineStarts;
+    private final double[] lineXs;
+    private final double[] lineYs;
+    private final String[] lineNames;
+    private final int[] lineAccess;
+    private final int[] lineOneway;
+    /* The width or height of each line's bounding box, whichever is larger, in world units. */
+    private final double[] lineSizes;
+    private final BoxGrid lineGrid;
+
+    private final long[] placeIds;
+    private final double[] placeXs;
+    private final double[] placeYs;
+    private final String[] placeNames;
+    private final BoxGrid placeGrid;
+
+    private final Map<Long, byte[]> cache = Collections.synchronizedMap(
+            new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    /** Cuts G, whose vertices are NODES, into tiles. */
+    public VectorTiles(StreetMapGraph g, List<Node> nodes) {
+        RoadBuilder roads = new RoadBuilder(g, nodes);
+        lineStarts = Arrays.copyOf(roads.lineStarts, roads.numLines + 1);
+        lineXs = Arrays.copyOf(roads.xs, roads.numPoints);
+        lineYs = Arrays.copyOf(roads.ys, roads.numPoints);
+        lineNames = roads.names.toArray(new String[0]);
+        lineAccess = Arrays.copyOf(roads.access, roads.numLines);
+        lineOneway = Arrays.copyOf(roads.oneway, roads.numLines);
+
+        int numLines = lineNames.length;
+        double[] minXs = new double[numLines];
+        double[] minYs = new double[numLines];
+        double[] maxXs = new double[numLines];
+        double[] maxYs = new double[numLines];
+        lineSizes = new double[numLines];
+        for (int i = 0; i < numLines; i += 1) {
+            minXs[i] = minYs[i] = Double.POSITIVE_INFINITY;
+            maxXs[i] = maxYs[i] = Double.NEGATIVE_INFINITY;
+            for (int p = lineStarts[i]; p < lineStarts[i + 1]; p += 1) {
+                minXs[i] = Math.min(minXs[i], lineXs[p]);
+                maxXs[i] = Math.max(maxXs[i], lineXs[p]);
+                minYs[i] = Math.min(minYs[i], lineYs[p]);
+                maxYs[i] = Math.max(maxYs[i], lineYs[p]);
+            }
+            lineSizes[i] = Math.max(maxXs[i] - minXs[i], maxYs[i] - minYs[i]);
+        }
+        lineGrid = new BoxGrid(numLines, minXs, minYs, maxXs, maxYs);
+
+        List<Node> places = new ArrayList<>();
+        for (Node n : nodes) {
+            if (g.name(n.id()) != null) {
+                places.add(n);
+            }
+        }
+        placeIds = new long[places.size()];
+        placeXs = new double[places.size()];
+        placeYs = new double[places.size()];
+        placeNames = new String[places.size()];
+        for (int i = 0; i < placeIds.length; i += 1) {
+            Node n = places.get(i);
+            placeIds[i] = n.id();
+            placeXs[i] = worldX(n.lon());
+            placeYs[i] = worldY(n.lat());
+            placeNames[i] = g.name(n.id());
+        }
+        placeGrid = new BoxGrid(placeIds.length, placeXs, placeYs, placeXs, placeYs);
+    }
+
+    /** Returns whether there is a tile Z/X/Y. */
+    public static boolean isTile(int z, int x, int y) {
+        return z >= 0 && z <= MAX_ZOOM && x >= 0 && x < (1 << z) && y >= 0 && y < (1 << z);
+    }
+
+    /**
+     * Returns the encoded tile Z/X/Y, with y counted down from the north as in the XYZ scheme.
+     * A tile with nothing in it is empty.
+     * @throws IllegalArgumentException if there is no such tile.
+     */
+    public byte[] tile(int z, int x, int y) {
+        if (!isTile(z, x, y)) {
+            throw new IllegalArgumentException("No tile " + z + "/" + x + "/" + y);
+        }
+        long key = ((long) z << 40) | ((long) x << 20) | y;
+        byte[] tile = cache.get(key);
+        if (tile != null) {
+            Metrics.counter(Metrics.VECTOR_TILE_CACHE_HITS).increment();
+            return tile;
+        }
+        long start = System.nanoTime();
+        tile = encode(z, x, y);
+        Metrics.histogram(Metrics.VECTOR_TILE_SECONDS).record(System.nanoTime() - start);
+        cache.put(key, tile);
+        return tile;
+    }
+
+    private byte[] encode(int z, int x, int y) {
+        double scale = (double) (1 << z) * EXTENT;
+        /* World coordinates of the tile's origin, and of its buffered bounds. */
+        double originX = (double) x / (1 << z);
+        double originY = (double) y / (1 << z);
+        double margin = BUFFER / scale;
+        double size = 1.0 / (1 << z);
+
+        ProtoBuffer tile = new ProtoBuffer();
+        Layer roads = new Layer("roads");
+        Clipper clipper = new Clipper();
+        for (int line : lineGrid.query(originX - margin, originY - margin,
+                originX + size + margin, originY + size + margin)) {
+            /* Too small to see at this zoom. */
+            if (lineSizes[line] * scale < SIMPLIFY_TOLERANCE) {
+                continue;
+            }
+            clipper.clip(lineXs, lineYs, lineStarts[line], lineStarts[line + 1], originX, originY,
+                    scale);
+            if (clipper.numCommands == 0) {
+                continue;
+            }
+            roads.startFeature();
+            if (lineNames[line] != null && !lineNames[line].isEmpty()) {
+                roads.tag("name", lineNames[line]);
+            }
+            roads.tag("access", (long) lineAccess[line]);
+            if (lineOneway[line] != 0) {
+                roads.tag("oneway", (long) lineOneway[line]);
+            }
+            roads.endFeature(-1, LINESTRING, clipper.commands, clipper.numCommands);
+        }
+        roads.writeTo(tile);
+
+        if (z >= PLACES_MIN_ZOOM) {
+            Layer places = new Layer("places");
+            int[] point = new int[3];
+            for (int place : placeGrid.query(originX - margin, originY - margin,
+                    originX + size + margin, originY + size + margin)) {
+                /* The grid finds every place in the cells the tile covers, not just the tile. */
+                int px = (int) Math.round((placeXs[place] - originX) * scale);
+                int py = (int) Math.round((placeYs[place] - originY) * scale);
+                if (px < -BUFFER || px > EXTENT + BUFFER || py < -BUFFER || py > EXTENT + BUFFER) {
+                    continue;
+                }
+                point[0] = command(MOVE_TO, 1);
+                point[1] = zigZag(px);
+                point[2] = zigZag(py);
+                places.startFeature();
+                places.tag("name", placeNames[place]);
+                places.endFeature(placeIds[place], POINT, point, point.length);
+            }
+            places.writeTo(tile);
+        }
+        return tile.toByteArray();
+    }
+
+    /** Returns the Web Mercator x of LON, from 0 at the antimeridian to 1 going east. */
+    private static double worldX(double lon) {
+        return (lon + 180) / 360;
+    }
+
+    /** Returns the Web Mercator y of LAT, from 0 at the north edge of the map to 1. */
+    private static double worldY(double lat) {
+        double phi = Math.toRadians(lat);
+        return (1 - Math.log(Math.tan(phi) + 1 / Math.cos(phi)) / Math.PI) / 2;
+    }
+
+    private static int command(int id, int count) {
+        return (id & 0x7) | (count << 3);
+    }
+
+    private static int zigZag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    /**
+     * Joins the edges of a graph into lines. Each road segment is taken once, whichever
+     * directions it may be travelled in, and segments are chained through every vertex where
+     * exactly two meet and both have the same name and the same access in the same direction.
+     */
+    private static class RoadBuilder {
+        private final List<Long> vertexIds = new ArrayList<>();
+        /* Segments, between vertex indices, with the profiles that may go from a to b, and from
+           b to a. */
+        private int[] segA = new int[16];
+        private int[] segB = new int[16];
+        private int[] segAB = new int[16];
+        private int[] segBA = new int[16];
+        private final List<String> segNames = new ArrayList<>();
+        /* The segments at vertex v are adjacent[adjacentStarts[v]] onwards. */
+        private int[] adjacentStarts;
+        private int[] adjacent;
+
+        private int[] lineStarts = new int[16];
+        private double[] xs = new double[16];
+        private double[] ys = new double[16];
+        private int[] access = new int[16];
+        private int[] oneway = new int[16];
+        private final List<String> names = new ArrayList<>();
+        private int numLines = 0;
+        private int numPoints = 0;
+
+        private final StreetMapGraph g;
+
+        RoadBuilder(StreetMapGraph g, List<Node> nodes) {
+            this.g = g;
+            Map<Long, Integer> vertexIndex = new HashMap<>();
+            Map<Long, Integer> segmentIndex = new HashMap<>();
+            for (Node n : nodes) {
+                for (WeightedEdge<Long> e : g.neighbors(n.id())) {
+                    int mask = 0;
+                    for (RoutingProfile profile : RoutingProfile.values()) {
+                        if (g.allows(e, profile)) {
+                            mask |= profile.mask();
+                        }
+                    }
+                    if (mask == 0 || e.from().equals(e.to())) {
+                        continue;
+                    }
+                    int u = index(vertexIndex, e.from());
+                    int v = index(vertexIndex, e.to());
+                    long key = ((long) Math.min(u, v) << 32) | Math.max(u, v);
+                    Integer s = segmentIndex.get(key);
+                    if (s == null) {
+                        s = segNames.size();
+                        segmentIndex.put(key, s);
+                        addSegment(u, v, e.getName());
+                    } else if (segNames.get(s) == null) {
+                        segNames.set(s, e.getName());
+                    }
+                    if (segA[s] == u) {
+                        segAB[s] |= mask;
+                    } else {
+                        segBA[s] |= mask;
+                    }
+                }
+            }
+
+            int numSegments = segNames.size();
+            adjacentStarts = new int[vertexIds.size() + 1];
+            for (int s = 0; s < numSegments; s += 1) {
+                adjacentStarts[segA[s] + 1] += 1;
+                adjacentStarts[segB[s] + 1] += 1;
+            }
+            for (int v = 0; v < vertexIds.size(); v += 1) {
+                adjacentStarts[v + 1] += adjacentStarts[v];
+            }
+            adjacent = new int[2 * numSegments];
+            int[] next = new int[vertexIds.size()];
+            for (int s = 0; s < numSegments; s += 1) {
+                adjacent[adjacentStarts[segA[s]] + next[segA[s]]++] = s;
+                adjacent[adjacentStarts[segB[s]] + next[segB[s]]++] = s;
+            }
+
+            /* Lines start wherever a segment does not continue, and what is left are loops. */
+            boolean[] used = new boolean[numSegments];
+            for (int s = 0; s < numSegments; s += 1) {
+                if (!used[s] && continuation(segA[s], s) < 0) {
+                    chain(segA[s], s, used);
+                } else if (!used[s] && continuation(segB[s], s) < 0) {
+                    chain(segB[s], s, used);
+                }
+            }
+            for (int s = 0; s < numSegments; s += 1) {
+                if (!used[s]) {
+                    chain(segA[s], s, used);
+                }
+            }
+        }
+
+        private int index(Map<Long, Integer> vertexIndex, long id) {
+            Integer v = vertexIndex.get(id);
+            if (v == null) {
+                v = vertexIds.size();
+                vertexIndex.put(id, v);
+                vertexIds.add(id);
+            }
+            return v;
+        }
+
+        private void addSegment(int u, int v, String name) {
+            int s = segNames.size();
+            if (s == segA.length) {
+                segA = Arrays.copyOf(segA, 2 * s);
+                segB = Arrays.copyOf(segB, 2 * s);
+                segAB = Arrays.copyOf(segAB, 2 * s);
+                segBA = Arrays.copyOf(segBA, 2 * s);
+            }
+            segA[s] = u;
+            segB[s] = v;
+            segNames.add(name);
+        }
+
+        /** Returns the profiles that may travel S leaving vertex V. */
+        private int leaving(int s, int v) {
+            return segA[s] == v ? segAB[s] : segBA[s];
+        }
+
+        /** Returns the profiles that may travel S arriving at vertex V. */
+        private int arriving(int s, int v) {
+            return segB[s] == v ? segAB[s] : segBA[s];
+        }
+
+        /**
+         * Returns the segment that continues the line arriving at V over S, or -1 if the line
+         * ends at V.
+         */
+        private int continuation(int v, int s) {
+            if (adjacentStarts[v + 1] - adjacentStarts[v] != 2) {
+                return -1;
+            }
+            int t = adjacent[adjacentStarts[v]] == s
+                    ? adjacent[adjacentStarts[v] + 1] : adjacent[adjacentStarts[v]];
+            if (t == s || !Objects.equals(segNames.get(s), segNames.get(t))
+                    || arriving(s, v) != leaving(t, v) || leaving(s, v) != arriving(t, v)) {
+                return -1;
+            }
+            return t;
+        }
+
+        /** Adds the line that starts at vertex V along segment S. */
+        private void chain(int v, int s, boolean[] used) {
+            int along = leaving(s, v);
+            int against = arriving(s, v);
+            String name = segNames.get(s);
+            int start = numPoints;
+            addPoint(v);
+            while (true) {
+                used[s] = true;
+                v = segA[s] == v ? segB[s] : segA[s];
+                addPoint(v);
+                s = continuation(v, s);
+                if (s < 0 || used[s]) {
+                    break;
+                }
+            }
+
+            /* Draw a line in the direction its one-way profiles travel. */
+            if ((along & ~against) == 0 && (against & ~along) != 0) {
+                for (int i = start, j = numPoints - 1; i < j; i += 1, j -= 1) {
+                    double x = xs[i];
+                    xs[i] = xs[j];
+                    xs[j] = x;
+                    double y = ys[i];
+                    ys[i] = ys[j];
+                    ys[j] = y;
+                }
+                int swap = along;
+                along = against;
+                against = swap;
+            }
+
+            if (numLines + 1 == lineStarts.length) {
+                lineStarts = Arrays.copyOf(lineStarts, 2 * lineStarts.length);
+                access = Arrays.copyOf(access, 2 * access.length);
+                oneway = Arrays.copyOf(oneway, 2 * oneway.length);
+            }
+            access[numLines] = along | against;
+            oneway[numLines] = along & ~against;
+            names.add(name);
+            numLines += 1;
+            lineStarts[numLines] = numPoints;
+        }
+
+        private void addPoint(int v) {
+            if (numPoints == xs.length) {
+                xs = Arrays.copyOf(xs, 2 * numPoints);
+                ys = Arrays.copyOf(ys, 2 * numPoints);
+            }
+            long id = vertexIds.get(v);
+            xs[numPoints] = worldX(g.lon(id));
+            ys[numPoints] = worldY(g.lat(id));
+            numPoints += 1;
+        }
+    }
+
+    /**
+     * Clips lines to the buffered bounds of a tile and turns what is inside into MVT geometry
+     * commands: each run of the line inside the bounds is simplified, rounded to tile
+     * coordinates and kept if it is still longer than a point.
+     */
+    private static class Clipper {
+        private int[] commands = new int[64];
+        private int numCommands;
+        /* The run being clipped, in tile coordinates. */
+        private double[] runXs = new double[64];
+        private double[] runYs = new double[64];
+        private int runLength;
+        private boolean[] keep = new boolean[64];
+        /* Douglas-Peucker's pending ranges, as pairs of indices: at most one per point. */
+        private int[] stack = new int[128];
+        /* The cursor, which MVT geometry moves relative to, in tile coordinates. */
+        private int cursorX;
+        private int cursorY;
+
+        /**
+         * Clips the points FROM to TO - 1 of XS and YS, in world coordinates, to the tile whose
+         * origin is at ORIGINX and ORIGINY and whose coordinates are SCALE times finer.
+         */
+        void clip(double[] xs, double[] ys, int from, int to, double originX, double originY,
+                  double scale) {
+            numCommands = 0;
+            cursorX = 0;
+            cursorY = 0;
+            runLength = 0;
+            double lo = -BUFFER;
+            double hi = EXTENT + BUFFER;
+            for (int i = from; i + 1 < to; i += 1) {
+                double ax = (xs[i] - originX) * scale;
+                double ay = (ys[i] - originY) * scale;
+                double dx = (xs[i + 1] - originX) * scale - ax;
+                double dy = (ys[i + 1] - originY) * scale - ay;
+                /* Liang-Barsky: the part of the segment from t0 to t1 is inside. */
+                double t0 = 0;
+                double t1 = 1;
+                double[] p = {-dx, dx, -dy, dy};
+                double[] q = {ax - lo, hi - ax, ay - lo, hi - ay};
+                boolean inside = true;
+                for (int k = 0; k < 4 && inside; k += 1) {
+                    if (p[k] == 0) {
+                        inside = q[k] >= 0;
+                    } else {
+                        double t = q[k] / p[k];
+                        if (p[k] < 0) {
+                            inside = t <= t1;
+                            t0 = Math.max(t0, t);
+                        } else {
+                            inside = t >= t0;
+                            t1 = Math.min(t1, t);
+                        }
+                    }
+                }
+                if (!inside) {
+                    endRun();
+                    continue;
+                }
+                if (runLength == 0 || t0 > 0) {
+                    endRun();
+                    addToRun(ax + t0 * dx, ay + t0 * dy);
+                }
+                addToRun(ax + t1 * dx, ay + t1 * dy);
+                if (t1 < 1) {
+                    endRun();
+                }
+            }
+            endRun();
+        }
+
+        private void addToRun(double x, double y) {
+            if (runLength == runXs.length) {
+                runXs = Arrays.copyOf(runXs, 2 * runLength);
+                runYs = Arrays.copyOf(runYs, 2 * runLength);
+                keep = new boolean[2 * runLength];
+                stack = new int[4 * runLength];
+            }
+            runXs[runLength] = x;
+            runYs[runLength] = y;
+            runLength += 1;
+        }
+
+        /** Simplifies the run and adds it as a MoveTo and a LineTo, if it is not just a point. */
+        private void endRun() {
+            if (runLength < 2) {
+                runLength = 0;
+                return;
+            }
+            simplify();
+            /* MoveTo, its point, LineTo and at most two numbers per point after the first. */
+            if (numCommands + 2 * runLength + 2 > commands.length) {
+                commands = Arrays.copyOf(commands, 2 * (numCommands + 2 * runLength + 2));
+            }
+            int moveTo = numCommands;
+            int lineTo = moveTo + 3;
+            int lastX = (int) Math.round(runXs[0]);
+            int lastY = (int) Math.round(runYs[0]);
+            int count = 0;
+            int n = lineTo + 1;
+            for (int i = 1; i < runLength; i += 1) {
+                if (!keep[i]) {
+                    continue;
+                }
+                int x = (int) Math.round(runXs[i]);
+                int y = (int) Math.round(runYs[i]);
+                if (x == lastX && y == lastY) {
+                    continue;
+                }
+                commands[n++] = zigZag(x - lastX);
+                commands[n++] = zigZag(y - lastY);
+                lastX = x;
+                lastY = y;
+                count += 1;
+            }
+            runLength = 0;
+            if (count == 0) {
+                return;
+            }
+            int startX = (int) Math.round(runXs[0]);
+            int startY = (int) Math.round(runYs[0]);
+            commands[moveTo] = command(MOVE_TO, 1);
+            commands[moveTo + 1] = zigZag(startX - cursorX);
+            commands[moveTo + 2] = zigZag(startY - cursorY);
+            commands[lineTo] = command(LINE_TO, count);
+            cursorX = lastX;
+            cursorY = lastY;
+            numCommands = n;
+        }
+
+        /** Marks the points of the run that Douglas-Peucker simplification keeps. */
+        private void simplify() {
+            Arrays.fill(keep, 0, runLength, false);
+            keep[0] = true;
+            keep[runLength - 1] = true;
+            int top = 0;
+            stack[top++] = 0;
+            stack[top++] = runLength - 1;
+            while (top > 0) {
+                int last = stack[--top];
+                int first = stack[--top];
+                double dx = runXs[last] - runXs[first];
+                double dy = runYs[last] - runYs[first];
+                double length = Math.sqrt(dx * dx + dy * dy);
+                int farthest = -1;
+                double farthestDistance = SIMPLIFY_TOLERANCE;
+                for (int i = first + 1; i < last; i += 1) {
+                    double ex = runXs[i] - runXs[first];
+                    double ey = runYs[i] - runYs[first];
+                    double distance = length == 0 ? Math.sqrt(ex * ex + ey * ey)
+                            : Math.abs(ex * dy - ey * dx) / length;
+                    if (distance > farthestDistance) {
+                        farthest = i;
+                        farthestDistance = distance;
+                    }
+                }
+                if (farthest >= 0) {
+                    keep[farthest] = true;
+                    stack[top++] = first;
+                    stack[top++] = farthest;
+                    stack[top++] = farthest;
+                    stack[top++] = last;
+                }
+            }
+        }
+    }
+
+    /** An MVT layer being built, with its keys and values shared by its features. */
+    private static class Layer {
+        private final String name;
+        private final ProtoBuffer features = new ProtoBuffer();
+        private final List<String> keys = new ArrayList<>();
+        private final Map<String, Integer> keyIndex = new HashMap<>();
+        private final List<Object> values = new ArrayList<>();
+        private final Map<Object, Integer> valueIndex = new HashMap<>();
+        private int[] tags = new int[8];
+        private int numTags;
+        private int numFeatures;
+
+        Layer(String name) {
+            this.name = name;
+        }
+
+        void startFeature() {
+            numTags = 0;
+        }
+
+        /** Sets the property KEY of the feature being built to VALUE, a String or a Long. */
+        void tag(String key, Object value) {
+            if (numTags + 2 > tags.length) {
+                tags = Arrays.copyOf(tags, 2 * tags.length);
+            }
+            tags[numTags++] = keyIndex.computeIfAbsent(key, k -> {
+                keys.add(k);
+                return keys.size() - 1;
+            });
+            tags[numTags++] = valueIndex.computeIfAbsent(value, v -> {
+                values.add(v);
+                return values.size() - 1;
+            });
+        }
+
+        /** Adds the feature being built, with the given id if it is not negative. */
+        void endFeature(long id, int type, int[] geometry, int geometryLength) {
+            ProtoBuffer feature = new ProtoBuffer();
+            if (id >= 0) {
+                feature.uint64(1, id);
+            }
+            feature.packed(2, tags, numTags);
+            feature.uint64(3, type);
+            feature.packed(4, geometry, geometryLength);
+            features.message(2, feature);
+            numFeatures += 1;
+        }
+
+        /** Writes this layer into TILE, unless it has no features. */
+        void writeTo(ProtoBuffer tile) {
+            if (numFeatures == 0) {
+                return;
+            }
+            ProtoBuffer layer = new ProtoBuffer();
+            layer.uint64(15, 2);
+            layer.string(1, name);
+            layer.raw(features);
+            for (String key : keys) {
+                layer.string(3, key);
+            }
+            for (Object value : values) {
+                ProtoBuffer v = new ProtoBuffer();
+                if (value instanceof String) {
+                    v.string(1, (String) value);
+                } else {
+                    v.uint64(5, (Long) value);
+                }
+                layer.message(4, v);
+            }
+            layer.uint64(5, EXTENT);
+            tile.message(3, layer);
+        }
+    }
+
+    /** Just enough of the protocol buffers wire format to write vector tiles. */
+    private static class ProtoBuffer {
+        private static final int VARINT = 0;
+        private static final int LENGTH_DELIMITED = 2;
+
+        private byte[] bytes = new byte[64];
+        private int size;
+
+        void uint64(int field, long value) {
+            key(field, VARINT);
+            varint(value);
+        }
+
+        void string(int field, String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            key(field, LENGTH_DELIMITED);
+            varint(utf8.length);
+            write(utf8, utf8.length);
+        }
+
+        void message(int field, ProtoBuffer message) {
+            key(field, LENGTH_DELIMITED);
+            varint(message.size);
+            write(message.bytes, message.size);
+        }
+
+        void packed(int field, int[] values, int length) {
+            if (length == 0) {
+                return;
+            }
+            int numBytes = 0;
+            for (int i = 0; i < length; i += 1) {
+                numBytes += varintSize(values[i] & 0xFFFFFFFFL);
+            }
+            key(field, LENGTH_DELIMITED);
+            varint(numBytes);
+            for (int i = 0; i < length; i += 1) {
+                varint(values[i] & 0xFFFFFFFFL);
+            }
+        }
+
+        /** Appends the fields already written to MESSAGE. */
+        void raw(ProtoBuffer message) {
+            write(message.bytes, message.size);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void key(int field, int wireType) {
+            varint((field << 3) | wireType);
+        }
+
+        private void varint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        private static int varintSize(long value) {
+            int n = 1;
+            while ((value & ~0x7FL) != 0) {
+                value >>>= 7;
+                n += 1;
+            }
+            return n;
+        }
+
+        private void write(byte[] b, int length) {
+            ensureCapacity(length);
+            System.arraycopy(b, 0, bytes, size, length);
+            size += length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size + extra));
+            }
+        }
+    }
+
+    /**
+     * A uniform grid of cells over bounding boxes, for finding every box that may intersect a
+     * query rectangle. Each box is listed in every cell it covers.
+     */
+    private static class BoxGrid {
+        private final double minX;
+        private final double minY;
+        private final double cell;
+        private final int width;
+        private final int height;
+        /* The boxes in cell c are cellBoxes[cellStarts[c]] to cellBoxes[cellStarts[c + 1] - 1]. */
+        private final int[] cellStarts;
+        private final int[] cellBoxes;
+
+        BoxGrid(int n, double[] minXs, double[] minYs, double[] maxXs, double[] maxYs) {
+            double loX = Double.POSITIVE_INFINITY;
+            double loY = Double.POSITIVE_INFINITY;
+            double hiX = Double.NEGATIVE_INFINITY;
+            double hiY = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i += 1) {
+                loX = Math.min(loX, minXs[i]);
+                loY = Math.min(loY, minYs[i]);
+                hiX = Math.max(hiX, maxXs[i]);
+                hiY = Math.max(hiY, maxYs[i]);
+            }
+            if (n == 0) {
+                loX = loY = hiX = hiY = 0;
+            }
+            minX = loX;
+            minY = loY;
+            /* About one box per cell, if they were spread evenly, and at most 4096 cells a side. */
+            double side = Math.max(hiX - loX, hiY - loY);
+            cell = Math.max(Math.max(Math.sqrt((hiX - loX) * (hiY - loY) / Math.max(n, 1)),
+                    side / 4096), 1e-12);
+            width = (int) ((hiX - loX) / cell) + 1;
+            height = (int) ((hiY - loY) / cell) + 1;
+
+            cellStarts = new int[width * height + 1];
+            for (int i = 0; i < n; i += 1) {
+                for (int y = cellY(minYs[i]); y <= cellY(maxYs[i]); y += 1) {
+                    for (int x = cellX(minXs[i]); x <= cellX(maxXs[i]); x += 1) {
+                        cellStarts[y * width + x + 1] += 1;
+                    }
+                }
+            }
+            for (int c = 0; c < width * height; c += 1) {
+                cellStarts[c + 1] += cellStarts[c];
+            }
+            cellBoxes = new int[cellStarts[width * height]];
+            int[] next = new int[width * height];
+            for (int i = 0; i < n; i += 1) {
+                for (int y = cellY(minYs[i]); y <= cellY(maxYs[i]); y += 1) {
+                    for (int x = cellX(minXs[i]); x <= cellX(maxXs[i]); x += 1) {
+                        int c = y * width + x;
+                        cellBoxes[cellStarts[c] + next[c]++] = i;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the boxes listed in every cell the query rectangle covers, in increasing
+         * order, without repeats. This includes every box that intersects the rectangle.
+         */
+        int[] query(double x0, double y0, double x1, double y1) {
+            if (cellBoxes.length == 0 || x1 < minX || y1 < minY
+                    || x0 > minX + width * cell || y0 > minY + height * cell) {
+                return new int[0];
+            }
+            int n = 0;
+            int[] found = new int[16];
+            for (int y = cellY(y0); y <= cellY(y1); y += 1) {
+                for (int x = cellX(x0); x <= cellX(x1); x += 1) {
+                    int c = y * width + x;
+                    for (int i = cellStarts[c]; i < cellStarts[c + 1]; i += 1) {
+                        if (n == found.length) {
+                            found = Arrays.copyOf(found, 2 * n);
+                        }
+                        found[n++] = cellBoxes[i];
+                    }
+                }
+            }
+            Arrays.sort(found, 0, n);
+            int unique = 0;
+            for (int i = 0; i < n; i += 1) {
+                if (unique == 0 || found[i] != found[unique - 1]) {
+                    found[unique++] = found[i];
+                }
+            }
+            return Arrays.copyOf(found, unique);
+        }
+
+        private int cellX(double x) {
+            return Math.max(0, Math.min(width - 1, (int) Math.floor((x - minX) / cell)));
+        }
+
+        private int cellY(double y) {
+            return Math.max(0, Math.min(height - 1, (int) Math.floor((y - minY) / cell)));
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package bearmaps.proj2c.loadtest;
+
+import bearmaps.proj2c.MapServerInitializer;
+import bearmaps.proj2c.metrics.Histogram;
+import bearmaps.proj2c.server.handler.APIRouteHandlerFactory;
+import bearmaps.proj2c.utils.Constants;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import static spark.Spark.awaitInitialization;
+import static spark.Spark.stop;
+
+/**
+ * Measures how much load the map server takes, by having many users use the map at once, each
+ * one making the requests map.js makes, see MapSession. When they are done, it prints the
+ * requests per second each endpoint answered and percentiles of how long they took, from the
+ * request being sent to the whole response being read, as a browser would.
+ *
+ * Usage: java bearmaps.proj2c.loadtest.LoadTest [--option=value ...], with the options
+ * <ul>
+ * <li>url: the server to load, e.g. http://localhost:4567. If not given, a MapServer is started
+ * in this process with the settings in Constants, which then shares the machine with the
+ * users.</li>
+ * <li>users: how many users use the map at once, 16 by default.</li>
+ * <li>seconds: how long to measure for, 60 by default.</li>
+ * <li>warmup: how many seconds to use the map first without measuring, 10 by default, so that
+ * caches fill and the JIT compiles the server's hot code.</li>
+ * <li>think: how many milliseconds on average a user waits between actions, 0 by default to
+ * find the most the server can answer. Keystrokes come five times as fast.</li>
+ * <li>terms: a file of place names to search for, one per line, in place of a few Berkeley
+ * places.</li>
+ * <li>seed: the seed of the users' choices, so that runs can be compared, 0 by default.</li>
+ * </ul>
+ * Requests that fail, or are answered with an error, are counted but not timed.
+ */
+public class LoadTest {
+    /** Places searched for when no terms file is given. */
+    private static final List<String> DEFAULT_TERMS = Arrays.asList("Top Dog", "Berkeley Bowl",
+            "Peet's Coffee", "Cheese Board", "Safeway", "Starbucks", "Chipotle", "Jupiter",
+            "Sather Tower", "Trader Joe's", "Walgreens", "Cafe Strada");
+
+    /** The endpoints in the order they are reported; search_full is search for a place. */
+    private static final List<String> ENDPOINTS = Arrays.asList("raster", "search",
+            "search_full", "route", "clear_route");
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 60000;
+
+    private final String url;
+    private final List<String> terms;
+    private final double thinkMillis;
+    private final Gson gson = new Gson();
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    /* The measured window, in System.nanoTime, set before the users start. */
+    private volatile long measureStart;
+    private volatile long measureEnd;
+
+    /** Times and counts of the requests to one endpoint that finished while measuring. */
+    private static class Endpoint {
+        private final Histogram nanos = new Histogram();
+        private final AtomicLong errors = new AtomicLong();
+    }
+
+    LoadTest(String url, List<String> terms, double thinkMillis) {
+        this.url = url.endsWith("/") ? url : url + "/";
+        this.terms = terms;
+        this.thinkMillis = thinkMillis;
+    }
+
+    /**
+     * Has USERS users use the map for WARMUPSECONDS and then SECONDS more, measuring the second
+     * part, and prints what was measured. Users' choices come from SEED.
+     */
+    void run(int users, long warmupSeconds, long seconds, long seed)
+            throws InterruptedException {
+        long now = System.nanoTime();
+        measureStart = now + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        measureEnd = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < users; i += 1) {
+            Random random = new Random(seed * 31 + i);
+            Thread t = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < measureEnd) {
+                        new MapSession(this, random).run(measureEnd);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "user-" + i);
+            t.setDaemon(true);
+            threads.add(t);
+        }
+        System.out.printf("%d users, warming up for %d s, then measuring for %d s.%n", users,
+                warmupSeconds, seconds);
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        report(seconds);
+    }
+
+    /**
+     * Sends the request map.js sends to ENDPOINT with PARAMS, and returns its parsed response,
+     * or null if it failed.
+     */
+    Object get(String endpoint, Map<String, Object> params) {
+        return get(endpoint, endpoint, params);
+    }
+
+    /** As get(ENDPOINT, PARAMS), but reports the request under LABEL. */
+    Object get(String label, String endpoint, Map<String, Object> params) {
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, Object> param : params.entrySet()) {
+            query.append(query.length() == 0 ? "?" : "&").append(param.getKey()).append('=')
+                    .append(encode(String.valueOf(param.getValue())));
+        }
+        long start = System.nanoTime();
+        String body = null;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url + endpoint + query)
+                    .openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            /* The server tells clients apart by address and user agent. */
+            connection.setRequestProperty("User-Agent", "bearmaps-loadtest/"
+                    + Thread.currentThread().getName());
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                body = read(connection);
+            } else {
+                /* Read the error out, so the connection can be used again. */
+                read(connection);
+            }
+        } catch (IOException e) {
+            /* Counted as an error below. */
+            body = null;
+        }
+        long end = System.nanoTime();
+        if (end >= measureStart && end < measureEnd) {
+            Endpoint stats = endpoints.computeIfAbsent(label, l -> new Endpoint());
+            if (body == null) {
+                stats.errors.incrementAndGet();
+            } else {
+                stats.nanos.record(end - start);
+            }
+        }
+        if (body == null) {
+            return null;
+        }
+        try {
+            return gson.fromJson(body, Object.class);
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
+    /** Returns a place name to search for. */
+    String searchTerm(Random random) {
+        return terms.get(random.nextInt(terms.size()));
+    }
+
+    /**
+     * Waits as long as a user would before their next action, FRACTION of the think time on
+     * average.
+     */
+    void think(Random random, double fraction) throws InterruptedException {
+        if (thinkMillis > 0) {
+            /* Exponentially distributed, as the gaps between independent events are. */
+            double millis = -Math.log(1 - random.nextDouble()) * thinkMillis * fraction;
+            Thread.sleep((long) millis);
+        }
+    }
+
+    private void report(long seconds) {
+        System.out.printf("%-12s %9s %7s %9s %9s %9s %9s %9s %9s%n", "endpoint", "requests",
+                "errors", "req/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        long requests = 0;
+        long errors = 0;
+        List<String> names = new ArrayList<>(ENDPOINTS);
+        for (String name : endpoints.keySet()) {
+            if (!names.contains(name)) {
+                names.add(name);
+            }
+        }
+        for (String name : names) {
+            Endpoint stats = endpoints.get(name);
+            if (stats == null) {
+                continue;
+            }
+            Histogram h = stats.nanos;
+            long count = h.count();
+            System.out.printf("%-12s %9d %7d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n", name,
+                    count, stats.errors.get(), (double) count / seconds,
+                    count == 0 ? 0 : h.sum() / 1e6 / count, h.percentile(0.5) / 1e6,
+                    h.percentile(0.9) / 1e6, h.percentile(0.99) / 1e6, h.max() / 1e6);
+            requests += count;
+            errors += stats.errors.get();
+        }
+        System.out.printf("%-12s %9d %7d %9.1f%n", "total", requests, errors,
+                (double) requests / seconds);
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST
+                ? connection.getInputStream() : connection.getErrorStream();
+        if (in == null) {
+            return "";
+        }
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            in = new GZIPInputStream(in);
+        }
+        try (InputStream body = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n = body.read(buffer); n != -1; n = body.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String url = null;
+        int users = 16;
+        long seconds = 60;
+        long warmup = 10;
+        double think = 0;
+        long seed = 0;
+        List<String> terms = DEFAULT_TERMS;
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                System.out.println("Usage: java bearmaps.proj2c.loadtest.LoadTest [--url=...] "
+                        + "[--users=16] [--seconds=60] [--warmup=10] [--think=0] "
+                        + "[--terms=<file>] [--seed=0]");
+                return;
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            switch (name) {
+                case "url":
+                    url = value;
+                    break;
+                case "users":
+                    users = Integer.parseInt(value);
+                    break;
+                case "seconds":
+                    seconds = Long.parseLong(value);
+                    break;
+                case "warmup":
+                    warmup = Long.parseLong(value);
+                    break;
+                case "think":
+                    think = Double.parseDouble(value);
+                    break;
+                case "terms":
+                    terms = new ArrayList<>();
+                    for (String line : Files.readAllLines(Paths.get(value))) {
+                        if (line.trim().length() >= 2) {
+                            terms.add(line.trim());
+                        }
+                    }
+                    break;
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("No option " + name + ".");
+            }
+        }
+        if (users <= 0 || seconds <= 0 || warmup < 0 || terms.isEmpty()) {
+            throw new IllegalArgumentException("users and seconds should be positive, warmup "
+                    + "not negative, and there should be terms to search for.");
+        }
+
+        boolean local = url == null;
+        if (local) {
+            MapServerInitializer.initializeServer(APIRouteHandlerFactory.handlerMap);
+            awaitInitialization();
+            url = "http://localhost:" + Constants.SERVER_PORT;
+        }
+        new LoadTest(url, terms, think).run(users, warmup, seconds, seed);
+        if (local) {
+            stop();
+            Constants.STREET_GRAPH.shutdown();
+        }
+    }
+}
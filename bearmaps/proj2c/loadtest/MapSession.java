@@ -0,0 +1,209 @@
+package bearmaps.proj2c.loadtest;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static bearmaps.proj2c.utils.Constants.ROOT_LRLAT;
+import static bearmaps.proj2c.utils.Constants.ROOT_LRLON;
+import static bearmaps.proj2c.utils.Constants.ROOT_ULLAT;
+import static bearmaps.proj2c.utils.Constants.ROOT_ULLON;
+import static bearmaps.proj2c.utils.Constants.TILE_SIZE;
+
+/**
+ * One visit to the map by one user, making the requests that static/page/scripts/map.js makes
+ * for what the user does: a raster when the map opens, a raster whenever a pan shows ground
+ * outside the current one (only the new tiles, if the raster can be patched) or the map is
+ * zoomed, a search for every keystroke in the search bar and a full search for the place
+ * picked, a route and a raster with the route drawn on it for two double clicks, and a
+ * clear_route and a raster without the route.
+ */
+class MapSession {
+    /* As in map.js. */
+    private static final int MIN_LEVEL = 1;
+    private static final int MAX_LEVEL = 10;
+    private static final int START_DEPTH = 3;
+    private static final double START_LAT = 37.871826;
+    private static final double START_LON = -122.260086;
+    private static final int SEARCH_LIMIT = 10;
+    private static final int SEARCH_MIN_LENGTH = 2;
+
+    /** Window sizes the map is opened in, in pixels. */
+    private static final int[][] WINDOWS = {{1120, 800}, {1280, 720}, {1440, 900}, {800, 600}};
+
+    /** Most actions in one visit. */
+    private static final int MAX_ACTIONS = 40;
+
+    private final LoadTest test;
+    private final Random random;
+    private final int w;
+    private final int h;
+    private int depth = START_DEPTH;
+    private double lon = START_LON;
+    private double lat = START_LAT;
+
+    /* The raster on the map, and whether it can be patched rather than fetched whole. */
+    private double rasterUllon;
+    private double rasterUllat;
+    private double rasterLrlon;
+    private double rasterLrlat;
+    private int rasterDepth;
+    private boolean rasterFresh;
+
+    MapSession(LoadTest test, Random random) {
+        this.test = test;
+        this.random = random;
+        int[] window = WINDOWS[random.nextInt(WINDOWS.length)];
+        w = window[0];
+        h = window[1];
+    }
+
+    /** Opens the map and uses it until the visit is over or DEADLINE, in System.nanoTime. */
+    void run(long deadline) throws InterruptedException {
+        updateRaster();
+        int actions = 1 + random.nextInt(MAX_ACTIONS);
+        for (int i = 0; i < actions && System.nanoTime() < deadline; i += 1) {
+            test.think(random, 1);
+            double action = random.nextDouble();
+            if (action < 0.5) {
+                pan();
+            } else if (action < 0.7) {
+                zoom();
+            } else if (action < 0.85) {
+                search(deadline);
+            } else if (action < 0.95) {
+                route();
+            } else {
+                clearRoute();
+            }
+        }
+    }
+
+    /** Drags the map, then fetches the raster if ground outside it is in view. */
+    private void pan() {
+        lon -= (random.nextGaussian() * w / 4) * londpp();
+        lat -= (random.nextGaussian() * h / 4) * latdpp();
+        lon = Math.max(ROOT_ULLON, Math.min(ROOT_LRLON, lon));
+        lat = Math.max(ROOT_LRLAT, Math.min(ROOT_ULLAT, lat));
+        if (ullon() < rasterUllon || ullat() > rasterUllat || lrlon() > rasterLrlon
+                || lrlat() < rasterLrlat) {
+            updateRaster();
+        }
+    }
+
+    /** Zooms in or out a level, mostly in while the map is far out. */
+    private void zoom() {
+        boolean in = random.nextInt(MAX_LEVEL) >= depth;
+        int next = depth + (in ? 1 : -1);
+        if (next < MIN_LEVEL || next > MAX_LEVEL) {
+            return;
+        }
+        depth = next;
+        updateRaster();
+    }
+
+    /** Types a place name into the search bar and picks the first place suggested, if any. */
+    @SuppressWarnings("unchecked")
+    private void search(long deadline) throws InterruptedException {
+        String name = test.searchTerm(random);
+        List<Object> suggestions = null;
+        for (int length = SEARCH_MIN_LENGTH; length <= name.length()
+                && System.nanoTime() < deadline; length += 1) {
+            Map<String, Object> params = new LinkedHashMap<>();
+            params.put("term", name.substring(0, length));
+            params.put("limit", SEARCH_LIMIT);
+            params.put("fuzzy", true);
+            params.put("lon", lon);
+            params.put("lat", lat);
+            Object result = test.get("search", params);
+            if (result instanceof List) {
+                suggestions = (List<Object>) result;
+            }
+            test.think(random, 0.2);
+        }
+        if (suggestions == null || suggestions.isEmpty()) {
+            return;
+        }
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("term", suggestions.get(0));
+        params.put("full", true);
+        test.get("search_full", "search", params);
+    }
+
+    /** Double clicks two points in view, and fetches the raster with the route drawn on it. */
+    private void route() {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("start_lon", ullon() + random.nextDouble() * w * londpp());
+        params.put("start_lat", ullat() + random.nextDouble() * h * latdpp());
+        params.put("end_lon", ullon() + random.nextDouble() * w * londpp());
+        params.put("end_lat", ullat() + random.nextDouble() * h * latdpp());
+        test.get("route", params);
+        rasterFresh = false;
+        updateRaster();
+    }
+
+    /** Clears the route, and fetches the raster without it. */
+    private void clearRoute() {
+        test.get("clear_route", new LinkedHashMap<>());
+        rasterFresh = false;
+        updateRaster();
+    }
+
+    /** Fetches the raster of the view, asking only for the new tiles if it can. */
+    private void updateRaster() {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("ullon", ullon());
+        params.put("lrlon", lrlon());
+        params.put("ullat", ullat());
+        params.put("lrlat", lrlat());
+        params.put("w", w);
+        params.put("h", h);
+        params.put("max_depth", MAX_LEVEL);
+        if (rasterFresh && rasterDepth == depth) {
+            params.put("prev_ullon", rasterUllon);
+            params.put("prev_ullat", rasterUllat);
+            params.put("prev_lrlon", rasterLrlon);
+            params.put("prev_lrlat", rasterLrlat);
+            params.put("prev_depth", rasterDepth);
+        }
+        Object result = test.get("raster", params);
+        if (!(result instanceof Map) || !Boolean.TRUE.equals(((Map<?, ?>) result)
+                .get("query_success"))) {
+            rasterFresh = false;
+            return;
+        }
+        Map<?, ?> raster = (Map<?, ?>) result;
+        rasterUllon = ((Number) raster.get("raster_ul_lon")).doubleValue();
+        rasterUllat = ((Number) raster.get("raster_ul_lat")).doubleValue();
+        rasterLrlon = ((Number) raster.get("raster_lr_lon")).doubleValue();
+        rasterLrlat = ((Number) raster.get("raster_lr_lat")).doubleValue();
+        rasterDepth = ((Number) raster.get("depth")).intValue();
+        rasterFresh = true;
+    }
+
+    private double londpp() {
+        return (ROOT_LRLON - ROOT_ULLON) / TILE_SIZE / Math.pow(2, depth);
+    }
+
+    /** Negative, as latitude falls down the screen. */
+    private double latdpp() {
+        return (ROOT_LRLAT - ROOT_ULLAT) / TILE_SIZE / Math.pow(2, depth);
+    }
+
+    private double ullon() {
+        return lon - 0.5 * w * londpp();
+    }
+
+    private double lrlon() {
+        return lon + 0.5 * w * londpp();
+    }
+
+    private double ullat() {
+        return lat - 0.5 * h * latdpp();
+    }
+
+    private double lrlat() {
+        return lat + 0.5 * h * latdpp();
+    }
+}
@@ -0,0 +1,111 @@
+package bearmaps.proj2c.loadtest;
+
+import bearmaps.hw4.streetmap.Node;
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.proj2ab.GridPointSet;
+import bearmaps.proj2ab.KDTree;
+import bearmaps.proj2ab.Point;
+import bearmaps.proj2ab.PointSet;
+import bearmaps.proj2ab.WeirdPointSet;
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.utils.Constants;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times the nearest lookups of KDTree, WeirdPointSet and GridPointSet on the nodes of a map,
+ * for clicks near its streets, and prints how long each took to build and per lookup.
+ *
+ * Usage: java bearmaps.proj2c.loadtest.PointSetBenchmark [osm file] [lookups], by default the
+ * map in Constants and 10000 lookups.
+ */
+public class PointSetBenchmark {
+    /** Lookups checked against a brute force search before timing. */
+    private static final int NUM_CHECKED = 200;
+
+    /** Exposes the points AugmentedStreetMapGraph builds its spatial indexes from. */
+    private static class NodePoints extends AugmentedStreetMapGraph {
+        NodePoints(String dbPath) {
+            super(dbPath);
+        }
+
+        /* The location of every node a car can leave, like the index behind closest. */
+        List<Point> points() {
+            List<Point> points = new ArrayList<>();
+            for (Node n : getNodes()) {
+                if (isReachable(n.id(), RoutingProfile.CAR)) {
+                    points.add(new Point(n.lon(), n.lat()));
+                }
+            }
+            return points;
+        }
+    }
+
+    private static Point naiveNearest(List<Point> points, Point goal) {
+        Point best = null;
+        for (Point p : points) {
+            if (best == null || Point.distance(goal, p) < Point.distance(goal, best)) {
+                best = p;
+            }
+        }
+        return best;
+    }
+
+    /** Returns the average microseconds SET takes to find the nearest point to each goal. */
+    private static double time(PointSet set, double[] xs, double[] ys) {
+        long start = System.nanoTime();
+        for (int i = 0; i < xs.length; i += 1) {
+            set.nearest(xs[i], ys[i]);
+        }
+        return (System.nanoTime() - start) / 1e3 / xs.length;
+    }
+
+    public static void main(String[] args) {
+        String dbPath = args.length > 0 ? args[0] : Constants.OSM_DB_PATH;
+        int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        List<Point> points = new NodePoints(dbPath).points();
+        Random r = new Random(64);
+        double[] xs = new double[numQueries];
+        double[] ys = new double[numQueries];
+        for (int i = 0; i < numQueries; i += 1) {
+            Point p = points.get(r.nextInt(points.size()));
+            /* Clicks near the streets, within a few blocks. */
+            xs[i] = p.getX() + r.nextGaussian() * 0.002;
+            ys[i] = p.getY() + r.nextGaussian() * 0.002;
+        }
+
+        long start = System.nanoTime();
+        KDTree kdTree = new KDTree(points);
+        long kdBuilt = System.nanoTime();
+        /* WeirdPointSet shuffles the list it is given. */
+        WeirdPointSet weird = new WeirdPointSet(new ArrayList<>(points));
+        long weirdBuilt = System.nanoTime();
+        GridPointSet grid = new GridPointSet(points);
+        long gridBuilt = System.nanoTime();
+        System.out.println(String.format("%d points built in: KDTree %.1f ms, "
+                        + "WeirdPointSet %.1f ms, GridPointSet %.1f ms", points.size(),
+                (kdBuilt - start) / 1e6, (weirdBuilt - kdBuilt) / 1e6,
+                (gridBuilt - weirdBuilt) / 1e6));
+
+        for (int i = 0; i < Math.min(NUM_CHECKED, numQueries); i += 1) {
+            Point goal = new Point(xs[i], ys[i]);
+            double closest = Point.distance(goal, naiveNearest(points, goal));
+            if (Point.distance(goal, grid.nearest(xs[i], ys[i])) != closest
+                    || Point.distance(goal, kdTree.nearest(xs[i], ys[i])) != closest) {
+                throw new IllegalStateException("Wrong nearest point to " + goal);
+            }
+        }
+
+        /* KDTree is not a PointSet, so it is timed on its own. */
+        start = System.nanoTime();
+        for (int i = 0; i < numQueries; i += 1) {
+            kdTree.nearest(xs[i], ys[i]);
+        }
+        double kdMicros = (System.nanoTime() - start) / 1e3 / numQueries;
+        System.out.println(String.format("%d nearest lookups per point set: KDTree %.2f us, "
+                        + "WeirdPointSet %.2f us, GridPointSet %.2f us", numQueries, kdMicros,
+                time(weird, xs, ys), time(grid, xs, ys)));
+    }
+}
@@ -0,0 +1,92 @@
+package bearmaps.proj2c.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative long values, laid out like an HDR histogram: values
+ * below 16 get a bucket each, and every power of two above that is split into 16 equal
+ * sub-buckets. Any recorded value is therefore known to within 1/16 (about 6%) whatever its
+ * magnitude, and recording is a couple of bit operations and one atomic increment.
+ */
+public class Histogram {
+    /** Number of bits of precision below the leading one bit of a value. */
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Records VALUE; negative values are recorded as 0. */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax = max.get();
+        while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    /** Returns the number of values recorded. */
+    public long count() {
+        return count.get();
+    }
+
+    /** Returns the sum of the values recorded. */
+    public long sum() {
+        return sum.get();
+    }
+
+    /** Returns the largest value recorded, or 0 if there is none. */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * Returns an estimate of the value below which a fraction Q of the recorded values fall,
+     * accurate to the width of its bucket. Returns 0 if nothing was recorded.
+     * @param q A fraction in [0, 1], e.g. 0.99 for the 99th percentile.
+     */
+    public long percentile(double q) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i += 1) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + subBucket) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,194 @@
+package bearmaps.proj2c.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The process-wide registry of server metrics. Metrics are looked up by name and label pairs,
+ * created on first use, and exported all at once in the Prometheus text format by
+ * writePrometheus. Every metric name used by the server is declared and described here.
+ */
+public class Metrics {
+
+    /* Requests. */
+    public static final String REQUEST_SECONDS = "bearmaps_request_phase_seconds";
+    public static final String REQUEST_ERRORS = "bearmaps_request_errors_total";
+    public static final String REQUEST_HALTS = "bearmaps_request_halts_total";
+
+    /* Routing. */
+    public static final String SNAP_SECONDS = "bearmaps_route_snap_seconds";
+    public static final String SOLVER_SECONDS = "bearmaps_solver_seconds";
+    public static final String SOLVER_STATES_EXPLORED = "bearmaps_solver_states_explored";
+    public static final String SOLVER_PQ_PEAK_SIZE = "bearmaps_solver_pq_peak_size";
+    public static final String SOLVER_OUTCOMES = "bearmaps_solver_outcomes_total";
+    public static final String ALTERNATIVES_SECONDS = "bearmaps_route_alternatives_seconds";
+    public static final String ISOCHRONE_SECONDS = "bearmaps_isochrone_seconds";
+    public static final String MATCH_SECONDS = "bearmaps_match_seconds";
+
+    /* Rastering. */
+    public static final String TILES_LOADED = "bearmaps_raster_tiles_loaded_total";
+    public static final String TILE_CACHE_HITS = "bearmaps_raster_tile_cache_hits_total";
+    public static final String RASTER_DRAW_SECONDS = "bearmaps_raster_draw_seconds";
+    public static final String RASTER_ENCODE_SECONDS = "bearmaps_raster_encode_seconds";
+    public static final String TILES_RENDERED = "bearmaps_raster_tiles_rendered_total";
+    public static final String TILE_RENDER_SECONDS = "bearmaps_raster_tile_render_seconds";
+    public static final String TILE_RENDER_FALLBACKS =
+            "bearmaps_raster_tile_render_fallbacks_total";
+    public static final String TILES_PREFETCHED = "bearmaps_raster_tiles_prefetched_total";
+    public static final String TILE_PREFETCHES_SKIPPED =
+            "bearmaps_raster_tile_prefetches_skipped_total";
+
+    /* Street graph. */
+    public static final String GRAPH_LOAD_SECONDS = "bearmaps_graph_load_seconds";
+    public static final String GRAPH_RELOADS = "bearmaps_graph_reloads_total";
+    public static final String GRAPH_RELOAD_FAILURES = "bearmaps_graph_reload_failures_total";
+
+    /* Vector tiles. */
+    public static final String VECTOR_TILE_SECONDS = "bearmaps_vector_tile_seconds";
+    public static final String VECTOR_TILE_CACHE_HITS = "bearmaps_vector_tile_cache_hits_total";
+
+    /** Quantiles exported for every histogram. */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    /** Histograms of nanosecond durations are exported in seconds, as Prometheus expects. */
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private static final Map<String, String> HELP = new ConcurrentHashMap<>();
+    private static final Map<String, Boolean> IN_SECONDS = new ConcurrentHashMap<>();
+
+    /* Metric name -> label string -> metric. Both levels are sorted when exported. */
+    private static final Map<String, Map<String, Histogram>> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final Map<String, Map<String, LongAdder>> COUNTERS = new ConcurrentHashMap<>();
+
+    static {
+        describe(REQUEST_SECONDS, true, "Time spent in each phase of an API request.");
+        describe(REQUEST_ERRORS, false, "API requests that failed with an exception.");
+        describe(REQUEST_HALTS, false, "API requests rejected with a halt, e.g. bad parameters.");
+        describe(SNAP_SECONDS, true, "Time spent snapping route endpoints to the graph.");
+        describe(SOLVER_SECONDS, true, "Time spent by the shortest paths solver.");
+        describe(SOLVER_STATES_EXPLORED, false, "Vertices dequeued by the solver per query.");
+        describe(SOLVER_PQ_PEAK_SIZE, false, "Largest solver priority queue size per query.");
+        describe(SOLVER_OUTCOMES, false, "Shortest path queries by solver outcome.");
+        describe(ALTERNATIVES_SECONDS, true, "Time spent finding alternatives to a route.");
+        describe(ISOCHRONE_SECONDS, true, "Time spent finding and outlining an isochrone.");
+        describe(MATCH_SECONDS, true, "Time spent matching a GPS trace to the graph.");
+        describe(TILES_LOADED, false, "Map tiles read and decoded from disk.");
+        describe(TILE_CACHE_HITS, false, "Map tiles served from the in-memory tile cache.");
+        describe(RASTER_DRAW_SECONDS, true, "Time spent compositing tiles and the route.");
+        describe(RASTER_ENCODE_SECONDS, true, "Time spent encoding rastered images as PNG.");
+        describe(TILES_RENDERED, false, "Map tiles drawn from the graph beyond the image depth.");
+        describe(TILE_RENDER_SECONDS, true, "Time spent drawing a map tile from the graph.");
+        describe(TILE_RENDER_FALLBACKS, false,
+                "Drawn tiles replaced by an upscaled shallower tile, being refused or too slow.");
+        describe(TILES_PREFETCHED, false, "Map tiles read ahead of a client asking for them.");
+        describe(TILE_PREFETCHES_SKIPPED, false,
+                "Map tiles not read ahead, the queue being full or the client having moved on.");
+        describe(GRAPH_LOAD_SECONDS, true,
+                "Time spent building the street graph from OSM data.");
+        describe(GRAPH_RELOADS, false, "Street graphs rebuilt from new OSM data and swapped in.");
+        describe(GRAPH_RELOAD_FAILURES, false,
+                "New OSM data that could not be read, the old street graph being kept.");
+        describe(VECTOR_TILE_SECONDS, true, "Time spent cutting and encoding a vector tile.");
+        describe(VECTOR_TILE_CACHE_HITS, false, "Vector tiles served from the tile cache.");
+    }
+
+    private static void describe(String name, boolean inSeconds, String help) {
+        HELP.put(name, help);
+        IN_SECONDS.put(name, inSeconds);
+    }
+
+    /**
+     * Returns the histogram NAME with the given labels, creating it if needed. Durations should
+     * be recorded in nanoseconds.
+     * @param labels Alternating label names and values, e.g. "endpoint", "/route".
+     */
+    public static Histogram histogram(String name, String... labels) {
+        return HISTOGRAMS.computeIfAbsent(name, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(labelString(labels), k -> new Histogram());
+    }
+
+    /**
+     * Returns the counter NAME with the given labels, creating it if needed.
+     * @param labels Alternating label names and values, e.g. "endpoint", "/route".
+     */
+    public static LongAdder counter(String name, String... labels) {
+        return COUNTERS.computeIfAbsent(name, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(labelString(labels), k -> new LongAdder());
+    }
+
+    private static String labelString(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be name/value pairs");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j = 0; j < value.length(); j += 1) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    sb.append('\\').append(c);
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format (version 0.0.4). Histograms
+     * are exported as summaries with a few quantiles.
+     */
+    public static void writePrometheus(Writer out) throws IOException {
+        for (Map.Entry<String, Map<String, Histogram>> family
+                : new TreeMap<>(HISTOGRAMS).entrySet()) {
+            String name = family.getKey();
+            double scale = IN_SECONDS.getOrDefault(name, false) ? 1 / NANOS_PER_SECOND : 1;
+            writeHeader(out, name, "summary");
+            for (Map.Entry<String, Histogram> series
+                    : new TreeMap<>(family.getValue()).entrySet()) {
+                String labels = series.getKey();
+                Histogram h = series.getValue();
+                for (double q : QUANTILES) {
+                    String quantileLabel = "quantile=\"" + q + "\"";
+                    out.write(name + "{" + (labels.isEmpty() ? "" : labels + ",") + quantileLabel
+                            + "} " + h.percentile(q) * scale + "\n");
+                }
+                String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+                out.write(name + "_sum" + braces + " " + h.sum() * scale + "\n");
+                out.write(name + "_count" + braces + " " + h.count() + "\n");
+            }
+        }
+
+        for (Map.Entry<String, Map<String, LongAdder>> family
+                : new TreeMap<>(COUNTERS).entrySet()) {
+            String name = family.getKey();
+            writeHeader(out, name, "counter");
+            for (Map.Entry<String, LongAdder> series
+                    : new TreeMap<>(family.getValue()).entrySet()) {
+                String labels = series.getKey();
+                String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+                out.write(name + braces + " " + series.getValue().sum() + "\n");
+            }
+        }
+    }
+
+    private static void writeHeader(Writer out, String name, String type) throws IOException {
+        String help = HELP.get(name);
+        if (help != null) {
+            out.write("# HELP " + name + " " + help + "\n");
+        }
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+}
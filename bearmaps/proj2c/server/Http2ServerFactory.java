@@ -0,0 +1,86 @@
+package bearmaps.proj2c.server;
+
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import spark.embeddedserver.jetty.JettyServerFactory;
+
+/**
+ * Creates the embedded Jetty server for Spark with a connector that speaks HTTP/2 as well as
+ * HTTP/1.1, so that a client can send all of its raster, search and route requests over one
+ * connection at once instead of queueing them behind each other on a few. It also closes
+ * connections left idle for longer than the given timeout.
+ *
+ * HTTP/2 is offered in the clear, as h2c, to clients that ask to upgrade to it or start with
+ * it, such as java.net.http.HttpClient or a proxy in front of the server. Browsers only speak
+ * HTTP/2 over TLS, and keep using HTTP/1.1 on this connector unless such a proxy is used.
+ * Spark uses the connector set up here in place of its own. HTTP/2 needs the http2-server jar
+ * of the Jetty that Spark uses, which is not among the project's libraries, so its connection
+ * factory is looked up when the server is created; without the jar the connector speaks only
+ * HTTP/1.1, see isAvailable.
+ */
+public class Http2ServerFactory implements JettyServerFactory {
+    /** Spark's defaults for the thread pool settings it was not given. */
+    private static final int MIN_THREADS = 8;
+    private static final int THREAD_TIMEOUT_MILLIS = 60000;
+    /** Jetty's connection factory for HTTP/2 in the clear, from the http2-server jar. */
+    private static final String H2C_FACTORY =
+            "org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory";
+
+    private final int port;
+    private final long idleTimeoutMillis;
+
+    /**
+     * Creates a factory for servers that listen on PORT, and close connections idle for
+     * IDLETIMEOUTMILLIS.
+     */
+    public Http2ServerFactory(int port, long idleTimeoutMillis) {
+        this.port = port;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /** Returns whether Jetty's HTTP/2 support is on the classpath. */
+    public static boolean isAvailable() {
+        return h2c(new HttpConfiguration()) != null;
+    }
+
+    /**
+     * Returns a connection factory for HTTP/2 in the clear with CONFIG, or null if Jetty's
+     * HTTP/2 support is not on the classpath.
+     */
+    private static ConnectionFactory h2c(HttpConfiguration config) {
+        try {
+            return (ConnectionFactory) Class.forName(H2C_FACTORY)
+                    .getConstructor(HttpConfiguration.class).newInstance(config);
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public Server create(int maxThreads, int minThreads, int threadTimeoutMillis) {
+        if (maxThreads <= 0) {
+            return create(null);
+        }
+        return create(new QueuedThreadPool(maxThreads, minThreads > 0 ? minThreads : MIN_THREADS,
+                threadTimeoutMillis > 0 ? threadTimeoutMillis : THREAD_TIMEOUT_MILLIS));
+    }
+
+    @Override
+    public Server create(ThreadPool threadPool) {
+        Server server = threadPool == null ? new Server() : new Server(threadPool);
+        HttpConfiguration config = new HttpConfiguration();
+        ConnectionFactory h2c = h2c(config);
+        ServerConnector connector = h2c != null
+                ? new ServerConnector(server, new HttpConnectionFactory(config), h2c)
+                : new ServerConnector(server, new HttpConnectionFactory(config));
+        connector.setPort(port);
+        connector.setIdleTimeout(idleTimeoutMillis);
+        server.addConnector(connector);
+        return server;
+    }
+}
@@ -1,12 +1,23 @@
 package bearmaps.proj2c.server.handler;
 
+import bearmaps.proj2c.metrics.Metrics;
 import com.google.gson.Gson;
+import spark.HaltException;
 import spark.Request;
 import spark.Response;
 import spark.Route;
 
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 import static spark.Spark.halt;
 
@@ -14,15 +25,25 @@ import static spark.Spark.halt;
  * This is the base class that defines the procedure for handling an API request
  * The process is defined as such that first the request parameters are read, then
  * request is process based on those parameters and finally the response is built.
+ * A handler whose responses can get large may instead stream its response straight to the
+ * client, see streamsJsonResponse. A streamed response that fails part way is aborted rather
+ * than ended, so that the client does not take what it got for the whole response.
+ * Responses are gzipped for clients that accept it, unless the handler opts out, see
+ * compressesJsonResponse.
+ * The time spent in each of the three phases is recorded per endpoint in Metrics, along with
+ * the number of requests that halted or failed.
  *
  * Created by rahul
  */
 public abstract class APIRouteHandler<Req, Res> implements Route {
 
     /** HTTP failed response. */
-    private static final int HALT_RESPONSE = 403;
+    protected static final int HALT_RESPONSE = 403;
+
+    /** Smallest built response worth compressing; a gzip header and trailer are 18 bytes. */
+    private static final int MIN_COMPRESSED_LENGTH = 512;
 
-    private Gson gson;
+    protected Gson gson;
 
     public APIRouteHandler() {
         gson = new Gson();
@@ -30,9 +51,83 @@ public abstract class APIRouteHandler<Req, Res> implements Route {
 
     @Override
     public Object handle(Request request, Response response) throws Exception {
-        Req requestParams = parseRequestParams(request);
-        Res result = processRequest(requestParams, response);
-        return buildJsonResponse(result);
+        String endpoint = request.pathInfo();
+        try {
+            long start = System.nanoTime();
+            Req requestParams = parseRequestParams(request);
+            long parsed = System.nanoTime();
+            Res result = processRequest(requestParams, response);
+            long processed = System.nanoTime();
+
+            boolean compress = compressesJsonResponse();
+            if (compress) {
+                response.header("Vary", "Accept-Encoding");
+            }
+            String encodings = request.headers("Accept-Encoding");
+            compress = compress && encodings != null && encodings.contains("gzip");
+
+            Object body;
+            if (streamsJsonResponse()) {
+                /* No content length is set, so the server sends the body in chunks as it is
+                 * written rather than waiting for the whole response. */
+                response.type("application/json");
+                try {
+                    OutputStream os = response.raw().getOutputStream();
+                    if (compress) {
+                        response.header("Content-Encoding", "gzip");
+                        os = new GZIPOutputStream(os, true);
+                    }
+                    writeJsonResponse(result, os);
+                    if (compress) {
+                        ((GZIPOutputStream) os).finish();
+                    }
+                    os.flush();
+                } catch (IOException | RuntimeException e) {
+                    throw streamFailure(response, e);
+                }
+                body = "";
+            } else {
+                body = buildJsonResponse(result);
+                /* Spark gzips a returned body itself once this header is set, but not one
+                 * written straight to the raw stream as above. */
+                if (compress && (body instanceof String
+                        && ((String) body).length() >= MIN_COMPRESSED_LENGTH
+                        || body instanceof byte[]
+                        && ((byte[]) body).length >= MIN_COMPRESSED_LENGTH)) {
+                    response.header("Content-Encoding", "gzip");
+                }
+            }
+            long serialized = System.nanoTime();
+
+            Metrics.histogram(Metrics.REQUEST_SECONDS, "endpoint", endpoint, "phase", "parse")
+                    .record(parsed - start);
+            Metrics.histogram(Metrics.REQUEST_SECONDS, "endpoint", endpoint, "phase", "process")
+                    .record(processed - parsed);
+            Metrics.histogram(Metrics.REQUEST_SECONDS, "endpoint", endpoint, "phase", "serialize")
+                    .record(serialized - processed);
+            return body;
+        } catch (HaltException e) {
+            Metrics.counter(Metrics.REQUEST_HALTS, "endpoint", endpoint).increment();
+            throw e;
+        } catch (Exception e) {
+            Metrics.counter(Metrics.REQUEST_ERRORS, "endpoint", endpoint).increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the exception to throw for FAILURE while streaming a response. While none of the
+     * response has been sent it is cleared, headers and partial body alike, so the failure is
+     * answered with an error status as usual. Once part of it has been sent with a success
+     * status, it must be aborted instead, see AbortedResponseException.
+     */
+    private static Exception streamFailure(Response response, Exception failure) {
+        HttpServletResponse raw = response.raw();
+        if (raw.isCommitted()) {
+            return new AbortedResponseException(failure);
+        }
+        raw.reset();
+        return failure;
     }
 
     /**
@@ -59,6 +154,39 @@ public abstract class APIRouteHandler<Req, Res> implements Route {
         return gson.toJson(result);
     }
 
+    /**
+     * Whether handle should write the response with writeJsonResponse directly to the client,
+     * instead of returning the whole response built by buildJsonResponse. Streaming avoids
+     * holding the full response in memory and lets the client start receiving it sooner.
+     * @return false by default
+     */
+    protected boolean streamsJsonResponse() {
+        return false;
+    }
+
+    /**
+     * Whether the response is gzipped for clients that accept it. Json shrinks to a fraction of
+     * its size, but a response that is mostly data compressed already, such as a PNG, hardly
+     * does, so its handler should return false rather than spend the time.
+     * @return true by default
+     */
+    protected boolean compressesJsonResponse() {
+        return true;
+    }
+
+    /**
+     * Writes the JSON response for the result object to the output stream incrementally.
+     * Only used when streamsJsonResponse returns true. The stream must be left open.
+     * @param result the result computed after processing request
+     * @param os the output stream of the response
+     * @throws IOException if writing to the client fails
+     */
+    protected void writeJsonResponse(Res result, OutputStream os) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+        gson.toJson(result, writer);
+        writer.flush();
+    }
+
     /**
      * Validate & return a parameter map of the required request parameters.
      * Requires that all input parameters are doubles.
@@ -84,4 +212,27 @@ public abstract class APIRouteHandler<Req, Res> implements Route {
         }
         return params;
     }
+
+    /**
+     * Returns the constant of VALUES named by the optional parameter PARAM, matched without
+     * regard to case, or DEFAULTVALUE if the parameter is absent. Halts if it names no constant.
+     * @param req HTTP Request.
+     * @param param The name of the parameter, e.g. "cost".
+     * @param values All constants of the enum, e.g. CostModel.values().
+     * @param defaultValue The constant to use when the parameter is not given.
+     */
+    protected <E extends Enum<E>> E getEnumParam(spark.Request req, String param, E[] values,
+                                                 E defaultValue) {
+        String value = req.queryParams(param);
+        if (value == null) {
+            return defaultValue;
+        }
+        for (E e : values) {
+            if (e.name().equalsIgnoreCase(value)) {
+                return e;
+            }
+        }
+        halt(HALT_RESPONSE, "Incorrect parameters - unknown " + param + ".");
+        return defaultValue;
+    }
 }
@@ -22,6 +22,10 @@ public class APIRouteHandlerFactory {
         handlerMap.put("route", new RoutingAPIHandler());
         handlerMap.put("clear_route", new ClearRouteAPIHandler());
         handlerMap.put("search", new SearchAPIHandler());
+        handlerMap.put("metrics", new MetricsAPIHandler());
+        handlerMap.put("isochrone", new IsochroneAPIHandler());
+        handlerMap.put("match", new MatchAPIHandler());
+        handlerMap.put("vector_tile", new VectorTileAPIHandler());
         handlerMap.put("", new RedirectAPIHandler());
     }
 
@@ -0,0 +1,13 @@
+package bearmaps.proj2c.server.handler;
+
+/**
+ * Thrown by APIRouteHandler when writing a streamed response fails after the server has
+ * already sent part of it with a success status. The response cannot be turned into an error
+ * any more, so the server must drop the connection rather than end the response normally,
+ * which would pass the truncated body off as a complete one.
+ */
+public class AbortedResponseException extends RuntimeException {
+    public AbortedResponseException(Throwable cause) {
+        super("Response aborted after it was partly sent", cause);
+    }
+}
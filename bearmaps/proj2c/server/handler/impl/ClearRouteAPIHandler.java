@@ -4,7 +4,7 @@ import bearmaps.proj2c.server.handler.APIRouteHandler;
 import spark.Request;
 import spark.Response;
 
-import static bearmaps.proj2c.utils.Constants.ROUTE_LIST;
+import static bearmaps.proj2c.utils.Constants.ROUTE;
 
 
 /**
@@ -21,7 +21,7 @@ public class ClearRouteAPIHandler extends APIRouteHandler {
 
     @Override
     protected Object processRequest(Object requestParams, Response response) {
-        ROUTE_LIST.clear();
+        ROUTE.set(null);
         return true;
     }
 }
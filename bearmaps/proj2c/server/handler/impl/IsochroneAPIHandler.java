@@ -0,0 +1,123 @@
+package bearmaps.proj2c.server.handler.impl;
+
+import bearmaps.hw4.streetmap.CompactGraph;
+import bearmaps.hw4.streetmap.CostModel;
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.Isochrone;
+import bearmaps.proj2c.metrics.Metrics;
+import bearmaps.proj2c.server.handler.APIRouteHandler;
+import spark.Request;
+import spark.Response;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static bearmaps.proj2c.utils.Constants.STREET_GRAPH;
+import static spark.Spark.halt;
+
+/**
+ * Handles requests for isochrones: the area reachable from a point within a cost limit, e.g.
+ * everything within 10 minutes' drive, for coverage planning. The area is returned as a GeoJSON
+ * Feature whose geometry is a MultiPolygon.
+ */
+public class IsochroneAPIHandler extends APIRouteHandler<Map<String, Object>, Map<String, Object>> {
+
+    /**
+     * Each isochrone request to the server will have the following parameters
+     * as keys in the params map.<br>
+     * lon : start point longitude,<br> lat : start point latitude,<br>
+     * limit : the cost limit, in miles for cost=distance or seconds for cost=travel_time.
+     **/
+    private static final String[] REQUIRED_ISOCHRONE_REQUEST_PARAMS = {"lon", "lat", "limit"};
+
+    @Override
+    protected Map<String, Object> parseRequestParams(Request request) {
+        Map<String, Object> params = new HashMap<>(getRequestParams(request,
+                REQUIRED_ISOCHRONE_REQUEST_PARAMS));
+        double limit = (Double) params.get("limit");
+        if (!(limit > 0) || Double.isInfinite(limit)) {
+            halt(HALT_RESPONSE, "Incorrect parameters - limit must be a positive number.");
+        }
+        /* Optional: cost, "distance" (the default) or "travel_time". */
+        params.put("cost", getEnumParam(request, "cost", CostModel.values(),
+                CostModel.DISTANCE));
+        /* Optional: profile, "car" (the default), "bike" or "walk". */
+        params.put("profile", getEnumParam(request, "profile", RoutingProfile.values(),
+                RoutingProfile.CAR));
+        /* Optional: cell, the size in degrees of the grid the polygons are drawn on. */
+        if (request.queryParams().contains("cell")) {
+            params.putAll(getRequestParams(request, new String[]{"cell"}));
+            double cell = (Double) params.get("cell");
+            if (!(cell > 0) || Double.isInfinite(cell)) {
+                halt(HALT_RESPONSE, "Incorrect parameters - cell must be a positive number.");
+            }
+        }
+        /* Optional: vertices, present to also return every reachable vertex and its cost. */
+        if (request.queryParams().contains("vertices")) {
+            params.put("vertices", true);
+        }
+        return params;
+    }
+
+    /**
+     * Finds the area reachable from the graph vertex closest to the given point.
+     * @param requestParams Map of the HTTP GET request's query parameters: the numbers as
+     *                      Doubles, and the parsed options.
+     * @param response : Not used by this function.
+     * @return A GeoJSON Feature: <br>
+     * "type" : "Feature",<br>
+     * "geometry" : A MultiPolygon outlining the reachable area, with no polygons if no vertex
+     * the profile can leave is in the graph,<br>
+     * "properties" : A map of "limit", "cost", "profile" and "reachable", the number of
+     * vertices reachable, and "vertices" if the vertices parameter was given: a list of
+     * [lon, lat, cost] of every reachable vertex, cheapest first.
+     */
+    @Override
+    protected Map<String, Object> processRequest(Map<String, Object> requestParams,
+                                                 Response response) {
+        CostModel cost = (CostModel) requestParams.get("cost");
+        RoutingProfile profile = (RoutingProfile) requestParams.get("profile");
+        double cell = (Double) requestParams.getOrDefault("cell",
+                Isochrone.DEFAULT_CELL_DEGREES);
+        if (!(cell > 0)) {
+            cell = Isochrone.DEFAULT_CELL_DEGREES;
+        }
+
+        AugmentedStreetMapGraph streets = STREET_GRAPH.graph();
+        long start = System.nanoTime();
+        CompactGraph graph = streets.compact(profile, cost);
+        long source = streets.closest((Double) requestParams.get("lon"),
+                (Double) requestParams.get("lat"), profile);
+        /* -1, and so an empty isochrone, if the profile can leave no vertex. */
+        Isochrone isochrone = new Isochrone(graph, graph.index(source),
+                (Double) requestParams.get("limit"), cell);
+        Metrics.histogram(Metrics.ISOCHRONE_SECONDS).record(System.nanoTime() - start);
+
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("limit", isochrone.limit());
+        properties.put("cost", cost.name().toLowerCase());
+        properties.put("profile", profile.name().toLowerCase());
+        properties.put("reachable", isochrone.size());
+        if (requestParams.containsKey("vertices")) {
+            List<double[]> vertices = new ArrayList<>();
+            for (int i = 0; i < isochrone.size(); i += 1) {
+                int v = isochrone.vertex(i);
+                vertices.add(new double[]{graph.lon(v), graph.lat(v), isochrone.cost(i)});
+            }
+            properties.put("vertices", vertices);
+        }
+
+        Map<String, Object> geometry = new HashMap<>();
+        geometry.put("type", "MultiPolygon");
+        geometry.put("coordinates", isochrone.polygons());
+
+        Map<String, Object> feature = new HashMap<>();
+        feature.put("type", "Feature");
+        feature.put("geometry", geometry);
+        feature.put("properties", properties);
+        return feature;
+    }
+}
@@ -0,0 +1,111 @@
+package bearmaps.proj2c.server.handler.impl;
+
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.MapMatcher;
+import bearmaps.proj2c.metrics.Metrics;
+import bearmaps.proj2c.server.handler.APIRouteHandler;
+import spark.Request;
+import spark.Response;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static bearmaps.proj2c.utils.Constants.STREET_GRAPH;
+import static spark.Spark.halt;
+
+/**
+ * Handles requests to match GPS traces to the street graph, i.e. to find the roads a vehicle
+ * drove along from the positions it reported. Each match request has the following parameters:
+ * <br>
+ * trace : the fixes of the trace in order, as "lon,lat" pairs separated by semicolons, <br>
+ * profile : (optional) "car" (the default), "bike" or "walk", the mode of travel of the trace.
+ */
+public class MatchAPIHandler extends APIRouteHandler<Map<String, Object>, Map<String, Object>> {
+
+    @Override
+    protected Map<String, Object> parseRequestParams(Request request) {
+        String trace = request.queryParams("trace");
+        if (trace == null) {
+            halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        }
+        List<double[]> fixes = new ArrayList<>();
+        for (String fix : trace.split(";")) {
+            String[] lonLat = fix.split(",");
+            try {
+                if (lonLat.length != 2) {
+                    throw new NumberFormatException(fix);
+                }
+                fixes.add(new double[]{Double.parseDouble(lonLat[0]),
+                        Double.parseDouble(lonLat[1])});
+            } catch (NumberFormatException e) {
+                halt(HALT_RESPONSE, "Incorrect parameters - provide lon,lat pairs.");
+            }
+        }
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("trace", fixes);
+        params.put("profile", getEnumParam(request, "profile", RoutingProfile.values(),
+                RoutingProfile.CAR));
+        return params;
+    }
+
+    /**
+     * Matches the trace, one fix at a time, the way a matcher fed by a live vehicle would.
+     * @param requestParams The parsed trace and profile.
+     * @param response : Not used by this function.
+     * @return A map of: <br>
+     * "matches" : a list with a map per fix matched, in order, of "index" : the index of the
+     *             fix in the trace, "id", "lon" and "lat" : its vertex, and "distance" : the
+     *             distance in miles from the fix to its vertex. Fixes with no road nearby are
+     *             left out. <br>
+     * "routes" : a list of the [lon, lat] points of the roads driven along. A new route starts
+     *            wherever no route could explain the move between two fixes.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    protected Map<String, Object> processRequest(Map<String, Object> requestParams,
+                                                 Response response) {
+        List<double[]> fixes = (List<double[]>) requestParams.get("trace");
+        RoutingProfile profile = (RoutingProfile) requestParams.get("profile");
+
+        AugmentedStreetMapGraph graph = STREET_GRAPH.graph();
+        long start = System.nanoTime();
+        MapMatcher matcher = new MapMatcher(graph, profile);
+        List<MapMatcher.Match> matches = new ArrayList<>();
+        for (double[] fix : fixes) {
+            matches.addAll(matcher.add(fix[0], fix[1]));
+        }
+        matches.addAll(matcher.finish());
+        Metrics.histogram(Metrics.MATCH_SECONDS).record(System.nanoTime() - start);
+
+        List<Map<String, Object>> matchParams = new ArrayList<>();
+        List<List<double[]>> routes = new ArrayList<>();
+        for (MapMatcher.Match match : matches) {
+            long v = match.vertex();
+            Map<String, Object> matchParam = new HashMap<>();
+            matchParam.put("index", match.index());
+            matchParam.put("id", v);
+            matchParam.put("lon", graph.lon(v));
+            matchParam.put("lat", graph.lat(v));
+            matchParam.put("distance", match.distance());
+            matchParams.add(matchParam);
+
+            if (!match.isConnected()) {
+                routes.add(new ArrayList<>());
+            }
+            List<double[]> route = routes.get(routes.size() - 1);
+            for (long w : match.path()) {
+                route.add(new double[]{graph.lon(w),
+                        graph.lat(w)});
+            }
+        }
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("matches", matchParams);
+        result.put("routes", routes);
+        return result;
+    }
+}
@@ -0,0 +1,39 @@
+package bearmaps.proj2c.server.handler.impl;
+
+import bearmaps.proj2c.metrics.Metrics;
+import bearmaps.proj2c.server.handler.APIRouteHandler;
+import spark.Request;
+import spark.Response;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Exposes the server metrics to a Prometheus scraper, in the Prometheus text format rather
+ * than Json.
+ */
+public class MetricsAPIHandler extends APIRouteHandler<Void, String> {
+
+    @Override
+    protected Void parseRequestParams(Request request) {
+        return null;
+    }
+
+    @Override
+    protected String processRequest(Void requestParams, Response response) {
+        response.type("text/plain; version=0.0.4");
+        StringWriter out = new StringWriter();
+        try {
+            Metrics.writePrometheus(out);
+        } catch (IOException e) {
+            /* A StringWriter never throws. */
+            throw new RuntimeException(e);
+        }
+        return out.toString();
+    }
+
+    @Override
+    protected Object buildJsonResponse(String result) {
+        return result;
+    }
+}
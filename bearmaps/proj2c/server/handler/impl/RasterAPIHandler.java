@@ -1,6 +1,11 @@
 package bearmaps.proj2c.server.handler.impl;
 
-import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.RouteState;
+import bearmaps.proj2c.StreetGraphHolder;
+import bearmaps.proj2c.TilePack;
+import bearmaps.proj2c.TilePrefetcher;
+import bearmaps.proj2c.TileRenderer;
+import bearmaps.proj2c.metrics.Metrics;
 import bearmaps.proj2c.server.handler.APIRouteHandler;
 import spark.Request;
 import spark.Response;
@@ -9,13 +14,29 @@ import bearmaps.proj2c.utils.Constants;
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static bearmaps.proj2c.utils.Constants.*;
 
@@ -24,7 +45,7 @@ import static bearmaps.proj2c.utils.Constants.*;
  * will be rastered into one large image to be displayed to the user.
  * @author rahul, Josh Hug, _________
  */
-public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<String, Object>> {
+public class RasterAPIHandler extends APIRouteHandler<Map<String, Object>, Map<String, Object>> {
 
     /**
      * Each raster request to the server will have the following parameters
@@ -44,10 +65,75 @@ public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<S
     private static final String[] REQUIRED_RASTER_RESULT_PARAMS = {"render_grid", "raster_ul_lon",
             "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
 
+    /**
+     * A raster request may also have all of the following parameters, the bounds and depth of
+     * the last raster the client got, to only be sent the tiles it does not have yet, see
+     * processRequest.<br>
+     * prev_ullat, prev_ullon, prev_lrlat, prev_lrlon : its raster_ul_lat and so on, <br>
+     * prev_depth : its depth.
+     */
+    private static final String[] PREVIOUS_RASTER_PARAMS = {"prev_ullat", "prev_ullon",
+            "prev_lrlat", "prev_lrlon", "prev_depth"};
+
+    /** Recently used tiles, decoded, most recently used last. Shared by all requests. */
+    private static final Map<String, BufferedImage> TILE_CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, BufferedImage>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, BufferedImage> eldest) {
+                    return size() > TILE_CACHE_SIZE;
+                }
+            });
+
+    /**
+     * Draws tiles deeper than MAX_IMG_DEPTH from the street graph of rendererVersion, set up on
+     * first use and again for each new graph.
+     */
+    private static TileRenderer renderer;
+    private static StreetGraphHolder.Version rendererVersion;
+
+    /** The tiles in IMG_ROOT mapped from IMG_PACK, or null if there is no pack. */
+    private static final TilePack PACK = openPack();
+
+    /** Reads the tiles around each client's viewport into TILE_CACHE, set up on first use. */
+    private static TilePrefetcher prefetcher;
+
+    /** Raster requests being handled right now; prefetching waits for there to be none. */
+    private static final AtomicInteger ACTIVE_RASTERS = new AtomicInteger();
+
+    static {
+        /* Encode PNGs in memory; by default ImageIO buffers every write to a temporary file. */
+        ImageIO.setUseCache(false);
+    }
+
+
+    /** Counts the request as active while it is handled, see ACTIVE_RASTERS. */
+    @Override
+    public Object handle(Request request, Response response) throws Exception {
+        ACTIVE_RASTERS.incrementAndGet();
+        try {
+            return super.handle(request, response);
+        } finally {
+            ACTIVE_RASTERS.decrementAndGet();
+        }
+    }
 
     @Override
-    protected Map<String, Double> parseRequestParams(Request request) {
-        return getRequestParams(request, REQUIRED_RASTER_REQUEST_PARAMS);
+    protected Map<String, Object> parseRequestParams(Request request) {
+        Map<String, Object> params = new HashMap<>(getRequestParams(request,
+                REQUIRED_RASTER_REQUEST_PARAMS));
+        /* Optional: max_depth, the deepest tiles to use, up to MAX_RENDERED_DEPTH. Tiles deeper
+         * than MAX_IMG_DEPTH, the default, are drawn from the graph. */
+        if (request.queryParams().contains("max_depth")) {
+            params.putAll(getRequestParams(request, new String[]{"max_depth"}));
+        }
+        if (request.queryParams().contains("prev_depth")) {
+            params.putAll(getRequestParams(request, PREVIOUS_RASTER_PARAMS));
+        }
+        /* Who is asking, a Long made from their address and browser, to prefetch the tiles
+         * around where they are looking. */
+        params.put("client", (long) Objects.hashCode(request.ip()) << 32
+                | Objects.hashCode(request.userAgent()) & 0xffffffffL);
+        return params;
     }
 
     /**
@@ -66,7 +152,9 @@ public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<S
      *     </ul>
      *
      * @param requestParams Map of the HTTP GET request's query parameters - the query box and
-     *               the user viewport width and height.
+     *               the user viewport width and height, and optionally max_depth, the deepest
+     *               tiles to use, and the bounds and depth of the client's last raster.
+     *               All are Doubles but client, the Long the prefetcher tells clients apart by.
      *
      * @param response : Not used by this function. You may ignore.
      * @return A map of results for the front end as specified: <br>
@@ -80,21 +168,33 @@ public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<S
      *                    string. <br>
      * "query_success" : Boolean, whether the query was able to successfully complete; don't
      *                    forget to set this to true on success! <br>
+     * "patches"       : Only if the client's last raster is at the same depth and overlaps this
+     *                    one. The parts of this raster the last one does not cover, each a map of
+     *                    "x" and "y", its pixel offset in this raster, and like a raster its own
+     *                    "render_grid", bounds and image. The image of the whole raster is then
+     *                    not sent; the client pieces it together from its last one and these.
+     *                    <br>
+     * "fallback_tiles" : Only if some tiles sent could not be drawn in time and were scaled up
+     *                    from their ancestors instead, see getImages: their file names. The
+     *                    client should not keep them, and so fetch its next raster whole rather
+     *                    than patch this one, by when they will likely have been drawn. <br>
      */
     @Override
-    public Map<String, Object> processRequest(Map<String, Double> requestParams, Response response) {
+    public Map<String, Object> processRequest(Map<String, Object> requestParams,
+                                              Response response) {
         //System.out.println("yo, wanna know the parameters given by the web browser? They are:");
         //System.out.println(requestParams);
         Map<String, Object> results = new HashMap<>();
 
-        double ullat = requestParams.get("ullat");
-        double ullon = requestParams.get("ullon");
-        double lrlat = requestParams.get("lrlat");
-        double lrlon = requestParams.get("lrlon");
-        double w = requestParams.get("w");
-        double h = requestParams.get("h");
+        double ullat = (Double) requestParams.get("ullat");
+        double ullon = (Double) requestParams.get("ullon");
+        double lrlat = (Double) requestParams.get("lrlat");
+        double lrlon = (Double) requestParams.get("lrlon");
+        double w = (Double) requestParams.get("w");
+        double h = (Double) requestParams.get("h");
 
-        /* If the entire query box is outside of the root longitudes/latitudes, there is nothing to raster */
+        /* If the entire query box is outside of the root longitudes/latitudes, there is nothing
+           to raster */
         if (lrlat > ROOT_ULLAT || ullat < ROOT_LRLAT || lrlon < ROOT_ULLON || ullon > ROOT_LRLON) {
             return queryFail();
         }
@@ -109,8 +209,10 @@ public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<S
         double raster_lonDPP = (ROOT_LRLON - ROOT_ULLON) / TILE_SIZE;
         int depth = 0;
         int num_tiles = 1;
+        double max_depth = Math.min(MAX_RENDERED_DEPTH,
+                (Double) requestParams.getOrDefault("max_depth", (double) MAX_IMG_DEPTH));
 
-        while (raster_lonDPP > query_lonDPP && depth < 7) {
+        while (raster_lonDPP > query_lonDPP && depth < max_depth) {
             raster_lonDPP /= 2;
             depth += 1;
             num_tiles *= 2;
@@ -119,8 +221,9 @@ public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<S
         double tile_lonD = (ROOT_LRLON - ROOT_ULLON) / num_tiles;
         double tile_latD = (ROOT_ULLAT - ROOT_LRLAT) / num_tiles;
 
-        /* If the query box is partially outside of the root longitudes/latitudes, set the boundaries
-           of the query box that extend past the root longitudes/latitudes to be equal to them */
+        /* If the query box is partially outside of the root longitudes/latitudes, set the
+           boundaries of the query box that extend past the root longitudes/latitudes to be equal
+           to them */
         if (ullat > ROOT_ULLAT) {
             ullat = ROOT_ULLAT;
         }
@@ -180,6 +283,32 @@ public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<S
         results.put("depth", depth);
         results.put("query_success", true);
 
+        if (requestParams.containsKey("prev_depth")
+                && (Double) requestParams.get("prev_depth") == depth) {
+            /* The tiles of the last raster, whose bounds are on tile edges. */
+            int prev_left_tile = (int) Math.round(
+                    ((Double) requestParams.get("prev_ullon") - ROOT_ULLON) / tile_lonD);
+            int prev_right_tile = (int) Math.round(
+                    ((Double) requestParams.get("prev_lrlon") - ROOT_ULLON) / tile_lonD) - 1;
+            int prev_upper_tile = (int) Math.round(
+                    (ROOT_ULLAT - (Double) requestParams.get("prev_ullat")) / tile_latD);
+            int prev_lower_tile = (int) Math.round(
+                    (ROOT_ULLAT - (Double) requestParams.get("prev_lrlat")) / tile_latD) - 1;
+            List<Map<String, Object>> patches = patches(render_grid, depth, raster_left_tile,
+                    raster_upper_tile, Math.max(raster_left_tile, prev_left_tile),
+                    Math.max(raster_upper_tile, prev_upper_tile),
+                    Math.min(raster_right_tile, prev_right_tile),
+                    Math.min(raster_lower_tile, prev_lower_tile));
+            if (patches != null) {
+                results.put("patches", patches);
+            }
+        }
+
+        if (requestParams.containsKey("client")) {
+            prefetcher().viewed((Long) requestParams.get("client"), depth,
+                    raster_left_tile, raster_upper_tile, raster_right_tile, raster_lower_tile,
+                    (int) max_depth);
+        }
         return results;
     }
 
@@ -187,7 +316,9 @@ public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<S
     protected Object buildJsonResponse(Map<String, Object> result) {
         boolean rasterSuccess = validateRasteredImgParams(result);
 
-        if (rasterSuccess) {
+        if (rasterSuccess && result.containsKey("patches")) {
+            rasterPatches(result);
+        } else if (rasterSuccess) {
             ByteArrayOutputStream os = new ByteArrayOutputStream();
             writeImagesToOutputStream(result, os);
             String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
@@ -196,6 +327,156 @@ public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<S
         return super.buildJsonResponse(result);
     }
 
+    @Override
+    protected boolean streamsJsonResponse() {
+        return true;
+    }
+
+    /** Nearly all of a raster is its PNG, which gzip cannot shrink. */
+    @Override
+    protected boolean compressesJsonResponse() {
+        return false;
+    }
+
+    /**
+     * Streams the same response as buildJsonResponse. The rastered image is Base64 encoded while
+     * it is being written as a PNG, so neither the PNG, nor its Base64 string, nor the Json
+     * response is ever held in memory as a whole.
+     */
+    @Override
+    protected void writeJsonResponse(Map<String, Object> result, OutputStream os)
+            throws IOException {
+        BufferedImage img = null;
+        if (validateRasteredImgParams(result)) {
+            if (result.containsKey("patches")) {
+                rasterPatches(result);
+            } else {
+                img = rasterImages(result);
+            }
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+        writer.write('{');
+        boolean first = true;
+        for (Map.Entry<String, Object> entry : result.entrySet()) {
+            /* Like Gson, leave out null fields. */
+            if (entry.getValue() == null) {
+                continue;
+            }
+            if (!first) {
+                writer.write(',');
+            }
+            first = false;
+            gson.toJson(entry.getKey(), writer);
+            writer.write(':');
+            gson.toJson(entry.getValue(), writer);
+        }
+
+        if (img != null) {
+            writer.write(",\"b64_encoded_image_data\":\"");
+            writer.flush();
+            /* Base64 never needs escaping inside a Json string. The encoder is closed to write
+             * its padding, but the response stream itself has to stay open. */
+            OutputStream b64 = Base64.getEncoder().wrap(new FilterOutputStream(os) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+            long start = System.nanoTime();
+            ImageIO.write(img, "png", b64);
+            b64.close();
+            Metrics.histogram(Metrics.RASTER_ENCODE_SECONDS).record(System.nanoTime() - start);
+            writer.write('"');
+        }
+        writer.write('}');
+        writer.flush();
+    }
+
+    /**
+     * Returns the parts of the raster of RENDERGRID at DEPTH, whose upper left tile is LEFT,
+     * UPPER, outside the tiles from KEPTLEFT to KEPTRIGHT and KEPTUPPER to KEPTLOWER that the
+     * client already has: the rows above and below those, then the columns left and right of
+     * them. Returns null if the client has none of the tiles.
+     */
+    private static List<Map<String, Object>> patches(String[][] renderGrid, int depth, int left,
+                                                     int upper, int keptLeft, int keptUpper,
+                                                     int keptRight, int keptLower) {
+        if (keptLeft > keptRight || keptUpper > keptLower) {
+            return null;
+        }
+        int rows = renderGrid.length;
+        int columns = renderGrid[0].length;
+        int kl = keptLeft - left;
+        int ku = keptUpper - upper;
+        int kr = keptRight - left;
+        int kd = keptLower - upper;
+        List<Map<String, Object>> patches = new ArrayList<>();
+        addPatch(patches, renderGrid, depth, left, upper, 0, 0, columns - 1, ku - 1);
+        addPatch(patches, renderGrid, depth, left, upper, 0, kd + 1, columns - 1, rows - 1);
+        addPatch(patches, renderGrid, depth, left, upper, 0, ku, kl - 1, kd);
+        addPatch(patches, renderGrid, depth, left, upper, kr + 1, ku, columns - 1, kd);
+        return patches;
+    }
+
+    /**
+     * Adds to PATCHES the part of the raster of RENDERGRID from column C0 to C1 and row R0 to
+     * R1, if there is any.
+     */
+    private static void addPatch(List<Map<String, Object>> patches, String[][] renderGrid,
+                                 int depth, int left, int upper, int c0, int r0, int c1, int r1) {
+        if (c0 > c1 || r0 > r1) {
+            return;
+        }
+        String[][] grid = new String[r1 - r0 + 1][];
+        for (int r = r0; r <= r1; r += 1) {
+            grid[r - r0] = Arrays.copyOfRange(renderGrid[r], c0, c1 + 1);
+        }
+        double tile_lonD = (ROOT_LRLON - ROOT_ULLON) / (1 << depth);
+        double tile_latD = (ROOT_ULLAT - ROOT_LRLAT) / (1 << depth);
+        Map<String, Object> patch = new HashMap<>();
+        patch.put("x", c0 * TILE_SIZE);
+        patch.put("y", r0 * TILE_SIZE);
+        patch.put("render_grid", grid);
+        patch.put("raster_ul_lon", ROOT_ULLON + (left + c0) * tile_lonD);
+        patch.put("raster_ul_lat", ROOT_ULLAT - (upper + r0) * tile_latD);
+        patch.put("raster_lr_lon", ROOT_ULLON + (left + c1 + 1) * tile_lonD);
+        patch.put("raster_lr_lat", ROOT_ULLAT - (upper + r1 + 1) * tile_latD);
+        patch.put("depth", depth);
+        patches.add(patch);
+    }
+
+    /**
+     * Draws and encodes each of the patches of rasteredImgParams, and records the size of the
+     * whole raster, and the tiles of all patches that were scaled up, in rasteredImgParams.
+     */
+    @SuppressWarnings("unchecked")
+    private void rasterPatches(Map<String, Object> rasteredImageParams) {
+        String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
+        rasteredImageParams.put("raster_width", renderGrid[0].length * TILE_SIZE);
+        rasteredImageParams.put("raster_height", renderGrid.length * TILE_SIZE);
+        List<String> fallbacks = new ArrayList<>();
+        for (Map<String, Object> patch
+                : (List<Map<String, Object>>) rasteredImageParams.get("patches")) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            writeImagesToOutputStream(patch, os);
+            patch.put("b64_encoded_image_data", Base64.getEncoder().encodeToString(
+                    os.toByteArray()));
+            Object patchFallbacks = patch.remove("fallback_tiles");
+            if (patchFallbacks != null) {
+                fallbacks.addAll((List<String>) patchFallbacks);
+            }
+        }
+        if (!fallbacks.isEmpty()) {
+            rasteredImageParams.put("fallback_tiles", fallbacks);
+        }
+    }
+
     private Map<String, Object> queryFail() {
         Map<String, Object> results = new HashMap<>();
         results.put("render_grid", null);
@@ -236,10 +517,39 @@ public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<S
      */
     private  void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
                                                   ByteArrayOutputStream os) {
+        BufferedImage img = rasterImages(rasteredImageParams);
+
+        try {
+            long start = System.nanoTime();
+            ImageIO.write(img, "png", os);
+            Metrics.histogram(Metrics.RASTER_ENCODE_SECONDS).record(System.nanoTime() - start);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Draws the images corresponding to rasteredImgParams, and the route if there is one, into a
+     * single image, and records its size in rasteredImgParams.
+     */
+    private BufferedImage rasterImages(Map<String, Object> rasteredImageParams) {
+        long start = System.nanoTime();
         String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
         int numVertTiles = renderGrid.length;
         int numHorizTiles = renderGrid[0].length;
 
+        int depth = (int) rasteredImageParams.get("depth");
+        double ullon = (double) rasteredImageParams.get("raster_ul_lon"); //tiles.get(0).ulp;
+        double ullat = (double) rasteredImageParams.get("raster_ul_lat"); //tiles.get(0).ulp;
+        double lrlon = (double) rasteredImageParams.get("raster_lr_lon"); //tiles.get(0).ulp;
+        double lrlat = (double) rasteredImageParams.get("raster_lr_lat"); //tiles.get(0).ulp;
+        List<String> fallbacks = new ArrayList<>();
+        BufferedImage[][] tiles = getImages(renderGrid, depth, ullon, ullat, fallbacks);
+        if (!fallbacks.isEmpty()) {
+            rasteredImageParams.put("fallback_tiles", fallbacks);
+        }
+
         BufferedImage img = new BufferedImage(numHorizTiles * Constants.TILE_SIZE,
                 numVertTiles * Constants.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
         Graphics graphic = img.getGraphics();
@@ -247,7 +557,7 @@ public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<S
 
         for (int r = 0; r < numVertTiles; r += 1) {
             for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(Constants.IMG_ROOT + renderGrid[r][c]), x, y, null);
+                graphic.drawImage(tiles[r][c], x, y, null);
                 x += Constants.TILE_SIZE;
                 if (x >= img.getWidth()) {
                     x = 0;
@@ -256,51 +566,213 @@ public class RasterAPIHandler extends APIRouteHandler<Map<String, Double>, Map<S
             }
         }
 
-        /* If there is a route, draw it. */
-        double ullon = (double) rasteredImageParams.get("raster_ul_lon"); //tiles.get(0).ulp;
-        double ullat = (double) rasteredImageParams.get("raster_ul_lat"); //tiles.get(0).ulp;
-        double lrlon = (double) rasteredImageParams.get("raster_lr_lon"); //tiles.get(0).ulp;
-        double lrlat = (double) rasteredImageParams.get("raster_lr_lat"); //tiles.get(0).ulp;
-
-        final double wdpp = (lrlon - ullon) / img.getWidth();
-        final double hdpp = (ullat - lrlat) / img.getHeight();
-        AugmentedStreetMapGraph graph = SEMANTIC_STREET_GRAPH;
-        List<Long> route = ROUTE_LIST;
-
-        if (route != null && !route.isEmpty()) {
+        /* If there is a route, draw the part of it in the raster. */
+        RouteState route = ROUTE.get();
+        if (route != null && route.isOf(STREET_GRAPH.current())) {
             Graphics2D g2d = (Graphics2D) graphic;
             g2d.setColor(Constants.ROUTE_STROKE_COLOR);
             g2d.setStroke(new BasicStroke(Constants.ROUTE_STROKE_WIDTH_PX,
                     BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                        (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                        (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                        (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+            g2d.draw(route.overlay().visiblePath(depth, ullon, ullat, lrlon, lrlat, img.getWidth(),
+                    img.getHeight(), Constants.ROUTE_STROKE_WIDTH_PX));
         }
 
         rasteredImageParams.put("raster_width", img.getWidth());
         rasteredImageParams.put("raster_height", img.getHeight());
+        Metrics.histogram(Metrics.RASTER_DRAW_SECONDS).record(System.nanoTime() - start);
+        return img;
+    }
+
+    /**
+     * Returns the tiles of RENDERGRID, whose upper left corner is at ULLON and ULLAT. Tiles
+     * deeper than MAX_IMG_DEPTH are drawn from the graph, all at once on the renderer's threads.
+     * A tile that is not drawn within RENDER_TIMEOUT_MILLIS, or that the renderer has no room
+     * for, is cut from its ancestor at MAX_IMG_DEPTH and scaled up instead, and its file name
+     * added to FALLBACKS; it is still saved for later requests once it is drawn.
+     */
+    private BufferedImage[][] getImages(String[][] renderGrid, int depth, double ullon,
+                                        double ullat, List<String> fallbacks) {
+        int rows = renderGrid.length;
+        int columns = renderGrid[0].length;
+        BufferedImage[][] images = new BufferedImage[rows][columns];
+        if (depth <= MAX_IMG_DEPTH) {
+            for (int r = 0; r < rows; r += 1) {
+                for (int c = 0; c < columns; c += 1) {
+                    images[r][c] = getImage(Constants.IMG_ROOT + renderGrid[r][c]);
+                }
+            }
+            return images;
+        }
+
+        int numTiles = 1 << depth;
+        int left = (int) Math.round((ullon - ROOT_ULLON) / (ROOT_LRLON - ROOT_ULLON) * numTiles);
+        int upper = (int) Math.round((ROOT_ULLAT - ullat) / (ROOT_ULLAT - ROOT_LRLAT) * numTiles);
+        TileRenderer tileRenderer = renderer();
+        File root = tileRenderer.root();
+        /* The tile being drawn for row r and column c is at r * columns + c. */
+        List<Future<BufferedImage>> drawn = new ArrayList<>(
+                Collections.nCopies(rows * columns, null));
+        for (int r = 0; r < rows; r += 1) {
+            for (int c = 0; c < columns; c += 1) {
+                images[r][c] = TILE_CACHE.get(new File(root, renderGrid[r][c]).getPath());
+                if (images[r][c] == null) {
+                    drawn.set(r * columns + c, tileRenderer.tile(depth, left + c, upper + r));
+                } else {
+                    Metrics.counter(Metrics.TILE_CACHE_HITS).increment();
+                }
+            }
+        }
 
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RENDER_TIMEOUT_MILLIS);
+        for (int r = 0; r < rows; r += 1) {
+            for (int c = 0; c < columns; c += 1) {
+                if (images[r][c] != null) {
+                    continue;
+                }
+                Future<BufferedImage> tile = drawn.get(r * columns + c);
+                if (tile != null) {
+                    try {
+                        images[r][c] = tile.get(Math.max(0, deadline - System.nanoTime()),
+                                TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        e.printStackTrace();
+                    } catch (TimeoutException e) {
+                        /* Upscale it below, and let the renderer finish it for next time. */
+                    }
+                }
+                if (images[r][c] != null) {
+                    TILE_CACHE.put(new File(root, renderGrid[r][c]).getPath(), images[r][c]);
+                } else {
+                    Metrics.counter(Metrics.TILE_RENDER_FALLBACKS).increment();
+                    images[r][c] = upscale(depth, left + c, upper + r);
+                    fallbacks.add(renderGrid[r][c]);
+                }
+            }
+        }
+        return images;
+    }
+
+    /** Returns tile X, Y at DEPTH cut from its ancestor at MAX_IMG_DEPTH and scaled up. */
+    private BufferedImage upscale(int depth, int x, int y) {
+        int shift = depth - MAX_IMG_DEPTH;
+        BufferedImage img = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        BufferedImage ancestor = getImage(Constants.IMG_ROOT
+                + TileRenderer.fileName(MAX_IMG_DEPTH, x >> shift, y >> shift));
+        if (ancestor != null) {
+            int size = TILE_SIZE >> shift;
+            int sx = (x & ((1 << shift) - 1)) * size;
+            int sy = (y & ((1 << shift) - 1)) * size;
+            Graphics2D g2d = img.createGraphics();
+            g2d.drawImage(ancestor, 0, 0, TILE_SIZE, TILE_SIZE, sx, sy, sx + size, sy + size,
+                    null);
+            g2d.dispose();
+        }
+        return img;
+    }
+
+    /**
+     * Returns the renderer of the current street graph. Each graph's tiles are saved in a folder
+     * of their own under RENDERED_IMG_ROOT, named by the data the graph is from, so no tile
+     * drawn from old data is shown once new data is in place. When a new graph is put in place
+     * the old renderer finishes the tiles it was asked for and stops, and its tiles are dropped
+     * from TILE_CACHE.
+     */
+    private static synchronized TileRenderer renderer() {
+        StreetGraphHolder.Version version = STREET_GRAPH.current();
+        if (version == null) {
+            throw new IllegalStateException("No street graph has been loaded yet.");
+        }
+        if (renderer == null || version.number() > rendererVersion.number()) {
+            if (renderer != null) {
+                renderer.shutdown();
+                String old = renderer.root().getPath() + File.separator;
+                synchronized (TILE_CACHE) {
+                    TILE_CACHE.keySet().removeIf(imgPath -> imgPath.startsWith(old));
+                }
+            }
+            renderer = new TileRenderer(version.graph(),
+                    RENDERED_IMG_ROOT + version.stamp() + "/");
+            rendererVersion = version;
+        }
+        return renderer;
+    }
+
+    private static synchronized TilePrefetcher prefetcher() {
+        if (prefetcher == null) {
+            prefetcher = new TilePrefetcher(RasterAPIHandler::prefetch,
+                    () -> ACTIVE_RASTERS.get() > 0);
+        }
+        return prefetcher;
+    }
+
+    /**
+     * Reads tile X, Y at DEPTH into TILE_CACHE, if it is not there yet. Tiles deeper than
+     * MAX_IMG_DEPTH are only read if they have been drawn, since drawing them now would hold up
+     * the tiles that requests are waiting for.
+     */
+    private static void prefetch(int depth, int x, int y) {
+        String imgPath = depth <= MAX_IMG_DEPTH
+                ? Constants.IMG_ROOT + TileRenderer.fileName(depth, x, y)
+                : new File(renderer().root(), TileRenderer.fileName(depth, x, y)).getPath();
+        if (TILE_CACHE.containsKey(imgPath)
+                || depth > MAX_IMG_DEPTH && !new File(imgPath).isFile()) {
+            return;
+        }
         try {
-            ImageIO.write(img, "png", os);
+            BufferedImage tileImg = readImage(imgPath);
+            if (tileImg != null) {
+                TILE_CACHE.put(imgPath, tileImg);
+                Metrics.counter(Metrics.TILES_PREFETCHED).increment();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
+    }
 
+    /**
+     * Returns the tile at IMGPATH, read from IMG_PACK if it is one of the tiles in IMG_ROOT and
+     * the pack has it, else from its own file.
+     */
+    private static BufferedImage readImage(String imgPath) throws IOException {
+        if (PACK != null && imgPath.startsWith(Constants.IMG_ROOT)) {
+            BufferedImage img = PACK.image(imgPath.substring(Constants.IMG_ROOT.length()));
+            if (img != null) {
+                return img;
+            }
+        }
+        return ImageIO.read(new File(imgPath));
+    }
+
+    private static TilePack openPack() {
+        if (!new File(IMG_PACK).isFile()) {
+            return null;
+        }
+        try {
+            return new TilePack(IMG_PACK);
+        } catch (IOException e) {
+            System.out.println("Could not map " + IMG_PACK + "; reading tiles from "
+                    + Constants.IMG_ROOT + " instead.");
+            e.printStackTrace();
+            return null;
+        }
     }
 
     private BufferedImage getImage(String imgPath) {
-        BufferedImage tileImg = null;
+        BufferedImage tileImg = TILE_CACHE.get(imgPath);
         if (tileImg == null) {
             try {
-                File in = new File(imgPath);
-                tileImg = ImageIO.read(in);
+                tileImg = readImage(imgPath);
+                if (tileImg != null) {
+                    Metrics.counter(Metrics.TILES_LOADED).increment();
+                    TILE_CACHE.put(imgPath, tileImg);
+                }
             } catch (IOException | NullPointerException e) {
                 e.printStackTrace();
             }
+        } else {
+            Metrics.counter(Metrics.TILE_CACHE_HITS).increment();
         }
         return tileImg;
     }
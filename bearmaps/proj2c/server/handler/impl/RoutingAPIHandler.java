@@ -1,23 +1,31 @@
 package bearmaps.proj2c.server.handler.impl;
 
+import bearmaps.hw4.SettledVerticesCollector;
+import bearmaps.hw4.streetmap.CostModel;
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.proj2c.AlternativeRoutes;
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.RouteState;
 import bearmaps.proj2c.Router;
+import bearmaps.proj2c.StreetGraphHolder;
 import bearmaps.proj2c.server.handler.APIRouteHandler;
 import spark.Request;
 import spark.Response;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import static bearmaps.proj2c.utils.Constants.SEMANTIC_STREET_GRAPH;
-import static bearmaps.proj2c.utils.Constants.ROUTE_LIST;
+import static bearmaps.proj2c.utils.Constants.ROUTE;
+import static bearmaps.proj2c.utils.Constants.STREET_GRAPH;
 
 /**
  * Handles requests from the web browser for routes between locations. The
  * route will be returned as image data, as well as (optionally) driving directions. *
  * Created by rahul
  */
-public class RoutingAPIHandler extends APIRouteHandler<Map<String, Double>, Map<String, Object>> {
+public class RoutingAPIHandler extends APIRouteHandler<Map<String, Object>, Map<String, Object>> {
 
     /**
      * Each route request to the server will have the following parameters
@@ -28,9 +36,29 @@ public class RoutingAPIHandler extends APIRouteHandler<Map<String, Double>, Map<
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
             "end_lat", "end_lon"};
 
+    /** The most alternatives to the route a request may ask for. */
+    private static final int MAX_ALTERNATIVES = 3;
+
     @Override
-    protected Map<String, Double> parseRequestParams(Request request) {
-        return getRequestParams(request, REQUIRED_ROUTE_REQUEST_PARAMS);
+    protected Map<String, Object> parseRequestParams(Request request) {
+        Map<String, Object> params = new HashMap<>(getRequestParams(request,
+                REQUIRED_ROUTE_REQUEST_PARAMS));
+        /* Optional: search_space, present to also return the vertices the search explored and
+           counts of its work. */
+        if (request.queryParams().contains("search_space")) {
+            params.put("search_space", true);
+        }
+        /* Optional: cost, "distance" (the default) or "travel_time". */
+        params.put("cost", getEnumParam(request, "cost", CostModel.values(),
+                CostModel.DISTANCE));
+        /* Optional: profile, "car" (the default), "bike" or "walk". */
+        params.put("profile", getEnumParam(request, "profile", RoutingProfile.values(),
+                RoutingProfile.CAR));
+        /* Optional: alternatives, how many alternatives to the route to also return. */
+        if (request.queryParams().contains("alternatives")) {
+            params.putAll(getRequestParams(request, new String[]{"alternatives"}));
+        }
+        return params;
     }
 
     /**
@@ -38,15 +66,15 @@ public class RoutingAPIHandler extends APIRouteHandler<Map<String, Double>, Map<
      * street directions between the given points. THis method has been
      * completed for you.
      *
-     * The route to draw on the map should be added to the end of
-     * bearmaps.proj2c.utils.Constants.ROUTE_LIST. This is a LinkedList of longs,
-     * where each long corresponds to one point on the map.
+     * The route to draw on the map is added to the end of
+     * bearmaps.proj2c.utils.Constants.ROUTE, which is replaced by a new RouteState of the
+     * graph the route was found on. A route of an older graph is dropped rather than added to.
      *
      * Street directions can also be provided in the form of text as a return
      * value to this function.
      *
      * @param requestParams Map of the HTTP GET request's query parameters - the starting lat/long
-     *                      and the destination lat/lon.
+     *                      and the destination lat/lon as Doubles, and the parsed options.
      *
      * @param response : Not used by this function. You may ignore.
      * @return A map of results for the front end as specified: <br>
@@ -55,30 +83,81 @@ public class RoutingAPIHandler extends APIRouteHandler<Map<String, Double>, Map<
      * "directions_success" : Boolean, whether the query generated text directions (i.e. if
      *                        length of directions is > 0).
      * "directions"      : String. The text directions you want to display, in HTML format.
+     * "search_space"    : Only if the search_space parameter was given. A GeoJSON
+     *                     FeatureCollection of the vertices settled by the search, in order,
+     *                     nested in the response as an object.
+     * "search_stats"    : Only if the search_space parameter was given. A map of "settled",
+     *                     the number of vertices settled, "relaxed", the number of edges that
+     *                     improved a distance, and "pq_peak_size" and "pq_sizes", the largest
+     *                     size of the search's priority queue and its size after each settle.
+     * "alternatives"    : Only if the alternatives parameter was given. A list of at most that
+     *                     many (and at most 3) alternative routes, cheapest first, each a map
+     *                     of "weight" : Number, its cost, and "route" : its [lon, lat] points.
      */
     @Override
-    protected Map<String, Object> processRequest(Map<String, Double> requestParams, Response response) {
-        List<Long> route = Router.shortestPath(
-                SEMANTIC_STREET_GRAPH,
-                requestParams.get("start_lon"), requestParams.get("start_lat"),
-                requestParams.get("end_lon"), requestParams.get("end_lat"));
-        ROUTE_LIST.addAll(route);
-        String directions = getDirectionsText();
+    protected Map<String, Object> processRequest(Map<String, Object> requestParams,
+                                                 Response response) {
+        StreetGraphHolder.Version version = STREET_GRAPH.current();
+        AugmentedStreetMapGraph graph = version.graph();
+        SettledVerticesCollector<Long> searchSpace = null;
+        if (requestParams.containsKey("search_space")) {
+            searchSpace = new SettledVerticesCollector<>();
+        }
+        CostModel cost = (CostModel) requestParams.get("cost");
+        RoutingProfile profile = (RoutingProfile) requestParams.get("profile");
+        List<Long> route = Router.snappedShortestPath(
+                graph,
+                (Double) requestParams.get("start_lon"), (Double) requestParams.get("start_lat"),
+                (Double) requestParams.get("end_lon"), (Double) requestParams.get("end_lat"),
+                profile, cost, searchSpace);
+        RouteState shown = ROUTE.updateAndGet(previous -> RouteState.append(previous, version,
+                route));
+        int numAlternatives = (int) Math.min(MAX_ALTERNATIVES,
+                (Double) requestParams.getOrDefault("alternatives", 0.0));
+        /* Unless the graph was replaced meanwhile and the route dropped. */
+        String directions = getDirectionsText(graph,
+                shown.isOf(version) ? shown.vertices() : route);
 
         Map<String, Object> routeParams = new HashMap<>();
         routeParams.put("routing_success", !route.isEmpty());
         routeParams.put("directions_success", directions.length() > 0);
         routeParams.put("directions", directions);
+        if (searchSpace != null) {
+            routeParams.put("search_space",
+                    searchSpace.toGeoJson(graph::lon, graph::lat));
+            Map<String, Object> searchStats = new HashMap<>();
+            searchStats.put("settled", searchSpace.numSettled());
+            searchStats.put("relaxed", searchSpace.numRelaxed());
+            searchStats.put("pq_peak_size", searchSpace.pqPeakSize());
+            searchStats.put("pq_sizes", searchSpace.pqSizes());
+            routeParams.put("search_stats", searchStats);
+        }
+        if (numAlternatives > 0) {
+            AlternativeRoutes alternatives = Router.alternativeRoutes(graph,
+                    route, profile, cost, numAlternatives + 1);
+            List<Map<String, Object>> alternativeParams = new ArrayList<>();
+            for (int i = 1; i < alternatives.routes().size(); i += 1) {
+                List<double[]> points = new ArrayList<>();
+                for (long v : alternatives.routes().get(i)) {
+                    points.add(new double[]{graph.lon(v), graph.lat(v)});
+                }
+                Map<String, Object> alternative = new HashMap<>();
+                alternative.put("weight", alternatives.weights().get(i));
+                alternative.put("route", points);
+                alternativeParams.add(alternative);
+            }
+            routeParams.put("alternatives", alternativeParams);
+        }
         return routeParams;
     }
 
     /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
+     * Takes ROUTE, a route on GRAPH, and converts it into an HTML friendly
      * String to be passed to the frontend.
      */
-    private String getDirectionsText() {
+    private String getDirectionsText(AugmentedStreetMapGraph graph, List<Long> route) {
 
-        List<Router.NavigationDirection> directions = Router.routeDirections(SEMANTIC_STREET_GRAPH, ROUTE_LIST);
+        List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
         if (directions == null || directions.isEmpty()) {
             return "";
         }
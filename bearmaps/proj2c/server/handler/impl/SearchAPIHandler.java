@@ -1,52 +1,147 @@
 package bearmaps.proj2c.server.handler.impl;
 
+import bearmaps.proj2c.AugmentedStreetMapGraph;
 import bearmaps.proj2c.server.handler.APIRouteHandler;
 import spark.Request;
 import spark.Response;
-import bearmaps.proj2c.utils.Tuple;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
-import static bearmaps.proj2c.utils.Constants.SEMANTIC_STREET_GRAPH;
+import static bearmaps.proj2c.utils.Constants.STREET_GRAPH;
 
 /**
+ * Handles autocomplete and location lookups from the search bar. Each search request has the
+ * following parameters: <br>
+ * term : the text typed so far, or the full location name when "full" is present, <br>
+ * full : (optional) present when the locations matching term should be returned, <br>
+ * limit : (optional) the maximum number of autocomplete names to return; all by default, <br>
+ * fuzzy : (optional) present to tolerate typos in term; its value, if a number, is the number
+ *         of typos to tolerate. Fuzzy results are capped at
+ *         AugmentedStreetMapGraph.AUTOCOMPLETE_TOP_K names, <br>
+ * lon, lat : (optional) a point, typically the center of the viewport, to rank autocomplete
+ *            names around; names with an instance near the point come first.
  * Created by rahul
  */
-public class SearchAPIHandler extends APIRouteHandler<Tuple<Set<String>, String>, Object> {
+public class SearchAPIHandler extends APIRouteHandler<Map<String, String>, Object> {
 
 
     @Override
-    protected Tuple<Set<String>, String> parseRequestParams(Request request) {
-        return new Tuple<>(request.queryParams(), request.queryParams("term"));
+    protected Map<String, String> parseRequestParams(Request request) {
+        Map<String, String> params = new HashMap<>();
+        for (String param : request.queryParams()) {
+            params.put(param, request.queryParams(param));
+        }
+        return params;
     }
 
     @Override
-    protected Object processRequest(Tuple<Set<String>, String> requestParams, Response response) {
-        Set<String> reqParams = requestParams.getFirst();
-        String term = requestParams.getSecond();
+    protected Object processRequest(Map<String, String> requestParams, Response response) {
+        AugmentedStreetMapGraph graph = STREET_GRAPH.graph();
+        String term = requestParams.get("term");
         Object result;
-        /* Search for actual location data. */
-        if (reqParams.contains("full")) {
-            result = getLocations(term);
+        /* Search for actual location data, already serialized. */
+        if (requestParams.containsKey("full")) {
+            result = graph.getLocationsJson(term);
+        } else if (requestParams.containsKey("lon") && requestParams.containsKey("lat")) {
+            /* Search for prefix matching strings near a point, falling back to fuzzy matches. */
+            List<String> names = graph.getLocationsByPrefixNear(term,
+                    parseDouble(requestParams.get("lon")), parseDouble(requestParams.get("lat")),
+                    parseInt(requestParams.get("limit")));
+            if (names.isEmpty() && requestParams.containsKey("fuzzy")) {
+                names = graph.getLocationsByFuzzyPrefix(term,
+                        parseInt(requestParams.get("fuzzy")), parseInt(requestParams.get("limit")));
+            }
+            result = names;
+        } else if (requestParams.containsKey("fuzzy")) {
+            /* Search for strings that prefix-match the term up to a few typos. */
+            result = graph.getLocationsByFuzzyPrefix(term,
+                    parseInt(requestParams.get("fuzzy")), parseInt(requestParams.get("limit")));
         } else {
             /* Search for prefix matching strings. */
-            result = getLocationsByPrefix(term);
+            result = graph.getLocationsByPrefix(term, parseInt(requestParams.get("limit")));
         }
         return result;
     }
 
     /**
-     * In linear time, collect all the names of OSM locations that prefix-match the query string.
+     * Full searches are answered with Json that was serialized when the graph was built, so it
+     * is written out as is instead of going through Gson again.
+     */
+    @Override
+    protected Object buildJsonResponse(Object result) {
+        if (result instanceof byte[]) {
+            return result;
+        }
+        return super.buildJsonResponse(result);
+    }
+
+    @Override
+    protected boolean streamsJsonResponse() {
+        return true;
+    }
+
+    @Override
+    protected void writeJsonResponse(Object result, OutputStream os) throws IOException {
+        if (result instanceof byte[]) {
+            os.write((byte[]) result);
+        } else {
+            super.writeJsonResponse(result, os);
+        }
+    }
+
+    /** Parses an optional integer parameter; a missing or malformed value becomes -1. */
+    private static int parseInt(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Parses an optional coordinate parameter; a missing or malformed value becomes 0. */
+    private static double parseDouble(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Collect the names of OSM locations that prefix-match the query string, ranked by distance
+     * from (lon, lat) and text score.
+     * @param prefix Prefix string to be searched for.
+     * @param lon The longitude to rank around.
+     * @param lat The latitude to rank around.
+     * @param limit Maximum number of names to return; a negative value means the default.
+     * @return A <code>List</code> of full location names, best first.
+     */
+    public List<String> getLocationsByPrefixNear(String prefix, double lon, double lat, int limit) {
+
+        return STREET_GRAPH.graph().getLocationsByPrefixNear(prefix, lon, lat, limit);
+    }
+
+    /**
+     * Collect the names of OSM locations that prefix-match the query string, most popular first.
      * @param prefix Prefix string to be searched for. Could be any case, with our without
      *               punctuation.
+     * @param limit Maximum number of names to return; a negative value means no limit.
      * @return A <code>List</code> of the full names of locations whose cleaned name matches the
      * cleaned <code>prefix</code>.
      */
-    public List<String> getLocationsByPrefix(String prefix) {
+    public List<String> getLocationsByPrefix(String prefix, int limit) {
 
-        return SEMANTIC_STREET_GRAPH.getLocationsByPrefix(prefix);
+        return STREET_GRAPH.graph().getLocationsByPrefix(prefix, limit);
     }
 
     /**
@@ -63,6 +158,6 @@ public class SearchAPIHandler extends APIRouteHandler<Tuple<Set<String>, String>
      */
     public List<Map<String, Object>> getLocations(String locationName) {
 
-        return SEMANTIC_STREET_GRAPH.getLocations(locationName);
+        return STREET_GRAPH.graph().getLocations(locationName);
     }
 }
@@ -0,0 +1,102 @@
+package bearmaps.proj2c.server.handler.impl;
+
+import bearmaps.proj2c.StreetGraphHolder;
+import bearmaps.proj2c.VectorTiles;
+import bearmaps.proj2c.server.handler.APIRouteHandler;
+import spark.Request;
+import spark.Response;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static bearmaps.proj2c.utils.Constants.STREET_GRAPH;
+import static spark.Spark.halt;
+
+/**
+ * Handles requests for vector tiles of the map: the roads and named places in one z/x/y tile,
+ * encoded as a Mapbox Vector Tile rather than Json, for clients that draw the map themselves.
+ * See VectorTiles for the layers and their properties.
+ *
+ * Tiles are tagged with the stamp of the data the street graph was built from. Clients must
+ * ask again before reusing a tile, and are told it has not changed unless the graph has been
+ * replaced by one from other data, so a reloaded map shows at once.
+ */
+public class VectorTileAPIHandler extends APIRouteHandler<Map<String, Object>, byte[]> {
+
+    /**
+     * Each vector tile request to the server will have the following parameters
+     * as keys in the params map.<br>
+     * z : zoom level, from 0 to VectorTiles.MAX_ZOOM,<br>
+     * x : tile column, counted east from the antimeridian,<br>
+     * y : tile row, counted south from the north edge of the map.
+     **/
+    private static final String[] REQUIRED_VECTOR_TILE_REQUEST_PARAMS = {"z", "x", "y"};
+
+    /** Status sent instead of a tile the client already has. */
+    private static final int NOT_MODIFIED = 304;
+
+    @Override
+    protected Map<String, Object> parseRequestParams(Request request) {
+        Map<String, Object> params = new HashMap<>(getRequestParams(request,
+                REQUIRED_VECTOR_TILE_REQUEST_PARAMS));
+        /* Optional: the tags of the copies of the tile the client has. */
+        String ifNoneMatch = request.headers("If-None-Match");
+        if (ifNoneMatch != null) {
+            params.put("if_none_match", ifNoneMatch);
+        }
+        return params;
+    }
+
+    /**
+     * Returns the encoded tile, which is empty if nothing on the map is in it, or nothing if
+     * the client already has it.
+     * @param requestParams Map of the HTTP GET request's query parameters as Doubles, and the
+     *                      If-None-Match header if there was one.
+     * @param response The response, whose content type, caching headers and, if the client
+     *                 already has the tile, status are set.
+     */
+    @Override
+    protected byte[] processRequest(Map<String, Object> requestParams, Response response) {
+        double z = (Double) requestParams.get("z");
+        double x = (Double) requestParams.get("x");
+        double y = (Double) requestParams.get("y");
+        if (z != Math.rint(z) || x != Math.rint(x) || y != Math.rint(y)
+                || !VectorTiles.isTile((int) z, (int) x, (int) y)) {
+            halt(HALT_RESPONSE, "Incorrect parameters - no such tile.");
+        }
+        StreetGraphHolder.Version version = STREET_GRAPH.current();
+        String etag = "\"" + version.stamp() + "\"";
+        response.header("Cache-Control", "public, no-cache");
+        response.header("ETag", etag);
+        if (matches((String) requestParams.get("if_none_match"), etag)) {
+            response.status(NOT_MODIFIED);
+            return new byte[0];
+        }
+        response.type("application/vnd.mapbox-vector-tile");
+        return version.graph().vectorTiles().tile((int) z, (int) x, (int) y);
+    }
+
+    /** Returns whether the If-None-Match header IFNONEMATCH, which may be null, names ETAG. */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            /* Weak tags name the same tile too. */
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The tile is sent as it is. */
+    @Override
+    protected Object buildJsonResponse(byte[] result) {
+        return result;
+    }
+}
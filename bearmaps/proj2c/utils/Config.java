@@ -0,0 +1,122 @@
+package bearmaps.proj2c.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Settings that can be changed per deployment without editing code, such as where the data is
+ * and how many threads serve requests. Each setting has a key like server.threads.max and a
+ * default, see Constants for the keys. A setting is taken from the first of these that has it:
+ * <ol>
+ * <li>the system property bearmaps.KEY, e.g. -Dbearmaps.server.threads.max=64,</li>
+ * <li>the environment variable BEARMAPS_KEY, with the key in capitals and its dots made
+ * underscores, e.g. BEARMAPS_SERVER_THREADS_MAX=64,</li>
+ * <li>the properties file named by the system property bearmaps.config or the environment
+ * variable BEARMAPS_CONFIG, or else bearmaps.properties in the working directory if there is
+ * one, e.g. a line server.threads.max=64,</li>
+ * <li>the default.</li>
+ * </ol>
+ * Settings are read once, when the classes using them are loaded at startup. A setting that
+ * does not parse fails startup rather than being ignored.
+ */
+public class Config {
+    /** Properties file read when no other is named. */
+    public static final String DEFAULT_FILE = "bearmaps.properties";
+
+    private static final String PROPERTY_PREFIX = "bearmaps.";
+    private static final String ENV_PREFIX = "BEARMAPS_";
+
+    private static final Properties FILE = load();
+
+    /** Returns the setting KEY, or DEFAULTVALUE if it is not set. */
+    public static String get(String key, String defaultValue) {
+        String value = System.getProperty(PROPERTY_PREFIX + key);
+        if (value == null) {
+            value = System.getenv(ENV_PREFIX + key.toUpperCase(Locale.ROOT).replace('.', '_'));
+        }
+        if (value == null) {
+            value = FILE.getProperty(key);
+        }
+        return value == null ? defaultValue : value.trim();
+    }
+
+    /** Returns the setting KEY as an int, or DEFAULTVALUE if it is not set. */
+    public static int getInt(String key, int defaultValue) {
+        String value = get(key, null);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw invalid(key, value, "a whole number");
+        }
+    }
+
+    /** Returns the setting KEY as a long, or DEFAULTVALUE if it is not set. */
+    public static long getLong(String key, long defaultValue) {
+        String value = get(key, null);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw invalid(key, value, "a whole number");
+        }
+    }
+
+    /** Returns the setting KEY as a double, or DEFAULTVALUE if it is not set. */
+    public static double getDouble(String key, double defaultValue) {
+        String value = get(key, null);
+        try {
+            return value == null ? defaultValue : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw invalid(key, value, "a number");
+        }
+    }
+
+    /**
+     * Returns the constant of TYPE named by the setting KEY, matched without regard to case, or
+     * DEFAULTVALUE if it is not set.
+     */
+    public static <E extends Enum<E>> E getEnum(String key, Class<E> type, E defaultValue) {
+        String value = get(key, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        for (E e : type.getEnumConstants()) {
+            if (e.name().equalsIgnoreCase(value)) {
+                return e;
+            }
+        }
+        StringBuilder names = new StringBuilder();
+        for (E e : type.getEnumConstants()) {
+            names.append(names.length() == 0 ? "" : ", ").append(e.name().toLowerCase(Locale.ROOT));
+        }
+        throw invalid(key, value, "one of " + names);
+    }
+
+    private static IllegalArgumentException invalid(String key, String value, String expected) {
+        return new IllegalArgumentException("Setting " + key + " is " + value + ", but should be "
+                + expected + ".");
+    }
+
+    /** Reads the properties file, if there is one. */
+    private static Properties load() {
+        Properties properties = new Properties();
+        String path = System.getProperty(PROPERTY_PREFIX + "config", System.getenv(ENV_PREFIX
+                + "CONFIG"));
+        if (path == null) {
+            if (!new File(DEFAULT_FILE).isFile()) {
+                return properties;
+            }
+            path = DEFAULT_FILE;
+        }
+        try (InputStream in = new FileInputStream(path)) {
+            properties.load(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read the settings in " + path + ".", e);
+        }
+        return properties;
+    }
+}
@@ -1,13 +1,16 @@
 package bearmaps.proj2c.utils;
 
-import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.RouteState;
+import bearmaps.proj2c.Router;
+import bearmaps.proj2c.StreetGraphHolder;
 
 import java.awt.*;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A class holding all the constant values used throughout the project
+ * Those that depend on the deployment are read from Config at startup, under the key given in
+ * their comment.
  *
  * Created by rahul
  */
@@ -21,14 +24,67 @@ public class Constants {
     public static final double ROOT_ULLAT = 37.892195547244356, ROOT_ULLON = -122.2998046875,
             ROOT_LRLAT = 37.82280243352756, ROOT_LRLON = -122.2119140625;
 
+    /**
+     * Port the server listens on, the one map.js connects to when run locally.
+     * Key server.port.
+     */
+    public static final int SERVER_PORT = Config.getInt("server.port", 4567);
+
+    /**
+     * Most and fewest threads serving requests, and how long a thread above the fewest may sit
+     * idle before it stops. Spark's defaults are used while server.threads.max is 0.
+     * Keys server.threads.max, server.threads.min and server.threads.idle.timeout.millis.
+     */
+    public static final int SERVER_MAX_THREADS = Config.getInt("server.threads.max", 0),
+            SERVER_MIN_THREADS = Config.getInt("server.threads.min", 0),
+            SERVER_THREAD_IDLE_TIMEOUT_MILLIS =
+                    Config.getInt("server.threads.idle.timeout.millis", 60000);
+
+    /**
+     * How long a connection may sit idle before the server closes it.
+     * Key server.connection.idle.timeout.millis.
+     */
+    public static final long SERVER_IDLE_TIMEOUT_MILLIS =
+            Config.getLong("server.connection.idle.timeout.millis", 30000);
+
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
      * using custom region selection.
+     * Key data.osm.path.
      **/
-    public static final String OSM_DB_PATH = "../library-sp19/data/proj2c_xml/berkeley-2019.osm.xml";
+    public static final String OSM_DB_PATH = Config.get("data.osm.path",
+            "../library-sp19/data/proj2c_xml/berkeley-2019.osm.xml");
+
+    /** The tile images are in the IMG_ROOT folder. Key data.img.root. */
+    public static final String IMG_ROOT = Config.get("data.img.root",
+            "../library-sp19/data/proj2c_imgs/");
+
+    /**
+     * The tiles in IMG_ROOT packed into one file by TilePack, read instead if it exists.
+     * Key data.img.pack.
+     */
+    public static final String IMG_PACK = Config.get("data.img.pack",
+            "../library-sp19/data/proj2c_imgs.pack");
+
+    /** Deepest tiles in IMG_ROOT. */
+    public static final int MAX_IMG_DEPTH = 7;
+
+    /** Deepest tiles drawn from the graph, beyond those in IMG_ROOT. */
+    public static final int MAX_RENDERED_DEPTH = 10;
 
-    /** The tile images are in the IMG_ROOT folder. */
-    public static final String IMG_ROOT = "../library-sp19/data/proj2c_imgs/";
+    /**
+     * Tiles drawn from the graph are saved in the RENDERED_IMG_ROOT folder.
+     * Key data.rendered.img.root.
+     */
+    public static final String RENDERED_IMG_ROOT = Config.get("data.rendered.img.root",
+            "rendered_imgs/");
+
+    /**
+     * Longest a raster waits for tiles to be drawn before it upscales shallower ones instead.
+     * Key tiles.render.timeout.millis.
+     */
+    public static final long RENDER_TIMEOUT_MILLIS = Config.getLong("tiles.render.timeout.millis",
+            2000);
 
     /** Route stroke information: Cyan with half transparency. */
     public static final Color ROUTE_STROKE_COLOR = new Color(108, 181, 230, 200);
@@ -39,11 +95,36 @@ public class Constants {
     /** Each tile is 256x256 pixels. */
     public static final int TILE_SIZE = 256;
 
-    public static AugmentedStreetMapGraph SEMANTIC_STREET_GRAPH;
+    /** Number of decoded tiles kept in memory, up to 256KB each. Key tiles.cache.size. */
+    public static final int TILE_CACHE_SIZE = Config.getInt("tiles.cache.size", 256);
+
+    /** The algorithm routes are found with. Key routing.solver, astar or dijkstra. */
+    public static final Router.Solver ROUTE_SOLVER = Config.getEnum("routing.solver",
+            Router.Solver.class, Router.Solver.ASTAR);
+
+    /**
+     * Longest the search for a route may take before it gives up and no route is returned.
+     * Key routing.timeout.seconds.
+     */
+    public static final double ROUTE_TIMEOUT_SECONDS = Config.getDouble("routing.timeout.seconds",
+            5);
+
+    /**
+     * The street graph of OSM_DB_PATH, swapped for a new one when the file changes. Each request
+     * should take STREET_GRAPH.graph() once and use that graph throughout.
+     */
+    public static final StreetGraphHolder STREET_GRAPH = new StreetGraphHolder();
+
+    /**
+     * How often OSM_DB_PATH is checked for new data, or 0 not to reload it while running.
+     * Key data.reload.interval.seconds.
+     */
+    public static final long GRAPH_RELOAD_INTERVAL_SECONDS =
+            Config.getLong("data.reload.interval.seconds", 60);
 
     /**
-     * This is used to maintain a single List of route so that the same instance(object) is accessed
-     * from everywhere in the code. Enum is a cleaner way to achieve such a singleton pattern.
+     * The route drawn over rasters, or null if there is none. It is only ever replaced whole,
+     * and is no route at all unless it is of the current version of STREET_GRAPH.
      */
-    public static final List<Long> ROUTE_LIST = new LinkedList<>();
+    public static final AtomicReference<RouteState> ROUTE = new AtomicReference<>();
 }
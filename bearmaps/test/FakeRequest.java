@@ -0,0 +1,63 @@
+package bearmaps.test;
+
+import spark.Request;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Spark request to PATH with the given query parameters and headers, for calling a handler
+ * without a server, e.g. new FakeRequest("/isochrone").param("lon", 0.5).param("lat", 38).
+ */
+class FakeRequest extends Request {
+    private final String path;
+    private final Map<String, String> params = new HashMap<>();
+    private final Map<String, String> headers = new HashMap<>();
+
+    FakeRequest(String path) {
+        this.path = path;
+    }
+
+    /** Adds the query parameter NAME with VALUE. */
+    FakeRequest param(String name, Object value) {
+        params.put(name, String.valueOf(value));
+        return this;
+    }
+
+    /** Adds the header NAME with VALUE. */
+    FakeRequest header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    @Override
+    public Set<String> queryParams() {
+        return params.keySet();
+    }
+
+    @Override
+    public String queryParams(String name) {
+        return params.get(name);
+    }
+
+    @Override
+    public String headers(String name) {
+        return headers.get(name);
+    }
+
+    @Override
+    public String pathInfo() {
+        return path;
+    }
+
+    @Override
+    public String ip() {
+        return "127.0.0.1";
+    }
+
+    @Override
+    public String userAgent() {
+        return "test";
+    }
+}
@@ -0,0 +1,129 @@
+package bearmaps.test;
+
+import spark.Response;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A Spark response that records its headers, type and status, and whatever a handler streams
+ * to the raw response, for calling a handler without a server. Like a server's, the raw
+ * response is committed once it is flushed or more than a buffer of it has been written, and
+ * can only be reset before then.
+ */
+class FakeResponse extends Response {
+    /** Bytes the raw response holds back before it has to commit. */
+    static final int BUFFER_SIZE = 1024;
+
+    private final Map<String, String> headers = new HashMap<>();
+    private final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+    private String type;
+    private int status = 200;
+    private boolean committed;
+
+    private final ServletOutputStream out = new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+            streamed.write(b);
+            committed |= streamed.size() > BUFFER_SIZE;
+        }
+
+        @Override
+        public void flush() {
+            committed = true;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+        }
+    };
+
+    /* Only the output stream of the raw response, and whether it is committed, are used by
+     * the handlers. */
+    private final HttpServletResponse raw = (HttpServletResponse) Proxy.newProxyInstance(
+            HttpServletResponse.class.getClassLoader(),
+            new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getOutputStream":
+                        return out;
+                    case "isCommitted":
+                        return committed;
+                    case "reset":
+                        reset();
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+
+    private void reset() {
+        if (committed) {
+            throw new IllegalStateException("Committed");
+        }
+        headers.clear();
+        streamed.reset();
+        type = null;
+        status = 200;
+    }
+
+    @Override
+    public void header(String name, String value) {
+        headers.put(name, value);
+    }
+
+    @Override
+    public void type(String contentType) {
+        type = contentType;
+    }
+
+    @Override
+    public void status(int statusCode) {
+        status = statusCode;
+    }
+
+    @Override
+    public int status() {
+        return status;
+    }
+
+    @Override
+    public HttpServletResponse raw() {
+        return raw;
+    }
+
+    /** Returns the value of header NAME, or null if it was not set. */
+    String header(String name) {
+        return headers.get(name);
+    }
+
+    /** Returns the content type set, or null. */
+    String type() {
+        return type;
+    }
+
+    /** Returns whether the raw response has been committed. */
+    boolean committed() {
+        return committed;
+    }
+
+    /** Returns the bytes streamed to the raw response. */
+    byte[] streamed() {
+        return streamed.toByteArray();
+    }
+
+    /** Returns the bytes streamed to the raw response as UTF-8 text. */
+    String streamedText() {
+        return new String(streamed(), StandardCharsets.UTF_8);
+    }
+}
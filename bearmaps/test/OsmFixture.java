@@ -0,0 +1,75 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Builds a small street graph for a test from OSM XML, e.g.
+ * new OsmFixture().node(1, 0, 38).node(2, 0.01, 38).way(10, "highway=residential", 1, 2).
+ */
+class OsmFixture {
+    private final StringBuilder xml = new StringBuilder("<osm version=\"0.6\">\n");
+
+    /** Adds node ID at LON, LAT. */
+    OsmFixture node(long id, double lon, double lat) {
+        xml.append(String.format("<node id=\"%d\" lon=\"%s\" lat=\"%s\"/>%n", id, lon, lat));
+        return this;
+    }
+
+    /** Adds node ID at LON, LAT with a name, for search. The name may contain any character. */
+    OsmFixture node(long id, double lon, double lat, String name) {
+        xml.append(String.format("<node id=\"%d\" lon=\"%s\" lat=\"%s\">"
+                + "<tag k=\"name\" v=\"%s\"/></node>%n", id, lon, lat, escape(name)));
+        return this;
+    }
+
+    /**
+     * Adds way ID through NODES, with TAGS given as space separated key=value pairs, e.g.
+     * "highway=residential oneway=yes". A value may contain spaces, as in "maxspeed=30 mph",
+     * as long as no word after one contains an equals sign.
+     */
+    OsmFixture way(long id, String tags, long... nodes) {
+        xml.append(String.format("<way id=\"%d\">", id));
+        for (long node : nodes) {
+            xml.append(String.format("<nd ref=\"%d\"/>", node));
+        }
+        appendTags(tags);
+        xml.append(String.format("</way>%n"));
+        return this;
+    }
+
+    /** Adds a turn restriction of TYPE, e.g. no_left_turn, from way FROM via node VIA to TO. */
+    OsmFixture restriction(long id, String type, long from, long via, long to) {
+        xml.append(String.format("<relation id=\"%d\">"
+                + "<member type=\"way\" ref=\"%d\" role=\"from\"/>"
+                + "<member type=\"node\" ref=\"%d\" role=\"via\"/>"
+                + "<member type=\"way\" ref=\"%d\" role=\"to\"/>", id, from, via, to));
+        appendTags("type=restriction restriction=" + type);
+        xml.append(String.format("</relation>%n"));
+        return this;
+    }
+
+    /** Writes the XML to a temporary file and builds its graph. */
+    AugmentedStreetMapGraph build() throws IOException {
+        File file = File.createTempFile("fixture", ".osm.xml");
+        file.deleteOnExit();
+        Files.write(file.toPath(), (xml + "</osm>\n").getBytes(StandardCharsets.UTF_8));
+        return new AugmentedStreetMapGraph(file.getPath());
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace("\"", "&quot;");
+    }
+
+    private void appendTags(String tags) {
+        for (String tag : tags.split(" (?=[^ =]+=)")) {
+            int equals = tag.indexOf('=');
+            xml.append(String.format("<tag k=\"%s\" v=\"%s\"/>", tag.substring(0, equals),
+                    tag.substring(equals + 1)));
+        }
+    }
+}
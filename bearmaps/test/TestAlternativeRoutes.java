@@ -0,0 +1,150 @@
+package bearmaps.test;
+
+import bearmaps.hw4.AStarGraph;
+import bearmaps.hw4.WeightedEdge;
+import bearmaps.hw4.streetmap.CostModel;
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.proj2c.AlternativeRoutes;
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.Router;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that alternative routes are distinct from each other and no costlier than the stretch
+ * bound allows.
+ */
+public class TestAlternativeRoutes {
+    private static final double DELTA = 1e-9;
+
+    private static AugmentedStreetMapGraph graph;
+
+    /*
+     * Three roads join 1 and 9: straight along the bottom, a little longer over the top through
+     * 4 and 5, and far longer round through 6 and 7. The straight road has a small detour
+     * through 8, which differs from it too little to be an alternative.
+     *
+     *          6 ---------- 7
+     *         /              \
+     *        /   4 ------ 5   \
+     *       /  /            \  \
+     *      1 - 2 -- 8 -- 3 - 9
+     *             \_____/
+     */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new OsmFixture()
+                .node(1, 0.00, 38.000).node(2, 0.01, 38.000).node(3, 0.03, 38.000)
+                .node(9, 0.04, 38.000).node(8, 0.02, 38.0005)
+                .node(4, 0.01, 38.005).node(5, 0.03, 38.005)
+                .node(6, 0.01, 38.030).node(7, 0.03, 38.030)
+                .way(100, "highway=residential name=Bottom", 1, 2, 3, 9)
+                .way(101, "highway=residential name=Detour", 2, 8, 3)
+                .way(102, "highway=residential name=Top", 1, 4, 5, 9)
+                .way(103, "highway=residential name=Round", 1, 6, 7, 9)
+                .build();
+    }
+
+    @Test
+    public void testAlternativesAreDistinctAndWithinStretch() {
+        List<Long> shortest = Router.shortestPath(graph, 0.00, 38.00, 0.04, 38.00);
+        assertEquals(Arrays.asList(1L, 2L, 3L, 9L), shortest);
+        for (CostModel cost : CostModel.values()) {
+            AlternativeRoutes alternatives = Router.alternativeRoutes(graph, shortest,
+                    RoutingProfile.CAR, cost, 3);
+            List<List<Long>> routes = alternatives.routes();
+            List<Double> weights = alternatives.weights();
+            assertEquals(Arrays.asList(shortest, Arrays.asList(1L, 4L, 5L, 9L)), routes);
+            assertEquals(routes.size(), weights.size());
+
+            AStarGraph<Long> view = graph.withProfile(RoutingProfile.CAR, cost);
+            Set<List<Long>> distinct = new HashSet<>();
+            for (int i = 0; i < routes.size(); i += 1) {
+                List<Long> route = routes.get(i);
+                assertTrue(distinct.add(route));
+                assertEquals(1L, (long) route.get(0));
+                assertEquals(9L, (long) route.get(route.size() - 1));
+                assertEquals(weightOf(view, route), weights.get(i), DELTA);
+                assertTrue(weights.get(i) >= weights.get(0) - DELTA);
+                assertTrue(weights.get(i)
+                        <= (1 + AlternativeRoutes.MAX_STRETCH) * weights.get(0) + DELTA);
+                for (int j = 0; j < i; j += 1) {
+                    assertTrue(sharedWeight(view, route, routes.get(j))
+                            <= AlternativeRoutes.MAX_SHARING * weights.get(i) + DELTA);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMaxRoutes() {
+        List<Long> shortest = Router.shortestPath(graph, 0.00, 38.00, 0.04, 38.00);
+        AlternativeRoutes one = Router.alternativeRoutes(graph, shortest, RoutingProfile.CAR,
+                CostModel.DISTANCE, 1);
+        assertEquals(Arrays.asList(shortest), one.routes());
+        AlternativeRoutes none = Router.alternativeRoutes(graph, new ArrayList<>(),
+                RoutingProfile.CAR, CostModel.DISTANCE, 3);
+        assertTrue(none.routes().isEmpty());
+        assertTrue(none.weights().isEmpty());
+    }
+
+    @Test
+    public void testLongRouteIsNotAnAlternative() {
+        List<Long> shortest = Router.shortestPath(graph, 0.00, 38.00, 0.04, 38.00);
+        AlternativeRoutes alternatives = Router.alternativeRoutes(graph, shortest,
+                RoutingProfile.CAR, CostModel.DISTANCE, 10);
+        for (List<Long> route : alternatives.routes()) {
+            assertFalse(route.contains(6L));
+            assertFalse(route.contains(8L));
+        }
+    }
+
+    /** Returns the cost in VIEW of ROUTE, along the cheapest edge between each two vertices. */
+    private static double weightOf(AStarGraph<Long> view, List<Long> route) {
+        double weight = 0;
+        for (WeightedEdge<Long> e : edgesOf(view, route)) {
+            weight += view.weight(e);
+        }
+        return weight;
+    }
+
+    /** Returns the cost in VIEW of the edges ROUTE shares with OTHER. */
+    private static double sharedWeight(AStarGraph<Long> view, List<Long> route,
+                                       List<Long> other) {
+        Set<WeightedEdge<Long>> otherEdges = new HashSet<>(edgesOf(view, other));
+        double shared = 0;
+        for (WeightedEdge<Long> e : edgesOf(view, route)) {
+            if (otherEdges.contains(e)) {
+                shared += view.weight(e);
+            }
+        }
+        return shared;
+    }
+
+    private static List<WeightedEdge<Long>> edgesOf(AStarGraph<Long> view, List<Long> route) {
+        List<WeightedEdge<Long>> edges = new ArrayList<>();
+        for (int i = 0; i < route.size() - 1; i += 1) {
+            WeightedEdge<Long> best = null;
+            for (WeightedEdge<Long> e : view.neighbors(route.get(i))) {
+                if (e.to().equals(route.get(i + 1)) && view.isTraversable(e)
+                        && (best == null || view.weight(e) < view.weight(best))) {
+                    best = e;
+                }
+            }
+            assertNotNull(best);
+            edges.add(best);
+        }
+        return edges;
+    }
+}
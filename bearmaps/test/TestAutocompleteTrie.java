@@ -0,0 +1,97 @@
+package bearmaps.test;
+
+import org.junit.Test;
+import bearmaps.lab9.AutocompleteTrie;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Tests the precomputed top-k completions of AutocompleteTrie against a brute force search. */
+public class TestAutocompleteTrie {
+
+    @Test
+    public void testRankedByPopularity() {
+        Map<String, Double> scores = new HashMap<>();
+        scores.put("shattuck ave", 40.0);
+        scores.put("safeway", 12.0);
+        scores.put("starbucks", 12.0);
+        scores.put("sather gate", 1.0);
+        scores.put("telegraph ave", 30.0);
+        AutocompleteTrie trie = new AutocompleteTrie(scores, 2);
+
+        assertEquals(Arrays.asList("shattuck ave", "safeway"), trie.keysWithPrefix("s", 2));
+        assertEquals(Arrays.asList("shattuck ave", "safeway", "starbucks", "sather gate"),
+                trie.keysWithPrefix("s", -1));
+        assertEquals(Arrays.asList("safeway", "sather gate"), trie.keysWithPrefix("sa", 5));
+        assertEquals(new ArrayList<String>(), trie.keysWithPrefix("x", 5));
+        assertTrue(trie.contains("telegraph ave"));
+    }
+
+    @Test
+    public void testFuzzyPrefix() {
+        Map<String, Double> scores = new HashMap<>();
+        scores.put("telegraph ave", 30.0);
+        scores.put("telegraph channing mall", 2.0);
+        scores.put("tea press", 5.0);
+        scores.put("safeway", 12.0);
+        AutocompleteTrie trie = new AutocompleteTrie(scores, 4);
+
+        List<String> actual = new ArrayList<>();
+        for (int rank : trie.ranksWithinDistance("telgraph", 1, -1)) {
+            actual.add(trie.key(rank));
+        }
+        assertEquals(Arrays.asList("telegraph ave", "telegraph channing mall"), actual);
+
+        /* Exact prefix matches come before matches that needed an edit. */
+        actual.clear();
+        for (int rank : trie.ranksWithinDistance("tea", 1, -1)) {
+            actual.add(trie.key(rank));
+        }
+        assertEquals(Arrays.asList("tea press", "telegraph ave", "telegraph channing mall"),
+                actual);
+        assertEquals(0, trie.ranksWithinDistance("xyz", 1, -1).length);
+    }
+
+    @Test
+    public void testRandomAgainstBruteForce() {
+        Random r = new Random(61);
+        for (int trial = 0; trial < 20; trial += 1) {
+            Map<String, Double> scores = new HashMap<>();
+            for (int i = 0; i < 200; i += 1) {
+                StringBuilder sb = new StringBuilder();
+                int length = 1 + r.nextInt(5);
+                for (int j = 0; j < length; j += 1) {
+                    sb.append((char) ('a' + r.nextInt(3)));
+                }
+                scores.put(sb.toString(), (double) r.nextInt(8));
+            }
+            AutocompleteTrie trie = new AutocompleteTrie(scores, 4);
+
+            List<String> ranked = new ArrayList<>(scores.keySet());
+            ranked.sort((a, b) -> {
+                int cmp = Double.compare(scores.get(b), scores.get(a));
+                return cmp != 0 ? cmp : a.compareTo(b);
+            });
+
+            for (String prefix : new String[]{"a", "b", "ab", "cab", "abca"}) {
+                for (int limit : new int[]{1, 4, 9, -1}) {
+                    List<String> expected = new ArrayList<>();
+                    for (String key : ranked) {
+                        if (key.startsWith(prefix)
+                                && (limit < 0 || expected.size() < limit)) {
+                            expected.add(key);
+                        }
+                    }
+                    assertEquals(expected, trie.keysWithPrefix(prefix, limit));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.server.handler.APIRouteHandler;
+import bearmaps.proj2c.server.handler.impl.SearchAPIHandler;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import spark.Request;
+import spark.Response;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import static bearmaps.proj2c.utils.Constants.STREET_GRAPH;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that responses are gzipped exactly for the clients that accept it, and that a gzipped
+ * streamed response inflates to the plain one.
+ */
+public class TestCompression {
+    private static final int NUM_NAMES = 60;
+
+    private static AugmentedStreetMapGraph graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        OsmFixture fixture = new OsmFixture()
+                .node(1, 0.00, 38.00).node(2, 0.01, 38.00)
+                .way(100, "highway=residential", 1, 2);
+        for (int i = 0; i < NUM_NAMES; i += 1) {
+            fixture.node(1000 + i, 0.001 * i, 38.01, name(i));
+        }
+        graph = fixture.build();
+    }
+
+    /* Search tells names apart only by their letters. */
+    private static String name(int i) {
+        return "Top Dog " + (char) ('a' + i / 26) + (char) ('a' + i % 26);
+    }
+
+    /** The search handler, made to build its responses instead of streaming them. */
+    private static class BufferedSearchAPIHandler extends SearchAPIHandler {
+        @Override
+        protected boolean streamsJsonResponse() {
+            return false;
+        }
+    }
+
+    /** A handler whose responses are never compressed, like the raster handler's. */
+    private static class IncompressibleAPIHandler extends APIRouteHandler<Void, String> {
+        @Override
+        protected Void parseRequestParams(Request request) {
+            return null;
+        }
+
+        @Override
+        protected String processRequest(Void requestParams, Response response) {
+            StringBuilder png = new StringBuilder();
+            for (int i = 0; i < 1000; i += 1) {
+                png.append((char) ('A' + i % 26));
+            }
+            return png.toString();
+        }
+
+        @Override
+        protected boolean compressesJsonResponse() {
+            return false;
+        }
+    }
+
+    private static FakeRequest search(String term, String acceptEncoding) {
+        FakeRequest request = new FakeRequest("/search").param("term", term);
+        if (acceptEncoding != null) {
+            request.header("Accept-Encoding", acceptEncoding);
+        }
+        return request;
+    }
+
+    private static byte[] inflate(byte[] gzipped) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+            byte[] buffer = new byte[4096];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testStreamedResponseIsGzippedWhenAccepted() throws Exception {
+        STREET_GRAPH.set(graph, "compression");
+        FakeResponse plain = new FakeResponse();
+        new SearchAPIHandler().handle(search("top", null), plain);
+        assertNull(plain.header("Content-Encoding"));
+        assertEquals("Accept-Encoding", plain.header("Vary"));
+        assertTrue(plain.streamedText().contains(name(NUM_NAMES - 1)));
+
+        FakeResponse gzipped = new FakeResponse();
+        new SearchAPIHandler().handle(search("top", "deflate, gzip;q=0.8, br"), gzipped);
+        assertEquals("gzip", gzipped.header("Content-Encoding"));
+        assertEquals("Accept-Encoding", gzipped.header("Vary"));
+        assertTrue(gzipped.streamed().length < plain.streamed().length);
+        assertArrayEquals(plain.streamed(), inflate(gzipped.streamed()));
+
+        FakeResponse other = new FakeResponse();
+        new SearchAPIHandler().handle(search("top", "deflate, br"), other);
+        assertNull(other.header("Content-Encoding"));
+        assertArrayEquals(plain.streamed(), other.streamed());
+    }
+
+    @Test
+    public void testBuiltResponseIsGzippedOnlyWhenLarge() throws Exception {
+        STREET_GRAPH.set(graph, "compression");
+        FakeResponse large = new FakeResponse();
+        Object body = new BufferedSearchAPIHandler().handle(search("top", "gzip"), large);
+        assertTrue(((String) body).length() >= 512);
+        /* Spark compresses a returned body itself, once it sees the header. */
+        assertEquals("gzip", large.header("Content-Encoding"));
+        assertEquals("Accept-Encoding", large.header("Vary"));
+
+        FakeResponse notAccepted = new FakeResponse();
+        new BufferedSearchAPIHandler().handle(search("top", null), notAccepted);
+        assertNull(notAccepted.header("Content-Encoding"));
+
+        FakeResponse small = new FakeResponse();
+        body = new BufferedSearchAPIHandler().handle(search(name(1), "gzip"), small);
+        assertTrue(((String) body).length() < 512);
+        assertNull(small.header("Content-Encoding"));
+        assertEquals("Accept-Encoding", small.header("Vary"));
+    }
+
+    @Test
+    public void testOptedOutResponseIsNeverGzipped() throws Exception {
+        FakeResponse response = new FakeResponse();
+        new IncompressibleAPIHandler().handle(new FakeRequest("/png")
+                .header("Accept-Encoding", "gzip"), response);
+        assertNull(response.header("Content-Encoding"));
+        assertNull(response.header("Vary"));
+    }
+}
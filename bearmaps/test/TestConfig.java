@@ -0,0 +1,51 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.Router;
+import bearmaps.proj2c.utils.Config;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that settings are read from system properties, parsed, and default when not set.
+ */
+public class TestConfig {
+
+    @After
+    public void tearDown() {
+        System.clearProperty("bearmaps.test.threads");
+        System.clearProperty("bearmaps.test.solver");
+    }
+
+    @Test
+    public void testDefaultsWhenNotSet() {
+        assertEquals("none", Config.get("test.path", "none"));
+        assertEquals(8, Config.getInt("test.threads", 8));
+        assertEquals(1.5, Config.getDouble("test.seconds", 1.5), 0);
+        assertEquals(Router.Solver.ASTAR, Config.getEnum("test.solver", Router.Solver.class,
+                Router.Solver.ASTAR));
+    }
+
+    @Test
+    public void testSystemProperties() {
+        System.setProperty("bearmaps.test.threads", " 64 ");
+        System.setProperty("bearmaps.test.solver", "Dijkstra");
+        assertEquals(64, Config.getInt("test.threads", 8));
+        assertEquals(64L, Config.getLong("test.threads", 8));
+        assertEquals(Router.Solver.DIJKSTRA, Config.getEnum("test.solver", Router.Solver.class,
+                Router.Solver.ASTAR));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotANumber() {
+        System.setProperty("bearmaps.test.threads", "many");
+        Config.getInt("test.threads", 8);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoSuchSolver() {
+        System.setProperty("bearmaps.test.solver", "bellman-ford");
+        Config.getEnum("test.solver", Router.Solver.class, Router.Solver.ASTAR);
+    }
+}
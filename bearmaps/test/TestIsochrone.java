@@ -0,0 +1,236 @@
+package bearmaps.test;
+
+import bearmaps.hw4.streetmap.CompactGraph;
+import bearmaps.hw4.streetmap.CostModel;
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.Isochrone;
+import bearmaps.proj2c.server.handler.impl.IsochroneAPIHandler;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import spark.HaltException;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static bearmaps.proj2c.utils.Constants.STREET_GRAPH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks isochrones against a brute force search, the orientation of their rings, and that
+ * the handler rejects bad limits and answers with no polygons when nothing is reachable.
+ */
+public class TestIsochrone {
+    private static final int GRID = 5;
+    private static final double SPACING = 0.01;
+
+    private static AugmentedStreetMapGraph graph;
+    private static AugmentedStreetMapGraph motorway;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        /* A grid of residential streets whose bottom row is one way east, and apart from it a
+           square ring road with nothing inside. */
+        OsmFixture fixture = new OsmFixture();
+        for (int r = 0; r < GRID; r += 1) {
+            for (int c = 0; c < GRID; c += 1) {
+                fixture.node(gridNode(r, c), SPACING * c, 38 + SPACING * r);
+            }
+        }
+        for (int i = 0; i < GRID; i += 1) {
+            long[] row = new long[GRID];
+            long[] column = new long[GRID];
+            for (int j = 0; j < GRID; j += 1) {
+                row[j] = gridNode(i, j);
+                column[j] = gridNode(j, i);
+            }
+            fixture.way(200 + i, i == 0 ? "highway=residential oneway=yes"
+                    : "highway=residential", row);
+            fixture.way(300 + i, "highway=residential", column);
+        }
+        fixture.node(1, 1.00, 38.00).node(2, 1.02, 38.00)
+                .node(3, 1.02, 38.02).node(4, 1.00, 38.02)
+                .way(400, "highway=residential", 1, 2, 3, 4, 1);
+        graph = fixture.build();
+
+        motorway = new OsmFixture()
+                .node(1, 0.00, 38.00).node(2, 0.01, 38.00)
+                .way(100, "highway=motorway", 1, 2).build();
+    }
+
+    private static long gridNode(int r, int c) {
+        return 100 + 10 * r + c;
+    }
+
+    @Test
+    public void testReachableWithinLimit() {
+        CompactGraph compact = graph.compact(RoutingProfile.CAR, CostModel.DISTANCE);
+        for (long sourceId : new long[]{gridNode(0, 2), gridNode(2, 2), gridNode(4, 0)}) {
+            int source = compact.index(sourceId);
+            double[] expected = dijkstra(compact, source);
+            for (double limit : new double[]{0.5, 1.2, 2.5, 100}) {
+                Isochrone isochrone = new Isochrone(compact, source, limit,
+                        Isochrone.DEFAULT_CELL_DEGREES);
+                double[] found = new double[compact.numVertices()];
+                Arrays.fill(found, Double.POSITIVE_INFINITY);
+                for (int i = 0; i < isochrone.size(); i += 1) {
+                    found[isochrone.vertex(i)] = isochrone.cost(i);
+                    assertTrue(i == 0 || isochrone.cost(i - 1) <= isochrone.cost(i));
+                }
+                for (int v = 0; v < compact.numVertices(); v += 1) {
+                    if (expected[v] <= limit) {
+                        assertEquals(expected[v], found[v], 1e-9);
+                    } else {
+                        assertEquals(Double.POSITIVE_INFINITY, found[v], 0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOneWayLimitsReach() {
+        CompactGraph compact = graph.compact(RoutingProfile.CAR, CostModel.DISTANCE);
+        /* Going west along the bottom row needs a detour through the row above. */
+        double[] fromEast = dijkstra(compact, compact.index(gridNode(0, 1)));
+        double[] fromWest = dijkstra(compact, compact.index(gridNode(0, 0)));
+        assertTrue(fromEast[compact.index(gridNode(0, 0))]
+                > fromWest[compact.index(gridNode(0, 1))] + 1);
+    }
+
+    @Test
+    public void testRingHasCounterclockwiseExteriorAndClockwiseHole() {
+        CompactGraph compact = graph.compact(RoutingProfile.CAR, CostModel.DISTANCE);
+        Isochrone isochrone = new Isochrone(compact, compact.index(1), 100,
+                Isochrone.DEFAULT_CELL_DEGREES);
+        assertEquals(4, isochrone.size());
+        List<List<List<double[]>>> polygons = isochrone.polygons();
+        assertEquals(1, polygons.size());
+        List<List<double[]>> rings = polygons.get(0);
+        assertEquals(2, rings.size());
+        for (List<double[]> ring : rings) {
+            assertTrue(ring.size() >= 5);
+            assertTrue(Arrays.equals(ring.get(0), ring.get(ring.size() - 1)));
+        }
+        assertTrue(signedArea(rings.get(0)) > 0);
+        assertTrue(signedArea(rings.get(1)) < 0);
+        /* The hole is most of the square's inside, and every vertex is outside it. */
+        assertTrue(-signedArea(rings.get(1)) > 0.5 * 0.02 * 0.02);
+        assertTrue(contains(rings.get(1), 1.01, 38.01));
+        for (int i = 0; i < isochrone.size(); i += 1) {
+            int v = isochrone.vertex(i);
+            assertTrue(contains(rings.get(0), compact.lon(v), compact.lat(v)));
+            assertFalse(contains(rings.get(1), compact.lon(v), compact.lat(v)));
+        }
+    }
+
+    @Test
+    public void testZeroLimitReachesOnlySource() {
+        CompactGraph compact = graph.compact(RoutingProfile.CAR, CostModel.DISTANCE);
+        Isochrone isochrone = new Isochrone(compact, compact.index(gridNode(2, 2)), 0,
+                Isochrone.DEFAULT_CELL_DEGREES);
+        assertEquals(1, isochrone.size());
+        assertEquals(0, isochrone.cost(0), 0);
+        assertEquals(1, isochrone.polygons().size());
+    }
+
+    @Test
+    public void testNoSourceReachesNothing() {
+        CompactGraph compact = motorway.compact(RoutingProfile.WALK, CostModel.DISTANCE);
+        assertEquals(-1, motorway.closest(0, 38, RoutingProfile.WALK));
+        assertEquals(-1, compact.index(-1));
+        Isochrone isochrone = new Isochrone(compact, -1, 10, Isochrone.DEFAULT_CELL_DEGREES);
+        assertEquals(0, isochrone.size());
+        assertTrue(isochrone.polygons().isEmpty());
+    }
+
+    @Test
+    public void testHandlerAnswersEmptyFeatureWhenProfileCannotLeave() throws Exception {
+        STREET_GRAPH.set(motorway, "motorway");
+        Object body = new IsochroneAPIHandler().handle(new FakeRequest("/isochrone")
+                .param("lon", 0).param("lat", 38).param("limit", 10).param("profile", "walk"),
+                new FakeResponse());
+        JsonObject feature = JsonParser.parseString(body.toString()).getAsJsonObject();
+        assertEquals("Feature", feature.get("type").getAsString());
+        JsonObject geometry = feature.getAsJsonObject("geometry");
+        assertEquals("MultiPolygon", geometry.get("type").getAsString());
+        assertEquals(0, geometry.getAsJsonArray("coordinates").size());
+        assertEquals(0, feature.getAsJsonObject("properties").get("reachable").getAsInt());
+    }
+
+    @Test
+    public void testHandlerRejectsBadLimitsAndCells() throws Exception {
+        STREET_GRAPH.set(graph, "grid");
+        for (String limit : new String[]{"0", "-1", "NaN", "Infinity", "ten"}) {
+            assertHalts(new FakeRequest("/isochrone")
+                    .param("lon", 0.02).param("lat", 38.02).param("limit", limit));
+        }
+        for (String cell : new String[]{"0", "-0.001", "NaN", "Infinity"}) {
+            assertHalts(new FakeRequest("/isochrone")
+                    .param("lon", 0.02).param("lat", 38.02).param("limit", 1)
+                    .param("cell", cell));
+        }
+    }
+
+    private static void assertHalts(FakeRequest request) throws Exception {
+        try {
+            new IsochroneAPIHandler().handle(request, new FakeResponse());
+            fail("expected a halt for " + request.queryParams("limit") + ", "
+                    + request.queryParams("cell"));
+        } catch (HaltException e) {
+            assertEquals(403, e.statusCode());
+        }
+    }
+
+    /** Returns the cost of the cheapest path from SOURCE to every vertex, by brute force. */
+    private static double[] dijkstra(CompactGraph compact, int source) {
+        int n = compact.numVertices();
+        double[] distTo = new double[n];
+        boolean[] done = new boolean[n];
+        Arrays.fill(distTo, Double.POSITIVE_INFINITY);
+        distTo[source] = 0;
+        for (int round = 0; round < n; round += 1) {
+            int v = -1;
+            for (int w = 0; w < n; w += 1) {
+                if (!done[w] && (v < 0 || distTo[w] < distTo[v])) {
+                    v = w;
+                }
+            }
+            if (distTo[v] == Double.POSITIVE_INFINITY) {
+                break;
+            }
+            done[v] = true;
+            for (int slot = compact.edgeStart(v); slot < compact.edgeEnd(v); slot += 1) {
+                int w = compact.head(slot);
+                distTo[w] = Math.min(distTo[w], distTo[v] + compact.weight(slot));
+            }
+        }
+        return distTo;
+    }
+
+    private static double signedArea(List<double[]> ring) {
+        double area = 0;
+        for (int i = 0; i + 1 < ring.size(); i += 1) {
+            area += ring.get(i)[0] * ring.get(i + 1)[1] - ring.get(i + 1)[0] * ring.get(i)[1];
+        }
+        return area / 2;
+    }
+
+    private static boolean contains(List<double[]> ring, double x, double y) {
+        boolean inside = false;
+        for (int i = 0, j = ring.size() - 2; i + 1 < ring.size(); j = i, i += 1) {
+            double[] a = ring.get(i);
+            double[] b = ring.get(j);
+            if ((a[1] > y) != (b[1] > y)
+                    && x < (b[0] - a[0]) * (y - a[1]) / (b[1] - a[1]) + a[0]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+}
@@ -0,0 +1,66 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+
+import static bearmaps.proj2c.AugmentedStreetMapGraph.AUTOCOMPLETE_TOP_K;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that geo-ranked autocomplete gives the same ranking whether it scores every matching
+ * name directly or walks named locations out from the point.
+ */
+public class TestLocationsByPrefixNear {
+    /* More cafes than AUTOCOMPLETE_TOP_K, so some queries have to walk the spatial index. */
+    private static final int NUM_CAFES = 3 * AUTOCOMPLETE_TOP_K;
+
+    private static AugmentedStreetMapGraph graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        OsmFixture fixture = new OsmFixture()
+                .node(1, 0.00, 38.00).node(2, 0.10, 38.00)
+                .way(100, "highway=residential", 1, 2);
+        for (int i = 0; i < NUM_CAFES; i += 1) {
+            double lon = 0.001 * ((i * 7) % NUM_CAFES);
+            double lat = 38 + 0.0013 * ((i * 11) % NUM_CAFES);
+            fixture.node(1000 + i, lon, lat, cafe(i));
+        }
+        fixture.node(2000, 0.02, 38.02, "Bar");
+        graph = fixture.build();
+    }
+
+    private static String cafe(int i) {
+        return "Cafe " + (char) ('a' + i / 26) + (char) ('a' + i % 26);
+    }
+
+    @Test
+    public void testWalkAgreesWithDirectScores() {
+        double lon = 0.013;
+        double lat = 38.021;
+        /* More than match, so every cafe is scored directly. */
+        List<String> all = graph.getLocationsByPrefixNear("caf", lon, lat, 2 * NUM_CAFES);
+        assertEquals(NUM_CAFES, all.size());
+        assertEquals(NUM_CAFES, new HashSet<>(all).size());
+        for (String name : all) {
+            assertTrue(name.startsWith("Cafe "));
+        }
+        for (int limit : new int[]{1, 5, AUTOCOMPLETE_TOP_K, AUTOCOMPLETE_TOP_K + 1,
+                                   NUM_CAFES - 1, NUM_CAFES}) {
+            assertEquals(all.subList(0, limit),
+                    graph.getLocationsByPrefixNear("caf", lon, lat, limit));
+        }
+    }
+
+    @Test
+    public void testFewMatches() {
+        assertEquals(1, graph.getLocationsByPrefixNear("ba", 0, 38, 2 * NUM_CAFES).size());
+        assertTrue(graph.getLocationsByPrefixNear("tea", 0, 38, 2 * NUM_CAFES).isEmpty());
+        assertTrue(graph.getLocationsByPrefixNear("caf", 0, 38, 0).isEmpty());
+    }
+}
@@ -0,0 +1,65 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the search responses serialized when the graph is built are the bytes Gson
+ * would give for the same locations, whatever characters the names contain.
+ */
+public class TestLocationsJson {
+    private static final String[] NAMES = {
+        "Top Dog",
+        "Joe's \"Famous\" Diner",
+        "Back\\slash <&> Bar",
+        "Caf\u00e9 Z\u00fcrich",
+        "\u6771\u4eac Sushi \ud83c\udf63",
+        "Line\u2028Separator Cafe",
+    };
+
+    private static AugmentedStreetMapGraph graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        OsmFixture fixture = new OsmFixture()
+                .node(1, 0.00, 38.00).node(2, 0.10, 38.00)
+                .way(100, "highway=residential", 1, 2);
+        for (int i = 0; i < NAMES.length; i += 1) {
+            fixture.node(1000 + i, 0.001 * i, 38.01, NAMES[i]);
+        }
+        /* A second Top Dog, so one response has two locations. */
+        fixture.node(2000, 0.05, 38.02, "Top Dog");
+        graph = fixture.build();
+    }
+
+    @Test
+    public void testCachedJsonIsGsonJson() {
+        Gson gson = new Gson();
+        for (String name : NAMES) {
+            byte[] cached = graph.getLocationsJson(name);
+            assertArrayEquals(name, gson.toJson(graph.getLocations(name))
+                    .getBytes(StandardCharsets.UTF_8), cached);
+            JsonArray locations = JsonParser.parseString(
+                    new String(cached, StandardCharsets.UTF_8)).getAsJsonArray();
+            assertEquals(name, locations.get(0).getAsJsonObject().get("name").getAsString());
+        }
+        assertEquals(2, JsonParser.parseString(new String(graph.getLocationsJson("top dog"),
+                StandardCharsets.UTF_8)).getAsJsonArray().size());
+    }
+
+    @Test
+    public void testUnknownNameIsEmptyArray() {
+        assertArrayEquals("[]".getBytes(StandardCharsets.UTF_8),
+                graph.getLocationsJson("Nowhere"));
+        assertEquals("[]", new Gson().toJson(graph.getLocations("Nowhere")));
+    }
+}
@@ -0,0 +1,113 @@
+package bearmaps.test;
+
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.MapMatcher;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a noisy GPS trace along a known route through a grid of streets is matched back
+ * to that route.
+ */
+public class TestMapMatcher {
+    /* Grid points are this many degrees apart, and streets this many grid points apart. */
+    private static final double STEP = 0.0005;
+    private static final int BLOCK = 4;
+    private static final int SIZE = 5 * BLOCK;
+    private static final double LON = 0.2;
+    private static final double LAT = 38;
+
+    private static AugmentedStreetMapGraph graph;
+    /*
+     * East along the bottom street, then north up the fifth street, each way one grid point
+     * beyond where the trace starts and ends, at grid points 2 and 14 of the two streets.
+     */
+    private static List<Long> route = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        OsmFixture fixture = new OsmFixture();
+        for (int a = 0; a <= SIZE; a += 1) {
+            for (int b = 0; b <= SIZE; b += 1) {
+                if (a % BLOCK == 0 || b % BLOCK == 0) {
+                    fixture.node(id(a, b), LON + a * STEP, LAT + b * STEP);
+                }
+            }
+        }
+        for (int k = 0; k <= SIZE; k += BLOCK) {
+            long[] east = new long[SIZE + 1];
+            long[] north = new long[SIZE + 1];
+            for (int m = 0; m <= SIZE; m += 1) {
+                east[m] = id(m, k);
+                north[m] = id(k, m);
+            }
+            fixture.way(1000 + k, "highway=residential", east)
+                    .way(2000 + k, "highway=residential", north);
+        }
+        graph = fixture.build();
+
+        for (int a = 1; a < 4 * BLOCK; a += 1) {
+            route.add(id(a, 0));
+        }
+        for (int b = 0; b < 4 * BLOCK; b += 1) {
+            route.add(id(4 * BLOCK, b));
+        }
+    }
+
+    private static long id(int a, int b) {
+        return 1 + 100 * a + b;
+    }
+
+    @Test
+    public void testNoisyTraceMatchesRoute() {
+        Random random = new Random(38);
+        /* About 15 m of noise, and a fix about every 30 m. */
+        double noise = 0.00015;
+        double spacing = 0.0003;
+        for (int trial = 0; trial < 10; trial += 1) {
+            MapMatcher matcher = new MapMatcher(graph, RoutingProfile.CAR);
+            List<MapMatcher.Match> matches = new ArrayList<>();
+            int fixes = 0;
+            double length = (8 * BLOCK - 4) * STEP;
+            for (double d = 0; d <= length; d += spacing) {
+                double along = 2 * STEP + Math.min(d, (4 * BLOCK - 2) * STEP);
+                double up = Math.max(0, d - (4 * BLOCK - 2) * STEP);
+                matches.addAll(matcher.add(LON + along + random.nextGaussian() * noise,
+                        LAT + up + random.nextGaussian() * noise));
+                fixes += 1;
+            }
+            matches.addAll(matcher.finish());
+            assertEquals(fixes, matches.size());
+
+            List<Long> matched = new ArrayList<>();
+            matched.add(matches.get(0).vertex());
+            assertFalse(matches.get(0).isConnected());
+            for (int i = 1; i < matches.size(); i += 1) {
+                MapMatcher.Match match = matches.get(i);
+                assertEquals(i, match.index());
+                assertTrue(match.isConnected());
+                for (long v : match.path()) {
+                    /* Fixes matched to the same vertex add nothing to the route. */
+                    if (v != matched.get(matched.size() - 1)) {
+                        matched.add(v);
+                    }
+                }
+            }
+            /* The first and last fixes are matched to the closest grid point or a neighbor. */
+            int first = route.indexOf(matched.get(0));
+            int last = route.indexOf(matched.get(matched.size() - 1));
+            assertTrue(first >= 0 && first <= 2);
+            assertTrue(last >= route.size() - 3 && last < route.size());
+            assertEquals(route.subList(first, last + 1), matched);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.metrics.Histogram;
+import bearmaps.proj2c.metrics.Metrics;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the percentiles histograms estimate, and the Prometheus text the metrics are exported
+ * as. Metrics are process-wide, so each test records under names or labels of its own.
+ */
+public class TestMetrics {
+
+    @Test
+    public void testEmptyHistogram() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.count());
+        assertEquals(0, h.sum());
+        assertEquals(0, h.max());
+        assertEquals(0, h.percentile(0.5));
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        Histogram h = new Histogram();
+        for (int v = 0; v < 16; v += 1) {
+            h.record(v);
+        }
+        assertEquals(16, h.count());
+        assertEquals(120, h.sum());
+        assertEquals(15, h.max());
+        assertEquals(0, h.percentile(0));
+        assertEquals(0, h.percentile(1.0 / 16));
+        assertEquals(7, h.percentile(0.5));
+        assertEquals(11, h.percentile(0.75));
+        assertEquals(15, h.percentile(1));
+    }
+
+    @Test
+    public void testNegativeValuesAreZero() {
+        Histogram h = new Histogram();
+        h.record(-5);
+        assertEquals(0, h.sum());
+        assertEquals(0, h.percentile(1));
+    }
+
+    @Test
+    public void testLargeValuesWithinOneSixteenth() {
+        Histogram h = new Histogram();
+        for (long v = 1; v <= 100000; v += 1) {
+            h.record(v);
+        }
+        for (double q : new double[]{0.01, 0.25, 0.5, 0.9, 0.99, 0.999}) {
+            long exact = (long) Math.ceil(q * 100000);
+            long estimate = h.percentile(q);
+            assertTrue(q + ": " + estimate, estimate >= exact);
+            assertTrue(q + ": " + estimate, estimate <= exact + exact / 16);
+        }
+        assertEquals(100000, h.percentile(1));
+        assertEquals(100000L * 100001 / 2, h.sum());
+    }
+
+    @Test
+    public void testPercentileNeverAboveMax() {
+        Histogram h = new Histogram();
+        long[] values = {1L << 40, (1L << 40) + 1, Long.MAX_VALUE / 4};
+        for (long v : values) {
+            h.record(v);
+        }
+        /* Both of the smaller values are in the bucket of width 2^36 starting at 2^40. */
+        long estimate = h.percentile(1.0 / 3);
+        assertTrue(estimate >= (1L << 40) + 1);
+        assertTrue(estimate < (1L << 40) + (1L << 36));
+        assertEquals(Long.MAX_VALUE / 4, h.percentile(1));
+        assertEquals(Long.MAX_VALUE / 4, h.max());
+    }
+
+    @Test
+    public void testPrometheusSummaryInSeconds() throws IOException {
+        Metrics.histogram(Metrics.REQUEST_SECONDS, "phase", "test_summary").record(2000000000L);
+        List<String> lines = export();
+        String name = Metrics.REQUEST_SECONDS;
+        int help = lines.indexOf("# HELP " + name + " Time spent in each phase of an API "
+                + "request.");
+        assertTrue(help >= 0);
+        assertEquals("# TYPE " + name + " summary", lines.get(help + 1));
+        for (String q : new String[]{"0.5", "0.9", "0.99", "0.999"}) {
+            assertTrue(lines.contains(name + "{phase=\"test_summary\",quantile=\"" + q
+                    + "\"} 2.0"));
+        }
+        assertTrue(lines.contains(name + "_sum{phase=\"test_summary\"} 2.0"));
+        assertTrue(lines.contains(name + "_count{phase=\"test_summary\"} 1"));
+    }
+
+    @Test
+    public void testPrometheusCounters() throws IOException {
+        Metrics.counter("bearmaps_test_plain_total").add(3);
+        Metrics.counter("bearmaps_test_labelled_total", "endpoint", "/a\"b\\c\nd").increment();
+        Metrics.histogram("bearmaps_test_sizes").record(100);
+        List<String> lines = export();
+        /* Metrics that are not described have a type but no help. */
+        int type = lines.indexOf("# TYPE bearmaps_test_plain_total counter");
+        assertTrue(type >= 0);
+        assertFalse(lines.get(type - 1).startsWith("# HELP bearmaps_test_plain_total"));
+        assertEquals("bearmaps_test_plain_total 3", lines.get(type + 1));
+        assertTrue(lines.contains(
+                "bearmaps_test_labelled_total{endpoint=\"/a\\\"b\\\\c\\nd\"} 1"));
+        assertTrue(lines.contains("bearmaps_test_sizes_sum 100.0"));
+        assertTrue(lines.contains("bearmaps_test_sizes{quantile=\"0.5\"} 100.0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLabelsMustBePairs() {
+        Metrics.counter("bearmaps_test_odd_total", "endpoint");
+    }
+
+    private static List<String> export() throws IOException {
+        StringWriter out = new StringWriter();
+        Metrics.writePrometheus(out);
+        assertTrue(out.toString().endsWith("\n"));
+        return Arrays.asList(out.toString().split("\n"));
+    }
+}
@@ -0,0 +1,139 @@
+package bearmaps.test;
+
+import bearmaps.hw4.streetmap.CostModel;
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.Router;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that cars keep to one-way streets and turn restrictions, and that pedestrians do not
+ * have to.
+ */
+public class TestOneWayAndTurns {
+    private static AugmentedStreetMapGraph graph;
+
+    /*
+     * Main Street runs one way east from 1 to 3, and Hill Street goes round it through 6:
+     *
+     *        6
+     *      /   \
+     *     1 -> 2 -> 3
+     *
+     * North Street may not be turned left into from West Street at 20. Cars coming from 21
+     * turn round at 23 and come back through 20, which is shorter than the loop through 24:
+     *
+     *          22 ------ 24
+     *          |        /
+     *    21 - 20 -- 23
+     *
+     * Cross Street runs unsplit from 51 through 50 to 52, and Side Street ends at 50. Left
+     * turns from Side Street onto Cross Street and from Cross Street onto Side Street are
+     * barred, and Bend Street goes round them. Ave runs unsplit from 61 through 60 to 62, and
+     * from Stub Street only the left turn onto Ave is allowed, with Ring Street round it:
+     *
+     *         53 ---- 55          66 -- 63 -- 65
+     *         |      /            |     |     |
+     *    51 - 50 - 52             61 - 60 -- 62
+     */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new OsmFixture()
+                .node(1, 0.00, 38.00).node(2, 0.01, 38.00).node(3, 0.02, 38.00)
+                .node(6, 0.01, 38.01)
+                .way(100, "highway=residential name=Main oneway=yes", 1, 2, 3)
+                .way(101, "highway=residential name=Hill", 1, 6, 3)
+                .node(20, 0.10, 38.00).node(21, 0.09, 38.00).node(22, 0.10, 38.01)
+                .node(23, 0.11, 38.00).node(24, 0.12, 38.01)
+                .way(200, "highway=residential name=West", 21, 20)
+                .way(201, "highway=residential name=North", 20, 22)
+                .way(202, "highway=residential name=East", 20, 23)
+                .way(203, "highway=residential name=Loop", 23, 24, 22)
+                .restriction(300, "no_left_turn", 200, 20, 201)
+                .node(50, 0.20, 38.00).node(51, 0.19, 38.00).node(52, 0.21, 38.00)
+                .node(53, 0.20, 38.01).node(55, 0.215, 38.012)
+                .way(500, "highway=residential name=Cross", 51, 50, 52)
+                .way(501, "highway=residential name=Side", 53, 50)
+                .way(502, "highway=residential name=Bend", 53, 55, 52)
+                .restriction(510, "no_left_turn", 501, 50, 500)
+                .restriction(511, "no_left_turn", 500, 50, 501)
+                .node(60, 0.30, 38.00).node(61, 0.29, 38.00).node(62, 0.31, 38.00)
+                .node(63, 0.30, 38.01).node(65, 0.32, 38.02).node(66, 0.285, 38.012)
+                .way(600, "highway=residential name=Ave", 61, 60, 62)
+                .way(601, "highway=residential name=Stub", 63, 60)
+                .way(602, "highway=residential name=Ring", 61, 66, 63, 65, 62)
+                .restriction(610, "only_left_turn", 601, 60, 600)
+                .build();
+    }
+
+    @Test
+    public void testCarsFollowOneWayStreets() {
+        assertEquals(Arrays.asList(1L, 2L, 3L), route(0.00, 0.02, RoutingProfile.CAR));
+        assertEquals(Arrays.asList(3L, 6L, 1L), route(0.02, 0.00, RoutingProfile.CAR));
+    }
+
+    @Test
+    public void testPedestriansWalkAgainstOneWayStreets() {
+        assertEquals(Arrays.asList(3L, 2L, 1L), route(0.02, 0.00, RoutingProfile.WALK));
+    }
+
+    @Test
+    public void testCarsKeepToTurnRestrictions() {
+        /* Passing through 20 twice, which a search keyed only by vertex could not. */
+        assertEquals(Arrays.asList(21L, 20L, 23L, 20L, 22L),
+                Router.shortestPath(graph, 0.09, 38.00, 0.10, 38.01, RoutingProfile.CAR,
+                        CostModel.DISTANCE, null));
+        /* The restriction only binds turns from West Street. */
+        assertEquals(Arrays.asList(23L, 20L, 22L),
+                Router.shortestPath(graph, 0.11, 38.00, 0.10, 38.01, RoutingProfile.CAR,
+                        CostModel.DISTANCE, null));
+        assertEquals(Arrays.asList(21L, 20L, 22L),
+                Router.shortestPath(graph, 0.09, 38.00, 0.10, 38.01, RoutingProfile.WALK,
+                        CostModel.DISTANCE, null));
+    }
+
+    @Test
+    public void testRestrictionsOnUnsplitWaysBindOneTurn() {
+        /* From Side Street, left onto Cross Street is barred, but right is not. */
+        assertEquals(Arrays.asList(53L, 55L, 52L), carRoute(0.20, 38.01, 0.21, 38.00));
+        assertEquals(Arrays.asList(53L, 50L, 51L), carRoute(0.20, 38.01, 0.19, 38.00));
+        /* Along Cross Street, only the left turn onto Side Street is barred, so cars from 51
+         * turn round at 52 and turn right from there. */
+        assertEquals(Arrays.asList(51L, 50L, 52L, 50L, 53L),
+                carRoute(0.19, 38.00, 0.20, 38.01));
+        assertEquals(Arrays.asList(52L, 50L, 53L), carRoute(0.21, 38.00, 0.20, 38.01));
+        /* From Stub Street, only the left turn onto Ave is allowed. */
+        assertEquals(Arrays.asList(63L, 60L, 62L), carRoute(0.30, 38.01, 0.31, 38.00));
+        assertEquals(Arrays.asList(63L, 66L, 61L), carRoute(0.30, 38.01, 0.29, 38.00));
+        /* The restriction does not bind turns from Ave. */
+        assertEquals(Arrays.asList(61L, 60L, 63L), carRoute(0.29, 38.00, 0.30, 38.01));
+    }
+
+    @Test
+    public void testShortestPathWithoutProfileIgnoresRestrictions() {
+        /* As routes were found before one-way streets and turn restrictions were read. */
+        assertEquals(Arrays.asList(3L, 2L, 1L), Router.shortestPath(graph, 0.02, 38.00,
+                0.00, 38.00));
+        assertEquals(Arrays.asList(21L, 20L, 22L), Router.shortestPath(graph, 0.09, 38.00,
+                0.10, 38.01));
+    }
+
+    /** Returns the shortest driving route between the two points. */
+    private static List<Long> carRoute(double startLon, double startLat, double endLon,
+                                       double endLat) {
+        return Router.shortestPath(graph, startLon, startLat, endLon, endLat,
+                RoutingProfile.CAR, CostModel.DISTANCE, null);
+    }
+
+    /** Returns the route for PROFILE along latitude 38 from STARTLON to ENDLON. */
+    private static List<Long> route(double startLon, double endLon, RoutingProfile profile) {
+        return Router.shortestPath(graph, startLon, 38.00, endLon, 38.00, profile,
+                CostModel.DISTANCE, null);
+    }
+}
@@ -0,0 +1,144 @@
+package bearmaps.test;
+
+import bearmaps.proj2ab.GridPointSet;
+import bearmaps.proj2ab.KDTree;
+import bearmaps.proj2ab.Point;
+import bearmaps.proj2ab.PointSet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests GridPointSet and KDTree against a brute force search. See PointSetBenchmark for their
+ * speed.
+ */
+public class TestPointSets {
+    private static Point naiveNearest(List<Point> points, double x, double y) {
+        Point goal = new Point(x, y);
+        Point best = null;
+        for (Point p : points) {
+            if (best == null || Point.distance(goal, p) < Point.distance(goal, best)) {
+                best = p;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Asserts that SET finds a point as close as the closest, for goals in and around the
+     * points.
+     */
+    private static void assertNearestMatchesNaive(List<Point> points, PointSet set, Random r) {
+        for (int i = 0; i < 1000; i += 1) {
+            /* Some goals are well outside the bounding box of the points. */
+            double x = -122.35 + r.nextDouble() * 0.3;
+            double y = 37.80 + r.nextDouble() * 0.3;
+            Point goal = new Point(x, y);
+            assertEquals(Point.distance(goal, naiveNearest(points, x, y)),
+                    Point.distance(goal, set.nearest(x, y)), 0);
+        }
+    }
+
+    @Test
+    public void testUniformPoints() {
+        Random r = new Random(61);
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < 5000; i += 1) {
+            points.add(new Point(-122.30 + r.nextDouble() * 0.1, 37.84 + r.nextDouble() * 0.1));
+        }
+        assertNearestMatchesNaive(points, new GridPointSet(points), r);
+    }
+
+    @Test
+    public void testClusteredAndDuplicatePoints() {
+        Random r = new Random(62);
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < 5000; i += 1) {
+            double center = i % 2 == 0 ? -122.28 : -122.22;
+            points.add(new Point(center + r.nextGaussian() * 0.002,
+                    37.87 + r.nextGaussian() * 0.002));
+        }
+        for (int i = 0; i < 100; i += 1) {
+            points.add(new Point(-122.25, 37.87));
+        }
+        assertNearestMatchesNaive(points, new GridPointSet(points), r);
+    }
+
+    @Test
+    public void testTinySets() {
+        assertNull(new GridPointSet(new ArrayList<>()).nearest(-122.25, 37.87));
+
+        Point only = new Point(-122.25, 37.87);
+        List<Point> points = new ArrayList<>();
+        points.add(only);
+        assertEquals(only, new GridPointSet(points).nearest(0, 0));
+
+        /* All on one line, so the bounding box has no area. */
+        for (int i = 1; i < 10; i += 1) {
+            points.add(new Point(-122.25 + i * 0.001, 37.87));
+        }
+        assertNearestMatchesNaive(points, new GridPointSet(points), new Random(63));
+    }
+
+    @Test
+    public void testKDTreeMatchesNaive() {
+        Random r = new Random(65);
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < 2000; i += 1) {
+            points.add(new Point(-122.30 + r.nextDouble() * 0.1, 37.84 + r.nextDouble() * 0.1));
+        }
+        KDTree kdTree = new KDTree(points);
+        for (int i = 0; i < 1000; i += 1) {
+            double x = -122.35 + r.nextDouble() * 0.3;
+            double y = 37.80 + r.nextDouble() * 0.3;
+            Point goal = new Point(x, y);
+            assertEquals(Point.distance(goal, naiveNearest(points, x, y)),
+                    Point.distance(goal, kdTree.nearest(x, y)), 0);
+        }
+    }
+
+    /* Far from the equator, the closest point of a meridian is well poleward of the goal. Here
+     * the root splits at the prime meridian, the goal is 20 degrees west of it at 60 north, and
+     * the closest point is on the meridian at 61.5 north, 681 miles away. The point of the
+     * meridian level with the goal is 689 miles away, further than the 685 miles to the best
+     * point west of the meridian, so a tree bounding by it would never look east. */
+    @Test
+    public void testKDTreeBoundsMeridianByClosestPoint() {
+        Point east = new Point(0, 61.5);
+        Point west = new Point(-20, 69.9);
+        List<Point> points = new ArrayList<>();
+        points.add(new Point(0, -50));
+        points.add(east);
+        points.add(west);
+        KDTree kdTree = new KDTree(points);
+        assertEquals(east, kdTree.nearest(-20, 60));
+        Iterator<Point> nearest = kdTree.nearestIterator(-20, 60);
+        assertEquals(east, nearest.next());
+        assertEquals(west, nearest.next());
+    }
+
+    @Test
+    public void testKDTreeIteratorVisitsAllInOrder() {
+        Random r = new Random(67);
+        List<Point> points = new ArrayList<>();
+        for (int i = 0; i < 500; i += 1) {
+            points.add(new Point(-122.30 + r.nextDouble() * 0.1, 37.84 + r.nextDouble() * 0.1));
+        }
+        Point goal = new Point(-122.26, 37.88);
+        List<Point> sorted = new ArrayList<>(points);
+        sorted.sort(Comparator.comparingDouble(p -> Point.distance(goal, p)));
+        Iterator<Point> nearest = new KDTree(points).nearestIterator(goal.getX(), goal.getY());
+        for (Point p : sorted) {
+            assertEquals(Point.distance(goal, p), Point.distance(goal, nearest.next()), 0);
+        }
+        assertFalse(nearest.hasNext());
+    }
+}
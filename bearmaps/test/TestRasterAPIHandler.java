@@ -10,14 +10,23 @@ import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Collections;
 import java.util.StringJoiner;
 import java.util.Arrays;
+import java.util.Set;
 
+import static bearmaps.proj2c.utils.Constants.MAX_IMG_DEPTH;
+import static bearmaps.proj2c.utils.Constants.MAX_RENDERED_DEPTH;
+import static bearmaps.proj2c.utils.Constants.ROOT_LRLAT;
+import static bearmaps.proj2c.utils.Constants.ROOT_LRLON;
+import static bearmaps.proj2c.utils.Constants.ROOT_ULLAT;
+import static bearmaps.proj2c.utils.Constants.ROOT_ULLON;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 /** Test of the rastering part of the assignment.*/
@@ -43,7 +52,7 @@ public class TestRasterAPIHandler {
         for (int i = 0; i < NUM_TESTS; i++) {
             System.out.println(String.format("Running test: %d", i));
             Map<String, Double> params = testParams.get(i);
-            Map<String, Object> actual = rasterer.processRequest(params, null);
+            Map<String, Object> actual = rasterer.processRequest(new HashMap<>(params), null);
             Map<String, Object> expected = expectedResults.get(i);
             String msg = "Your results did not match the expected results for input "
                          + mapToString(params) + ".\n";
@@ -51,6 +60,113 @@ public class TestRasterAPIHandler {
         }
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPatchesAreTheNewTiles() throws Exception {
+        Map<String, Double> params = paramsFromFile().get(2);
+        Map<String, Object> last = rasterer.processRequest(new HashMap<>(params), null);
+        double lonD = (params.get("lrlon") - params.get("ullon")) / params.get("w");
+        double latD = (params.get("ullat") - params.get("lrlat")) / params.get("h");
+        /* Pan 300 pixels east and 100 south, at the same depth. */
+        params.put("ullon", params.get("ullon") + 300 * lonD);
+        params.put("lrlon", params.get("lrlon") + 300 * lonD);
+        params.put("ullat", params.get("ullat") - 100 * latD);
+        params.put("lrlat", params.get("lrlat") - 100 * latD);
+        Map<String, Object> full = rasterer.processRequest(new HashMap<>(params), null);
+        params.put("prev_ullon", (Double) last.get("raster_ul_lon"));
+        params.put("prev_ullat", (Double) last.get("raster_ul_lat"));
+        params.put("prev_lrlon", (Double) last.get("raster_lr_lon"));
+        params.put("prev_lrlat", (Double) last.get("raster_lr_lat"));
+        params.put("prev_depth", ((Integer) last.get("depth")).doubleValue());
+        Map<String, Object> actual = rasterer.processRequest(new HashMap<>(params), null);
+        assertArrayEquals((String[][]) full.get("render_grid"),
+                (String[][]) actual.get("render_grid"));
+
+        Set<String> had = new HashSet<>();
+        for (String[] row : (String[][]) last.get("render_grid")) {
+            had.addAll(Arrays.asList(row));
+        }
+        Set<String> sent = new HashSet<>();
+        String[][] grid = (String[][]) full.get("render_grid");
+        for (Map<String, Object> patch : (List<Map<String, Object>>) actual.get("patches")) {
+            String[][] patchGrid = (String[][]) patch.get("render_grid");
+            int x = (Integer) patch.get("x") / 256;
+            int y = (Integer) patch.get("y") / 256;
+            for (int r = 0; r < patchGrid.length; r++) {
+                for (int c = 0; c < patchGrid[r].length; c++) {
+                    assertEquals(grid[y + r][x + c], patchGrid[r][c]);
+                    assertFalse(had.contains(patchGrid[r][c]));
+                    assertTrue(sent.add(patchGrid[r][c]));
+                }
+            }
+        }
+        for (String[] row : grid) {
+            for (String tile : row) {
+                assertTrue(tile, had.contains(tile) || sent.contains(tile));
+            }
+        }
+    }
+
+    @Test
+    public void testMaxDepthAllowsDeeperTiles() throws Exception {
+        /* A box 256 pixels wide showing 1/2048 of the root width calls for depth 11 tiles. */
+        double width = (ROOT_LRLON - ROOT_ULLON) / 2048;
+        double height = (ROOT_ULLAT - ROOT_LRLAT) / 2048;
+        double ullon = ROOT_ULLON + 1000.3 * width;
+        double ullat = ROOT_ULLAT - 700.6 * height;
+        Map<String, Double> params = new HashMap<>();
+        params.put("ullon", ullon);
+        params.put("ullat", ullat);
+        params.put("lrlon", ullon + width);
+        params.put("lrlat", ullat - height);
+        params.put("w", 256.0);
+        params.put("h", 256.0);
+
+        checkDepth(rasterer.processRequest(new HashMap<>(params), null), MAX_IMG_DEPTH, params);
+        for (int maxDepth = MAX_IMG_DEPTH; maxDepth <= MAX_RENDERED_DEPTH + 2; maxDepth++) {
+            params.put("max_depth", (double) maxDepth);
+            checkDepth(rasterer.processRequest(new HashMap<>(params), null),
+                    Math.min(maxDepth, MAX_RENDERED_DEPTH), params);
+        }
+
+        /* A view of the whole map needs no deep tiles, whatever the client allows. */
+        params.put("ullon", ROOT_ULLON);
+        params.put("ullat", ROOT_ULLAT);
+        params.put("lrlon", ROOT_LRLON);
+        params.put("lrlat", ROOT_LRLAT);
+        params.put("max_depth", (double) MAX_RENDERED_DEPTH);
+        checkDepth(rasterer.processRequest(new HashMap<>(params), null), 0, params);
+    }
+
+    /**
+     * Checks that RESULT is a raster of tiles of DEPTH that are named for their place and
+     * together cover the query box in PARAMS.
+     */
+    private void checkDepth(Map<String, Object> result, int depth, Map<String, Double> params) {
+        assertEquals(true, result.get("query_success"));
+        assertEquals(depth, result.get("depth"));
+        double tileLonD = (ROOT_LRLON - ROOT_ULLON) / Math.pow(2, depth);
+        double tileLatD = (ROOT_ULLAT - ROOT_LRLAT) / Math.pow(2, depth);
+        double ulLon = (Double) result.get("raster_ul_lon");
+        double ulLat = (Double) result.get("raster_ul_lat");
+        int left = (int) Math.round((ulLon - ROOT_ULLON) / tileLonD);
+        int top = (int) Math.round((ROOT_ULLAT - ulLat) / tileLatD);
+        String[][] grid = (String[][]) result.get("render_grid");
+        for (int r = 0; r < grid.length; r++) {
+            for (int c = 0; c < grid[r].length; c++) {
+                assertEquals("d" + depth + "_x" + (left + c) + "_y" + (top + r) + ".png",
+                        grid[r][c]);
+            }
+        }
+        assertEquals(ulLon + grid[0].length * tileLonD, (Double) result.get("raster_lr_lon"),
+                DOUBLE_THRESHOLD);
+        assertEquals(ulLat - grid.length * tileLatD, (Double) result.get("raster_lr_lat"),
+                DOUBLE_THRESHOLD);
+        assertTrue(ulLon <= params.get("ullon") && ulLat >= params.get("ullat"));
+        assertTrue((Double) result.get("raster_lr_lon") >= params.get("lrlon"));
+        assertTrue((Double) result.get("raster_lr_lat") <= params.get("lrlat"));
+    }
+
     private List<Map<String, Double>> paramsFromFile() throws Exception {
         List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
         List<Map<String, Double>> testParams = new ArrayList<>();
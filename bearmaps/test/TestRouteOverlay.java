@@ -0,0 +1,93 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.RouteOverlay;
+import bearmaps.proj2c.Router;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.util.ArrayList;
+import java.util.List;
+
+import static bearmaps.proj2c.utils.Constants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a route across Berkeley, simplified for each depth, stays within half a pixel of
+ * the route, and that rasters only get the parts of it in them.
+ */
+public class TestRouteOverlay {
+    private static AugmentedStreetMapGraph graph;
+    private static List<Long> route;
+    private static RouteOverlay overlay;
+
+    @BeforeClass
+    public static void setUp() {
+        graph = new AugmentedStreetMapGraph(OSM_DB_PATH);
+        route = Router.shortestPath(graph, -122.2957, 37.8867, -122.2178, 37.8265);
+        overlay = new RouteOverlay(graph, route);
+    }
+
+    private static List<double[]> points(Path2D path) {
+        List<double[]> points = new ArrayList<>();
+        for (PathIterator i = path.getPathIterator(null); !i.isDone(); i.next()) {
+            double[] coords = new double[6];
+            i.currentSegment(coords);
+            points.add(coords);
+        }
+        return points;
+    }
+
+    private static double distanceToSegment(double px, double py, double[] a, double[] b) {
+        double dx = b[0] - a[0];
+        double dy = b[1] - a[1];
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0
+                : Math.max(0, Math.min(1, ((px - a[0]) * dx + (py - a[1]) * dy) / lengthSquared));
+        return Math.hypot(a[0] + t * dx - px, a[1] + t * dy - py);
+    }
+
+    @Test
+    public void testSimplifiedRouteStaysClose() {
+        assertTrue(route.size() > 100);
+        for (int depth = 0; depth <= MAX_RENDERED_DEPTH; depth += 1) {
+            int size = TILE_SIZE << depth;
+            List<double[]> points = points(overlay.visiblePath(depth, ROOT_ULLON, ROOT_ULLAT,
+                    ROOT_LRLON, ROOT_LRLAT, size, size, size));
+            assertEquals(overlay.size(depth), points.size());
+            assertTrue(depth == 0 || overlay.size(depth) >= overlay.size(depth - 1));
+            for (long v : route) {
+                double x = (graph.lon(v) - ROOT_ULLON) / (ROOT_LRLON - ROOT_ULLON) * size;
+                double y = (ROOT_ULLAT - graph.lat(v)) / (ROOT_ULLAT - ROOT_LRLAT) * size;
+                double closest = Double.POSITIVE_INFINITY;
+                for (int i = 0; i + 1 < points.size(); i += 1) {
+                    closest = Math.min(closest,
+                            distanceToSegment(x, y, points.get(i), points.get(i + 1)));
+                }
+                assertTrue("vertex " + v + " is " + closest + " pixels from the route at depth "
+                        + depth, closest <= RouteOverlay.TOLERANCE_PX + 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testOffScreenChunksAreLeftOut() {
+        int depth = MAX_RENDERED_DEPTH;
+        int size = TILE_SIZE << depth;
+        double lonPerTile = (ROOT_LRLON - ROOT_ULLON) / (1 << depth);
+        double latPerTile = (ROOT_ULLAT - ROOT_LRLAT) / (1 << depth);
+        long start = route.get(0);
+        double ullon = graph.lon(start) - lonPerTile;
+        double ullat = graph.lat(start) + latPerTile;
+        List<double[]> visible = points(overlay.visiblePath(depth, ullon, ullat,
+                ullon + 2 * lonPerTile, ullat - 2 * latPerTile, 2 * TILE_SIZE, 2 * TILE_SIZE, 5));
+        assertTrue(!visible.isEmpty());
+        assertTrue(visible.size() < overlay.size(depth));
+        /* Nothing is left out of a raster of the whole map. */
+        assertEquals(overlay.size(depth), points(overlay.visiblePath(depth, ROOT_ULLON,
+                ROOT_ULLAT, ROOT_LRLON, ROOT_LRLAT, size, size, size)).size());
+    }
+}
@@ -0,0 +1,61 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.RouteState;
+import bearmaps.proj2c.StreetGraphHolder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that routes are added to only while their graph is current, and never replace a route
+ * of a newer graph.
+ */
+public class TestRouteState {
+    private static AugmentedStreetMapGraph graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new OsmFixture()
+                .node(1, 0.00, 38.00).node(2, 0.01, 38.00).node(3, 0.02, 38.00)
+                .way(100, "highway=residential", 1, 2, 3)
+                .build();
+    }
+
+    @Test
+    public void testRoutesOfTheSameGraphAreJoined() {
+        StreetGraphHolder holder = new StreetGraphHolder();
+        StreetGraphHolder.Version version = holder.set(graph, "a");
+        RouteState first = RouteState.append(null, version, Arrays.asList(1L, 2L));
+        RouteState second = RouteState.append(first, version, Arrays.asList(2L, 3L));
+        assertEquals(Arrays.asList(1L, 2L), first.vertices());
+        assertEquals(Arrays.asList(1L, 2L, 2L, 3L), second.vertices());
+        assertTrue(second.isOf(holder.current()));
+    }
+
+    @Test
+    public void testNewGraphDropsTheRoute() {
+        StreetGraphHolder holder = new StreetGraphHolder();
+        StreetGraphHolder.Version old = holder.set(graph, "a");
+        RouteState route = RouteState.append(null, old, Arrays.asList(1L, 2L));
+        StreetGraphHolder.Version current = holder.set(graph, "b");
+        assertFalse(route.isOf(current));
+        assertEquals(Arrays.asList(2L, 3L),
+                RouteState.append(route, current, Arrays.asList(2L, 3L)).vertices());
+    }
+
+    @Test
+    public void testStaleRouteDoesNotReplaceNewerOne() {
+        StreetGraphHolder holder = new StreetGraphHolder();
+        StreetGraphHolder.Version old = holder.set(graph, "a");
+        StreetGraphHolder.Version current = holder.set(graph, "b");
+        RouteState route = RouteState.append(null, current, Arrays.asList(1L, 2L));
+        assertSame(route, RouteState.append(route, old, Arrays.asList(2L, 3L)));
+    }
+}
@@ -0,0 +1,133 @@
+package bearmaps.test;
+
+import bearmaps.hw4.SettledVerticesCollector;
+import bearmaps.hw4.streetmap.CostModel;
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.Router;
+import bearmaps.proj2c.server.handler.impl.RoutingAPIHandler;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static bearmaps.proj2c.utils.Constants.STREET_GRAPH;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks what the solver listeners count and record, and the GeoJSON of a search space.
+ */
+public class TestSearchListeners {
+    private static AugmentedStreetMapGraph graph;
+
+    /*
+     * Main Street runs from 1 to 4 with Spur Street off it at 2. Turning left from West Street
+     * into North Street at 20 is barred, so cars from 21 turn round at 23 and settle 20 twice,
+     * once arriving from West Street and once from East Street:
+     *
+     *         5             22
+     *         |             |
+     *    1 -- 2 -- 3 -- 4   21 - 20 - 23
+     */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new OsmFixture()
+                .node(1, 0.00, 38.00).node(2, 0.01, 38.00).node(3, 0.02, 38.00)
+                .node(4, 0.03, 38.00).node(5, 0.01, 38.01)
+                .way(100, "highway=residential name=Main", 1, 2, 3, 4)
+                .way(101, "highway=residential name=Spur", 2, 5)
+                .node(20, 0.10, 38.00).node(21, 0.09, 38.00).node(22, 0.10, 38.01)
+                .node(23, 0.11, 38.00)
+                .way(200, "highway=residential name=West", 21, 20)
+                .way(201, "highway=residential name=North", 20, 22)
+                .way(202, "highway=residential name=East", 20, 23)
+                .restriction(300, "no_left_turn", 200, 20, 201)
+                .build();
+    }
+
+    @Test
+    public void testCountsOfPlainSearch() {
+        SettledVerticesCollector<Long> collector = new SettledVerticesCollector<>();
+        List<Long> route = Router.shortestPath(graph, 0, 38, 0.03, 38, RoutingProfile.CAR,
+                CostModel.DISTANCE, collector);
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), route);
+        /* The search stops when 4 is next, so it is queued but never settled. */
+        assertEquals(Arrays.asList(1L, 2L, 3L), collector.settled());
+        assertEquals(3, collector.numSettled());
+        /* 1 to 2, 2 to 3, 2 to 5 and 3 to 4; going back to a settled vertex improves nothing. */
+        assertEquals(4, collector.numRelaxed());
+        /* Sizes once each vertex is taken off the queue: 5 waits from the second settle on. */
+        assertArrayEquals(new int[]{0, 0, 1}, collector.pqSizes());
+        assertEquals(1, collector.pqPeakSize());
+    }
+
+    @Test
+    public void testRestrictedVertexSettlesOncePerArrival() {
+        SettledVerticesCollector<Long> collector = new SettledVerticesCollector<>();
+        List<Long> route = Router.shortestPath(graph, 0.09, 38, 0.10, 38.01,
+                RoutingProfile.CAR, CostModel.DISTANCE, collector);
+        assertEquals(Arrays.asList(21L, 20L, 23L, 20L, 22L), route);
+        List<Long> settled = collector.settled();
+        assertEquals(settled.size(), collector.numSettled());
+        assertEquals(collector.numSettled(), collector.pqSizes().length);
+        assertEquals(2, settled.stream().filter(v -> v == 20L).count());
+        assertEquals(settled.size() - 1, new HashSet<>(settled).size());
+    }
+
+    @Test
+    public void testGeoJsonShape() {
+        SettledVerticesCollector<Long> collector = new SettledVerticesCollector<>();
+        Router.shortestPath(graph, 0, 38, 0.03, 38, RoutingProfile.CAR, CostModel.DISTANCE,
+                collector);
+        JsonObject collection = new Gson().toJsonTree(collector.toGeoJson(graph::lon,
+                graph::lat)).getAsJsonObject();
+        assertEquals("FeatureCollection", collection.get("type").getAsString());
+        JsonArray features = collection.getAsJsonArray("features");
+        assertEquals(collector.numSettled(), features.size());
+        double lastDistTo = -1;
+        for (int i = 0; i < features.size(); i += 1) {
+            long v = collector.settled().get(i);
+            JsonObject feature = features.get(i).getAsJsonObject();
+            assertEquals("Feature", feature.get("type").getAsString());
+            JsonObject geometry = feature.getAsJsonObject("geometry");
+            assertEquals("Point", geometry.get("type").getAsString());
+            JsonArray coordinates = geometry.getAsJsonArray("coordinates");
+            assertEquals(2, coordinates.size());
+            assertEquals(graph.lon(v), coordinates.get(0).getAsDouble(), 0);
+            assertEquals(graph.lat(v), coordinates.get(1).getAsDouble(), 0);
+            JsonObject properties = feature.getAsJsonObject("properties");
+            assertEquals(i, properties.get("order").getAsInt());
+            double distTo = properties.get("dist_to").getAsDouble();
+            assertTrue(distTo > lastDistTo);
+            lastDistTo = distTo;
+        }
+        assertEquals(0, features.get(0).getAsJsonObject().getAsJsonObject("properties")
+                .get("dist_to").getAsDouble(), 0);
+    }
+
+    @Test
+    public void testRouteResponseCarriesStats() throws Exception {
+        STREET_GRAPH.set(graph, "listeners");
+        Object body = new RoutingAPIHandler().handle(new FakeRequest("/route")
+                .param("start_lon", 0).param("start_lat", 38)
+                .param("end_lon", 0.03).param("end_lat", 38).param("search_space", ""),
+                new FakeResponse());
+        JsonObject response = JsonParser.parseString(body.toString()).getAsJsonObject();
+        JsonObject stats = response.getAsJsonObject("search_stats");
+        int settled = stats.get("settled").getAsInt();
+        assertTrue(settled > 0);
+        assertEquals(settled, response.getAsJsonObject("search_space")
+                .getAsJsonArray("features").size());
+        assertEquals(settled, stats.getAsJsonArray("pq_sizes").size());
+        assertTrue(stats.get("relaxed").getAsInt() > 0);
+        assertTrue(stats.has("pq_peak_size"));
+    }
+}
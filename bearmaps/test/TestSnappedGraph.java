@@ -0,0 +1,302 @@
+package bearmaps.test;
+
+import bearmaps.hw4.AStarGraph;
+import bearmaps.hw4.AStarSolver;
+import bearmaps.hw4.WeightedEdge;
+import bearmaps.hw4.streetmap.CostModel;
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.proj2ab.Point;
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.EdgeIndex;
+import bearmaps.proj2c.Router;
+import bearmaps.proj2c.SnappedGraph;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks snapping points to roads and finding the roads in a box against a scan of every road,
+ * and routes between snapped points against Dijkstra's algorithm run over every vertex.
+ */
+public class TestSnappedGraph {
+    private static final int GRID_SIZE = 6;
+    private static final double GRID_SPACING = 0.002;
+    private static final double GRID_LON = 0.5;
+    private static final double GRID_LAT = 38;
+    private static final double DELTA = 1e-9;
+
+    private static AugmentedStreetMapGraph streets;
+    private static AugmentedStreetMapGraph grid;
+    private static List<Long> gridVertices = new ArrayList<>();
+
+    /*
+     * Main Street runs one way east from 1 to 3, and Hill Street goes round it through 6:
+     *
+     *        6
+     *      /   \
+     *     1 -> 2 -> 3
+     *
+     * North Street may not be turned left into from West Street at 20:
+     *
+     *          22 ------ 24
+     *          |        /
+     *    21 - 20 -- 23
+     *
+     * The grid has two-way residential streets, but for a one-way row, a faster primary row
+     * and a footway column, so that the profiles and cost models all route differently.
+     */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        streets = new OsmFixture()
+                .node(1, 0.00, 38.00).node(2, 0.01, 38.00).node(3, 0.02, 38.00)
+                .node(6, 0.01, 38.01)
+                .way(100, "highway=residential name=Main oneway=yes", 1, 2, 3)
+                .way(101, "highway=residential name=Hill", 1, 6, 3)
+                .node(20, 0.10, 38.00).node(21, 0.09, 38.00).node(22, 0.10, 38.01)
+                .node(23, 0.11, 38.00).node(24, 0.12, 38.01)
+                .way(200, "highway=residential name=West", 21, 20)
+                .way(201, "highway=residential name=North", 20, 22)
+                .way(202, "highway=residential name=East", 20, 23)
+                .way(203, "highway=residential name=Loop", 23, 24, 22)
+                .restriction(300, "no_left_turn", 200, 20, 201)
+                .build();
+
+        OsmFixture fixture = new OsmFixture();
+        for (int i = 0; i < GRID_SIZE; i += 1) {
+            for (int j = 0; j < GRID_SIZE; j += 1) {
+                fixture.node(gridId(i, j), GRID_LON + i * GRID_SPACING,
+                        GRID_LAT + j * GRID_SPACING);
+                gridVertices.add(gridId(i, j));
+            }
+        }
+        for (int k = 0; k < GRID_SIZE; k += 1) {
+            long[] row = new long[GRID_SIZE];
+            long[] column = new long[GRID_SIZE];
+            for (int m = 0; m < GRID_SIZE; m += 1) {
+                row[m] = gridId(m, k);
+                column[m] = gridId(k, m);
+            }
+            String rowTags = k == 2 ? "highway=residential oneway=yes"
+                    : k == 4 ? "highway=primary" : "highway=residential";
+            String columnTags = k == 3 ? "highway=footway" : "highway=residential";
+            fixture.way(2000 + k, rowTags, row).way(3000 + k, columnTags, column);
+        }
+        grid = fixture.build();
+    }
+
+    private static long gridId(int i, int j) {
+        return 1000 + 10 * i + j;
+    }
+
+    @Test
+    public void testSnapMatchesScanOfEveryRoad() {
+        Random random = new Random(39);
+        double extent = (GRID_SIZE + 1) * GRID_SPACING;
+        for (RoutingProfile profile : RoutingProfile.values()) {
+            EdgeIndex index = grid.edgeIndex(profile);
+            for (int i = 0; i < 500; i += 1) {
+                /* Including points off the grid, where the first rings scanned are empty. */
+                double lon = GRID_LON - GRID_SPACING + random.nextDouble() * extent;
+                double lat = GRID_LAT - GRID_SPACING + random.nextDouble() * extent;
+                EdgeIndex.Snap snap = index.snap(lon, lat);
+                assertNotNull(snap);
+                assertEquals(closestRoadDistance(profile, lon, lat), snap.distance(), DELTA);
+                assertEquals(Point.distance(new Point(lon, lat),
+                        new Point(snap.lon(), snap.lat())), snap.distance(), DELTA);
+            }
+        }
+    }
+
+    @Test
+    public void testEdgesInFindsEveryRoadInTheBox() {
+        Random random = new Random(42);
+        double extent = (GRID_SIZE + 1) * GRID_SPACING;
+        for (RoutingProfile profile : RoutingProfile.values()) {
+            EdgeIndex index = grid.edgeIndex(profile);
+            for (int i = 0; i < 500; i += 1) {
+                /* From boxes inside one block, between roads, to boxes past the whole grid. */
+                double width = random.nextDouble() * extent * (i % 2 == 0 ? 0.1 : 1);
+                double height = random.nextDouble() * extent * (i % 2 == 0 ? 0.1 : 1);
+                double minLon = GRID_LON - GRID_SPACING + random.nextDouble() * extent;
+                double minLat = GRID_LAT - GRID_SPACING + random.nextDouble() * extent;
+                List<WeightedEdge<Long>> found = index.edgesIn(minLon, minLat, minLon + width,
+                        minLat + height);
+                Set<WeightedEdge<Long>> distinct = new HashSet<>(found);
+                assertEquals(found.size(), distinct.size());
+                for (WeightedEdge<Long> e : found) {
+                    assertTrue(grid.allows(e, profile));
+                }
+                for (long v : gridVertices) {
+                    for (WeightedEdge<Long> e : grid.neighbors(v)) {
+                        if (grid.allows(e, profile) && crosses(e, minLon, minLat,
+                                minLon + width, minLat + height)) {
+                            assertTrue(distinct.contains(e));
+                        }
+                    }
+                }
+            }
+            assertTrue(index.edgesIn(0, 0, GRID_LON / 2, GRID_LAT / 2).isEmpty());
+        }
+    }
+
+    @Test
+    public void testSameRoadGoesStraightAlongIt() {
+        assertEquals(Arrays.asList(21L, 20L), route(0.092, 38.00, 0.098, 38.00,
+                RoutingProfile.CAR));
+        assertEquals(Arrays.asList(20L, 21L), route(0.098, 38.00, 0.092, 38.00,
+                RoutingProfile.CAR));
+
+        EdgeIndex.Snap start = streets.snap(0.092, 38.00, RoutingProfile.CAR);
+        EdgeIndex.Snap end = streets.snap(0.098, 38.00, RoutingProfile.CAR);
+        SnappedGraph g = new SnappedGraph(streets.withProfile(RoutingProfile.CAR,
+                CostModel.DISTANCE), start, end);
+        AStarSolver<Long> solver = new AStarSolver<>(g, SnappedGraph.START, SnappedGraph.END,
+                10);
+        assertEquals(Arrays.asList(SnappedGraph.START, SnappedGraph.END), solver.solution());
+        assertEquals(dijkstra(g, SnappedGraph.START).get(SnappedGraph.END),
+                solver.solutionWeight(), DELTA);
+    }
+
+    @Test
+    public void testSameOneWayRoadBackwardsGoesAround() {
+        assertEquals(Arrays.asList(2L, 3L, 6L, 1L), route(0.008, 38.00, 0.002, 38.00,
+                RoutingProfile.CAR));
+        assertEquals(Arrays.asList(2L, 1L), route(0.008, 38.00, 0.002, 38.00,
+                RoutingProfile.WALK));
+    }
+
+    @Test
+    public void testTurnRestrictionsBindVirtualEdges() {
+        /* Starting on West Street and ending on North Street is still a left turn at 20. */
+        assertEquals(Arrays.asList(20L, 23L, 20L), route(0.095, 38.00, 0.10, 38.005,
+                RoutingProfile.CAR));
+        assertEquals(Arrays.asList(20L), route(0.095, 38.00, 0.10, 38.005,
+                RoutingProfile.WALK));
+        assertEquals(Arrays.asList(20L), route(0.105, 38.00, 0.10, 38.005,
+                RoutingProfile.CAR));
+    }
+
+    @Test
+    public void testSearchIsOptimalAndEstimatesAdmissible() {
+        Random random = new Random(390);
+        double extent = (GRID_SIZE - 1) * GRID_SPACING;
+        for (RoutingProfile profile : RoutingProfile.values()) {
+            for (CostModel cost : CostModel.values()) {
+                for (int i = 0; i < 20; i += 1) {
+                    EdgeIndex.Snap start = grid.snap(GRID_LON + random.nextDouble() * extent,
+                            GRID_LAT + random.nextDouble() * extent, profile);
+                    EdgeIndex.Snap end = grid.snap(GRID_LON + random.nextDouble() * extent,
+                            GRID_LAT + random.nextDouble() * extent, profile);
+                    SnappedGraph g = new SnappedGraph(grid.withProfile(profile, cost), start,
+                            end);
+                    checkAgainstDijkstra(g);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that A* finds as cheap a route from START to END in G as Dijkstra's algorithm,
+     * and that no estimate of the cost left to END is more than it really is.
+     */
+    private static void checkAgainstDijkstra(SnappedGraph g) {
+        Map<Long, Double> fromStart = dijkstra(g, SnappedGraph.START);
+        double best = fromStart.getOrDefault(SnappedGraph.END, Double.POSITIVE_INFINITY);
+        AStarSolver<Long> solver = new AStarSolver<>(g, SnappedGraph.START, SnappedGraph.END,
+                10);
+        if (best == Double.POSITIVE_INFINITY) {
+            assertTrue(solver.solution().isEmpty());
+            return;
+        }
+        assertEquals(best, solver.solutionWeight(), DELTA);
+        for (long v : gridVertices) {
+            Double left = dijkstra(g, v).get(SnappedGraph.END);
+            if (left != null) {
+                assertTrue(g.estimatedDistanceToGoal(v, SnappedGraph.END) <= left + DELTA);
+            }
+        }
+    }
+
+    /** Returns the cost of the cheapest route in G from SOURCE to each vertex it can reach. */
+    private static Map<Long, Double> dijkstra(AStarGraph<Long> g, long source) {
+        Map<Long, Double> best = new HashMap<>();
+        PriorityQueue<double[]> fringe = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+        best.put(source, 0.0);
+        fringe.add(new double[]{0, source});
+        while (!fringe.isEmpty()) {
+            double[] next = fringe.remove();
+            long v = (long) next[1];
+            if (next[0] > best.get(v)) {
+                continue;
+            }
+            for (WeightedEdge<Long> e : g.neighbors(v)) {
+                if (!g.isTraversable(e)) {
+                    continue;
+                }
+                double cost = next[0] + g.weight(e);
+                if (cost < best.getOrDefault(e.to(), Double.POSITIVE_INFINITY)) {
+                    best.put(e.to(), cost);
+                    fringe.add(new double[]{cost, e.to()});
+                }
+            }
+        }
+        return best;
+    }
+
+    /** Returns the distance from LON, LAT to the closest point on any grid road PROFILE uses. */
+    private static double closestRoadDistance(RoutingProfile profile, double lon, double lat) {
+        double best = Double.POSITIVE_INFINITY;
+        for (long v : gridVertices) {
+            for (WeightedEdge<Long> e : grid.neighbors(v)) {
+                if (!grid.allows(e, profile)) {
+                    continue;
+                }
+                double scale = Math.cos(Math.toRadians(lat));
+                double ax = grid.lon(e.from()) * scale;
+                double ay = grid.lat(e.from());
+                double dx = grid.lon(e.to()) * scale - ax;
+                double dy = grid.lat(e.to()) - ay;
+                double t = ((lon * scale - ax) * dx + (lat - ay) * dy) / (dx * dx + dy * dy);
+                t = Math.max(0, Math.min(1, t));
+                Point closest = new Point(grid.lon(e.from()) + t * (grid.lon(e.to())
+                        - grid.lon(e.from())), grid.lat(e.from()) + t * (grid.lat(e.to())
+                        - grid.lat(e.from())));
+                best = Math.min(best, Point.distance(new Point(lon, lat), closest));
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns whether grid road E passes through the box between the given longitudes and
+     * latitudes. Grid roads run straight east or north, so this is whether their bounding boxes
+     * overlap.
+     */
+    private static boolean crosses(WeightedEdge<Long> e, double minLon, double minLat,
+                                   double maxLon, double maxLat) {
+        return Math.max(grid.lon(e.from()), grid.lon(e.to())) >= minLon
+                && Math.min(grid.lon(e.from()), grid.lon(e.to())) <= maxLon
+                && Math.max(grid.lat(e.from()), grid.lat(e.to())) >= minLat
+                && Math.min(grid.lat(e.from()), grid.lat(e.to())) <= maxLat;
+    }
+
+    /** Returns the route on the street graph for PROFILE between two snapped points. */
+    private static List<Long> route(double startLon, double startLat, double endLon,
+                                    double endLat, RoutingProfile profile) {
+        return Router.snappedShortestPath(streets, startLon, startLat, endLon, endLat, profile,
+                CostModel.DISTANCE, null);
+    }
+}
@@ -0,0 +1,164 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.metrics.Metrics;
+import bearmaps.proj2c.server.handler.APIRouteHandler;
+import bearmaps.proj2c.server.handler.AbortedResponseException;
+import bearmaps.proj2c.server.handler.impl.SearchAPIHandler;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import spark.Request;
+import spark.Response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static bearmaps.proj2c.utils.Constants.STREET_GRAPH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a streamed response is the response that would have been built, and that one
+ * whose streaming fails is never left looking like a successful response.
+ */
+public class TestStreaming {
+    private static AugmentedStreetMapGraph graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new OsmFixture()
+                .node(1, 0.00, 38.00).node(2, 0.01, 38.00)
+                .way(100, "highway=residential", 1, 2)
+                .node(10, 0.001, 38.01, "Top Dog").node(11, 0.002, 38.01, "Top Dog")
+                .node(12, 0.003, 38.01, "Toppings & \"Things\"")
+                .node(13, 0.004, 38.01, "Caf\u00e9 Z\u00fcrich")
+                .build();
+    }
+
+    /** The search handler, made to build its responses instead of streaming them. */
+    private static class BufferedSearchAPIHandler extends SearchAPIHandler {
+        @Override
+        protected boolean streamsJsonResponse() {
+            return false;
+        }
+    }
+
+    /**
+     * Streams LENGTH bytes of a response and then fails with FAILURE, which is thrown as is.
+     */
+    private static class FailingAPIHandler extends APIRouteHandler<Void, Integer> {
+        private final int length;
+        private final Exception failure;
+
+        FailingAPIHandler(int length, Exception failure) {
+            this.length = length;
+            this.failure = failure;
+        }
+
+        @Override
+        protected Void parseRequestParams(Request request) {
+            return null;
+        }
+
+        @Override
+        protected Integer processRequest(Void requestParams, Response response) {
+            return length;
+        }
+
+        @Override
+        protected boolean streamsJsonResponse() {
+            return true;
+        }
+
+        @Override
+        protected void writeJsonResponse(Integer result, OutputStream os) throws IOException {
+            os.write('[');
+            for (int i = 1; i < result; i += 1) {
+                os.write('0');
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            throw (RuntimeException) failure;
+        }
+    }
+
+    private static String text(Object body) {
+        if (body instanceof byte[]) {
+            return new String((byte[]) body, StandardCharsets.UTF_8);
+        }
+        return (String) body;
+    }
+
+    private static void assertStreamedIsBuffered(FakeRequest request) throws Exception {
+        FakeResponse streamed = new FakeResponse();
+        assertEquals("", new SearchAPIHandler().handle(request, streamed));
+        assertEquals("application/json", streamed.type());
+        String buffered = text(new BufferedSearchAPIHandler().handle(request,
+                new FakeResponse()));
+        assertEquals(buffered, streamed.streamedText());
+    }
+
+    @Test
+    public void testStreamedSearchIsBuffered() throws Exception {
+        STREET_GRAPH.set(graph, "streaming");
+        assertStreamedIsBuffered(new FakeRequest("/search").param("term", "top"));
+        assertStreamedIsBuffered(new FakeRequest("/search").param("term", "caf")
+                .param("lon", 0).param("lat", 38));
+        assertStreamedIsBuffered(new FakeRequest("/search").param("term", "Top Dog")
+                .param("full", ""));
+        assertStreamedIsBuffered(new FakeRequest("/search")
+                .param("term", "Caf\u00e9 Z\u00fcrich").param("full", ""));
+        assertStreamedIsBuffered(new FakeRequest("/search").param("term", "Nowhere")
+                .param("full", ""));
+    }
+
+    private static long errors(String endpoint) {
+        return Metrics.counter(Metrics.REQUEST_ERRORS, "endpoint", endpoint).sum();
+    }
+
+    @Test
+    public void testFailureBeforeCommitIsCleared() throws Exception {
+        String endpoint = "/failing_early";
+        long before = errors(endpoint);
+        for (Exception failure : new Exception[]{new IOException("write failed"),
+            new IllegalStateException("bad result")}) {
+            FakeResponse response = new FakeResponse();
+            try {
+                new FailingAPIHandler(16, failure).handle(new FakeRequest(endpoint)
+                        .header("Accept-Encoding", "gzip"), response);
+                fail("A failed stream should not be answered.");
+            } catch (Exception e) {
+                /* Spark answers the failure itself, on the response cleared for it. */
+                assertSame(failure, e);
+            }
+            assertFalse(response.committed());
+            assertEquals(0, response.streamed().length);
+            assertNull(response.header("Content-Encoding"));
+            assertNull(response.type());
+        }
+        assertEquals(before + 2, errors(endpoint));
+    }
+
+    @Test
+    public void testFailureAfterCommitIsAborted() throws Exception {
+        String endpoint = "/failing_late";
+        long before = errors(endpoint);
+        IOException failure = new IOException("write failed");
+        FakeResponse response = new FakeResponse();
+        try {
+            new FailingAPIHandler(4 * FakeResponse.BUFFER_SIZE, failure).handle(
+                    new FakeRequest(endpoint), response);
+            fail("A failed stream should not be answered.");
+        } catch (AbortedResponseException e) {
+            assertSame(failure, e.getCause());
+        }
+        assertTrue(response.committed());
+        assertEquals(before + 1, errors(endpoint));
+    }
+}
@@ -0,0 +1,45 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.StreetGraphHolder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that graphs put in place are numbered in order and that listeners hear of each one.
+ */
+public class TestStreetGraphHolder {
+
+    @Test
+    public void testVersionsAreNumberedInOrder() {
+        StreetGraphHolder holder = new StreetGraphHolder();
+        assertNull(holder.current());
+        StreetGraphHolder.Version first = holder.set(null, "a");
+        StreetGraphHolder.Version second = holder.set(null, "b");
+        assertEquals(1, first.number());
+        assertEquals(2, second.number());
+        assertEquals("b", second.stamp());
+        assertSame(second, holder.current());
+    }
+
+    @Test
+    public void testListenersHearOfEachVersion() {
+        StreetGraphHolder holder = new StreetGraphHolder();
+        List<Long> heard = new ArrayList<>();
+        holder.addListener(version -> heard.add(version.number()));
+        holder.set(null, "a");
+        holder.set(null, "b");
+        assertEquals(Arrays.asList(1L, 2L), heard);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoGraphLoaded() {
+        new StreetGraphHolder().graph();
+    }
+}
@@ -0,0 +1,89 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.TilePack;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Packs a folder of made up tiles and checks that the pack gives back each one as it was.
+ */
+public class TestTilePack {
+
+    @Test
+    public void testPackedTilesAreTheSame() throws IOException {
+        File dir = Files.createTempDirectory("tiles").toFile();
+        File packFile = new File(dir, "tiles.pack");
+        Random random = new Random(61);
+        for (int depth = 0; depth <= 2; depth += 1) {
+            for (int x = 0; x < 1 << depth; x += 1) {
+                for (int y = 0; y < 1 << depth; y += 1) {
+                    /* Leave one tile out. */
+                    if (depth == 2 && x == 3 && y == 1) {
+                        continue;
+                    }
+                    BufferedImage img = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+                    img.setRGB(random.nextInt(16), random.nextInt(16), random.nextInt());
+                    ImageIO.write(img, "png", new File(dir, "d" + depth + "_x" + x + "_y" + y
+                            + ".png"));
+                }
+            }
+        }
+        new File(dir, "notes.txt").createNewFile();
+
+        TilePack.write(dir, packFile);
+        TilePack pack = new TilePack(packFile.getPath());
+        assertEquals(2, pack.maxDepth());
+        for (int depth = 0; depth <= 2; depth += 1) {
+            for (int x = 0; x < 1 << depth; x += 1) {
+                for (int y = 0; y < 1 << depth; y += 1) {
+                    String name = "d" + depth + "_x" + x + "_y" + y + ".png";
+                    File file = new File(dir, name);
+                    if (!file.isFile()) {
+                        assertNull(pack.bytes(depth, x, y));
+                        assertNull(pack.image(name));
+                        continue;
+                    }
+                    ByteBuffer bytes = pack.bytes(depth, x, y);
+                    byte[] packed = new byte[bytes.remaining()];
+                    bytes.get(packed);
+                    assertArrayEquals(Files.readAllBytes(file.toPath()), packed);
+
+                    BufferedImage expected = ImageIO.read(file);
+                    BufferedImage actual = pack.image(name);
+                    for (int i = 0; i < 16; i += 1) {
+                        for (int j = 0; j < 16; j += 1) {
+                            assertEquals(expected.getRGB(i, j), actual.getRGB(i, j));
+                        }
+                    }
+                }
+            }
+        }
+        assertNull(pack.bytes(3, 0, 0));
+        assertNull(pack.bytes(1, 2, 0));
+        assertNull(pack.bytes("notes.txt"));
+
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAPack() throws IOException {
+        File file = File.createTempFile("tiles", ".pack");
+        file.deleteOnExit();
+        Files.write(file.toPath(), new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13});
+        new TilePack(file.getPath());
+    }
+}
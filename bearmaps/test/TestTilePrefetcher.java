@@ -0,0 +1,76 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.TilePrefetcher;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which tiles are prefetched around a viewport, and in which order.
+ */
+public class TestTilePrefetcher {
+    private final List<int[]> loaded = Collections.synchronizedList(new ArrayList<>());
+    private final TilePrefetcher prefetcher = new TilePrefetcher(
+            (depth, x, y) -> loaded.add(new int[]{depth, x, y}), () -> false);
+
+    /** Waits for N tiles to have been loaded, and returns them in the order they were. */
+    private List<int[]> awaitLoaded(int n) throws InterruptedException {
+        for (int i = 0; i < 500 && loaded.size() < n; i += 1) {
+            Thread.sleep(10);
+        }
+        assertEquals(n, loaded.size());
+        List<int[]> tiles = new ArrayList<>(loaded);
+        loaded.clear();
+        return tiles;
+    }
+
+    @Test
+    public void testRingThenDeeperThenShallower() throws InterruptedException {
+        prefetcher.viewed(1, 3, 2, 2, 4, 3, 7);
+        /* A ring of 14 tiles, 4 by 2 tiles zooming in and 4 by 3 zooming out. */
+        List<int[]> tiles = awaitLoaded(14 + 8 + 12);
+        for (int i = 0; i < tiles.size(); i += 1) {
+            int[] t = tiles.get(i);
+            if (i < 14) {
+                assertEquals(3, t[0]);
+                assertTrue(t[1] >= 1 && t[1] <= 5 && t[2] >= 1 && t[2] <= 4);
+                assertFalse(t[1] >= 2 && t[1] <= 4 && t[2] >= 2 && t[2] <= 3);
+            } else {
+                assertEquals(i < 22 ? 4 : 2, t[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testAheadOfPanFirst() throws InterruptedException {
+        prefetcher.viewed(2, 3, 2, 2, 4, 3, 3);
+        awaitLoaded(14 + 12);
+        /* Panning east, the column to the east is loaded first. */
+        prefetcher.viewed(2, 3, 3, 2, 5, 3, 3);
+        List<int[]> tiles = awaitLoaded(14 + 12);
+        for (int i = 0; i < 4; i += 1) {
+            assertEquals(6, tiles.get(i)[1]);
+        }
+        /* Zooming out, shallower tiles are loaded before deeper ones. */
+        prefetcher.viewed(2, 2, 1, 1, 2, 2, 3);
+        tiles = awaitLoaded(12 + 4 + 4);
+        assertEquals(1, tiles.get(12)[0]);
+    }
+
+    @Test
+    public void testSameViewportIsNotFetchedAgain() throws InterruptedException {
+        prefetcher.viewed(3, 0, 0, 0, 0, 0, 0);
+        assertEquals(0, awaitLoaded(0).size());
+        prefetcher.viewed(3, 1, 0, 0, 1, 0, 1);
+        assertEquals(3, awaitLoaded(3).size());
+        prefetcher.viewed(3, 1, 0, 0, 1, 0, 1);
+        Thread.sleep(50);
+        assertEquals(0, awaitLoaded(0).size());
+    }
+}
@@ -0,0 +1,105 @@
+package bearmaps.test;
+
+import bearmaps.hw4.WeightedEdge;
+import bearmaps.hw4.streetmap.CostModel;
+import bearmaps.hw4.streetmap.RoutingProfile;
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.Router;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that maxspeed tags are read in their units, with the highway type's speed when they
+ * are missing or make no sense, and that the quickest route takes a faster road over a
+ * shorter one.
+ */
+public class TestTravelTime {
+    private static final double SECONDS_PER_HOUR = 3600;
+    private static final double KMH_PER_MPH = 1.609344;
+    private static final double KNOTS_PER_MPH = 0.868976;
+
+    /* The tags of each test way and the speed in mph cars should be given on it. */
+    private static final String[] TAGS = {
+        "highway=residential",
+        "highway=primary",
+        "highway=living_street",
+        "highway=primary maxspeed=50",
+        "highway=primary maxspeed=50 km/h",
+        "highway=primary maxspeed=30 mph",
+        "highway=primary maxspeed=30mph",
+        "highway=primary maxspeed=30 MPH",
+        "highway=primary maxspeed=20 knots",
+        "highway=primary maxspeed=signals",
+        "highway=primary maxspeed=none",
+        "highway=primary maxspeed=0",
+        "highway=primary maxspeed=-10",
+        "highway=primary maxspeed=fast mph",
+        "highway=residential maxspeed=",
+    };
+    private static final double[] SPEEDS_MPH = {
+        25, 40, 10, 50 / KMH_PER_MPH, 50 / KMH_PER_MPH, 30, 30, 30, 20 / KNOTS_PER_MPH,
+        40, 40, 40, 40, 40, 25,
+    };
+
+    private static AugmentedStreetMapGraph speeds;
+    private static AugmentedStreetMapGraph routes;
+
+    /*
+     * Way i of TAGS runs east from node 2i to node 2i + 1. For routing, Short Street runs from
+     * 1 to 2 through 3, and Fast Street goes further round through 4 at 65 mph:
+     *
+     *         4
+     *       /   \
+     *     1 - 3 - 2
+     */
+    @BeforeClass
+    public static void setUp() throws Exception {
+        OsmFixture fixture = new OsmFixture();
+        for (int i = 0; i < TAGS.length; i += 1) {
+            fixture.node(2 * i, 0, 38 + 0.01 * i).node(2 * i + 1, 0.01, 38 + 0.01 * i)
+                    .way(100 + i, TAGS[i], 2 * i, 2 * i + 1);
+        }
+        speeds = fixture.build();
+
+        routes = new OsmFixture()
+                .node(1, 0.00, 38.00).node(2, 0.04, 38.00).node(3, 0.02, 38.002)
+                .node(4, 0.02, 38.012)
+                .way(100, "highway=residential name=Short", 1, 3, 2)
+                .way(101, "highway=primary name=Fast maxspeed=65 mph", 1, 4, 2)
+                .build();
+    }
+
+    @Test
+    public void testMaxSpeedUnits() {
+        for (int i = 0; i < TAGS.length; i += 1) {
+            WeightedEdge<Long> edge = speeds.neighbors(2L * i).get(0);
+            double seconds = speeds.travelSeconds(edge, RoutingProfile.CAR);
+            assertEquals(TAGS[i], SPEEDS_MPH[i], edge.weight() / seconds * SECONDS_PER_HOUR,
+                    1e-9);
+        }
+    }
+
+    @Test
+    public void testProfilesKeepTheirOwnSpeeds() {
+        WeightedEdge<Long> edge = speeds.neighbors(0L).get(0);
+        assertEquals(12, edge.weight() / speeds.travelSeconds(edge, RoutingProfile.BIKE)
+                * SECONDS_PER_HOUR, 1e-9);
+        assertEquals(3, edge.weight() / speeds.travelSeconds(edge, RoutingProfile.WALK)
+                * SECONDS_PER_HOUR, 1e-9);
+    }
+
+    @Test
+    public void testQuickestRouteTakesFasterRoad() {
+        assertEquals(Arrays.asList(1L, 3L, 2L), Router.shortestPath(routes, 0, 38, 0.04, 38,
+                RoutingProfile.CAR, CostModel.DISTANCE, null));
+        assertEquals(Arrays.asList(1L, 4L, 2L), Router.shortestPath(routes, 0, 38, 0.04, 38,
+                RoutingProfile.CAR, CostModel.TRAVEL_TIME, null));
+        /* Bikes go no faster on Fast Street, so the shorter road is also the quicker. */
+        assertEquals(Arrays.asList(1L, 3L, 2L), Router.shortestPath(routes, 0, 38, 0.04, 38,
+                RoutingProfile.BIKE, CostModel.TRAVEL_TIME, null));
+    }
+}
@@ -0,0 +1,65 @@
+package bearmaps.test;
+
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.server.handler.impl.VectorTileAPIHandler;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static bearmaps.proj2c.utils.Constants.STREET_GRAPH;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that clients must ask again before reusing a vector tile, and are sent it again only
+ * once the street graph has been replaced by one from other data.
+ */
+public class TestVectorTileAPIHandler {
+    private static AugmentedStreetMapGraph graph;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        graph = new OsmFixture()
+                .node(1, 0.00, 38.00).node(2, 0.01, 38.00)
+                .way(100, "highway=residential name=Main", 1, 2)
+                .build();
+    }
+
+    private static FakeResponse get(String ifNoneMatch) throws Exception {
+        FakeRequest request = new FakeRequest("/tiles").param("z", 0).param("x", 0)
+                .param("y", 0);
+        if (ifNoneMatch != null) {
+            request.header("If-None-Match", ifNoneMatch);
+        }
+        FakeResponse response = new FakeResponse();
+        Object body = new VectorTileAPIHandler().handle(request, response);
+        if (response.status() == 304) {
+            assertEquals(0, ((byte[]) body).length);
+        }
+        return response;
+    }
+
+    @Test
+    public void testTagChangesOnlyWithData() throws Exception {
+        STREET_GRAPH.set(graph, "data-a");
+        FakeResponse first = get(null);
+        assertEquals(200, first.status());
+        assertEquals("public, no-cache", first.header("Cache-Control"));
+        String etag = first.header("ETag");
+        assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+
+        /* The same data loaded again, e.g. after a restart, keeps its tag. */
+        STREET_GRAPH.set(graph, "data-a");
+        assertEquals(etag, get(null).header("ETag"));
+        assertEquals(304, get(etag).status());
+        assertEquals(304, get("\"other\", W/" + etag).status());
+        assertEquals(304, get("*").status());
+        assertEquals(200, get("\"other\"").status());
+
+        STREET_GRAPH.set(graph, "data-b");
+        FakeResponse reloaded = get(etag);
+        assertEquals(200, reloaded.status());
+        assertNotEquals(etag, reloaded.header("ETag"));
+        assertEquals("application/vnd.mapbox-vector-tile", reloaded.type());
+    }
+}
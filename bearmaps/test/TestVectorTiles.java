@@ -0,0 +1,257 @@
+package bearmaps.test;
+
+import bearmaps.hw4.WeightedEdge;
+import bearmaps.hw4.streetmap.Node;
+import bearmaps.proj2c.AugmentedStreetMapGraph;
+import bearmaps.proj2c.VectorTiles;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static bearmaps.proj2c.utils.Constants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes vector tiles of Berkeley and checks that they are well formed Mapbox Vector Tiles
+ * and that they draw every road.
+ */
+public class TestVectorTiles {
+    /* Simplification tolerance, plus rounding to tile coordinates. */
+    private static final double MAX_ERROR = VectorTiles.EXTENT / 512.0 + 1;
+
+    private static Graph graph;
+    private static VectorTiles tiles;
+
+    /** Exposes the nodes of the graph. */
+    private static class Graph extends AugmentedStreetMapGraph {
+        Graph(String dbPath) {
+            super(dbPath);
+        }
+
+        List<Node> nodes() {
+            return getNodes();
+        }
+    }
+
+    /** The lines of one layer of a decoded tile, each as alternating x and y coordinates. */
+    private static class Layer {
+        private String name;
+        private long version;
+        private long extent;
+        private final List<String> keys = new ArrayList<>();
+        private final List<int[]> lines = new ArrayList<>();
+        private final List<Integer> types = new ArrayList<>();
+    }
+
+    @BeforeClass
+    public static void setUp() {
+        graph = new Graph(OSM_DB_PATH);
+        tiles = graph.vectorTiles();
+    }
+
+    private static double worldX(double lon) {
+        return (lon + 180) / 360;
+    }
+
+    private static double worldY(double lat) {
+        double phi = Math.toRadians(lat);
+        return (1 - Math.log(Math.tan(phi) + 1 / Math.cos(phi)) / Math.PI) / 2;
+    }
+
+    /** A minimal protocol buffers reader. */
+    private static class Reader {
+        private final byte[] bytes;
+        private int pos;
+
+        Reader(byte[] bytes, int pos) {
+            this.bytes = bytes;
+            this.pos = pos;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = bytes[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+    }
+
+    private static Map<String, Layer> decode(byte[] tile) {
+        Map<String, Layer> layers = new HashMap<>();
+        Reader r = new Reader(tile, 0);
+        while (r.pos < tile.length) {
+            assertEquals("layers are field 3", (3 << 3) | 2, r.varint());
+            int end = (int) r.varint() + r.pos;
+            Layer layer = new Layer();
+            while (r.pos < end) {
+                long key = r.varint();
+                int field = (int) (key >> 3);
+                if ((key & 7) == 0) {
+                    long value = r.varint();
+                    if (field == 15) {
+                        layer.version = value;
+                    } else if (field == 5) {
+                        layer.extent = value;
+                    }
+                    continue;
+                }
+                int length = (int) r.varint();
+                if (field == 1) {
+                    layer.name = new String(tile, r.pos, length, StandardCharsets.UTF_8);
+                } else if (field == 3) {
+                    layer.keys.add(new String(tile, r.pos, length, StandardCharsets.UTF_8));
+                } else if (field == 2) {
+                    decodeFeature(new Reader(tile, r.pos), r.pos + length, layer);
+                }
+                r.pos += length;
+            }
+            layers.put(layer.name, layer);
+        }
+        return layers;
+    }
+
+    private static void decodeFeature(Reader r, int end, Layer layer) {
+        while (r.pos < end) {
+            long key = r.varint();
+            if ((key & 7) == 0) {
+                long value = r.varint();
+                if (key >> 3 == 3) {
+                    layer.types.add((int) value);
+                }
+                continue;
+            }
+            int fieldEnd = (int) r.varint() + r.pos;
+            List<Integer> values = new ArrayList<>();
+            while (r.pos < fieldEnd) {
+                values.add((int) r.varint());
+            }
+            if (key >> 3 == 4) {
+                decodeGeometry(values, layer);
+            }
+        }
+    }
+
+    private static void decodeGeometry(List<Integer> commands, Layer layer) {
+        int x = 0;
+        int y = 0;
+        List<Integer> line = null;
+        for (int i = 0; i < commands.size(); ) {
+            int id = commands.get(i) & 7;
+            int count = commands.get(i) >>> 3;
+            i += 1;
+            if (id == 1) {
+                assertEquals(1, count);
+                if (line != null) {
+                    layer.lines.add(line.stream().mapToInt(Integer::intValue).toArray());
+                }
+                line = new ArrayList<>();
+            } else {
+                assertEquals("only MoveTo and LineTo are used", 2, id);
+            }
+            for (int k = 0; k < count; k += 1) {
+                x += unZigZag(commands.get(i++));
+                y += unZigZag(commands.get(i++));
+                line.add(x);
+                line.add(y);
+            }
+        }
+        if (line != null) {
+            layer.lines.add(line.stream().mapToInt(Integer::intValue).toArray());
+        }
+    }
+
+    private static int unZigZag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    @Test
+    public void testTilesAreWellFormed() {
+        for (int z = 12; z <= 16; z += 1) {
+            int n = 1 << z;
+            for (int x = (int) (worldX(ROOT_ULLON) * n); x <= (int) (worldX(ROOT_LRLON) * n); x += 1) {
+                for (int y = (int) (worldY(ROOT_ULLAT) * n); y <= (int) (worldY(ROOT_LRLAT) * n);
+                     y += 1) {
+                    Map<String, Layer> layers = decode(tiles.tile(z, x, y));
+                    assertTrue(z >= VectorTiles.PLACES_MIN_ZOOM || !layers.containsKey("places"));
+                    for (Layer layer : layers.values()) {
+                        assertEquals(2, layer.version);
+                        assertEquals(VectorTiles.EXTENT, layer.extent);
+                        for (int type : layer.types) {
+                            assertEquals(layer.name.equals("roads") ? 2 : 1, type);
+                        }
+                        for (int[] line : layer.lines) {
+                            assertTrue(layer.name.equals("places") || line.length >= 4);
+                            for (int c : line) {
+                                assertTrue(c >= -64 && c <= VectorTiles.EXTENT + 64);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEveryRoadIsDrawn() {
+        int z = 16;
+        int n = 1 << z;
+        Map<Long, List<int[]>> lines = new HashMap<>();
+        for (Node node : graph.nodes()) {
+            for (WeightedEdge<Long> e : graph.neighbors(node.id())) {
+                /* The middle of each edge, in the coordinates of its tile. */
+                double mx = (worldX(graph.lon(e.from())) + worldX(graph.lon(e.to()))) / 2 * n;
+                double my = (worldY(graph.lat(e.from())) + worldY(graph.lat(e.to()))) / 2 * n;
+                int tx = (int) mx;
+                int ty = (int) my;
+                List<int[]> tileLines = lines.computeIfAbsent(((long) tx << 32) | ty, k -> {
+                    Layer roads = decode(tiles.tile(z, tx, ty)).get("roads");
+                    return roads == null ? new ArrayList<>() : roads.lines;
+                });
+                double px = (mx - tx) * VectorTiles.EXTENT;
+                double py = (my - ty) * VectorTiles.EXTENT;
+                double closest = Double.POSITIVE_INFINITY;
+                for (int[] line : tileLines) {
+                    for (int i = 0; i + 3 < line.length; i += 2) {
+                        closest = Math.min(closest, distanceToSegment(px, py,
+                                line[i], line[i + 1], line[i + 2], line[i + 3]));
+                    }
+                }
+                assertTrue("edge from " + e.from() + " to " + e.to() + " is not drawn",
+                        closest <= MAX_ERROR);
+            }
+        }
+    }
+
+    private static double distanceToSegment(double px, double py, double ax, double ay,
+                                            double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        double t = lengthSquared == 0 ? 0
+                : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / lengthSquared));
+        return Math.hypot(ax + t * dx - px, ay + t * dy - py);
+    }
+
+    @Test
+    public void testTilesAreCached() {
+        int x = (int) (worldX(ROOT_ULLON) * (1 << 14));
+        int y = (int) (worldY(ROOT_ULLAT) * (1 << 14));
+        assertSame(tiles.tile(14, x, y), tiles.tile(14, x, y));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoSuchTile() {
+        tiles.tile(3, 8, 0);
+    }
+}
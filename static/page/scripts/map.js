@@ -30,10 +30,15 @@ $(function() {
     var host;
     var ullon_bound, ullat_bound, lrlon_bound, lrlat_bound;
     var img_w, img_h;
+    // depth of the raster on the map, and whether it can be patched rather than fetched whole
+    var raster_depth;
+    var raster_fresh = false;
+    // bumped whenever the route changes, as the route is drawn into the raster
+    var route_version = 0;
     var constrain, theme;
 
     const base_move_delta = 64;
-    const MAX_LEVEL = 7;
+    const MAX_LEVEL = 10; // Deeper than 7, the server draws the tiles itself
     const MIN_LEVEL = 1; // Level limits based on pulled data
     const START_LAT = 37.871826;
     const START_LON = -122.260086;
@@ -59,6 +64,7 @@ $(function() {
     const route_server = host + '/route';
     const clear_route = host + '/clear_route';
     const search = host + '/search';
+    const search_limit = 10;
 
     /* ════════════════════════════ ೋღ HELPERS ღೋ ══════════════════════════ */
     function get_londpp() { return (ROOT_LRLON - ROOT_ULLON) / 256 / Math.pow(2, depth); }
@@ -81,6 +87,56 @@ $(function() {
         markers = [];
     }
 
+    /* Draws the raster in DATA onto the map, then calls DONE with whether all of it was. If the
+       server only sent the patches the last raster did not cover, that raster is moved into place
+       under them. */
+    function drawRaster(data, done) {
+        var parts = data.patches || [{x: 0, y: 0, b64_encoded_image_data: data.b64_encoded_image_data}];
+        var images = [];
+        var remaining = parts.length;
+        parts.forEach(function(part, i) {
+            console.log('Updating map with image length: ' + part.b64_encoded_image_data.length);
+            images[i] = new Image();
+            images[i].onload = images[i].onerror = function() {
+                remaining -= 1;
+                if (remaining === 0) {
+                    compose();
+                }
+            };
+            images[i].src = 'data:image/png;base64,' + part.b64_encoded_image_data;
+        });
+
+        function compose() {
+            var last = null;
+            if (data.patches) {
+                last = document.createElement('canvas');
+                last.width = map.width;
+                last.height = map.height;
+                last.getContext('2d').drawImage(map, 0, 0);
+            }
+            map.width = data.raster_width;
+            map.height = data.raster_height;
+            var ctx = map.getContext('2d');
+            if (last) {
+                var dx = (ullon_bound - data.raster_ul_lon) /
+                    (data.raster_lr_lon - data.raster_ul_lon) * data.raster_width;
+                var dy = (data.raster_ul_lat - ullat_bound) /
+                    (data.raster_ul_lat - data.raster_lr_lat) * data.raster_height;
+                ctx.drawImage(last, Math.round(dx), Math.round(dy));
+            }
+            // a patch that did not load leaves a hole, so the next raster is fetched whole
+            var complete = true;
+            parts.forEach(function(part, i) {
+                if (images[i].naturalWidth > 0) {
+                    ctx.drawImage(images[i], part.x, part.y);
+                } else {
+                    complete = false;
+                }
+            });
+            done(complete);
+        }
+    }
+
     function updateImg() {
         if (getInProgress) {
             updatePending = true;
@@ -92,6 +148,16 @@ $(function() {
         var params = get_view_bounds();
         params.w = w;
         params.h = h;
+        params.max_depth = MAX_LEVEL;
+        var version = route_version;
+        if (raster_fresh && raster_depth === depth) {
+            // the server only sends the tiles that are not on the map already
+            params.prev_ullon = ullon_bound;
+            params.prev_ullat = ullat_bound;
+            params.prev_lrlon = lrlon_bound;
+            params.prev_lrlat = lrlat_bound;
+            params.prev_depth = raster_depth;
+        }
         console.log(params);
         $warningsContainer.empty();
         $.get({
@@ -102,41 +168,45 @@ $(function() {
                 console.log(data);
                 if (data.query_success) {
                     $loadingStatus.hide();
-                    map.src = 'data:image/png;base64,' + data.b64_encoded_image_data;
-                    console.log('Updating map with image length: ' +
-                                data.b64_encoded_image_data.length);
-                    ullon_bound = data.raster_ul_lon;
-                    ullat_bound = data.raster_ul_lat;
-                    lrlon_bound = data.raster_lr_lon;
-                    lrlat_bound = data.raster_lr_lat;
-                    img_w = data.raster_width;
-                    img_h = data.raster_height;
-                    getInProgress = false;
-
-                    var warnings = [];
-                    if (data.depth !== depth) {
-                        warnings.push("got depth " + data.depth + " but was expecting " + depth);
-                    }
-                    if (img_w > params.w + 512) {
-                        warnings.push("got much wider image than expected. requested width: " + params.w + ". got: " + img_w);
-                    }
-                    if (img_h > params.h + 512) {
-                        warnings.push("got much taller image than expected. requested height: " + params.h + ". got: " + img_h);
-                    }
-                    if (warnings.length > 0) {
-                        var ele = $('<div/>', {
-                            class: 'card-content'
-                        });
-                        ele.html("Warnings:<br>" + warnings.join("<br>"));
-                        ele.appendTo($warningsContainer);
-                    }
-
-                    updateT();
-
-                    if (updatePending) {
-                        updatePending = false;
-                        updateImg();
-                    }
+                    drawRaster(data, function(complete) {
+                        ullon_bound = data.raster_ul_lon;
+                        ullat_bound = data.raster_ul_lat;
+                        lrlon_bound = data.raster_lr_lon;
+                        lrlat_bound = data.raster_lr_lat;
+                        img_w = data.raster_width;
+                        img_h = data.raster_height;
+                        raster_depth = data.depth;
+                        // tiles the server could not draw in time are not kept, so they are
+                        // fetched again with the next raster
+                        raster_fresh = complete && version === route_version &&
+                            !data.fallback_tiles;
+                        getInProgress = false;
+
+                        var warnings = [];
+                        if (data.depth !== depth) {
+                            warnings.push("got depth " + data.depth + " but was expecting " + depth);
+                        }
+                        if (img_w > params.w + 512) {
+                            warnings.push("got much wider image than expected. requested width: " + params.w + ". got: " + img_w);
+                        }
+                        if (img_h > params.h + 512) {
+                            warnings.push("got much taller image than expected. requested height: " + params.h + ". got: " + img_h);
+                        }
+                        if (warnings.length > 0) {
+                            var ele = $('<div/>', {
+                                class: 'card-content'
+                            });
+                            ele.html("Warnings:<br>" + warnings.join("<br>"));
+                            ele.appendTo($warningsContainer);
+                        }
+
+                        updateT();
+
+                        if (updatePending) {
+                            updatePending = false;
+                            updateImg();
+                        }
+                    });
                 } else {
                     $loadingStatus.hide();
                 }
@@ -181,6 +251,8 @@ $(function() {
             data: route_params,
             success: function(data) {
                 data = JSON.parse(data);
+                raster_fresh = false;
+                route_version += 1;
                 updateImg();
                 if (data.directions_success) {
                     $directionsText.html(data.directions);
@@ -314,7 +386,18 @@ $(function() {
 
     /* Make search bar do autocomplete things */
     $('#tags').autocomplete({
-          source: search,
+          source: function (request, response) {
+              $.get({
+                  async: true,
+                  url: search,
+                  dataType: 'json',
+                  data: { term: request.term, limit: search_limit, fuzzy: true, lon: lon, lat: lat },
+                  success: response,
+                  error: function() {
+                      response([]);
+                  },
+              });
+          },
           minLength: 2,
           select: function (event, ui) {
               $.get({
@@ -389,6 +472,8 @@ $(function() {
             success: function() {
                 dest.style.visibility = 'hidden';
                 $directionsText.html('No routing directions to display.');
+                raster_fresh = false;
+                route_version += 1;
                 updateImg();
             },
         });